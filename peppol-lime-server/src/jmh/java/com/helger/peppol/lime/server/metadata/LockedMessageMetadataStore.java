@@ -38,96 +38,103 @@
  * the provisions above, a recipient may use your version of this file
  * under either the MPL or the EUPL License.
  */
-package com.helger.peppol.lime.server;
+package com.helger.peppol.lime.server.metadata;
 
 import java.util.concurrent.locks.ReadWriteLock;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 
+import javax.annotation.Nonnegative;
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
 import javax.annotation.concurrent.ThreadSafe;
 
-import com.helger.commons.ValueEnforcer;
 import com.helger.commons.annotation.Nonempty;
 import com.helger.commons.collection.ext.CommonsHashMap;
 import com.helger.commons.collection.ext.ICommonsMap;
 import com.helger.commons.state.EChange;
-import com.helger.peppol.lime.api.IMessageMetadata;
 
 /**
- * Memory backed storage of all known objects. It is filled on WS create and
- * retrieved on WS put.
+ * The previous implementation of {@link MessageMetadataRAMStore} with a single
+ * read-write lock around a hash map. Only used as the baseline of
+ * {@link MessageMetadataRAMStoreBenchmark}. Removing takes the write lock, as
+ * the previous version mutated the map under the read lock.
  *
- * @author Ravnholt
- * @author PEPPOL.AT, BRZ, Philip Helger
+ * @author Philip Helger
  */
 @ThreadSafe
-final class MessageMetadataRAMStore
+final class LockedMessageMetadataStore implements IMessageMetadataStore
 {
-  private static final ReadWriteLock s_aRWLock = new ReentrantReadWriteLock ();
-  private static final ICommonsMap <String, IMessageMetadata> s_aMap = new CommonsHashMap <> ();
+  private final ReadWriteLock m_aRWLock = new ReentrantReadWriteLock ();
+  private final ICommonsMap <String, PendingMessage> m_aMap = new CommonsHashMap <> ();
 
-  /** Avoid instantiation */
-  private MessageMetadataRAMStore ()
-  {}
-
-  public static boolean isStored (@Nonnull @Nonempty final String sMessageID)
+  @Nonnull
+  public EChange createResource (@Nonnull @Nonempty final String sMessageID, @Nonnull final PendingMessage aMessage)
   {
-    s_aRWLock.readLock ().lock ();
+    m_aRWLock.writeLock ().lock ();
     try
     {
-      return s_aMap.containsKey (sMessageID);
+      if (m_aMap.containsKey (sMessageID))
+        return EChange.UNCHANGED;
+      m_aMap.put (sMessageID, aMessage);
+      return EChange.CHANGED;
     }
     finally
     {
-      s_aRWLock.readLock ().unlock ();
+      m_aRWLock.writeLock ().unlock ();
     }
   }
 
-  @Nonnull
-  public static EChange createResource (@Nonnull @Nonempty final String sMessageID,
-                                        @Nonnull final IMessageMetadata aMetadata)
+  @Nullable
+  public PendingMessage getMessage (@Nonnull @Nonempty final String sMessageID)
   {
-    ValueEnforcer.notNull (aMetadata, "Metadata");
-
-    s_aRWLock.writeLock ().lock ();
+    m_aRWLock.readLock ().lock ();
     try
     {
-      if (s_aMap.containsKey (sMessageID))
-        return EChange.UNCHANGED;
-      s_aMap.put (sMessageID, aMetadata);
-      return EChange.CHANGED;
+      return m_aMap.get (sMessageID);
     }
     finally
     {
-      s_aRWLock.writeLock ().unlock ();
+      m_aRWLock.readLock ().unlock ();
     }
   }
 
-  @Nullable
-  public static IMessageMetadata getMessage (@Nonnull @Nonempty final String sMessageID)
+  public void removeMessage (@Nonnull @Nonempty final String sMessageID)
   {
-    s_aRWLock.readLock ().lock ();
+    m_aRWLock.writeLock ().lock ();
     try
     {
-      return s_aMap.get (sMessageID);
+      m_aMap.remove (sMessageID);
     }
     finally
     {
-      s_aRWLock.readLock ().unlock ();
+      m_aRWLock.writeLock ().unlock ();
     }
   }
 
-  public static void removeMessage (@Nonnull @Nonempty final String sMessageID)
+  @Nonnegative
+  public int expireReservations (final long nNowMillis)
+  {
+    // The previous version had no eviction
+    return 0;
+  }
+
+  @Nonnegative
+  public int getReservationCount ()
   {
-    s_aRWLock.readLock ().lock ();
+    m_aRWLock.readLock ().lock ();
     try
     {
-      s_aMap.remove (sMessageID);
+      return m_aMap.size ();
     }
     finally
     {
-      s_aRWLock.readLock ().unlock ();
+      m_aRWLock.readLock ().unlock ();
     }
   }
+
+  @Nonnegative
+  public long getEvictedCount ()
+  {
+    return 0;
+  }
 }
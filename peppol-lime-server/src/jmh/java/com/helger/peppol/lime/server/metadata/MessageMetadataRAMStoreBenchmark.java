@@ -0,0 +1,148 @@
+/**
+ * Copyright (C) 2015-2016 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Version: MPL 1.1/EUPL 1.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at:
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is Copyright The PEPPOL project (http://www.peppol.eu)
+ *
+ * Alternatively, the contents of this file may be used under the
+ * terms of the EUPL, Version 1.1 or - as soon they will be approved
+ * by the European Commission - subsequent versions of the EUPL
+ * (the "Licence"); You may not use this work except in compliance
+ * with the Licence.
+ * You may obtain a copy of the Licence at:
+ * http://joinup.ec.europa.eu/software/page/eupl/licence-eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ *
+ * If you wish to allow use of your version of this file only
+ * under the terms of the EUPL License and not to allow others to use
+ * your version of this file under the MPL, indicate your decision by
+ * deleting the provisions above and replace them with the notice and
+ * other provisions required by the EUPL License. If you do not delete
+ * the provisions above, a recipient may use your version of this file
+ * under either the MPL or the EUPL License.
+ */
+package com.helger.peppol.lime.server.metadata;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import com.helger.peppol.lime.api.CLIME;
+import com.helger.peppol.lime.api.MessageMetadata;
+
+/**
+ * JMH benchmark of the create/put path of {@link MessageMetadataRAMStore}
+ * against the previous lock based store. Run it with
+ *
+ * <pre>
+ * mvn -Pjmh test-compile exec:exec
+ * </pre>
+ *
+ * in the peppol-lime-server directory. It runs with 1, 4, 16 and 64 threads.
+ *
+ * @author Philip Helger
+ */
+@BenchmarkMode (Mode.Throughput)
+@OutputTimeUnit (TimeUnit.MILLISECONDS)
+@Warmup (iterations = 3, time = 1)
+@Measurement (iterations = 5, time = 1)
+@Fork (1)
+public class MessageMetadataRAMStoreBenchmark
+{
+  private static final int [] THREAD_COUNTS = { 1, 4, 16, 64 };
+
+  @State (Scope.Benchmark)
+  public static class StoreState
+  {
+    @Param ({ "concurrent", "locked" })
+    public String m_sImpl;
+
+    IMessageMetadataStore m_aStore;
+    final AtomicInteger m_aThreadIndex = new AtomicInteger (0);
+
+    @Setup
+    public void setup ()
+    {
+      // No eviction happens during a run
+      m_aStore = "locked".equals (m_sImpl) ? new LockedMessageMetadataStore ()
+                                          : new MessageMetadataRAMStore (TimeUnit.HOURS.toMillis (1));
+    }
+  }
+
+  @State (Scope.Thread)
+  public static class ThreadState
+  {
+    String m_sPrefix;
+    long m_nCounter;
+    PendingMessage m_aMessage;
+
+    @Setup
+    public void setup (final StoreState aStoreState)
+    {
+      m_sPrefix = "uuid:bench-" + aStoreState.m_aThreadIndex.getAndIncrement () + "-";
+      m_aMessage = new PendingMessage (new MessageMetadata (m_sPrefix,
+                                                            "chid",
+                                                            CLIME.IF.createParticipantIdentifierWithDefaultScheme ("0088:sender"),
+                                                            CLIME.IF.createParticipantIdentifierWithDefaultScheme ("0088:receiver"),
+                                                            CLIME.IF.createDocumentTypeIdentifierWithDefaultScheme ("doc"),
+                                                            CLIME.IF.createProcessIdentifierWithDefaultScheme ("proc")),
+                                       null);
+    }
+  }
+
+  /**
+   * One message lifecycle: create, put (lookup and remove).
+   */
+  @Benchmark
+  public PendingMessage createAndPut (final StoreState aStoreState, final ThreadState aThreadState)
+  {
+    final String sMessageID = aThreadState.m_sPrefix + aThreadState.m_nCounter++;
+    final IMessageMetadataStore aStore = aStoreState.m_aStore;
+    aStore.createResource (sMessageID, aThreadState.m_aMessage);
+    final PendingMessage ret = aStore.getMessage (sMessageID);
+    aStore.removeMessage (sMessageID);
+    return ret;
+  }
+
+  public static void main (final String [] aArgs) throws Exception
+  {
+    for (final int nThreads : THREAD_COUNTS)
+    {
+      final Options aOptions = new OptionsBuilder ().include (MessageMetadataRAMStoreBenchmark.class.getSimpleName ())
+                                                    .threads (nThreads)
+                                                    .build ();
+      new Runner (aOptions).run ();
+    }
+  }
+}
@@ -40,6 +40,9 @@
  */
 package com.helger.peppol.lime.server;
 
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
 import javax.annotation.concurrent.Immutable;
@@ -48,6 +51,8 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.helger.as2lib.crypto.ECryptoAlgorithmSign;
+import com.helger.peppol.lime.server.storage.EStorageCompression;
+import com.helger.peppol.lime.server.storage.EStorageDurability;
 import com.helger.peppol.sml.ESML;
 import com.helger.settings.exchange.configfile.ConfigFile;
 import com.helger.settings.exchange.configfile.ConfigFileBuilder;
@@ -164,6 +169,317 @@ public final class LimeServerConfiguration
     return ECryptoAlgorithmSign.getFromIDOrDefault (sAlgo, ECryptoAlgorithmSign.DIGEST_SHA1);
   }
 
+  /**
+   * @return <code>true</code> if messages for remote access points should be
+   *         spooled and delivered asynchronously, <code>false</code> if they
+   *         are delivered within the put request. Defaults to
+   *         <code>false</code>.
+   */
+  public static boolean isOutboundAsync ()
+  {
+    return s_aConfigFile.getAsBoolean ("lime.outbound.async", false);
+  }
+
+  /**
+   * @return The number of worker threads for asynchronous outbound delivery.
+   *         Defaults to 8.
+   */
+  public static int getOutboundWorkerCount ()
+  {
+    return s_aConfigFile.getAsInt ("lime.outbound.workers", 8);
+  }
+
+  /**
+   * @return The maximum number of outbound messages waiting for a worker
+   *         thread. If this number is exceeded, put requests fail. Defaults to
+   *         1000.
+   */
+  public static int getOutboundQueueSize ()
+  {
+    return s_aConfigFile.getAsInt ("lime.outbound.queue.size", 1000);
+  }
+
+  /**
+   * @return The maximum number of concurrent AS2 sends to a single receiving
+   *         access point. 0 means unlimited. Defaults to 4.
+   */
+  public static int getOutboundLimitPerReceiver ()
+  {
+    return s_aConfigFile.getAsInt ("lime.outbound.limit.perreceiver", 4);
+  }
+
+  /**
+   * @return The maximum number of concurrent AS2 sends in total. 0 means
+   *         unlimited. Defaults to 32.
+   */
+  public static int getOutboundLimitGlobal ()
+  {
+    return s_aConfigFile.getAsInt ("lime.outbound.limit.global", 32);
+  }
+
+  /**
+   * @return The maximum number of milliseconds to wait for a free send slot if
+   *         a limit is reached. 0 means fail fast. Defaults to 5000.
+   */
+  public static int getOutboundLimitWaitMillis ()
+  {
+    return s_aConfigFile.getAsInt ("lime.outbound.limit.wait.millis", 5000);
+  }
+
+  /**
+   * @return The number of consecutive failed sends to a receiving access point
+   *         after which further sends fail fast. 0 disables the circuit
+   *         breaker. Defaults to 5.
+   */
+  public static int getOutboundBreakerFailures ()
+  {
+    return s_aConfigFile.getAsInt ("lime.outbound.breaker.failures", 5);
+  }
+
+  /**
+   * @return The number of seconds sends to a failing receiving access point
+   *         are rejected, before a single probe message is sent. Defaults to
+   *         60.
+   */
+  public static int getOutboundBreakerCoolDownSeconds ()
+  {
+    return s_aConfigFile.getAsInt ("lime.outbound.breaker.cooldown.seconds", 60);
+  }
+
+  /**
+   * @return The maximum number of AS2 delivery attempts per message, including
+   *         the first one. A value of 1 disables retries. Defaults to 6.
+   */
+  public static int getRetryMaxAttempts ()
+  {
+    return s_aConfigFile.getAsInt ("lime.retry.maxattempts", 6);
+  }
+
+  /**
+   * @return The number of seconds before the first retry. Each further retry
+   *         doubles the delay. Defaults to 60.
+   */
+  public static int getRetryInitialDelaySeconds ()
+  {
+    return s_aConfigFile.getAsInt ("lime.retry.initialdelay.seconds", 60);
+  }
+
+  /**
+   * @return The maximum number of seconds between two retries. Defaults to
+   *         3600 (1 hour).
+   */
+  public static int getRetryMaxDelaySeconds ()
+  {
+    return s_aConfigFile.getAsInt ("lime.retry.maxdelay.seconds", 3600);
+  }
+
+  /**
+   * @return The maximum percentage by which each retry delay is randomly
+   *         shortened. Defaults to 20.
+   */
+  public static int getRetryJitterPercent ()
+  {
+    return s_aConfigFile.getAsInt ("lime.retry.jitter.percent", 20);
+  }
+
+  /**
+   * @return The number of threads executing due retries. Defaults to 2.
+   */
+  public static int getRetryWorkerCount ()
+  {
+    return s_aConfigFile.getAsInt ("lime.retry.workers", 2);
+  }
+
+  /**
+   * @return The number of seconds after which a created message that was not
+   *         put is discarded. Defaults to 3600.
+   */
+  public static int getReservationTTLSeconds ()
+  {
+    return s_aConfigFile.getAsInt ("lime.reservation.ttl.seconds", 3600);
+  }
+
+  /**
+   * @param sChannelID
+   *        The channel ID. May be <code>null</code>.
+   * @return The number of minutes after which a message in the inbox of the
+   *         passed channel is deleted. Uses
+   *         <code>lime.retention.minutes.&lt;channelID&gt;</code> and falls
+   *         back to <code>lime.retention.minutes</code>, which defaults to
+   *         120.
+   */
+  public static int getRetentionMinutes (@Nullable final String sChannelID)
+  {
+    final int nDefault = s_aConfigFile.getAsInt ("lime.retention.minutes", 120);
+    if (sChannelID == null)
+      return nDefault;
+    return s_aConfigFile.getAsInt ("lime.retention.minutes." + sChannelID, nDefault);
+  }
+
+  /**
+   * @return The maximum number of expired messages deleted per second.
+   *         Defaults to 50.
+   */
+  public static int getRetentionDeletesPerSecond ()
+  {
+    return s_aConfigFile.getAsInt ("lime.retention.deletes.per.second", 50);
+  }
+
+  /**
+   * @return The inbox storage: <code>files</code> for one metadata and one
+   *         payload file per message or <code>segment</code> for append-only
+   *         segment files per channel. Defaults to <code>files</code>.
+   */
+  @Nonnull
+  public static String getStorageType ()
+  {
+    return s_aConfigFile.getAsString ("lime.storage.type", "files");
+  }
+
+  /**
+   * @return The size in megabytes after which the segment storage starts a new
+   *         segment file. Defaults to 64.
+   */
+  public static int getStorageSegmentSizeMB ()
+  {
+    return s_aConfigFile.getAsInt ("lime.storage.segment.size.mb", 64);
+  }
+
+  /**
+   * @return The number of hash subdirectory levels (0 to 2) of the file based
+   *         storage per channel. Defaults to 0.
+   */
+  public static int getStorageShardLevels ()
+  {
+    return s_aConfigFile.getAsInt ("lime.storage.shard.levels", 0);
+  }
+
+  /**
+   * @return The maximum number of messages per second moved from the flat
+   *         layout into the hash subdirectories. Defaults to 200.
+   */
+  public static int getStorageShardMigrationPerSecond ()
+  {
+    return s_aConfigFile.getAsInt ("lime.storage.shard.migrate.per.second", 200);
+  }
+
+  /**
+   * @return How newly stored payloads are compressed. Defaults to "none".
+   */
+  @Nonnull
+  public static EStorageCompression getStorageCompression ()
+  {
+    final String sCompression = s_aConfigFile.getAsString ("lime.storage.compression");
+    return EStorageCompression.getFromIDOrDefault (sCompression, EStorageCompression.NONE);
+  }
+
+  /**
+   * @return The compression level from 1 (fastest) to 9 (smallest) or -1 for
+   *         the default level. Defaults to -1.
+   */
+  public static int getStorageCompressionLevel ()
+  {
+    return s_aConfigFile.getAsInt ("lime.storage.compression.level", -1);
+  }
+
+  /**
+   * @return When stored messages are forced to disk. Defaults to "none".
+   */
+  @Nonnull
+  public static EStorageDurability getStorageDurability ()
+  {
+    final String sDurability = s_aConfigFile.getAsString ("lime.storage.durability");
+    return EStorageDurability.getFromIDOrDefault (sDurability, EStorageDurability.NONE);
+  }
+
+  /**
+   * @return The milliseconds to collect the syncs of concurrently stored
+   *         messages if the storage durability is "group". Defaults to 2.
+   */
+  public static int getStorageGroupCommitMillis ()
+  {
+    return s_aConfigFile.getAsInt ("lime.storage.groupcommit.millis", 2);
+  }
+
+  /**
+   * @return The store for created messages: <code>memory</code>,
+   *         <code>journal</code> or the fully qualified name of a class
+   *         implementing <code>IMessageMetadataStore</code>. Defaults to
+   *         <code>memory</code>.
+   */
+  @Nonnull
+  public static String getMetadataStore ()
+  {
+    return s_aConfigFile.getAsString ("lime.metadata.store", "memory");
+  }
+
+  /**
+   * @return The secret for signing message ID tokens. If present, create keeps
+   *         no state and all metadata is part of the message ID. May be
+   *         <code>null</code>.
+   */
+  @Nullable
+  public static String getMetadataTokenSecret ()
+  {
+    return s_aConfigFile.getAsString ("lime.metadata.token.secret");
+  }
+
+  /**
+   * @return The directory shared by all nodes for the metadata journals. May
+   *         be <code>null</code>.
+   */
+  @Nullable
+  public static String getMetadataJournalPath ()
+  {
+    return s_aConfigFile.getAsString ("lime.metadata.journal.path");
+  }
+
+  /**
+   * @return The unique ID of this node in the metadata journal directory.
+   *         Defaults to {@link #getNodeID()}.
+   */
+  @Nonnull
+  public static String getMetadataJournalNodeID ()
+  {
+    final String ret = s_aConfigFile.getAsString ("lime.metadata.journal.nodeid");
+    if (ret != null && ret.trim ().length () > 0)
+      return ret.trim ();
+    return getNodeID ();
+  }
+
+  /**
+   * @return The ID of this node, unique among all LIME nodes of a cluster.
+   *         Defaults to the host name.
+   */
+  @Nonnull
+  public static String getNodeID ()
+  {
+    final String ret = s_aConfigFile.getAsString ("lime.node.id");
+    if (ret != null && ret.trim ().length () > 0)
+      return ret.trim ();
+    try
+    {
+      return InetAddress.getLocalHost ().getHostName ();
+    }
+    catch (final UnknownHostException ex)
+    {
+      s_aLogger.warn ("Failed to determine the host name - using a fixed node ID", ex);
+      return "lime";
+    }
+  }
+
+  /**
+   * @return The generator for new message IDs: <code>timeordered</code>,
+   *         <code>uuid</code> or the fully qualified name of a class
+   *         implementing <code>IMessageIDGenerator</code>. Defaults to
+   *         <code>timeordered</code>.
+   */
+  @Nonnull
+  public static String getMessageIDGenerator ()
+  {
+    return s_aConfigFile.getAsString ("lime.messageid.generator", "timeordered");
+  }
+
   /**
    * @return The storage path for the LIME messages. If this property is not
    *         defined it should default to
@@ -185,4 +501,74 @@ public final class LimeServerConfiguration
   {
     return s_aConfigFile.getAsString ("lime.service.url");
   }
+
+  /**
+   * @return The maximum number of resolved SMP endpoints to be cached. If the
+   *         value is 0, caching is disabled. Defaults to 1000.
+   */
+  public static int getSMPCacheMaxSize ()
+  {
+    return s_aConfigFile.getAsInt ("smp.cache.maxsize", 1000);
+  }
+
+  /**
+   * @return The number of seconds a resolved SMP endpoint is cached. If the
+   *         value is 0, caching is disabled. Defaults to 300 (5 minutes).
+   */
+  public static int getSMPCacheTTLSeconds ()
+  {
+    return s_aConfigFile.getAsInt ("smp.cache.ttl.seconds", 300);
+  }
+
+  /**
+   * @return The number of seconds a failed SMP endpoint lookup is remembered.
+   *         During this time no new SMP query is performed for the same
+   *         participant. If the value is 0, failed lookups are not cached.
+   *         Defaults to 30.
+   */
+  public static int getSMPCacheNegativeTTLSeconds ()
+  {
+    return s_aConfigFile.getAsInt ("smp.cache.negative.ttl.seconds", 30);
+  }
+
+  /**
+   * @return The maximum number of threads used to resolve the sender and the
+   *         recipient endpoints in parallel. 0 means both are resolved in the
+   *         request thread one after the other. Defaults to 8.
+   */
+  public static int getSMPLookupThreads ()
+  {
+    return s_aConfigFile.getAsInt ("smp.lookup.threads", 8);
+  }
+
+  /**
+   * @return The maximum number of seconds to wait for the SMP lookups of a
+   *         single put request. Defaults to 30.
+   */
+  public static int getSMPLookupTimeoutSeconds ()
+  {
+    return s_aConfigFile.getAsInt ("smp.lookup.timeout.seconds", 30);
+  }
+
+  /**
+   * @return The path to the file containing all participants hosted on this
+   *         access point, one URI encoded participant identifier per line. If
+   *         this property is defined, local routing is decided based on this
+   *         file instead of comparing the SMP endpoints of sender and
+   *         recipient. May be <code>null</code>.
+   */
+  @Nullable
+  public static String getLocalParticipantsPath ()
+  {
+    return s_aConfigFile.getAsString ("lime.local.participants.path");
+  }
+
+  /**
+   * @return The minimum number of seconds between two modification checks of
+   *         the local participants file. Defaults to 30.
+   */
+  public static int getLocalParticipantsCheckSeconds ()
+  {
+    return s_aConfigFile.getAsInt ("lime.local.participants.check.seconds", 30);
+  }
 }
@@ -41,11 +41,15 @@
 package com.helger.peppol.lime.server;
 
 import java.io.File;
-import java.security.cert.X509Certificate;
+import java.io.IOException;
+import java.security.cert.CertificateException;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.function.ToLongFunction;
 
+import javax.annotation.Nonnegative;
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
 import javax.annotation.Resource;
@@ -60,6 +64,7 @@ import javax.xml.soap.SOAPException;
 import javax.xml.soap.SOAPFactory;
 import javax.xml.soap.SOAPFault;
 import javax.xml.transform.dom.DOMResult;
+import javax.xml.transform.dom.DOMSource;
 import javax.xml.ws.WebServiceContext;
 import javax.xml.ws.handler.MessageContext;
 import javax.xml.ws.soap.SOAPFaultException;
@@ -72,6 +77,7 @@ import org.w3c.dom.Element;
 import org.w3c.dom.Node;
 
 import com.helger.as2lib.client.AS2ClientResponse;
+import com.helger.commons.CGlobal;
 import com.helger.commons.collection.CollectionHelper;
 import com.helger.commons.equals.EqualsHelper;
 import com.helger.commons.string.StringHelper;
@@ -79,10 +85,6 @@ import com.helger.commons.string.StringParser;
 import com.helger.commons.system.ENewLineMode;
 import com.helger.jaxb.JAXBContextCache;
 import com.helger.peppol.as2client.AS2ClientBuilder;
-import com.helger.peppol.as2client.AS2ClientHelper;
-import com.helger.peppol.identifier.generic.doctype.IDocumentTypeIdentifier;
-import com.helger.peppol.identifier.generic.participant.IParticipantIdentifier;
-import com.helger.peppol.identifier.generic.process.IProcessIdentifier;
 import com.helger.peppol.lime.api.CTransportIdentifiers;
 import com.helger.peppol.lime.api.IMessageMetadata;
 import com.helger.peppol.lime.api.MessageMetadata;
@@ -100,17 +102,42 @@ import com.helger.peppol.lime.api.wstransfer.Put;
 import com.helger.peppol.lime.api.wstransfer.PutResponse;
 import com.helger.peppol.lime.api.wstransfer.ResourceCreated;
 import com.helger.peppol.lime.client.CLimeIdentifiers;
+import com.helger.peppol.lime.server.as2.AS2CircuitBreaker;
+import com.helger.peppol.lime.server.as2.AS2ReceiverCertificateCache;
+import com.helger.peppol.lime.server.as2.AS2ReceiverInfo;
+import com.helger.peppol.lime.server.as2.AS2SendLimiter;
+import com.helger.peppol.lime.server.exception.CircuitOpenException;
 import com.helger.peppol.lime.server.exception.MessageIdReusedException;
 import com.helger.peppol.lime.server.exception.RecipientUnreachableException;
+import com.helger.peppol.lime.server.exception.SendLimitExceededException;
+import com.helger.peppol.lime.server.metadata.IMessageIDGenerator;
+import com.helger.peppol.lime.server.metadata.IMessageMetadataStore;
+import com.helger.peppol.lime.server.metadata.MessageMetadataJournalStore;
+import com.helger.peppol.lime.server.metadata.MessageMetadataRAMStore;
+import com.helger.peppol.lime.server.metadata.MessageMetadataTokenCodec;
+import com.helger.peppol.lime.server.metadata.PendingMessage;
+import com.helger.peppol.lime.server.metadata.TimeOrderedMessageIDGenerator;
+import com.helger.peppol.lime.server.outbound.OutboundDispatcher;
+import com.helger.peppol.lime.server.outbound.OutboundRetryScheduler;
+import com.helger.peppol.lime.server.outbound.OutboundSpool;
+import com.helger.peppol.lime.server.outbound.RetryPolicy;
+import com.helger.peppol.lime.server.routing.LocalParticipantRegistry;
+import com.helger.peppol.lime.server.routing.MessageRouting;
+import com.helger.peppol.lime.server.routing.MessageRoutingResolver;
+import com.helger.peppol.lime.server.smp.SMPEndpointCache;
+import com.helger.peppol.lime.server.smp.SMPEndpointResolver;
+import com.helger.peppol.lime.server.storage.ILimeStorage;
+import com.helger.peppol.lime.server.storage.LimeSegmentStorage;
 import com.helger.peppol.lime.server.storage.LimeStorage;
+import com.helger.peppol.lime.server.storage.MessageExpirySweeper;
 import com.helger.peppol.lime.server.storage.MessagePageListCreator;
+import com.helger.peppol.lime.server.storage.PayloadCompression;
+import com.helger.peppol.lime.server.storage.ShardMigrator;
+import com.helger.peppol.lime.server.storage.StorageSyncer;
 import com.helger.peppol.sml.ISMLInfo;
 import com.helger.peppol.smp.ESMPTransportProfile;
 import com.helger.peppol.smp.EndpointType;
 import com.helger.peppol.smp.ISMPTransportProfile;
-import com.helger.peppol.smpclient.SMPClientReadOnly;
-import com.helger.peppol.smpclient.exception.SMPClientException;
-import com.helger.peppol.url.PeppolURLProvider;
 import com.helger.peppol.utils.W3CEndpointReferenceHelper;
 import com.helger.xml.XMLFactory;
 import com.sun.xml.ws.api.message.HeaderList;
@@ -139,10 +166,109 @@ public class LimeService
   private static final Logger s_aLogger = LoggerFactory.getLogger (LimeService.class);
 
   private static final ObjectFactory s_aObjFactory = new ObjectFactory ();
+  private static final SMPEndpointResolver s_aEndpointResolver = new SMPEndpointResolver (new SMPEndpointCache (LimeServerConfiguration.getSMPCacheMaxSize (),
+                                                                                                                TimeUnit.SECONDS.toMillis (LimeServerConfiguration.getSMPCacheTTLSeconds ()),
+                                                                                                                TimeUnit.SECONDS.toMillis (LimeServerConfiguration.getSMPCacheNegativeTTLSeconds ())),
+                                                                                          LimeServerConfiguration.getSMPLookupThreads ());
+  private static final MessageRoutingResolver s_aRoutingResolver = new MessageRoutingResolver (s_aEndpointResolver,
+                                                                                               LimeServerConfiguration.getSML (),
+                                                                                               ESMPTransportProfile.TRANSPORT_PROFILE_AS2);
+  private static final LocalParticipantRegistry s_aLocalParticipants = _createLocalParticipantRegistry ();
+  private static final IMessageMetadataStore s_aMetadataStore = _createMetadataStore ();
+  private static final MessageMetadataTokenCodec s_aMetadataTokenCodec = _createMetadataTokenCodec ();
+  private static final IMessageIDGenerator s_aMessageIDGenerator = _createMessageIDGenerator ();
+  private static final AS2ReceiverCertificateCache s_aAS2ReceiverCertificates = new AS2ReceiverCertificateCache ();
+  private static final AS2SendLimiter s_aAS2SendLimiter = new AS2SendLimiter (LimeServerConfiguration.getOutboundLimitPerReceiver (),
+                                                                              LimeServerConfiguration.getOutboundLimitGlobal (),
+                                                                              LimeServerConfiguration.getOutboundLimitWaitMillis ());
+  private static final AS2CircuitBreaker s_aAS2CircuitBreaker = new AS2CircuitBreaker (LimeServerConfiguration.getOutboundBreakerFailures (),
+                                                                                       TimeUnit.SECONDS.toMillis (LimeServerConfiguration.getOutboundBreakerCoolDownSeconds ()));
+  /** Name of the outbound spool directory inside the storage path */
+  private static final String OUTBOUND_SPOOL_DIR = "outbound";
+  /** Name of the retry spool directory inside the storage path */
+  private static final String RETRY_SPOOL_DIR = "retry";
+  private static volatile OutboundDispatcher s_aOutboundDispatcher;
+  private static volatile OutboundRetryScheduler s_aRetryScheduler;
+  /** The storage shared by all requests */
+  private static volatile ILimeStorage s_aStorage;
+  private static volatile MessageExpirySweeper s_aExpirySweeper;
+  private static volatile ShardMigrator s_aShardMigrator;
 
   @Resource
   private WebServiceContext m_aWebServiceContext;
 
+  @Nullable
+  private static LocalParticipantRegistry _createLocalParticipantRegistry ()
+  {
+    final String sPath = LimeServerConfiguration.getLocalParticipantsPath ();
+    if (StringHelper.hasNoText (sPath))
+      return null;
+    return new LocalParticipantRegistry (new File (sPath),
+                                         TimeUnit.SECONDS.toMillis (LimeServerConfiguration.getLocalParticipantsCheckSeconds ()));
+  }
+
+  @Nonnull
+  private static IMessageMetadataStore _createMetadataStore ()
+  {
+    final long nTTLMillis = TimeUnit.SECONDS.toMillis (LimeServerConfiguration.getReservationTTLSeconds ());
+    final String sStore = LimeServerConfiguration.getMetadataStore ();
+    if ("memory".equals (sStore))
+      return new MessageMetadataRAMStore (nTTLMillis);
+    if ("journal".equals (sStore))
+    {
+      final String sPath = LimeServerConfiguration.getMetadataJournalPath ();
+      if (StringHelper.hasNoText (sPath))
+        throw new IllegalStateException ("The metadata journal requires the property 'lime.metadata.journal.path'");
+      try
+      {
+        return new MessageMetadataJournalStore (new File (sPath),
+                                                LimeServerConfiguration.getMetadataJournalNodeID (),
+                                                nTTLMillis,
+                                                MessageMetadataJournalStore.DEFAULT_SEGMENT_SIZE);
+      }
+      catch (final IOException ex)
+      {
+        throw new IllegalStateException ("Failed to open the metadata journal in " + sPath, ex);
+      }
+    }
+    try
+    {
+      return Class.forName (sStore).asSubclass (IMessageMetadataStore.class).newInstance ();
+    }
+    catch (final ReflectiveOperationException | ClassCastException ex)
+    {
+      throw new IllegalStateException ("Failed to create the metadata store '" + sStore + "'", ex);
+    }
+  }
+
+  @Nonnull
+  private static IMessageIDGenerator _createMessageIDGenerator ()
+  {
+    final String sGenerator = LimeServerConfiguration.getMessageIDGenerator ();
+    if ("timeordered".equals (sGenerator))
+      return new TimeOrderedMessageIDGenerator (LimeServerConfiguration.getNodeID ());
+    if ("uuid".equals (sGenerator))
+      return () -> "uuid:" + UUID.randomUUID ().toString ();
+    try
+    {
+      return Class.forName (sGenerator).asSubclass (IMessageIDGenerator.class).newInstance ();
+    }
+    catch (final ReflectiveOperationException | ClassCastException ex)
+    {
+      throw new IllegalStateException ("Failed to create the message ID generator '" + sGenerator + "'", ex);
+    }
+  }
+
+  @Nullable
+  private static MessageMetadataTokenCodec _createMetadataTokenCodec ()
+  {
+    final String sSecret = LimeServerConfiguration.getMetadataTokenSecret ();
+    if (StringHelper.hasNoText (sSecret))
+      return null;
+    return new MessageMetadataTokenCodec (sSecret,
+                                          TimeUnit.SECONDS.toMillis (LimeServerConfiguration.getReservationTTLSeconds ()));
+  }
+
   /**
    * @return The HTTP {@link HeaderList} of the current WS request
    */
@@ -181,19 +307,190 @@ public class LimeService
            SERVICENAME;
   }
 
+  /**
+   * @param aSC
+   *        The servlet context to be used as the fallback. May not be
+   *        <code>null</code>.
+   * @return The configured storage path or the real path of the servlet
+   *         context, if no storage path is configured.
+   */
   @Nonnull
-  private LimeStorage _createLimeStorage ()
+  static String getEffectiveStoragePath (@Nonnull final ServletContext aSC)
   {
     // Get value from configuration file
-    String sStorePath = LimeServerConfiguration.getStoragePath ();
-    if (sStorePath == null)
+    final String sStorePath = LimeServerConfiguration.getStoragePath ();
+    if (sStorePath != null)
+      return sStorePath;
+    // Default to servlet context
+    return aSC.getRealPath ("/");
+  }
+
+  @Nonnull
+  private static ILimeStorage _createLimeStorage (@Nonnull final String sStoragePath)
+  {
+    final ToLongFunction <String> aRetentionProvider = sChannelID -> TimeUnit.MINUTES.toMillis (LimeServerConfiguration.getRetentionMinutes (sChannelID));
+    final StorageSyncer aSyncer = new StorageSyncer (LimeServerConfiguration.getStorageDurability (),
+                                                     LimeServerConfiguration.getStorageGroupCommitMillis ());
+    final PayloadCompression aCompression = new PayloadCompression (LimeServerConfiguration.getStorageCompression (),
+                                                                    LimeServerConfiguration.getStorageCompressionLevel ());
+    final String sType = LimeServerConfiguration.getStorageType ();
+    if ("files".equals (sType))
+      return new LimeStorage (sStoragePath,
+                              aRetentionProvider,
+                              aSyncer,
+                              aCompression,
+                              LimeServerConfiguration.getStorageShardLevels ());
+    if ("segment".equals (sType))
+      return new LimeSegmentStorage (sStoragePath,
+                                     aRetentionProvider,
+                                     aSyncer,
+                                     aCompression,
+                                     LimeServerConfiguration.getStorageSegmentSizeMB () *
+                                                CGlobal.BYTES_PER_KILOBYTE_LONG *
+                                                CGlobal.BYTES_PER_KILOBYTE_LONG);
+    aSyncer.shutdown ();
+    throw new IllegalStateException ("Unsupported storage type '" + sType + "'");
+  }
+
+  @Nonnull
+  private ILimeStorage _getLimeStorage ()
+  {
+    ILimeStorage ret = s_aStorage;
+    if (ret == null)
     {
-      // Default to servlet context
       final ServletContext aSC = (ServletContext) m_aWebServiceContext.getMessageContext ()
                                                                       .get (MessageContext.SERVLET_CONTEXT);
-      sStorePath = aSC.getRealPath ("/");
+      synchronized (LimeService.class)
+      {
+        ret = s_aStorage;
+        if (ret == null)
+        {
+          ret = _createLimeStorage (getEffectiveStoragePath (aSC));
+          s_aStorage = ret;
+        }
+      }
+    }
+    return ret;
+  }
+
+  /**
+   * Start the background services: the sweeper for expired inbox messages, the
+   * retry scheduler for failed outbound messages and, if configured, the
+   * asynchronous outbound delivery. All messages remaining in the spools from a
+   * previous run are scheduled.
+   *
+   * @param sStoragePath
+   *        The LIME storage path. May not be <code>null</code>.
+   */
+  static void startBackgroundServices (@Nonnull final String sStoragePath)
+  {
+    final ILimeStorage aStorage = _createLimeStorage (sStoragePath);
+    s_aStorage = aStorage;
+    s_aExpirySweeper = new MessageExpirySweeper (aStorage, LimeServerConfiguration.getRetentionDeletesPerSecond ());
+    if (aStorage instanceof LimeStorage && !((LimeStorage) aStorage).isShardMigrationComplete ())
+      s_aShardMigrator = new ShardMigrator ((LimeStorage) aStorage,
+                                            LimeServerConfiguration.getStorageShardMigrationPerSecond ());
+
+    final RetryPolicy aRetryPolicy = new RetryPolicy (LimeServerConfiguration.getRetryMaxAttempts (),
+                                                      TimeUnit.SECONDS.toMillis (LimeServerConfiguration.getRetryInitialDelaySeconds ()),
+                                                      TimeUnit.SECONDS.toMillis (LimeServerConfiguration.getRetryMaxDelaySeconds ()),
+                                                      LimeServerConfiguration.getRetryJitterPercent ());
+    if (aRetryPolicy.isRetryEnabled ())
+    {
+      final OutboundSpool aSpool = new OutboundSpool (new File (sStoragePath, RETRY_SPOOL_DIR));
+      final OutboundRetryScheduler aRetryScheduler = new OutboundRetryScheduler (aSpool,
+                                                                                 aRetryPolicy,
+                                                                                 LimeServerConfiguration.getRetryWorkerCount (),
+                                                                                 LimeService::_sendToAccessPoint,
+                                                                                 (aMetadata,
+                                                                                  aPayload,
+                                                                                  ex) -> _onOutboundDeliveryFailed (aStorage,
+                                                                                                                    aMetadata,
+                                                                                                                    ex));
+      s_aRetryScheduler = aRetryScheduler;
+      aRetryScheduler.recover ();
+      s_aLogger.info ("Started outbound retry scheduler with " +
+                      aRetryPolicy +
+                      " and spool " +
+                      aSpool.getDirectory ().getAbsolutePath ());
+    }
+
+    if (LimeServerConfiguration.isOutboundAsync ())
+    {
+      final OutboundSpool aSpool = new OutboundSpool (new File (sStoragePath, OUTBOUND_SPOOL_DIR));
+      final OutboundDispatcher aDispatcher = new OutboundDispatcher (aSpool,
+                                                                     LimeServerConfiguration.getOutboundWorkerCount (),
+                                                                     LimeServerConfiguration.getOutboundQueueSize (),
+                                                                     LimeService::_sendToAccessPoint,
+                                                                     (aMetadata,
+                                                                      aPayload,
+                                                                      ex) -> _onOutboundAttemptFailed (aStorage,
+                                                                                                       aMetadata,
+                                                                                                       aPayload,
+                                                                                                       ex));
+      s_aOutboundDispatcher = aDispatcher;
+      aDispatcher.recover ();
+      s_aLogger.info ("Started asynchronous outbound delivery with spool " + aSpool.getDirectory ().getAbsolutePath ());
     }
-    return new LimeStorage (sStorePath);
+  }
+
+  /**
+   * Stop all background services that are running.
+   */
+  static void stopBackgroundServices ()
+  {
+    final OutboundDispatcher aDispatcher = s_aOutboundDispatcher;
+    if (aDispatcher != null)
+    {
+      s_aOutboundDispatcher = null;
+      aDispatcher.shutdown (TimeUnit.SECONDS.toMillis (30));
+    }
+    final OutboundRetryScheduler aRetryScheduler = s_aRetryScheduler;
+    if (aRetryScheduler != null)
+    {
+      s_aRetryScheduler = null;
+      aRetryScheduler.shutdown (TimeUnit.SECONDS.toMillis (30));
+    }
+    final ShardMigrator aShardMigrator = s_aShardMigrator;
+    if (aShardMigrator != null)
+    {
+      s_aShardMigrator = null;
+      aShardMigrator.shutdown (TimeUnit.SECONDS.toMillis (30));
+    }
+    final MessageExpirySweeper aExpirySweeper = s_aExpirySweeper;
+    if (aExpirySweeper != null)
+    {
+      s_aExpirySweeper = null;
+      aExpirySweeper.shutdown (TimeUnit.SECONDS.toMillis (30));
+    }
+    final ILimeStorage aStorage = s_aStorage;
+    if (aStorage != null)
+    {
+      s_aStorage = null;
+      aStorage.close ();
+    }
+    s_aEndpointResolver.shutdown ();
+    s_aMetadataStore.close ();
+  }
+
+  /**
+   * @return The scheduler for retrying failed outbound messages or
+   *         <code>null</code> if retries are disabled.
+   */
+  @Nullable
+  public static OutboundRetryScheduler getRetryScheduler ()
+  {
+    return s_aRetryScheduler;
+  }
+
+  /**
+   * @return The asynchronous outbound dispatcher or <code>null</code> if
+   *         outbound messages are sent synchronously.
+   */
+  @Nullable
+  public static OutboundDispatcher getOutboundDispatcher ()
+  {
+    return s_aOutboundDispatcher;
   }
 
   @Nonnull
@@ -252,20 +549,30 @@ public class LimeService
   public CreateResponse create (@Nullable final Create body)
   {
     // Create a new unique messageID
-    final String sMessageID = "uuid:" + UUID.randomUUID ().toString ();
+    final String sMessageID = s_aMessageIDGenerator.createMessageID ();
     final String sThisServiceURL = _getThisServiceURL ();
 
     IMessageMetadata aMetadata = null;
+    String sResourceID = sMessageID;
     try
     {
       // Grabs the list of headers from the SOAP message
       final HeaderList aHeaderList = _getInboundHeaderList ();
       aMetadata = MessageMetadataHelper.createMetadataFromHeadersWithCustomMessageID (aHeaderList, sMessageID);
 
-      if (MessageMetadataRAMStore.createResource (sMessageID, aMetadata).isUnchanged ())
-        throw new MessageIdReusedException ("Message id '" +
-                                            sMessageID +
-                                            "' is reused by this LIME service. Seems like we have a problem with the UUID generator");
+      // Start resolving the routing, so that it is available on put
+      final MessageRouting aRouting = _prefetchRouting (aMetadata);
+      if (s_aMetadataTokenCodec != null)
+      {
+        // Stateless - the client passes all metadata back on put. The
+        // prefetched routing only warms the SMP cache.
+        sResourceID = s_aMetadataTokenCodec.createToken (aMetadata, System.currentTimeMillis ());
+      }
+      else
+        if (s_aMetadataStore.createResource (sMessageID, new PendingMessage (aMetadata, aRouting)).isUnchanged ())
+          throw new MessageIdReusedException ("Message id '" +
+                                              sMessageID +
+                                              "' is reused by this LIME service. Seems like we have a problem with the message ID generator");
     }
     catch (final Exception ex)
     {
@@ -281,45 +588,48 @@ public class LimeService
     final ResourceCreated aResourceCreated = new ResourceCreated ();
     final W3CEndpointReference w3CEndpointReference = createW3CEndpointReference (sThisServiceURL,
                                                                                   aMetadata.getChannelID (),
-                                                                                  sMessageID);
+                                                                                  sResourceID);
     aResourceCreated.getEndpointReference ().add (w3CEndpointReference);
     ret.setResourceCreated (aResourceCreated);
     return ret;
   }
 
+  /**
+   * @return The number of messages that are currently created but not yet put.
+   */
+  @Nonnegative
+  public static int getReservationCount ()
+  {
+    return s_aMetadataStore.getReservationCount ();
+  }
+
+  /**
+   * @return The number of created messages that were discarded since startup,
+   *         because their content was not put in time.
+   */
+  @Nonnegative
+  public static long getEvictedReservationCount ()
+  {
+    return s_aMetadataStore.getEvictedCount ();
+  }
+
+  /**
+   * @return The resolver for SMP endpoints. Never <code>null</code>.
+   */
+  @Nonnull
+  public static SMPEndpointResolver getEndpointResolver ()
+  {
+    return s_aEndpointResolver;
+  }
+
+  /**
+   * @return The registry of participants hosted on this access point. May be
+   *         <code>null</code> if no such registry is configured.
+   */
   @Nullable
-  private static EndpointType _getEndpoint (@Nonnull final IParticipantIdentifier aRecipientId,
-                                            @Nonnull final IDocumentTypeIdentifier aDocumentID,
-                                            @Nonnull final IProcessIdentifier aProcessID,
-                                            @Nonnull final ISMLInfo aSMLInfo,
-                                            @Nonnull final ISMPTransportProfile aTransportProfile)
+  public static LocalParticipantRegistry getLocalParticipantRegistry ()
   {
-    EndpointType ret = null;
-    try
-    {
-      ret = new SMPClientReadOnly (PeppolURLProvider.INSTANCE, aRecipientId, aSMLInfo).getEndpoint (aRecipientId,
-                                                                                                    aDocumentID,
-                                                                                                    aProcessID,
-                                                                                                    aTransportProfile);
-      if (ret == null)
-        s_aLogger.error ("Failed to resolve AP endpoint url for recipient " +
-                         aRecipientId +
-                         ", document type " +
-                         aDocumentID +
-                         " and process " +
-                         aProcessID);
-    }
-    catch (final SMPClientException ex)
-    {
-      s_aLogger.error ("Failed to resolve AP endpoint url for recipient " +
-                       aRecipientId +
-                       ", document type " +
-                       aDocumentID +
-                       " and process " +
-                       aProcessID,
-                       ex);
-    }
-    return ret;
+    return s_aLocalParticipants;
   }
 
   private static void _logPutRequest (@Nullable final String sAction,
@@ -359,10 +669,11 @@ public class LimeService
     s_aLogger.info (s);
   }
 
-  private void _sendMessageUndeliverable (@Nonnull final Exception ex,
-                                          @Nullable final String sMessageID,
-                                          @Nonnull final ReasonCodeType eReasonCode,
-                                          @Nonnull final IMessageMetadata aMetadata)
+  private static void _sendMessageUndeliverable (@Nonnull final ILimeStorage aStorage,
+                                                 @Nonnull final Exception ex,
+                                                 @Nullable final String sMessageID,
+                                                 @Nonnull final ReasonCodeType eReasonCode,
+                                                 @Nonnull final IMessageMetadata aMetadata)
   {
     try
     {
@@ -397,7 +708,7 @@ public class LimeService
       // Create a dummy "put" and send it to the inbox of the sender
       final Put put = new Put ();
       put.getAny ().add (aDocument.getDocumentElement ());
-      _sendToInbox (aRealMetadata, put);
+      _sendToInbox (aStorage, aRealMetadata, put);
     }
     catch (final Exception ex1)
     {
@@ -405,53 +716,130 @@ public class LimeService
     }
   }
 
-  private static void _sendToAccessPointViaAS2 (@Nonnull final Put aBody,
-                                                @Nonnull final EndpointType aRecipientEndpoint,
-                                                @Nonnull final IMessageMetadata aMetadata) throws Exception
+  @Nonnull
+  private static AS2ClientResponse _sendToAccessPointViaAS2 (@Nonnull final Element aSourceNode,
+                                                             @Nonnull final EndpointType aRecipientEndpoint,
+                                                             @Nonnull final IMessageMetadata aMetadata) throws Exception
   {
-    final Element aSourceNode = (Element) aBody.getAnyAtIndex (0);
-    final X509Certificate aReceiverCertificate = SMPClientReadOnly.getEndpointCertificate (aRecipientEndpoint);
+    final AS2ReceiverInfo aReceiverInfo = s_aAS2ReceiverCertificates.getReceiverInfo (aRecipientEndpoint);
 
     final File aKeyStoreFile = new File (LimeServerConfiguration.getAS2KeystorePath ());
-    // TODO remove check when using as2-peppol-client > 1.0.2
+    // The AS2 client reads and writes the key store file on every send
     if (!aKeyStoreFile.canWrite ())
       s_aLogger.error ("The PKCS12 key store file '" +
                        aKeyStoreFile.getAbsolutePath () +
                        "' is not writable. This will result in a weird behaviour!");
 
-    final String sReceiverURL = W3CEndpointReferenceHelper.getAddress (aRecipientEndpoint.getEndpointReference ());
-    final AS2ClientResponse aResponse = new AS2ClientBuilder ().setPeppolSenderID (aMetadata.getSenderID ())
-                                                               .setPeppolReceiverID (aMetadata.getRecipientID ())
-                                                               .setPeppolDocumentTypeID (aMetadata.getDocumentTypeID ())
-                                                               .setPeppolProcessID (aMetadata.getProcessID ())
-                                                               .setBusinessDocument (aSourceNode)
-                                                               .setPKCS12KeyStore (aKeyStoreFile,
-                                                                                   LimeServerConfiguration.getAS2KeystorePassword ())
-                                                               .setSenderAS2ID (LimeServerConfiguration.getAS2SenderID ())
-                                                               .setSenderAS2Email (LimeServerConfiguration.getAS2SenderEmail ())
-                                                               .setSenderAS2KeyAlias (LimeServerConfiguration.getAS2SenderKeyAlias ())
-                                                               .setReceiverAS2ID (AS2ClientHelper.getSubjectCommonName (aReceiverCertificate))
-                                                               .setReceiverAS2KeyAlias (AS2ClientHelper.getSubjectCommonName (aReceiverCertificate))
-                                                               .setReceiverAS2Url (sReceiverURL)
-                                                               .setReceiverCertificate (aReceiverCertificate)
-                                                               .setAS2SigningAlgorithm (LimeServerConfiguration.getAS2SignAlgorithm ())
-                                                               .sendSynchronous ();
+    final String sReceiverURL = aReceiverInfo.getReceiverURL ();
+    // Fail fast if the receiver failed repeatedly before, without waiting for
+    // a send slot
+    s_aAS2CircuitBreaker.acquirePermission (sReceiverURL);
+    try
+    {
+      // Limit the concurrent sends per receiver and in total
+      s_aAS2SendLimiter.acquire (sReceiverURL);
+    }
+    catch (final Exception ex)
+    {
+      // Nothing was sent
+      s_aAS2CircuitBreaker.cancelPermission (sReceiverURL);
+      throw ex;
+    }
+    final AS2ClientResponse aResponse;
+    try
+    {
+      boolean bSuccess = false;
+      try
+      {
+        aResponse = new AS2ClientBuilder ().setPeppolSenderID (aMetadata.getSenderID ())
+                                           .setPeppolReceiverID (aMetadata.getRecipientID ())
+                                           .setPeppolDocumentTypeID (aMetadata.getDocumentTypeID ())
+                                           .setPeppolProcessID (aMetadata.getProcessID ())
+                                           .setBusinessDocument (aSourceNode)
+                                           .setPKCS12KeyStore (aKeyStoreFile, LimeServerConfiguration.getAS2KeystorePassword ())
+                                           .setSenderAS2ID (LimeServerConfiguration.getAS2SenderID ())
+                                           .setSenderAS2Email (LimeServerConfiguration.getAS2SenderEmail ())
+                                           .setSenderAS2KeyAlias (LimeServerConfiguration.getAS2SenderKeyAlias ())
+                                           .setReceiverAS2ID (aReceiverInfo.getAS2ID ())
+                                           .setReceiverAS2KeyAlias (aReceiverInfo.getKeyAlias ())
+                                           .setReceiverAS2Url (sReceiverURL)
+                                           .setReceiverCertificate (aReceiverInfo.getCertificate ())
+                                           .setAS2SigningAlgorithm (LimeServerConfiguration.getAS2SignAlgorithm ())
+                                           .sendSynchronous ();
+        bSuccess = !aResponse.hasException ();
+      }
+      finally
+      {
+        s_aAS2CircuitBreaker.onResult (sReceiverURL, bSuccess);
+      }
+    }
+    finally
+    {
+      s_aAS2SendLimiter.release (sReceiverURL);
+    }
     if (aResponse.hasException ())
       s_aLogger.error ("Error sending to " + sReceiverURL + ": " + aResponse.getAsString ());
     else
       s_aLogger.info ("Successfully forwarded message to " + sReceiverURL);
+    return aResponse;
+  }
+
+  /**
+   * Used by the asynchronous outbound delivery: resolve the recipient and send
+   * the message via AS2.
+   *
+   * @param aMetadata
+   *        The message metadata
+   * @param aSourceNode
+   *        The business document
+   * @throws Exception
+   *         In case sending failed
+   */
+  private static void _sendToAccessPoint (@Nonnull final IMessageMetadata aMetadata,
+                                          @Nonnull final Element aSourceNode) throws Exception
+  {
+    final EndpointType aRecipientEndpoint = _getRecipientEndpoint (aMetadata,
+                                                                   LimeServerConfiguration.getSML (),
+                                                                   ESMPTransportProfile.TRANSPORT_PROFILE_AS2);
+    final AS2ClientResponse aResponse = _sendToAccessPointViaAS2 (aSourceNode, aRecipientEndpoint, aMetadata);
+    if (aResponse.hasException ())
+      throw new RecipientUnreachableException ("Error sending to " +
+                                               W3CEndpointReferenceHelper.getAddress (aRecipientEndpoint.getEndpointReference ()) +
+                                               ": " +
+                                               aResponse.getAsString ());
+  }
+
+  private static void _onOutboundDeliveryFailed (@Nonnull final ILimeStorage aStorage,
+                                                 @Nonnull final IMessageMetadata aMetadata,
+                                                 @Nonnull final Exception ex)
+  {
+    final ReasonCodeType eReasonCode = ex instanceof RecipientUnreachableException ? ReasonCodeType.TRANSPORT_ERROR
+                                                                                   : ReasonCodeType.OTHER_ERROR;
+    _sendMessageUndeliverable (aStorage, ex, aMetadata.getMessageID (), eReasonCode, aMetadata);
   }
 
-  private void _sendToInbox (@Nonnull final IMessageMetadata aMetadata,
-                             @Nonnull final Put aBody) throws RecipientUnreachableException
+  private static void _onOutboundAttemptFailed (@Nonnull final ILimeStorage aStorage,
+                                                @Nonnull final IMessageMetadata aMetadata,
+                                                @Nullable final Element aPayload,
+                                                @Nonnull final Exception ex)
+  {
+    final OutboundRetryScheduler aRetryScheduler = s_aRetryScheduler;
+    if (aRetryScheduler != null && aPayload != null)
+      aRetryScheduler.scheduleRetry (aMetadata, aPayload, ex);
+    else
+      _onOutboundDeliveryFailed (aStorage, aMetadata, ex);
+  }
+
+  private static void _sendToInbox (@Nonnull final ILimeStorage aStorage,
+                                    @Nonnull final IMessageMetadata aMetadata,
+                                    @Nonnull final Put aBody) throws RecipientUnreachableException
   {
     final String sStorageChannelID = aMetadata.getRecipientID ().getValue ();
     if (sStorageChannelID == null)
       throw new RecipientUnreachableException ("Unknown recipient at LIME-AP: " + aMetadata.getRecipientID ());
 
-    // Extract the message ID from the incoming message SOAP headers
-    final HeaderList aHeaderList = _getInboundHeaderList ();
-    final String sMessageID = MessageMetadataHelper.getMessageID (aHeaderList);
+    // The message ID from the incoming message SOAP headers
+    final String sMessageID = aMetadata.getMessageID ();
 
     s_aLogger.info ("Recipient: " + aMetadata.getRecipientID () + "; ChannelID: " + sStorageChannelID);
 
@@ -461,10 +849,14 @@ public class LimeService
       if (CollectionHelper.getSize (aObjects) == 1)
       {
         final Node aElement = (Node) CollectionHelper.getFirstElement (aObjects);
-        final Document aDocument = aElement.getOwnerDocument ();
         final Document aMetadataDocument = MessageMetadataHelper.createHeadersDocument (aMetadata);
 
-        _createLimeStorage ().saveDocument (sStorageChannelID, sMessageID, aMetadataDocument, aDocument);
+        // JAXB already unmarshalled the payload into a DOM - serialize it
+        // into the payload file without another copy
+        aStorage.saveDocument (sStorageChannelID,
+                               sMessageID,
+                               aMetadataDocument,
+                               new DOMSource (aElement.getOwnerDocument ()));
       }
     }
     catch (final Exception ex)
@@ -474,6 +866,72 @@ public class LimeService
     }
   }
 
+  @Nonnull
+  private static EndpointType _getRecipientEndpoint (@Nonnull final IMessageMetadata aMetadata,
+                                                     @Nonnull final ISMLInfo aSML,
+                                                     @Nonnull final ISMPTransportProfile aTransportProfile)
+  {
+    final long nDeadlineMillis = System.currentTimeMillis () +
+                                 TimeUnit.SECONDS.toMillis (LimeServerConfiguration.getSMPLookupTimeoutSeconds ());
+    final EndpointType ret = s_aEndpointResolver.getEndpoint (aMetadata.getRecipientID (),
+                                                              aMetadata.getDocumentTypeID (),
+                                                              aMetadata.getProcessID (),
+                                                              aSML,
+                                                              aTransportProfile,
+                                                              nDeadlineMillis);
+    if (ret == null)
+      throw new IllegalStateException ("Failed to resolve recipient endpoint URL for " + aMetadata.toString ());
+    return ret;
+  }
+
+  /**
+   * Start the asynchronous resolution of the routing of a newly created
+   * message. Additionally the certificate of the receiving access point is
+   * prepared.
+   *
+   * @param aMetadata
+   *        The metadata of the created message. May not be <code>null</code>.
+   * @return <code>null</code> if no routing is needed or if asynchronous SMP
+   *         lookups are disabled.
+   */
+  @Nullable
+  private static MessageRouting _prefetchRouting (@Nonnull final IMessageMetadata aMetadata)
+  {
+    if (!s_aEndpointResolver.isAsyncEnabled ())
+      return null;
+
+    // No lookup needed for local recipients
+    if (s_aLocalParticipants != null && s_aLocalParticipants.isLocalParticipant (aMetadata.getRecipientID ()))
+      return null;
+
+    final MessageRouting ret = s_aRoutingResolver.startRouting (aMetadata, null, s_aLocalParticipants == null);
+    // Decode the receiver certificate as soon as the endpoint is known
+    ret.getRecipientEndpoint ().thenAccept (aEndpoint -> {
+      if (aEndpoint != null)
+        try
+        {
+          s_aAS2ReceiverCertificates.getReceiverInfo (aEndpoint);
+        }
+        catch (final CertificateException ex)
+        {
+          s_aLogger.warn ("Failed to prepare the receiver certificate for " + aMetadata.getMessageID (), ex);
+        }
+    });
+    return ret;
+  }
+
+  @Nullable
+  private static PendingMessage _getPendingMessageFromToken (@Nonnull final String sToken)
+  {
+    final IMessageMetadata aMetadata = s_aMetadataTokenCodec.parseToken (sToken, System.currentTimeMillis ());
+    if (aMetadata == null)
+    {
+      s_aLogger.warn ("Rejecting invalid or expired message ID token");
+      return null;
+    }
+    return new PendingMessage (aMetadata, null);
+  }
+
   /**
    * After {@link #create(Create)} the main document can be transmitted using
    * this method. Expects the message ID from {@link #create(Create)} as a SOAP
@@ -488,60 +946,110 @@ public class LimeService
   {
     final HeaderList aHeaderList = _getInboundHeaderList ();
     final String sMessageID = MessageMetadataHelper.getMessageID (aHeaderList);
-    final IMessageMetadata aMetadata = MessageMetadataRAMStore.getMessage (sMessageID);
+    final boolean bIsToken = s_aMetadataTokenCodec != null && MessageMetadataTokenCodec.isToken (sMessageID);
+    final PendingMessage aPendingMessage = bIsToken ? _getPendingMessageFromToken (sMessageID)
+                                                    : s_aMetadataStore.getMessage (sMessageID);
 
-    if (aMetadata == null)
+    if (aPendingMessage == null)
       throw _createSoapFault (FAULT_SERVER_ERROR,
                               new IllegalStateException ("No such message ID found: " + sMessageID));
+    final IMessageMetadata aMetadata = aPendingMessage.getMetadata ();
+    final MessageRouting aRouting = aPendingMessage.getRouting ();
 
     try
     {
-      // Default to AS2 here
-      final ISMLInfo aSML = LimeServerConfiguration.getSML ();
-      final ISMPTransportProfile aTransportProfile = ESMPTransportProfile.TRANSPORT_PROFILE_AS2;
-
-      final EndpointType aSenderEndpoint = _getEndpoint (aMetadata.getSenderID (),
-                                                         aMetadata.getDocumentTypeID (),
-                                                         aMetadata.getProcessID (),
-                                                         aSML,
-                                                         aTransportProfile);
-      if (aSenderEndpoint == null)
-        throw new IllegalStateException ("Failed to resolve sender endpoint URL for " + aMetadata.toString ());
-
-      final EndpointType aRecipientEndpoint = _getEndpoint (aMetadata.getRecipientID (),
-                                                            aMetadata.getDocumentTypeID (),
-                                                            aMetadata.getProcessID (),
-                                                            aSML,
-                                                            aTransportProfile);
-      if (aRecipientEndpoint == null)
-        throw new IllegalStateException ("Failed to resolve recipient endpoint URL for " + aMetadata.toString ());
-
-      final String sSenderURL = W3CEndpointReferenceHelper.getAddress (aSenderEndpoint.getEndpointReference ());
-      final String sRecipientURL = W3CEndpointReferenceHelper.getAddress (aRecipientEndpoint.getEndpointReference ());
-      if (EqualsHelper.equalsIgnoreCase (sSenderURL, sRecipientURL))
+      final long nDeadlineMillis = System.currentTimeMillis () +
+                                   TimeUnit.SECONDS.toMillis (LimeServerConfiguration.getSMPLookupTimeoutSeconds ());
+
+      final String sSenderURL;
+      EndpointType aRecipientEndpoint = null;
+      final boolean bIsLocal;
+      if (s_aLocalParticipants != null)
+      {
+        // Decide based on the locally hosted participants
+        sSenderURL = _getThisServiceURL ();
+        bIsLocal = s_aLocalParticipants.isLocalParticipant (aMetadata.getRecipientID ());
+      }
+      else
+      {
+        // Compare the SMP endpoints of sender and recipient - resolve both in
+        // parallel, if not already started on create
+        final MessageRouting aStartedRouting = s_aRoutingResolver.startRouting (aMetadata, aRouting, true);
+        final EndpointType aSenderEndpoint = MessageRoutingResolver.waitForSenderEndpoint (aStartedRouting,
+                                                                                          nDeadlineMillis,
+                                                                                          aMetadata);
+        aRecipientEndpoint = MessageRoutingResolver.waitForRecipientEndpoint (aStartedRouting,
+                                                                             nDeadlineMillis,
+                                                                             aMetadata);
+
+        sSenderURL = W3CEndpointReferenceHelper.getAddress (aSenderEndpoint.getEndpointReference ());
+        final String sRecipientURL = W3CEndpointReferenceHelper.getAddress (aRecipientEndpoint.getEndpointReference ());
+        bIsLocal = EqualsHelper.equalsIgnoreCase (sSenderURL, sRecipientURL);
+      }
+
+      if (bIsLocal)
       {
         _logPutRequest ("This is a local request - sending directly to inbox",
                         sSenderURL,
                         aMetadata,
                         "INBOX: " + aMetadata.getRecipientID ().getValue ());
-        _sendToInbox (aMetadata, aBody);
+        _sendToInbox (_getLimeStorage (), aMetadata, aBody);
       }
       else
       {
+        if (aRecipientEndpoint == null)
+          aRecipientEndpoint = MessageRoutingResolver.waitForRecipientEndpoint (s_aRoutingResolver.startRouting (aMetadata,
+                                                                                                                aRouting,
+                                                                                                                false),
+                                                                               nDeadlineMillis,
+                                                                               aMetadata);
+        final String sRecipientURL = W3CEndpointReferenceHelper.getAddress (aRecipientEndpoint.getEndpointReference ());
         _logPutRequest ("This is a request for a remote access point", sSenderURL, aMetadata, sRecipientURL);
-        _sendToAccessPointViaAS2 (aBody, aRecipientEndpoint, aMetadata);
+        final Element aSourceNode = (Element) aBody.getAnyAtIndex (0);
+        final OutboundDispatcher aDispatcher = s_aOutboundDispatcher;
+        if (aDispatcher != null)
+        {
+          // Spool it and deliver it in the background
+          aDispatcher.enqueue (aMetadata, aSourceNode);
+        }
+        else
+        {
+          final OutboundRetryScheduler aRetryScheduler = s_aRetryScheduler;
+          try
+          {
+            final AS2ClientResponse aResponse = _sendToAccessPointViaAS2 (aSourceNode, aRecipientEndpoint, aMetadata);
+            if (aResponse.hasException () && aRetryScheduler != null)
+            {
+              // Try again later
+              aRetryScheduler.scheduleRetry (aMetadata,
+                                             aSourceNode,
+                                             new RecipientUnreachableException ("Error sending to " +
+                                                                                sRecipientURL +
+                                                                                ": " +
+                                                                                aResponse.getAsString ()));
+            }
+          }
+          catch (final SendLimitExceededException | CircuitOpenException ex)
+          {
+            if (aRetryScheduler == null)
+              throw ex;
+            // Receiver is busy or currently failing - try again later
+            aRetryScheduler.scheduleRetry (aMetadata, aSourceNode, ex);
+          }
+        }
       }
       // On success, remove the metadata
-      MessageMetadataRAMStore.removeMessage (sMessageID);
+      if (!bIsToken)
+        s_aMetadataStore.removeMessage (sMessageID);
     }
     catch (final RecipientUnreachableException ex)
     {
-      _sendMessageUndeliverable (ex, sMessageID, ReasonCodeType.TRANSPORT_ERROR, aMetadata);
+      _sendMessageUndeliverable (_getLimeStorage (), ex, sMessageID, ReasonCodeType.TRANSPORT_ERROR, aMetadata);
       throw _createSoapFault (FAULT_UNKNOWN_ENDPOINT, ex);
     }
     catch (final Exception ex)
     {
-      _sendMessageUndeliverable (ex, sMessageID, ReasonCodeType.OTHER_ERROR, aMetadata);
+      _sendMessageUndeliverable (_getLimeStorage (), ex, sMessageID, ReasonCodeType.OTHER_ERROR, aMetadata);
       throw _createSoapFault (FAULT_SERVER_ERROR, ex);
     }
     return new PutResponse ();
@@ -573,7 +1081,7 @@ public class LimeService
         final int nPageNumber = StringParser.parseInt (StringHelper.trim (sPageIdentifier), 0);
         final Document aDocument = MessagePageListCreator.getPageList (nPageNumber,
                                                                        sThisServiceURL,
-                                                                       _createLimeStorage (),
+                                                                       _getLimeStorage (),
                                                                        sChannelID);
         if (aDocument != null)
           aGetResponse.getAny ().add (aDocument.getDocumentElement ());
@@ -581,8 +1089,10 @@ public class LimeService
       else
       {
         // add single message to response
-        final LimeStorage aStorage = _createLimeStorage ();
+        final ILimeStorage aStorage = _getLimeStorage ();
         final Document aDocumentMetadata = aStorage.getDocumentMetadata (sChannelID, sMessageID);
+        // JAXB marshals the response from DOM, so the stored bytes cannot be
+        // passed through as they are
         final Document aDocument = aStorage.getDocument (sChannelID, sMessageID);
         aGetResponse.getAny ().add (aDocumentMetadata.getDocumentElement ());
         aGetResponse.getAny ().add (aDocument.getDocumentElement ());
@@ -610,7 +1120,7 @@ public class LimeService
     final String sMessageID = MessageMetadataHelper.getMessageID (aHeaderList);
     try
     {
-      _createLimeStorage ().deleteDocument (sChannelID, sMessageID);
+      _getLimeStorage ().deleteDocument (sChannelID, sMessageID);
     }
     catch (final Exception ex)
     {
@@ -74,11 +74,11 @@ public class SoapResponseHeaderHandler implements SOAPHandler <SOAPMessageContex
 
   public boolean handleMessage (final SOAPMessageContext aMessageContext)
   {
-    final SOAPMessage aMessage = aMessageContext.getMessage ();
-
     if (((Boolean) aMessageContext.get (MessageContext.MESSAGE_OUTBOUND_PROPERTY)).booleanValue ())
     {
-      // It's an outgoing message
+      // It's an outgoing message. Only access the message here, as this
+      // converts it into a SAAJ DOM that inbound messages don't need.
+      final SOAPMessage aMessage = aMessageContext.getMessage ();
       try
       {
         final SOAPEnvelope aEnvelope = aMessage.getSOAPPart ().getEnvelope ();
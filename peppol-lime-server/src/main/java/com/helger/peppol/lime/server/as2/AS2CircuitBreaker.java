@@ -0,0 +1,267 @@
+/**
+ * Copyright (C) 2015-2016 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Version: MPL 1.1/EUPL 1.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at:
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is Copyright The PEPPOL project (http://www.peppol.eu)
+ *
+ * Alternatively, the contents of this file may be used under the
+ * terms of the EUPL, Version 1.1 or - as soon they will be approved
+ * by the European Commission - subsequent versions of the EUPL
+ * (the "Licence"); You may not use this work except in compliance
+ * with the Licence.
+ * You may obtain a copy of the Licence at:
+ * http://joinup.ec.europa.eu/software/page/eupl/licence-eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ *
+ * If you wish to allow use of your version of this file only
+ * under the terms of the EUPL License and not to allow others to use
+ * your version of this file under the MPL, indicate your decision by
+ * deleting the provisions above and replace them with the notice and
+ * other provisions required by the EUPL License. If you do not delete
+ * the provisions above, a recipient may use your version of this file
+ * under either the MPL or the EUPL License.
+ */
+package com.helger.peppol.lime.server.as2;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+import javax.annotation.concurrent.ThreadSafe;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.helger.commons.ValueEnforcer;
+import com.helger.commons.string.ToStringGenerator;
+import com.helger.peppol.lime.server.exception.CircuitOpenException;
+
+/**
+ * A circuit breaker per receiver AS2 URL. After the configured number of
+ * consecutive failures the circuit is opened and all sends to this receiver
+ * fail fast for the cool-down period. Afterwards a single probe send is let
+ * through: if it succeeds the circuit is closed again, otherwise it is opened
+ * for another cool-down period.
+ *
+ * @author Philip Helger
+ */
+@ThreadSafe
+public final class AS2CircuitBreaker
+{
+  /**
+   * The state of a single circuit.
+   *
+   * @author Philip Helger
+   */
+  public static enum EState
+  {
+    CLOSED,
+    OPEN,
+    HALF_OPEN;
+  }
+
+  private static final class Circuit
+  {
+    private EState m_eState = EState.CLOSED;
+    private int m_nConsecutiveFailures = 0;
+    private long m_nOpenUntilMillis = 0;
+  }
+
+  private static final Logger s_aLogger = LoggerFactory.getLogger (AS2CircuitBreaker.class);
+
+  private final int m_nFailureThreshold;
+  private final long m_nCoolDownMillis;
+  private final ConcurrentHashMap <String, Circuit> m_aCircuits = new ConcurrentHashMap <> ();
+  private final AtomicLong m_aRejected = new AtomicLong (0);
+
+  /**
+   * Constructor
+   *
+   * @param nFailureThreshold
+   *        The number of consecutive failures after which the circuit is
+   *        opened. 0 disables the circuit breaker.
+   * @param nCoolDownMillis
+   *        The milliseconds an open circuit rejects all sends before a probe
+   *        is let through.
+   */
+  public AS2CircuitBreaker (@Nonnegative final int nFailureThreshold, @Nonnegative final long nCoolDownMillis)
+  {
+    ValueEnforcer.isGE0 (nFailureThreshold, "FailureThreshold");
+    ValueEnforcer.isGE0 (nCoolDownMillis, "CoolDownMillis");
+    m_nFailureThreshold = nFailureThreshold;
+    m_nCoolDownMillis = nCoolDownMillis;
+  }
+
+  public boolean isEnabled ()
+  {
+    return m_nFailureThreshold > 0;
+  }
+
+  @Nonnull
+  private Circuit _getCircuit (@Nonnull final String sReceiverURL)
+  {
+    return m_aCircuits.computeIfAbsent (sReceiverURL, k -> new Circuit ());
+  }
+
+  /**
+   * Check if a send to the provided receiver is allowed. If this method
+   * returns normally, the result of the send must be reported via
+   * {@link #onResult(String, boolean)}.
+   *
+   * @param sReceiverURL
+   *        The receiver AS2 URL. May not be <code>null</code>.
+   * @throws CircuitOpenException
+   *         If the circuit is open or if a probe is already in progress
+   */
+  public void acquirePermission (@Nonnull final String sReceiverURL) throws CircuitOpenException
+  {
+    ValueEnforcer.notNull (sReceiverURL, "ReceiverURL");
+    if (!isEnabled ())
+      return;
+
+    final Circuit aCircuit = _getCircuit (sReceiverURL);
+    synchronized (aCircuit)
+    {
+      switch (aCircuit.m_eState)
+      {
+        case CLOSED:
+          return;
+        case OPEN:
+          if (System.currentTimeMillis () >= aCircuit.m_nOpenUntilMillis)
+          {
+            // Let a single probe through
+            aCircuit.m_eState = EState.HALF_OPEN;
+            s_aLogger.info ("Sending probe message to " + sReceiverURL);
+            return;
+          }
+          break;
+        case HALF_OPEN:
+          // A probe is already in progress
+          break;
+      }
+    }
+    m_aRejected.incrementAndGet ();
+    throw new CircuitOpenException ("The circuit for " + sReceiverURL + " is open - not sending");
+  }
+
+  /**
+   * Report the result of a send that was permitted by
+   * {@link #acquirePermission(String)}.
+   *
+   * @param sReceiverURL
+   *        The receiver AS2 URL. May not be <code>null</code>.
+   * @param bSuccess
+   *        <code>true</code> if the send succeeded, <code>false</code> if it
+   *        failed or timed out.
+   */
+  public void onResult (@Nonnull final String sReceiverURL, final boolean bSuccess)
+  {
+    ValueEnforcer.notNull (sReceiverURL, "ReceiverURL");
+    if (!isEnabled ())
+      return;
+
+    final Circuit aCircuit = _getCircuit (sReceiverURL);
+    synchronized (aCircuit)
+    {
+      if (bSuccess)
+      {
+        if (aCircuit.m_eState != EState.CLOSED)
+          s_aLogger.info ("Closing the circuit for " + sReceiverURL);
+        aCircuit.m_eState = EState.CLOSED;
+        aCircuit.m_nConsecutiveFailures = 0;
+      }
+      else
+      {
+        aCircuit.m_nConsecutiveFailures++;
+        if (aCircuit.m_eState == EState.HALF_OPEN || aCircuit.m_nConsecutiveFailures >= m_nFailureThreshold)
+        {
+          if (aCircuit.m_eState != EState.OPEN)
+            s_aLogger.warn ("Opening the circuit for " +
+                            sReceiverURL +
+                            " after " +
+                            aCircuit.m_nConsecutiveFailures +
+                            " consecutive failures");
+          aCircuit.m_eState = EState.OPEN;
+          aCircuit.m_nOpenUntilMillis = System.currentTimeMillis () + m_nCoolDownMillis;
+        }
+      }
+    }
+  }
+
+  /**
+   * Give back a permission acquired via {@link #acquirePermission(String)} if
+   * the send was not attempted at all. This is not counted as a result. A
+   * pending probe is released so that the next send can probe again.
+   *
+   * @param sReceiverURL
+   *        The receiver AS2 URL. May not be <code>null</code>.
+   */
+  public void cancelPermission (@Nonnull final String sReceiverURL)
+  {
+    ValueEnforcer.notNull (sReceiverURL, "ReceiverURL");
+    if (!isEnabled ())
+      return;
+
+    final Circuit aCircuit = _getCircuit (sReceiverURL);
+    synchronized (aCircuit)
+    {
+      // The cool down is already over, so the next send is the probe
+      if (aCircuit.m_eState == EState.HALF_OPEN)
+        aCircuit.m_eState = EState.OPEN;
+    }
+  }
+
+  /**
+   * @param sReceiverURL
+   *        The receiver AS2 URL. May not be <code>null</code>.
+   * @return The current state of the circuit of the provided receiver. Never
+   *         <code>null</code>.
+   */
+  @Nonnull
+  public EState getState (@Nonnull final String sReceiverURL)
+  {
+    final Circuit aCircuit = m_aCircuits.get (sReceiverURL);
+    if (aCircuit == null)
+      return EState.CLOSED;
+    synchronized (aCircuit)
+    {
+      return aCircuit.m_eState;
+    }
+  }
+
+  /**
+   * @return The number of sends that were rejected since startup.
+   */
+  @Nonnegative
+  public long getRejectedCount ()
+  {
+    return m_aRejected.get ();
+  }
+
+  @Override
+  public String toString ()
+  {
+    return new ToStringGenerator (this).append ("failureThreshold", m_nFailureThreshold)
+                                       .append ("coolDownMillis", m_nCoolDownMillis)
+                                       .append ("rejected", m_aRejected.get ())
+                                       .getToString ();
+  }
+}
@@ -0,0 +1,246 @@
+/**
+ * Copyright (C) 2015-2016 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Version: MPL 1.1/EUPL 1.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at:
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is Copyright The PEPPOL project (http://www.peppol.eu)
+ *
+ * Alternatively, the contents of this file may be used under the
+ * terms of the EUPL, Version 1.1 or - as soon they will be approved
+ * by the European Commission - subsequent versions of the EUPL
+ * (the "Licence"); You may not use this work except in compliance
+ * with the Licence.
+ * You may obtain a copy of the Licence at:
+ * http://joinup.ec.europa.eu/software/page/eupl/licence-eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ *
+ * If you wish to allow use of your version of this file only
+ * under the terms of the EUPL License and not to allow others to use
+ * your version of this file under the MPL, indicate your decision by
+ * deleting the provisions above and replace them with the notice and
+ * other provisions required by the EUPL License. If you do not delete
+ * the provisions above, a recipient may use your version of this file
+ * under either the MPL or the EUPL License.
+ */
+package com.helger.peppol.lime.server.as2;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.cert.CertificateException;
+import java.security.cert.X509Certificate;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+import javax.annotation.concurrent.ThreadSafe;
+
+import com.helger.commons.ValueEnforcer;
+import com.helger.commons.string.StringHelper;
+import com.helger.commons.string.ToStringGenerator;
+import com.helger.peppol.as2client.AS2ClientHelper;
+import com.helger.peppol.smp.EndpointType;
+import com.helger.peppol.smpclient.SMPClientReadOnly;
+import com.helger.peppol.utils.W3CEndpointReferenceHelper;
+
+/**
+ * A size bounded LRU cache for the decoded certificates of receiving access
+ * points. The key is the endpoint URL plus the SHA-256 fingerprint of the
+ * certificate as contained in the SMP response, so a changed certificate is
+ * decoded again, while repeated sends to the same access point don't parse any
+ * certificate.
+ *
+ * @author Philip Helger
+ */
+@ThreadSafe
+public final class AS2ReceiverCertificateCache
+{
+  /** The default maximum number of cached receivers */
+  public static final int DEFAULT_MAX_SIZE = 500;
+
+  private final int m_nMaxSize;
+  private final Lock m_aLock = new ReentrantLock ();
+  private final LinkedHashMap <String, AS2ReceiverInfo> m_aMap;
+  private final AtomicLong m_aHits = new AtomicLong (0);
+  private final AtomicLong m_aMisses = new AtomicLong (0);
+
+  public AS2ReceiverCertificateCache ()
+  {
+    this (DEFAULT_MAX_SIZE);
+  }
+
+  /**
+   * Constructor
+   *
+   * @param nMaxSize
+   *        The maximum number of entries. If more entries are added, the least
+   *        recently used entry is evicted. If this value is 0, caching is
+   *        disabled.
+   */
+  public AS2ReceiverCertificateCache (@Nonnegative final int nMaxSize)
+  {
+    ValueEnforcer.isGE0 (nMaxSize, "MaxSize");
+    m_nMaxSize = nMaxSize;
+    // Access order for LRU
+    m_aMap = new LinkedHashMap <String, AS2ReceiverInfo> (16, 0.75f, true)
+    {
+      @Override
+      protected boolean removeEldestEntry (final Map.Entry <String, AS2ReceiverInfo> aEldest)
+      {
+        return size () > m_nMaxSize;
+      }
+    };
+  }
+
+  @Nonnull
+  private static String _getFingerprint (@Nonnull final String sCertificate)
+  {
+    try
+    {
+      final MessageDigest aMD = MessageDigest.getInstance ("SHA-256");
+      return StringHelper.getHexEncoded (aMD.digest (sCertificate.getBytes (StandardCharsets.ISO_8859_1)));
+    }
+    catch (final NoSuchAlgorithmException ex)
+    {
+      throw new IllegalStateException ("SHA-256 is not supported", ex);
+    }
+  }
+
+  /**
+   * Get the receiver information for the provided endpoint. The certificate is
+   * only decoded if no matching entry is cached.
+   *
+   * @param aEndpoint
+   *        The endpoint of the receiving access point. May not be
+   *        <code>null</code>.
+   * @return The receiver information. Never <code>null</code>.
+   * @throws CertificateException
+   *         If the certificate of the endpoint cannot be decoded
+   */
+  @Nonnull
+  public AS2ReceiverInfo getReceiverInfo (@Nonnull final EndpointType aEndpoint) throws CertificateException
+  {
+    ValueEnforcer.notNull (aEndpoint, "Endpoint");
+
+    final String sReceiverURL = W3CEndpointReferenceHelper.getAddress (aEndpoint.getEndpointReference ());
+    final String sCertificate = aEndpoint.getCertificate ();
+    final String sKey = sReceiverURL + '\n' + (sCertificate == null ? "" : _getFingerprint (sCertificate));
+
+    if (m_nMaxSize > 0)
+    {
+      m_aLock.lock ();
+      try
+      {
+        final AS2ReceiverInfo aInfo = m_aMap.get (sKey);
+        if (aInfo != null)
+        {
+          m_aHits.incrementAndGet ();
+          return aInfo;
+        }
+      }
+      finally
+      {
+        m_aLock.unlock ();
+      }
+    }
+    m_aMisses.incrementAndGet ();
+
+    // Decode outside of the lock
+    final X509Certificate aCertificate = SMPClientReadOnly.getEndpointCertificate (aEndpoint);
+    if (aCertificate == null)
+      throw new CertificateException ("The endpoint " + sReceiverURL + " contains no certificate");
+    final String sCommonName = AS2ClientHelper.getSubjectCommonName (aCertificate);
+    final AS2ReceiverInfo aInfo = new AS2ReceiverInfo (sReceiverURL, aCertificate, sCommonName, sCommonName);
+
+    if (m_nMaxSize > 0)
+    {
+      m_aLock.lock ();
+      try
+      {
+        m_aMap.put (sKey, aInfo);
+      }
+      finally
+      {
+        m_aLock.unlock ();
+      }
+    }
+    return aInfo;
+  }
+
+  /**
+   * Remove all cached entries. The statistics are not reset.
+   */
+  public void clear ()
+  {
+    m_aLock.lock ();
+    try
+    {
+      m_aMap.clear ();
+    }
+    finally
+    {
+      m_aLock.unlock ();
+    }
+  }
+
+  @Nonnegative
+  public int getSize ()
+  {
+    m_aLock.lock ();
+    try
+    {
+      return m_aMap.size ();
+    }
+    finally
+    {
+      m_aLock.unlock ();
+    }
+  }
+
+  /**
+   * @return The number of cache hits since startup.
+   */
+  @Nonnegative
+  public long getHitCount ()
+  {
+    return m_aHits.get ();
+  }
+
+  /**
+   * @return The number of cache misses (decoded certificates) since startup.
+   */
+  @Nonnegative
+  public long getMissCount ()
+  {
+    return m_aMisses.get ();
+  }
+
+  @Override
+  public String toString ()
+  {
+    return new ToStringGenerator (this).append ("maxSize", m_nMaxSize)
+                                       .append ("hits", m_aHits.get ())
+                                       .append ("misses", m_aMisses.get ())
+                                       .getToString ();
+  }
+}
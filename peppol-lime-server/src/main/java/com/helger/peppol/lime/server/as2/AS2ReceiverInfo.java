@@ -0,0 +1,108 @@
+/**
+ * Copyright (C) 2015-2016 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Version: MPL 1.1/EUPL 1.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at:
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is Copyright The PEPPOL project (http://www.peppol.eu)
+ *
+ * Alternatively, the contents of this file may be used under the
+ * terms of the EUPL, Version 1.1 or - as soon they will be approved
+ * by the European Commission - subsequent versions of the EUPL
+ * (the "Licence"); You may not use this work except in compliance
+ * with the Licence.
+ * You may obtain a copy of the Licence at:
+ * http://joinup.ec.europa.eu/software/page/eupl/licence-eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ *
+ * If you wish to allow use of your version of this file only
+ * under the terms of the EUPL License and not to allow others to use
+ * your version of this file under the MPL, indicate your decision by
+ * deleting the provisions above and replace them with the notice and
+ * other provisions required by the EUPL License. If you do not delete
+ * the provisions above, a recipient may use your version of this file
+ * under either the MPL or the EUPL License.
+ */
+package com.helger.peppol.lime.server.as2;
+
+import java.security.cert.X509Certificate;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.Immutable;
+
+import com.helger.commons.string.ToStringGenerator;
+
+/**
+ * The decoded certificate of a receiving access point together with the AS2
+ * values derived from it.
+ *
+ * @author Philip Helger
+ */
+@Immutable
+public final class AS2ReceiverInfo
+{
+  private final String m_sReceiverURL;
+  private final X509Certificate m_aCertificate;
+  private final String m_sAS2ID;
+  private final String m_sKeyAlias;
+
+  public AS2ReceiverInfo (@Nonnull final String sReceiverURL,
+                          @Nonnull final X509Certificate aCertificate,
+                          @Nullable final String sAS2ID,
+                          @Nullable final String sKeyAlias)
+  {
+    m_sReceiverURL = sReceiverURL;
+    m_aCertificate = aCertificate;
+    m_sAS2ID = sAS2ID;
+    m_sKeyAlias = sKeyAlias;
+  }
+
+  @Nonnull
+  public String getReceiverURL ()
+  {
+    return m_sReceiverURL;
+  }
+
+  @Nonnull
+  public X509Certificate getCertificate ()
+  {
+    return m_aCertificate;
+  }
+
+  @Nullable
+  public String getAS2ID ()
+  {
+    return m_sAS2ID;
+  }
+
+  @Nullable
+  public String getKeyAlias ()
+  {
+    return m_sKeyAlias;
+  }
+
+  @Override
+  public String toString ()
+  {
+    return new ToStringGenerator (this).append ("receiverURL", m_sReceiverURL)
+                                       .append ("AS2ID", m_sAS2ID)
+                                       .append ("keyAlias", m_sKeyAlias)
+                                       .getToString ();
+  }
+}
@@ -0,0 +1,214 @@
+/**
+ * Copyright (C) 2015-2016 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Version: MPL 1.1/EUPL 1.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at:
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is Copyright The PEPPOL project (http://www.peppol.eu)
+ *
+ * Alternatively, the contents of this file may be used under the
+ * terms of the EUPL, Version 1.1 or - as soon they will be approved
+ * by the European Commission - subsequent versions of the EUPL
+ * (the "Licence"); You may not use this work except in compliance
+ * with the Licence.
+ * You may obtain a copy of the Licence at:
+ * http://joinup.ec.europa.eu/software/page/eupl/licence-eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ *
+ * If you wish to allow use of your version of this file only
+ * under the terms of the EUPL License and not to allow others to use
+ * your version of this file under the MPL, indicate your decision by
+ * deleting the provisions above and replace them with the notice and
+ * other provisions required by the EUPL License. If you do not delete
+ * the provisions above, a recipient may use your version of this file
+ * under either the MPL or the EUPL License.
+ */
+package com.helger.peppol.lime.server.as2;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.ThreadSafe;
+
+import com.helger.commons.ValueEnforcer;
+import com.helger.commons.string.ToStringGenerator;
+import com.helger.peppol.lime.server.exception.SendLimitExceededException;
+
+/**
+ * Limits the number of concurrent AS2 sends per receiver URL (bulkhead) and in
+ * total. If a limit is reached, the caller waits up to the configured time for
+ * a free slot and fails otherwise. This ensures that a single slow access
+ * point cannot occupy all threads of the server.
+ *
+ * @author Philip Helger
+ */
+@ThreadSafe
+public final class AS2SendLimiter
+{
+  private final int m_nMaxPerReceiver;
+  private final int m_nMaxGlobal;
+  private final long m_nMaxWaitMillis;
+  private final ConcurrentHashMap <String, Semaphore> m_aPerReceiver = new ConcurrentHashMap <> ();
+  private final Semaphore m_aGlobal;
+  private final AtomicLong m_aRejected = new AtomicLong (0);
+
+  /**
+   * Constructor
+   *
+   * @param nMaxPerReceiver
+   *        The maximum number of concurrent sends to a single receiver URL. 0
+   *        means unlimited.
+   * @param nMaxGlobal
+   *        The maximum number of concurrent sends in total. 0 means unlimited.
+   * @param nMaxWaitMillis
+   *        The maximum number of milliseconds to wait for a free slot. 0 means
+   *        fail fast.
+   */
+  public AS2SendLimiter (@Nonnegative final int nMaxPerReceiver,
+                         @Nonnegative final int nMaxGlobal,
+                         @Nonnegative final long nMaxWaitMillis)
+  {
+    ValueEnforcer.isGE0 (nMaxPerReceiver, "MaxPerReceiver");
+    ValueEnforcer.isGE0 (nMaxGlobal, "MaxGlobal");
+    ValueEnforcer.isGE0 (nMaxWaitMillis, "MaxWaitMillis");
+    m_nMaxPerReceiver = nMaxPerReceiver;
+    m_nMaxGlobal = nMaxGlobal;
+    m_nMaxWaitMillis = nMaxWaitMillis;
+    m_aGlobal = nMaxGlobal > 0 ? new Semaphore (nMaxGlobal) : null;
+  }
+
+  @Nullable
+  private Semaphore _getReceiverSemaphore (@Nonnull final String sReceiverURL)
+  {
+    if (m_nMaxPerReceiver == 0)
+      return null;
+    return m_aPerReceiver.computeIfAbsent (sReceiverURL, k -> new Semaphore (m_nMaxPerReceiver));
+  }
+
+  private static boolean _tryAcquire (@Nonnull final Semaphore aSemaphore,
+                                      final long nWaitMillis) throws InterruptedException
+  {
+    if (nWaitMillis <= 0)
+      return aSemaphore.tryAcquire ();
+    return aSemaphore.tryAcquire (nWaitMillis, TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Acquire a send slot for the provided receiver. Each successful call must
+   * be followed by exactly one call to {@link #release(String)}.
+   *
+   * @param sReceiverURL
+   *        The receiver AS2 URL. May not be <code>null</code>.
+   * @throws SendLimitExceededException
+   *         If no slot became available in time
+   * @throws InterruptedException
+   *         If the thread was interrupted while waiting
+   */
+  public void acquire (@Nonnull final String sReceiverURL) throws SendLimitExceededException, InterruptedException
+  {
+    ValueEnforcer.notNull (sReceiverURL, "ReceiverURL");
+
+    final long nDeadline = System.currentTimeMillis () + m_nMaxWaitMillis;
+    final Semaphore aReceiver = _getReceiverSemaphore (sReceiverURL);
+    if (aReceiver != null && !_tryAcquire (aReceiver, m_nMaxWaitMillis))
+    {
+      m_aRejected.incrementAndGet ();
+      throw new SendLimitExceededException ("Too many concurrent sends to " + sReceiverURL);
+    }
+
+    boolean bSuccess = false;
+    try
+    {
+      if (m_aGlobal != null && !_tryAcquire (m_aGlobal, nDeadline - System.currentTimeMillis ()))
+      {
+        m_aRejected.incrementAndGet ();
+        throw new SendLimitExceededException ("Too many concurrent sends in total - cannot send to " + sReceiverURL);
+      }
+      bSuccess = true;
+    }
+    finally
+    {
+      if (!bSuccess && aReceiver != null)
+        aReceiver.release ();
+    }
+  }
+
+  /**
+   * Release a slot previously acquired with {@link #acquire(String)}.
+   *
+   * @param sReceiverURL
+   *        The receiver AS2 URL. May not be <code>null</code>.
+   */
+  public void release (@Nonnull final String sReceiverURL)
+  {
+    ValueEnforcer.notNull (sReceiverURL, "ReceiverURL");
+
+    if (m_aGlobal != null)
+      m_aGlobal.release ();
+    final Semaphore aReceiver = _getReceiverSemaphore (sReceiverURL);
+    if (aReceiver != null)
+      aReceiver.release ();
+  }
+
+  /**
+   * @param sReceiverURL
+   *        The receiver AS2 URL. May not be <code>null</code>.
+   * @return The number of sends currently in progress to the provided
+   *         receiver. Always 0 if there is no per receiver limit.
+   */
+  @Nonnegative
+  public int getActiveCount (@Nonnull final String sReceiverURL)
+  {
+    final Semaphore aReceiver = m_aPerReceiver.get (sReceiverURL);
+    return aReceiver == null ? 0 : m_nMaxPerReceiver - aReceiver.availablePermits ();
+  }
+
+  /**
+   * @return The number of sends currently in progress in total. Always 0 if
+   *         there is no global limit.
+   */
+  @Nonnegative
+  public int getGlobalActiveCount ()
+  {
+    return m_aGlobal == null ? 0 : m_nMaxGlobal - m_aGlobal.availablePermits ();
+  }
+
+  /**
+   * @return The number of sends that were rejected since startup.
+   */
+  @Nonnegative
+  public long getRejectedCount ()
+  {
+    return m_aRejected.get ();
+  }
+
+  @Override
+  public String toString ()
+  {
+    return new ToStringGenerator (this).append ("maxPerReceiver", m_nMaxPerReceiver)
+                                       .append ("maxGlobal", m_nMaxGlobal)
+                                       .append ("maxWaitMillis", m_nMaxWaitMillis)
+                                       .append ("rejected", m_aRejected.get ())
+                                       .getToString ();
+  }
+}
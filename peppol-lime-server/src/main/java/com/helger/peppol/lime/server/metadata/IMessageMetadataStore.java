@@ -0,0 +1,128 @@
+/**
+ * Copyright (C) 2015-2016 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Version: MPL 1.1/EUPL 1.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at:
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is Copyright The PEPPOL project (http://www.peppol.eu)
+ *
+ * Alternatively, the contents of this file may be used under the
+ * terms of the EUPL, Version 1.1 or - as soon they will be approved
+ * by the European Commission - subsequent versions of the EUPL
+ * (the "Licence"); You may not use this work except in compliance
+ * with the Licence.
+ * You may obtain a copy of the Licence at:
+ * http://joinup.ec.europa.eu/software/page/eupl/licence-eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ *
+ * If you wish to allow use of your version of this file only
+ * under the terms of the EUPL License and not to allow others to use
+ * your version of this file under the MPL, indicate your decision by
+ * deleting the provisions above and replace them with the notice and
+ * other provisions required by the EUPL License. If you do not delete
+ * the provisions above, a recipient may use your version of this file
+ * under either the MPL or the EUPL License.
+ */
+package com.helger.peppol.lime.server.metadata;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import com.helger.commons.annotation.Nonempty;
+import com.helger.commons.state.EChange;
+
+/**
+ * Storage of all messages that were created but not yet put. It is filled on
+ * WS create and retrieved on WS put. Implementations must be thread-safe and
+ * must provide a public constructor without arguments if they should be
+ * configurable via <code>lime.metadata.store</code>.
+ *
+ * @author Philip Helger
+ */
+public interface IMessageMetadataStore
+{
+  /**
+   * Store a newly created message.
+   *
+   * @param sMessageID
+   *        The message ID. May neither be <code>null</code> nor empty.
+   * @param aMessage
+   *        The message to store. May not be <code>null</code>.
+   * @return {@link EChange#UNCHANGED} if a message with the same ID is already
+   *         stored.
+   */
+  @Nonnull
+  EChange createResource (@Nonnull @Nonempty String sMessageID, @Nonnull PendingMessage aMessage);
+
+  /**
+   * @param sMessageID
+   *        The message ID. May neither be <code>null</code> nor empty.
+   * @return <code>null</code> if no such message is stored.
+   */
+  @Nullable
+  PendingMessage getMessage (@Nonnull @Nonempty String sMessageID);
+
+  /**
+   * @param sMessageID
+   *        The message ID. May neither be <code>null</code> nor empty.
+   * @return <code>true</code> if a message with the provided ID is stored.
+   */
+  default boolean isStored (@Nonnull @Nonempty final String sMessageID)
+  {
+    return getMessage (sMessageID) != null;
+  }
+
+  /**
+   * Remove a message after it was put.
+   *
+   * @param sMessageID
+   *        The message ID. May neither be <code>null</code> nor empty.
+   */
+  void removeMessage (@Nonnull @Nonempty String sMessageID);
+
+  /**
+   * Evict all messages that were not put within the time to live.
+   *
+   * @param nNowMillis
+   *        The current time in milliseconds.
+   * @return The number of evicted messages.
+   */
+  @Nonnegative
+  int expireReservations (long nNowMillis);
+
+  /**
+   * @return The number of messages that are currently created but not yet
+   *         put.
+   */
+  @Nonnegative
+  int getReservationCount ();
+
+  /**
+   * @return The number of messages that were evicted since startup, because
+   *         they were not put in time.
+   */
+  @Nonnegative
+  long getEvictedCount ();
+
+  /**
+   * Release all resources. Afterwards the store may not be used anymore.
+   */
+  default void close ()
+  {}
+}
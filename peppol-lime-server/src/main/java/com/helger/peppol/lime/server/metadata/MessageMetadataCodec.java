@@ -0,0 +1,159 @@
+/**
+ * Copyright (C) 2015-2016 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Version: MPL 1.1/EUPL 1.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at:
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is Copyright The PEPPOL project (http://www.peppol.eu)
+ *
+ * Alternatively, the contents of this file may be used under the
+ * terms of the EUPL, Version 1.1 or - as soon they will be approved
+ * by the European Commission - subsequent versions of the EUPL
+ * (the "Licence"); You may not use this work except in compliance
+ * with the Licence.
+ * You may obtain a copy of the Licence at:
+ * http://joinup.ec.europa.eu/software/page/eupl/licence-eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ *
+ * If you wish to allow use of your version of this file only
+ * under the terms of the EUPL License and not to allow others to use
+ * your version of this file under the MPL, indicate your decision by
+ * deleting the provisions above and replace them with the notice and
+ * other provisions required by the EUPL License. If you do not delete
+ * the provisions above, a recipient may use your version of this file
+ * under either the MPL or the EUPL License.
+ */
+package com.helger.peppol.lime.server.metadata;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.Immutable;
+
+import com.helger.commons.ValueEnforcer;
+import com.helger.peppol.identifier.generic.doctype.SimpleDocumentTypeIdentifier;
+import com.helger.peppol.identifier.generic.participant.SimpleParticipantIdentifier;
+import com.helger.peppol.identifier.generic.process.SimpleProcessIdentifier;
+import com.helger.peppol.lime.api.IMessageMetadata;
+import com.helger.peppol.lime.api.MessageMetadata;
+
+/**
+ * Compact binary serialization of {@link IMessageMetadata} objects. The format
+ * starts with a version byte, followed by the message ID, the channel ID and
+ * scheme and value of sender, recipient, document type and process. Each
+ * string is written as a presence flag followed by modified UTF-8.
+ *
+ * @author Philip Helger
+ */
+@Immutable
+public final class MessageMetadataCodec
+{
+  private static final byte VERSION_1 = 1;
+
+  private MessageMetadataCodec ()
+  {}
+
+  private static void _writeString (@Nonnull final DataOutputStream aDOS, @Nullable final String s) throws IOException
+  {
+    aDOS.writeBoolean (s != null);
+    if (s != null)
+      aDOS.writeUTF (s);
+  }
+
+  @Nullable
+  private static String _readString (@Nonnull final DataInputStream aDIS) throws IOException
+  {
+    return aDIS.readBoolean () ? aDIS.readUTF () : null;
+  }
+
+  /**
+   * Encode the passed metadata.
+   *
+   * @param aMetadata
+   *        The metadata to encode. May not be <code>null</code>. All
+   *        identifiers must be present.
+   * @return The encoded bytes. Never <code>null</code>.
+   */
+  @Nonnull
+  public static byte [] encode (@Nonnull final IMessageMetadata aMetadata)
+  {
+    ValueEnforcer.notNull (aMetadata, "Metadata");
+
+    final ByteArrayOutputStream aBAOS = new ByteArrayOutputStream (256);
+    try (final DataOutputStream aDOS = new DataOutputStream (aBAOS))
+    {
+      aDOS.writeByte (VERSION_1);
+      _writeString (aDOS, aMetadata.getMessageID ());
+      _writeString (aDOS, aMetadata.getChannelID ());
+      _writeString (aDOS, aMetadata.getSenderID ().getScheme ());
+      _writeString (aDOS, aMetadata.getSenderID ().getValue ());
+      _writeString (aDOS, aMetadata.getRecipientID ().getScheme ());
+      _writeString (aDOS, aMetadata.getRecipientID ().getValue ());
+      _writeString (aDOS, aMetadata.getDocumentTypeID ().getScheme ());
+      _writeString (aDOS, aMetadata.getDocumentTypeID ().getValue ());
+      _writeString (aDOS, aMetadata.getProcessID ().getScheme ());
+      _writeString (aDOS, aMetadata.getProcessID ().getValue ());
+    }
+    catch (final IOException ex)
+    {
+      // Cannot happen with a ByteArrayOutputStream
+      throw new IllegalStateException ("Failed to encode metadata", ex);
+    }
+    return aBAOS.toByteArray ();
+  }
+
+  /**
+   * Decode metadata previously encoded with {@link #encode(IMessageMetadata)}.
+   *
+   * @param aBytes
+   *        The encoded bytes. May not be <code>null</code>.
+   * @return The decoded metadata. Never <code>null</code>.
+   * @throws IOException
+   *         If the bytes are not a valid encoding.
+   */
+  @Nonnull
+  public static MessageMetadata decode (@Nonnull final byte [] aBytes) throws IOException
+  {
+    ValueEnforcer.notNull (aBytes, "Bytes");
+
+    try (final DataInputStream aDIS = new DataInputStream (new ByteArrayInputStream (aBytes)))
+    {
+      final byte nVersion = aDIS.readByte ();
+      if (nVersion != VERSION_1)
+        throw new IOException ("Unsupported metadata encoding version " + nVersion);
+
+      final String sMessageID = _readString (aDIS);
+      final String sChannelID = _readString (aDIS);
+      final SimpleParticipantIdentifier aSenderID = new SimpleParticipantIdentifier (_readString (aDIS),
+                                                                                     _readString (aDIS));
+      final SimpleParticipantIdentifier aRecipientID = new SimpleParticipantIdentifier (_readString (aDIS),
+                                                                                        _readString (aDIS));
+      final SimpleDocumentTypeIdentifier aDocTypeID = new SimpleDocumentTypeIdentifier (_readString (aDIS),
+                                                                                        _readString (aDIS));
+      final SimpleProcessIdentifier aProcessID = new SimpleProcessIdentifier (_readString (aDIS), _readString (aDIS));
+      if (aDIS.available () > 0)
+        throw new IOException ("Unexpected trailing bytes in encoded metadata");
+      return new MessageMetadata (sMessageID, sChannelID, aSenderID, aRecipientID, aDocTypeID, aProcessID);
+    }
+  }
+}
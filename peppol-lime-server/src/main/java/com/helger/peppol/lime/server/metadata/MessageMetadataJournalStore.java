@@ -0,0 +1,747 @@
+/**
+ * Copyright (C) 2015-2016 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Version: MPL 1.1/EUPL 1.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at:
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is Copyright The PEPPOL project (http://www.peppol.eu)
+ *
+ * Alternatively, the contents of this file may be used under the
+ * terms of the EUPL, Version 1.1 or - as soon they will be approved
+ * by the European Commission - subsequent versions of the EUPL
+ * (the "Licence"); You may not use this work except in compliance
+ * with the Licence.
+ * You may obtain a copy of the Licence at:
+ * http://joinup.ec.europa.eu/software/page/eupl/licence-eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ *
+ * If you wish to allow use of your version of this file only
+ * under the terms of the EUPL License and not to allow others to use
+ * your version of this file under the MPL, indicate your decision by
+ * deleting the provisions above and replace them with the notice and
+ * other provisions required by the EUPL License. If you do not delete
+ * the provisions above, a recipient may use your version of this file
+ * under either the MPL or the EUPL License.
+ */
+package com.helger.peppol.lime.server.metadata;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.ThreadSafe;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.helger.commons.ValueEnforcer;
+import com.helger.commons.annotation.Nonempty;
+import com.helger.commons.state.EChange;
+import com.helger.commons.string.ToStringGenerator;
+
+/**
+ * A message metadata store that is based on append-only journals in a
+ * directory that is shared by all LIME nodes. This allows put requests to be
+ * handled by a different node than the create request.
+ * <p>
+ * Each node only appends to its own memory-mapped journal file
+ * (<code>&lt;nodeID&gt;.&lt;generation&gt;.journal</code>) and reads the
+ * journals of all other nodes incrementally, whenever a message is looked up
+ * and when expiring reservations. Each record consists of a 4 byte
+ * length, a 4 byte CRC32 of the record data and the record data; the length is
+ * written last. A reader stops at the first record that is incomplete or whose
+ * checksum does not match (e.g. a torn read of a shared file) and reads it
+ * again with the next refresh. Appends of concurrent requests are forced to
+ * disk together. If the journal is full, it is compacted: all
+ * records that are still relevant are written to the next generation, which
+ * replaces the previous one.
+ *
+ * @author Philip Helger
+ */
+@ThreadSafe
+public final class MessageMetadataJournalStore implements IMessageMetadataStore
+{
+  /** The default size of a single journal file */
+  public static final int DEFAULT_SEGMENT_SIZE = 16 * 1024 * 1024;
+
+  private static final Logger s_aLogger = LoggerFactory.getLogger (MessageMetadataJournalStore.class);
+
+  private static final String FILE_EXTENSION = ".journal";
+  private static final String TMP_EXTENSION = ".tmp";
+  private static final String LOCK_EXTENSION = ".lock";
+  /** Length and CRC32 of the data */
+  private static final int RECORD_HEADER_SIZE = 8;
+  private static final byte TYPE_CREATE = 1;
+  private static final byte TYPE_REMOVE = 2;
+  /** Minimum milliseconds between two expirations triggered by create */
+  private static final long EXPIRE_INTERVAL_MILLIS = 1000;
+
+  private static final class Entry
+  {
+    private final String m_sNodeID;
+    private final PendingMessage m_aMessage;
+
+    Entry (@Nonnull final String sNodeID, @Nonnull final PendingMessage aMessage)
+    {
+      m_sNodeID = sNodeID;
+      m_aMessage = aMessage;
+    }
+  }
+
+  private static final class Tombstone
+  {
+    private final String m_sNodeID;
+    private final long m_nMillis;
+
+    Tombstone (@Nonnull final String sNodeID, final long nMillis)
+    {
+      m_sNodeID = sNodeID;
+      m_nMillis = nMillis;
+    }
+  }
+
+  private static final class ForeignJournal
+  {
+    private final long m_nGeneration;
+    private long m_nOffset = 0;
+
+    ForeignJournal (final long nGeneration)
+    {
+      m_nGeneration = nGeneration;
+    }
+  }
+
+  private final File m_aDir;
+  private final String m_sNodeID;
+  private final long m_nTTLMillis;
+  private final int m_nSegmentSize;
+  private final ConcurrentMap <String, Entry> m_aEntries = new ConcurrentHashMap <> ();
+  private final ConcurrentMap <String, Tombstone> m_aTombstones = new ConcurrentHashMap <> ();
+  private final AtomicLong m_aEvicted = new AtomicLong (0);
+  private final AtomicLong m_aNextExpireMillis = new AtomicLong (0);
+  private final FileChannel m_aNodeLockChannel;
+  private final FileLock m_aNodeLock;
+
+  // All following fields are guarded by m_aLock
+  private final Lock m_aLock = new ReentrantLock ();
+  private final Map <String, ForeignJournal> m_aForeignJournals = new HashMap <> ();
+  private long m_nGeneration;
+  private File m_aFile;
+  private FileChannel m_aChannel;
+  private MappedByteBuffer m_aBuffer;
+  /** The number of records appended so far */
+  private long m_nAppended = 0;
+
+  // Guarded by m_aForceLock
+  private final Object m_aForceLock = new Object ();
+  /** The number of appended records that are forced to disk */
+  private long m_nForced = 0;
+
+  /**
+   * Constructor. Reads all existing journals and starts a new generation of
+   * the journal of this node.
+   *
+   * @param aDir
+   *        The shared journal directory. May not be <code>null</code>.
+   * @param sNodeID
+   *        The unique ID of this node. All characters except letters, digits,
+   *        '_' and '-' are replaced with '_'. May neither be <code>null</code>
+   *        nor empty.
+   * @param nTTLMillis
+   *        The milliseconds after which a created message that was not put is
+   *        evicted.
+   * @param nSegmentSize
+   *        The minimum size of a journal file in bytes.
+   * @throws IOException
+   *         If the journal cannot be read or written
+   * @throws IllegalStateException
+   *         If another process already uses the same node ID
+   */
+  public MessageMetadataJournalStore (@Nonnull final File aDir,
+                                      @Nonnull @Nonempty final String sNodeID,
+                                      @Nonnegative final long nTTLMillis,
+                                      @Nonnegative final int nSegmentSize) throws IOException
+  {
+    ValueEnforcer.notNull (aDir, "Dir");
+    ValueEnforcer.notEmpty (sNodeID, "NodeID");
+    ValueEnforcer.isGE0 (nTTLMillis, "TTLMillis");
+    ValueEnforcer.isGT0 (nSegmentSize, "SegmentSize");
+    m_aDir = aDir;
+    m_sNodeID = sNodeID.replaceAll ("[^A-Za-z0-9_\\-]", "_");
+    m_nTTLMillis = nTTLMillis;
+    m_nSegmentSize = nSegmentSize;
+
+    Files.createDirectories (aDir.toPath ());
+    m_aNodeLockChannel = FileChannel.open (new File (aDir, m_sNodeID + LOCK_EXTENSION).toPath (),
+                                           StandardOpenOption.CREATE,
+                                           StandardOpenOption.WRITE);
+    m_aNodeLock = m_aNodeLockChannel.tryLock ();
+    if (m_aNodeLock == null)
+    {
+      m_aNodeLockChannel.close ();
+      throw new IllegalStateException ("The node ID '" + m_sNodeID + "' is already used by another process");
+    }
+
+    m_aLock.lock ();
+    try
+    {
+      // Read all journals including the own one from a previous run
+      _refresh (true);
+      final ForeignJournal aOwn = m_aForeignJournals.remove (m_sNodeID);
+      m_nGeneration = aOwn == null ? 0 : aOwn.m_nGeneration;
+      _compact (System.currentTimeMillis ());
+    }
+    finally
+    {
+      m_aLock.unlock ();
+    }
+    s_aLogger.info ("Opened metadata journal " + m_aFile.getAbsolutePath () + " with " + m_aEntries.size () + " entries");
+  }
+
+  @Nonnull
+  private File _getFile (@Nonnull final String sNodeID, final long nGeneration, @Nonnull final String sExtension)
+  {
+    return new File (m_aDir, sNodeID + '.' + nGeneration + sExtension);
+  }
+
+  /**
+   * @return The latest journal generation of each node. Never
+   *         <code>null</code>.
+   */
+  @Nonnull
+  private Map <String, Long> _getLatestGenerations ()
+  {
+    final Map <String, Long> ret = new HashMap <> ();
+    final File [] aFiles = m_aDir.listFiles ();
+    if (aFiles != null)
+      for (final File aFile : aFiles)
+      {
+        final String sName = aFile.getName ();
+        if (!sName.endsWith (FILE_EXTENSION))
+          continue;
+        final String sBase = sName.substring (0, sName.length () - FILE_EXTENSION.length ());
+        final int nIndex = sBase.lastIndexOf ('.');
+        if (nIndex <= 0)
+          continue;
+        try
+        {
+          final long nGeneration = Long.parseLong (sBase.substring (nIndex + 1));
+          ret.merge (sBase.substring (0, nIndex), Long.valueOf (nGeneration), Math::max);
+        }
+        catch (final NumberFormatException ex)
+        {
+          // Not a journal file
+        }
+      }
+    return ret;
+  }
+
+  /**
+   * Read all new records from the journals of the other nodes. Must be called
+   * with the lock held.
+   *
+   * @param bIncludeOwn
+   *        <code>true</code> to read the journal of this node as well.
+   */
+  private void _refresh (final boolean bIncludeOwn)
+  {
+    for (final Map.Entry <String, Long> aEntry : _getLatestGenerations ().entrySet ())
+    {
+      final String sNodeID = aEntry.getKey ();
+      if (!bIncludeOwn && sNodeID.equals (m_sNodeID))
+        continue;
+
+      final long nGeneration = aEntry.getValue ().longValue ();
+      ForeignJournal aJournal = m_aForeignJournals.get (sNodeID);
+      if (aJournal == null || aJournal.m_nGeneration != nGeneration)
+      {
+        if (aJournal != null)
+        {
+          // The node compacted its journal - forget everything read so far
+          m_aEntries.values ().removeIf (x -> x.m_sNodeID.equals (sNodeID));
+          m_aTombstones.values ().removeIf (x -> x.m_sNodeID.equals (sNodeID));
+        }
+        aJournal = new ForeignJournal (nGeneration);
+        m_aForeignJournals.put (sNodeID, aJournal);
+      }
+      aJournal.m_nOffset = _readJournal (_getFile (sNodeID, nGeneration, FILE_EXTENSION),
+                                         sNodeID,
+                                         aJournal.m_nOffset);
+    }
+  }
+
+  private static void _readFully (@Nonnull final FileChannel aChannel,
+                                  @Nonnull final ByteBuffer aBuffer,
+                                  final long nPosition) throws IOException
+  {
+    while (aBuffer.hasRemaining ())
+      if (aChannel.read (aBuffer, nPosition + aBuffer.position ()) < 0)
+        throw new EOFException ();
+  }
+
+  private long _readJournal (@Nonnull final File aFile, @Nonnull final String sNodeID, final long nStartOffset)
+  {
+    long nOffset = nStartOffset;
+    try (final FileChannel aChannel = FileChannel.open (aFile.toPath (), StandardOpenOption.READ))
+    {
+      final long nSize = aChannel.size ();
+      final ByteBuffer aHeader = ByteBuffer.allocate (RECORD_HEADER_SIZE);
+      final CRC32 aCRC = new CRC32 ();
+      final long nNowMillis = System.currentTimeMillis ();
+      while (nOffset + RECORD_HEADER_SIZE <= nSize)
+      {
+        aHeader.clear ();
+        _readFully (aChannel, aHeader, nOffset);
+        final int nLength = aHeader.getInt (0);
+        if (nLength <= 0 || nLength > nSize - nOffset - RECORD_HEADER_SIZE)
+        {
+          // End of written records or not completely visible yet
+          break;
+        }
+        final ByteBuffer aRecord = ByteBuffer.allocate (nLength);
+        _readFully (aChannel, aRecord, nOffset + RECORD_HEADER_SIZE);
+        aCRC.reset ();
+        aCRC.update (aRecord.array ());
+        if ((int) aCRC.getValue () != aHeader.getInt (4))
+        {
+          // Torn read - try again with the next refresh
+          s_aLogger.debug ("Checksum mismatch at offset " +
+                           nOffset +
+                           " of metadata journal " +
+                           aFile.getAbsolutePath ());
+          break;
+        }
+        _applyRecord (sNodeID, aRecord.array (), nNowMillis);
+        nOffset += RECORD_HEADER_SIZE + nLength;
+      }
+    }
+    catch (final NoSuchFileException ex)
+    {
+      // Compacted in the meantime - the next refresh reads the new generation
+    }
+    catch (final IOException ex)
+    {
+      s_aLogger.error ("Failed to read metadata journal " + aFile.getAbsolutePath (), ex);
+    }
+    return nOffset;
+  }
+
+  private void _applyRecord (@Nonnull final String sNodeID, @Nonnull final byte [] aRecord, final long nNowMillis)
+  {
+    try (final DataInputStream aDIS = new DataInputStream (new ByteArrayInputStream (aRecord)))
+    {
+      final byte nType = aDIS.readByte ();
+      final long nMillis = aDIS.readLong ();
+      final String sMessageID = aDIS.readUTF ();
+      if (nType == TYPE_CREATE)
+      {
+        final byte [] aMetadata = new byte [aDIS.readInt ()];
+        aDIS.readFully (aMetadata);
+        if (nMillis + m_nTTLMillis > nNowMillis && !m_aTombstones.containsKey (sMessageID))
+          m_aEntries.putIfAbsent (sMessageID,
+                                  new Entry (sNodeID,
+                                             new PendingMessage (MessageMetadataCodec.decode (aMetadata),
+                                                                 null,
+                                                                 nMillis)));
+      }
+      else
+        if (nType == TYPE_REMOVE)
+        {
+          m_aEntries.remove (sMessageID);
+          m_aTombstones.put (sMessageID, new Tombstone (sNodeID, nMillis));
+        }
+        else
+          s_aLogger.warn ("Ignoring journal record of unknown type " + nType);
+    }
+    catch (final IOException ex)
+    {
+      s_aLogger.warn ("Ignoring corrupt journal record of node " + sNodeID, ex);
+    }
+  }
+
+  @Nonnull
+  private static byte [] _createRecord (final byte nType,
+                                        final long nMillis,
+                                        @Nonnull final String sMessageID,
+                                        @Nullable final byte [] aMetadata) throws IOException
+  {
+    final ByteArrayOutputStream aBAOS = new ByteArrayOutputStream ();
+    try (final DataOutputStream aDOS = new DataOutputStream (aBAOS))
+    {
+      aDOS.writeByte (nType);
+      aDOS.writeLong (nMillis);
+      aDOS.writeUTF (sMessageID);
+      if (aMetadata != null)
+      {
+        aDOS.writeInt (aMetadata.length);
+        aDOS.write (aMetadata);
+      }
+    }
+    return aBAOS.toByteArray ();
+  }
+
+  private static int _getCRC (@Nonnull final byte [] aRecord)
+  {
+    final CRC32 aCRC = new CRC32 ();
+    aCRC.update (aRecord);
+    return (int) aCRC.getValue ();
+  }
+
+  /**
+   * Write all relevant records of this node into a new generation of the
+   * journal and switch to it. Must be called with the lock held.
+   *
+   * @param nNowMillis
+   *        The current time in milliseconds.
+   * @throws IOException
+   *         on error
+   */
+  private void _compact (final long nNowMillis) throws IOException
+  {
+    // Learn about messages that were put on other nodes
+    _refresh (false);
+
+    final List <byte []> aRecords = new ArrayList <> ();
+    long nTotal = 0;
+    for (final Map.Entry <String, Entry> aEntry : m_aEntries.entrySet ())
+    {
+      final Entry aValue = aEntry.getValue ();
+      final long nCreationMillis = aValue.m_aMessage.getCreationMillis ();
+      if (aValue.m_sNodeID.equals (m_sNodeID) && nCreationMillis + m_nTTLMillis > nNowMillis)
+      {
+        final byte [] aRecord = _createRecord (TYPE_CREATE,
+                                               nCreationMillis,
+                                               aEntry.getKey (),
+                                               MessageMetadataCodec.encode (aValue.m_aMessage.getMetadata ()));
+        aRecords.add (aRecord);
+        nTotal += RECORD_HEADER_SIZE + aRecord.length;
+      }
+    }
+    for (final Map.Entry <String, Tombstone> aEntry : m_aTombstones.entrySet ())
+    {
+      final Tombstone aValue = aEntry.getValue ();
+      if (aValue.m_sNodeID.equals (m_sNodeID) && aValue.m_nMillis + m_nTTLMillis > nNowMillis)
+      {
+        final byte [] aRecord = _createRecord (TYPE_REMOVE, aValue.m_nMillis, aEntry.getKey (), null);
+        aRecords.add (aRecord);
+        nTotal += RECORD_HEADER_SIZE + aRecord.length;
+      }
+    }
+
+    // Leave at least as much free space as is used
+    final long nSize = Math.max (m_nSegmentSize, 2 * nTotal);
+    if (nSize > Integer.MAX_VALUE)
+      throw new IllegalStateException ("The metadata journal is too large: " + nTotal + " bytes");
+
+    final long nNewGeneration = m_nGeneration + 1;
+    final File aTmpFile = _getFile (m_sNodeID, nNewGeneration, TMP_EXTENSION);
+    final File aNewFile = _getFile (m_sNodeID, nNewGeneration, FILE_EXTENSION);
+    try (final RandomAccessFile aRAF = new RandomAccessFile (aTmpFile, "rw"))
+    {
+      aRAF.setLength (nSize);
+      final ByteBuffer aBuffer = ByteBuffer.allocate ((int) nTotal);
+      for (final byte [] aRecord : aRecords)
+      {
+        aBuffer.putInt (aRecord.length);
+        aBuffer.putInt (_getCRC (aRecord));
+        aBuffer.put (aRecord);
+      }
+      aBuffer.flip ();
+      final FileChannel aChannel = aRAF.getChannel ();
+      while (aBuffer.hasRemaining ())
+        aChannel.write (aBuffer, aBuffer.position ());
+      aChannel.force (true);
+    }
+    // Make the new generation visible to the other nodes at once
+    Files.move (aTmpFile.toPath (), aNewFile.toPath (), StandardCopyOption.ATOMIC_MOVE);
+
+    final FileChannel aNewChannel = FileChannel.open (aNewFile.toPath (),
+                                                      StandardOpenOption.READ,
+                                                      StandardOpenOption.WRITE);
+    final MappedByteBuffer aNewBuffer = aNewChannel.map (FileChannel.MapMode.READ_WRITE, 0, nSize);
+    aNewBuffer.position ((int) nTotal);
+
+    // Switch
+    final FileChannel aOldChannel = m_aChannel;
+    final File aOldFile = m_aFile;
+    m_nGeneration = nNewGeneration;
+    m_aFile = aNewFile;
+    m_aChannel = aNewChannel;
+    m_aBuffer = aNewBuffer;
+    if (aOldChannel != null)
+      aOldChannel.close ();
+
+    // Delete all previous generations of this node
+    final File [] aFiles = m_aDir.listFiles ( (d, n) -> n.startsWith (m_sNodeID + '.') &&
+                                                      (n.endsWith (FILE_EXTENSION) || n.endsWith (TMP_EXTENSION)) &&
+                                                      !n.equals (aNewFile.getName ()));
+    if (aFiles != null)
+      for (final File aFile : aFiles)
+        Files.deleteIfExists (aFile.toPath ());
+
+    if (aOldFile != null)
+      s_aLogger.info ("Compacted metadata journal " + aOldFile.getName () + " into " + aNewFile.getName ());
+  }
+
+  private void _append (@Nonnull final byte [] aRecord) throws IOException
+  {
+    final int nCRC = _getCRC (aRecord);
+    final long nRecordNumber;
+    m_aLock.lock ();
+    try
+    {
+      if (m_aBuffer.remaining () < RECORD_HEADER_SIZE + aRecord.length)
+      {
+        _compact (System.currentTimeMillis ());
+        if (m_aBuffer.remaining () < RECORD_HEADER_SIZE + aRecord.length)
+          throw new IllegalStateException ("The journal record is too large: " + aRecord.length + " bytes");
+      }
+      final int nPosition = m_aBuffer.position ();
+      m_aBuffer.position (nPosition + 4);
+      m_aBuffer.putInt (nCRC);
+      m_aBuffer.put (aRecord);
+      // Publish the record by writing its length last
+      m_aBuffer.putInt (nPosition, aRecord.length);
+      nRecordNumber = ++m_nAppended;
+    }
+    finally
+    {
+      m_aLock.unlock ();
+    }
+    // Other nodes must see it before the create response is sent
+    _force (nRecordNumber);
+  }
+
+  /**
+   * Force all records up to the passed one to disk. Does not block appends.
+   * Threads that wait while another one forces are usually covered by the
+   * next force and return without forcing themselves.
+   *
+   * @param nRecordNumber
+   *        The number of the record that must be on disk.
+   */
+  private void _force (final long nRecordNumber)
+  {
+    synchronized (m_aForceLock)
+    {
+      if (m_nForced >= nRecordNumber)
+        return;
+
+      final MappedByteBuffer aBuffer;
+      final long nAppended;
+      m_aLock.lock ();
+      try
+      {
+        // Records appended before a compaction are already forced in the new
+        // generation, so forcing the current buffer is enough
+        aBuffer = m_aBuffer;
+        nAppended = m_nAppended;
+      }
+      finally
+      {
+        m_aLock.unlock ();
+      }
+      aBuffer.force ();
+      m_nForced = nAppended;
+    }
+  }
+
+  private void _refreshLocked ()
+  {
+    m_aLock.lock ();
+    try
+    {
+      _refresh (false);
+    }
+    finally
+    {
+      m_aLock.unlock ();
+    }
+  }
+
+  @Nonnull
+  public EChange createResource (@Nonnull @Nonempty final String sMessageID, @Nonnull final PendingMessage aMessage)
+  {
+    ValueEnforcer.notEmpty (sMessageID, "MessageID");
+    ValueEnforcer.notNull (aMessage, "Message");
+
+    final long nNowMillis = System.currentTimeMillis ();
+    final long nNextExpireMillis = m_aNextExpireMillis.get ();
+    if (nNowMillis >= nNextExpireMillis &&
+        m_aNextExpireMillis.compareAndSet (nNextExpireMillis, nNowMillis + EXPIRE_INTERVAL_MILLIS))
+      expireReservations (nNowMillis);
+
+    if (m_aTombstones.containsKey (sMessageID))
+      return EChange.UNCHANGED;
+    final Entry aEntry = new Entry (m_sNodeID, aMessage);
+    if (m_aEntries.putIfAbsent (sMessageID, aEntry) != null)
+      return EChange.UNCHANGED;
+
+    try
+    {
+      _append (_createRecord (TYPE_CREATE,
+                              aMessage.getCreationMillis (),
+                              sMessageID,
+                              MessageMetadataCodec.encode (aMessage.getMetadata ())));
+    }
+    catch (final IOException ex)
+    {
+      m_aEntries.remove (sMessageID, aEntry);
+      throw new IllegalStateException ("Failed to write message " + sMessageID + " to the metadata journal", ex);
+    }
+    return EChange.CHANGED;
+  }
+
+  @Nullable
+  public PendingMessage getMessage (@Nonnull @Nonempty final String sMessageID)
+  {
+    // Catch up first - the message may have been created or already put on
+    // another node
+    _refreshLocked ();
+    final Entry aEntry = m_aEntries.get (sMessageID);
+    if (aEntry == null)
+      return null;
+    if (aEntry.m_aMessage.getCreationMillis () + m_nTTLMillis <= System.currentTimeMillis ())
+      return null;
+    return aEntry.m_aMessage;
+  }
+
+  public void removeMessage (@Nonnull @Nonempty final String sMessageID)
+  {
+    final long nNowMillis = System.currentTimeMillis ();
+    m_aEntries.remove (sMessageID);
+    m_aTombstones.put (sMessageID, new Tombstone (m_sNodeID, nNowMillis));
+    try
+    {
+      _append (_createRecord (TYPE_REMOVE, nNowMillis, sMessageID, null));
+    }
+    catch (final IOException ex)
+    {
+      s_aLogger.error ("Failed to write the removal of message " + sMessageID + " to the metadata journal", ex);
+    }
+  }
+
+  @Nonnegative
+  public int expireReservations (final long nNowMillis)
+  {
+    _refreshLocked ();
+
+    int ret = 0;
+    for (final Map.Entry <String, Entry> aEntry : m_aEntries.entrySet ())
+    {
+      final Entry aValue = aEntry.getValue ();
+      if (aValue.m_aMessage.getCreationMillis () + m_nTTLMillis <= nNowMillis &&
+          m_aEntries.remove (aEntry.getKey (), aValue) &&
+          aValue.m_sNodeID.equals (m_sNodeID))
+      {
+        // Only count the messages created on this node
+        m_aEvicted.incrementAndGet ();
+        ret++;
+        s_aLogger.warn ("Evicted message " + aEntry.getKey () + " that was created but never put");
+      }
+    }
+    // Removals older than the TTL are no longer relevant
+    m_aTombstones.values ().removeIf (x -> x.m_nMillis + m_nTTLMillis <= nNowMillis);
+    return ret;
+  }
+
+  @Nonnegative
+  public int getReservationCount ()
+  {
+    return m_aEntries.size ();
+  }
+
+  @Nonnegative
+  public long getEvictedCount ()
+  {
+    return m_aEvicted.get ();
+  }
+
+  /**
+   * @return The current journal file of this node. Never <code>null</code>.
+   */
+  @Nonnull
+  public File getJournalFile ()
+  {
+    m_aLock.lock ();
+    try
+    {
+      return m_aFile;
+    }
+    finally
+    {
+      m_aLock.unlock ();
+    }
+  }
+
+  public void close ()
+  {
+    m_aLock.lock ();
+    try
+    {
+      m_aBuffer.force ();
+      m_aChannel.close ();
+      m_aNodeLock.release ();
+      m_aNodeLockChannel.close ();
+    }
+    catch (final IOException ex)
+    {
+      s_aLogger.error ("Failed to close metadata journal " + m_aFile.getAbsolutePath (), ex);
+    }
+    finally
+    {
+      m_aLock.unlock ();
+    }
+  }
+
+  @Override
+  public String toString ()
+  {
+    return new ToStringGenerator (this).append ("dir", m_aDir)
+                                       .append ("nodeID", m_sNodeID)
+                                       .append ("TTLMillis", m_nTTLMillis)
+                                       .append ("segmentSize", m_nSegmentSize)
+                                       .getToString ();
+  }
+}
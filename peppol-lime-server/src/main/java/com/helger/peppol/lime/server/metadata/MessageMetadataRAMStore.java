@@ -0,0 +1,204 @@
+/**
+ * Copyright (C) 2015-2016 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Version: MPL 1.1/EUPL 1.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at:
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is Copyright The PEPPOL project (http://www.peppol.eu)
+ *
+ * Alternatively, the contents of this file may be used under the
+ * terms of the EUPL, Version 1.1 or - as soon they will be approved
+ * by the European Commission - subsequent versions of the EUPL
+ * (the "Licence"); You may not use this work except in compliance
+ * with the Licence.
+ * You may obtain a copy of the Licence at:
+ * http://joinup.ec.europa.eu/software/page/eupl/licence-eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ *
+ * If you wish to allow use of your version of this file only
+ * under the terms of the EUPL License and not to allow others to use
+ * your version of this file under the MPL, indicate your decision by
+ * deleting the provisions above and replace them with the notice and
+ * other provisions required by the EUPL License. If you do not delete
+ * the provisions above, a recipient may use your version of this file
+ * under either the MPL or the EUPL License.
+ */
+package com.helger.peppol.lime.server.metadata;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.ThreadSafe;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.helger.commons.ValueEnforcer;
+import com.helger.commons.annotation.Nonempty;
+import com.helger.commons.state.EChange;
+
+/**
+ * Memory backed storage of all known objects. It is filled on WS create and
+ * retrieved on WS put. All operations are atomic operations on a concurrent
+ * map, so no global lock is needed.
+ * <p>
+ * Messages that are not put within the configured time to live are evicted.
+ * As all entries have the same time to live, the creation order is also the
+ * expiration order, so a simple FIFO queue is used to find expired entries in
+ * O(1) per entry. Expired entries are evicted on each create and whenever
+ * they are accessed.
+ *
+ * @author Ravnholt
+ * @author PEPPOL.AT, BRZ, Philip Helger
+ */
+@ThreadSafe
+public final class MessageMetadataRAMStore implements IMessageMetadataStore
+{
+  private static final Logger s_aLogger = LoggerFactory.getLogger (MessageMetadataRAMStore.class);
+
+  private final long m_nTTLMillis;
+  private final ConcurrentMap <String, PendingMessage> m_aMap = new ConcurrentHashMap <> ();
+  // In creation order
+  private final Queue <String> m_aExpirationQueue = new ConcurrentLinkedQueue <> ();
+  private final AtomicBoolean m_aEvicting = new AtomicBoolean (false);
+  private final AtomicLong m_aEvicted = new AtomicLong (0);
+
+  /**
+   * Constructor
+   *
+   * @param nTTLMillis
+   *        The milliseconds after which a created message that was not put is
+   *        evicted.
+   */
+  public MessageMetadataRAMStore (@Nonnegative final long nTTLMillis)
+  {
+    ValueEnforcer.isGE0 (nTTLMillis, "TTLMillis");
+    m_nTTLMillis = nTTLMillis;
+  }
+
+  /**
+   * Get the message with the provided ID, unless it is expired. Expired
+   * messages are evicted right away, so that they are never returned even if
+   * no create triggered the eviction yet.
+   */
+  @Nullable
+  private PendingMessage _getUnexpired (@Nonnull final String sMessageID)
+  {
+    final PendingMessage aMessage = m_aMap.get (sMessageID);
+    if (aMessage == null)
+      return null;
+    if (aMessage.getCreationMillis () + m_nTTLMillis > System.currentTimeMillis ())
+      return aMessage;
+
+    // The entry in the expiration queue is discarded when it is due
+    if (m_aMap.remove (sMessageID, aMessage))
+    {
+      m_aEvicted.incrementAndGet ();
+      s_aLogger.warn ("Evicted message " + sMessageID + " that was created but never put");
+    }
+    return null;
+  }
+
+  public boolean isStored (@Nonnull @Nonempty final String sMessageID)
+  {
+    return _getUnexpired (sMessageID) != null;
+  }
+
+  @Nonnull
+  public EChange createResource (@Nonnull @Nonempty final String sMessageID, @Nonnull final PendingMessage aMessage)
+  {
+    ValueEnforcer.notNull (aMessage, "Message");
+
+    expireReservations (System.currentTimeMillis ());
+
+    if (m_aMap.putIfAbsent (sMessageID, aMessage) != null)
+      return EChange.UNCHANGED;
+    m_aExpirationQueue.add (sMessageID);
+    return EChange.CHANGED;
+  }
+
+  @Nullable
+  public PendingMessage getMessage (@Nonnull @Nonempty final String sMessageID)
+  {
+    return _getUnexpired (sMessageID);
+  }
+
+  public void removeMessage (@Nonnull @Nonempty final String sMessageID)
+  {
+    // The entry in the expiration queue is discarded when it is due
+    m_aMap.remove (sMessageID);
+  }
+
+  @Nonnegative
+  public int expireReservations (final long nNowMillis)
+  {
+    // Only one thread evicts at a time - all others continue immediately
+    if (!m_aEvicting.compareAndSet (false, true))
+      return 0;
+
+    int ret = 0;
+    try
+    {
+      while (true)
+      {
+        final String sMessageID = m_aExpirationQueue.peek ();
+        if (sMessageID == null)
+          break;
+
+        final PendingMessage aMessage = m_aMap.get (sMessageID);
+        if (aMessage != null && aMessage.getCreationMillis () + m_nTTLMillis > nNowMillis)
+        {
+          // Head is not yet expired - so no other entry is
+          break;
+        }
+
+        m_aExpirationQueue.poll ();
+        if (aMessage != null && m_aMap.remove (sMessageID, aMessage))
+        {
+          m_aEvicted.incrementAndGet ();
+          ret++;
+          s_aLogger.warn ("Evicted message " + sMessageID + " that was created but never put");
+        }
+      }
+    }
+    finally
+    {
+      m_aEvicting.set (false);
+    }
+    return ret;
+  }
+
+  @Nonnegative
+  public int getReservationCount ()
+  {
+    return m_aMap.size ();
+  }
+
+  @Nonnegative
+  public long getEvictedCount ()
+  {
+    return m_aEvicted.get ();
+  }
+}
@@ -0,0 +1,199 @@
+/**
+ * Copyright (C) 2015-2016 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Version: MPL 1.1/EUPL 1.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at:
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is Copyright The PEPPOL project (http://www.peppol.eu)
+ *
+ * Alternatively, the contents of this file may be used under the
+ * terms of the EUPL, Version 1.1 or - as soon they will be approved
+ * by the European Commission - subsequent versions of the EUPL
+ * (the "Licence"); You may not use this work except in compliance
+ * with the Licence.
+ * You may obtain a copy of the Licence at:
+ * http://joinup.ec.europa.eu/software/page/eupl/licence-eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ *
+ * If you wish to allow use of your version of this file only
+ * under the terms of the EUPL License and not to allow others to use
+ * your version of this file under the MPL, indicate your decision by
+ * deleting the provisions above and replace them with the notice and
+ * other provisions required by the EUPL License. If you do not delete
+ * the provisions above, a recipient may use your version of this file
+ * under either the MPL or the EUPL License.
+ */
+package com.helger.peppol.lime.server.metadata;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.Base64;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.ThreadSafe;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import com.helger.commons.ValueEnforcer;
+import com.helger.commons.annotation.Nonempty;
+import com.helger.peppol.lime.api.IMessageMetadata;
+
+/**
+ * Creates and verifies message ID tokens that contain all metadata of a
+ * created message, so that no state needs to be kept between create and put.
+ * A token has the form <code>lime:&lt;data&gt;.&lt;mac&gt;</code> where data
+ * is the expiration time followed by the {@link MessageMetadataCodec}
+ * encoding of the metadata and mac is a truncated HMAC-SHA256 of the data,
+ * both in URL-safe Base64.
+ * <p>
+ * Tokens cannot be revoked: a token may be put several times until it
+ * expires.
+ *
+ * @author Philip Helger
+ */
+@ThreadSafe
+public final class MessageMetadataTokenCodec
+{
+  /** The prefix of all tokens */
+  public static final String TOKEN_PREFIX = "lime:";
+  /** The minimum length of the secret */
+  public static final int MIN_SECRET_LENGTH = 16;
+
+  private static final String MAC_ALGORITHM = "HmacSHA256";
+  /** Number of MAC bytes contained in the token */
+  private static final int MAC_LENGTH = 16;
+  private static final char SEPARATOR = '.';
+
+  private final long m_nTTLMillis;
+  private final ThreadLocal <Mac> m_aMac;
+
+  /**
+   * Constructor
+   *
+   * @param sSecret
+   *        The secret shared by all nodes. Must have at least
+   *        {@link #MIN_SECRET_LENGTH} characters.
+   * @param nTTLMillis
+   *        The milliseconds after creation, after which a token is no longer
+   *        accepted.
+   */
+  public MessageMetadataTokenCodec (@Nonnull @Nonempty final String sSecret, @Nonnegative final long nTTLMillis)
+  {
+    ValueEnforcer.notNull (sSecret, "Secret");
+    ValueEnforcer.isTrue (sSecret.length () >= MIN_SECRET_LENGTH,
+                          "The secret must have at least " + MIN_SECRET_LENGTH + " characters");
+    ValueEnforcer.isGE0 (nTTLMillis, "TTLMillis");
+    final SecretKeySpec aKey = new SecretKeySpec (sSecret.getBytes (StandardCharsets.UTF_8), MAC_ALGORITHM);
+    m_nTTLMillis = nTTLMillis;
+    // Mac instances are not thread-safe
+    m_aMac = ThreadLocal.withInitial ( () -> {
+      try
+      {
+        final Mac aMac = Mac.getInstance (MAC_ALGORITHM);
+        aMac.init (aKey);
+        return aMac;
+      }
+      catch (final GeneralSecurityException ex)
+      {
+        throw new IllegalStateException ("Failed to initialize " + MAC_ALGORITHM, ex);
+      }
+    });
+  }
+
+  @Nonnull
+  private byte [] _getMac (@Nonnull final byte [] aData)
+  {
+    return Arrays.copyOf (m_aMac.get ().doFinal (aData), MAC_LENGTH);
+  }
+
+  /**
+   * @param sMessageID
+   *        The message ID to check. May be <code>null</code>.
+   * @return <code>true</code> if the passed message ID looks like a token.
+   */
+  public static boolean isToken (@Nullable final String sMessageID)
+  {
+    return sMessageID != null && sMessageID.startsWith (TOKEN_PREFIX);
+  }
+
+  /**
+   * Create a new token.
+   *
+   * @param aMetadata
+   *        The metadata to encode. May not be <code>null</code>.
+   * @param nNowMillis
+   *        The current time in milliseconds.
+   * @return The token. Never <code>null</code>.
+   */
+  @Nonnull
+  public String createToken (@Nonnull final IMessageMetadata aMetadata, final long nNowMillis)
+  {
+    final byte [] aMetadataBytes = MessageMetadataCodec.encode (aMetadata);
+    final byte [] aData = ByteBuffer.allocate (8 + aMetadataBytes.length)
+                                    .putLong (nNowMillis + m_nTTLMillis)
+                                    .put (aMetadataBytes)
+                                    .array ();
+    final Base64.Encoder aEncoder = Base64.getUrlEncoder ().withoutPadding ();
+    return TOKEN_PREFIX + aEncoder.encodeToString (aData) + SEPARATOR + aEncoder.encodeToString (_getMac (aData));
+  }
+
+  /**
+   * Verify and decode a token.
+   *
+   * @param sToken
+   *        The token to decode. May be <code>null</code>.
+   * @param nNowMillis
+   *        The current time in milliseconds.
+   * @return <code>null</code> if the token is malformed, has an invalid
+   *         signature or is expired.
+   */
+  @Nullable
+  public IMessageMetadata parseToken (@Nullable final String sToken, final long nNowMillis)
+  {
+    if (!isToken (sToken))
+      return null;
+    final int nSeparator = sToken.indexOf (SEPARATOR, TOKEN_PREFIX.length ());
+    if (nSeparator < 0)
+      return null;
+
+    try
+    {
+      final Base64.Decoder aDecoder = Base64.getUrlDecoder ();
+      final byte [] aData = aDecoder.decode (sToken.substring (TOKEN_PREFIX.length (), nSeparator));
+      final byte [] aMac = aDecoder.decode (sToken.substring (nSeparator + 1));
+      if (aData.length <= 8 || !MessageDigest.isEqual (aMac, _getMac (aData)))
+        return null;
+
+      final ByteBuffer aBuffer = ByteBuffer.wrap (aData);
+      if (aBuffer.getLong () <= nNowMillis)
+        return null;
+      return MessageMetadataCodec.decode (Arrays.copyOfRange (aData, 8, aData.length));
+    }
+    catch (final IllegalArgumentException | IOException ex)
+    {
+      // Invalid Base64 or invalid metadata encoding
+      return null;
+    }
+  }
+}
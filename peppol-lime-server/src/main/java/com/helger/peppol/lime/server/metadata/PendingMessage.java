@@ -0,0 +1,97 @@
+/**
+ * Copyright (C) 2015-2016 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Version: MPL 1.1/EUPL 1.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at:
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is Copyright The PEPPOL project (http://www.peppol.eu)
+ *
+ * Alternatively, the contents of this file may be used under the
+ * terms of the EUPL, Version 1.1 or - as soon they will be approved
+ * by the European Commission - subsequent versions of the EUPL
+ * (the "Licence"); You may not use this work except in compliance
+ * with the Licence.
+ * You may obtain a copy of the Licence at:
+ * http://joinup.ec.europa.eu/software/page/eupl/licence-eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ *
+ * If you wish to allow use of your version of this file only
+ * under the terms of the EUPL License and not to allow others to use
+ * your version of this file under the MPL, indicate your decision by
+ * deleting the provisions above and replace them with the notice and
+ * other provisions required by the EUPL License. If you do not delete
+ * the provisions above, a recipient may use your version of this file
+ * under either the MPL or the EUPL License.
+ */
+package com.helger.peppol.lime.server.metadata;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.Immutable;
+
+import com.helger.commons.ValueEnforcer;
+import com.helger.peppol.lime.api.IMessageMetadata;
+import com.helger.peppol.lime.server.routing.MessageRouting;
+
+/**
+ * A message that was created but not yet put: the metadata from the create
+ * request together with the optional prefetched routing and the creation time.
+ *
+ * @author Philip Helger
+ */
+@Immutable
+public final class PendingMessage
+{
+  private final IMessageMetadata m_aMetadata;
+  private final MessageRouting m_aRouting;
+  private final long m_nCreationMillis;
+
+  public PendingMessage (@Nonnull final IMessageMetadata aMetadata, @Nullable final MessageRouting aRouting)
+  {
+    this (aMetadata, aRouting, System.currentTimeMillis ());
+  }
+
+  public PendingMessage (@Nonnull final IMessageMetadata aMetadata,
+                         @Nullable final MessageRouting aRouting,
+                         final long nCreationMillis)
+  {
+    m_aMetadata = ValueEnforcer.notNull (aMetadata, "Metadata");
+    m_aRouting = aRouting;
+    m_nCreationMillis = nCreationMillis;
+  }
+
+  @Nonnull
+  public IMessageMetadata getMetadata ()
+  {
+    return m_aMetadata;
+  }
+
+  @Nullable
+  public MessageRouting getRouting ()
+  {
+    return m_aRouting;
+  }
+
+  /**
+   * @return The time of creation in milliseconds since the epoch.
+   */
+  public long getCreationMillis ()
+  {
+    return m_nCreationMillis;
+  }
+}
@@ -0,0 +1,137 @@
+/**
+ * Copyright (C) 2015-2016 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Version: MPL 1.1/EUPL 1.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at:
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is Copyright The PEPPOL project (http://www.peppol.eu)
+ *
+ * Alternatively, the contents of this file may be used under the
+ * terms of the EUPL, Version 1.1 or - as soon they will be approved
+ * by the European Commission - subsequent versions of the EUPL
+ * (the "Licence"); You may not use this work except in compliance
+ * with the Licence.
+ * You may obtain a copy of the Licence at:
+ * http://joinup.ec.europa.eu/software/page/eupl/licence-eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ *
+ * If you wish to allow use of your version of this file only
+ * under the terms of the EUPL License and not to allow others to use
+ * your version of this file under the MPL, indicate your decision by
+ * deleting the provisions above and replace them with the notice and
+ * other provisions required by the EUPL License. If you do not delete
+ * the provisions above, a recipient may use your version of this file
+ * under either the MPL or the EUPL License.
+ */
+package com.helger.peppol.lime.server.metadata;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.annotation.Nonnull;
+import javax.annotation.concurrent.ThreadSafe;
+
+import com.helger.commons.ValueEnforcer;
+import com.helger.commons.annotation.Nonempty;
+import com.helger.commons.string.ToStringGenerator;
+
+/**
+ * The default {@link IMessageIDGenerator}. Creates IDs of the form
+ * <code>msg:&lt;time&gt;-&lt;node&gt;-&lt;thread&gt;-&lt;counter&gt;</code>
+ * where time is the current time in milliseconds as 12 hex digits, so that IDs
+ * sort by creation time, also across nodes. The node ID makes the IDs unique
+ * across a cluster and thread index and counter make them unique within a
+ * node. No shared random number generator or lock is used.
+ *
+ * @author Philip Helger
+ */
+@ThreadSafe
+public final class TimeOrderedMessageIDGenerator implements IMessageIDGenerator
+{
+  /** The prefix of all created IDs */
+  public static final String PREFIX = "msg:";
+
+  private static final class ThreadState
+  {
+    private final String m_sThread;
+    private long m_nCounter = 0;
+
+    ThreadState (final int nThreadIndex)
+    {
+      m_sThread = Integer.toString (nThreadIndex, Character.MAX_RADIX);
+    }
+  }
+
+  private final String m_sNodeID;
+  private final AtomicInteger m_aThreadIndex = new AtomicInteger (0);
+  private final ThreadLocal <ThreadState> m_aThreadState = ThreadLocal.withInitial ( () -> new ThreadState (m_aThreadIndex.getAndIncrement ()));
+
+  /**
+   * Constructor
+   *
+   * @param sNodeID
+   *        The ID of this node, unique in the cluster. All characters except
+   *        letters, digits, '.' and '-' are replaced with '-'. May neither be
+   *        <code>null</code> nor empty.
+   */
+  public TimeOrderedMessageIDGenerator (@Nonnull @Nonempty final String sNodeID)
+  {
+    ValueEnforcer.notEmpty (sNodeID, "NodeID");
+    m_sNodeID = sNodeID.replaceAll ("[^A-Za-z0-9.\\-]", "-");
+  }
+
+  /**
+   * @return The sanitized node ID used in all IDs. Neither <code>null</code>
+   *         nor empty.
+   */
+  @Nonnull
+  @Nonempty
+  public String getNodeID ()
+  {
+    return m_sNodeID;
+  }
+
+  @Nonnull
+  private static String _getTimePart (final long nMillis)
+  {
+    final String sHex = Long.toHexString (nMillis);
+    return "000000000000".substring (Math.min (sHex.length (), 12)) + sHex;
+  }
+
+  @Nonnull
+  @Nonempty
+  public String createMessageID ()
+  {
+    final ThreadState aState = m_aThreadState.get ();
+    final long nCounter = aState.m_nCounter++;
+    return new StringBuilder (48).append (PREFIX)
+                                 .append (_getTimePart (System.currentTimeMillis ()))
+                                 .append ('-')
+                                 .append (m_sNodeID)
+                                 .append ('-')
+                                 .append (aState.m_sThread)
+                                 .append ('-')
+                                 .append (Long.toString (nCounter, Character.MAX_RADIX))
+                                 .toString ();
+  }
+
+  @Override
+  public String toString ()
+  {
+    return new ToStringGenerator (this).append ("nodeID", m_sNodeID).getToString ();
+  }
+}
@@ -0,0 +1,321 @@
+/**
+ * Copyright (C) 2015-2016 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Version: MPL 1.1/EUPL 1.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at:
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is Copyright The PEPPOL project (http://www.peppol.eu)
+ *
+ * Alternatively, the contents of this file may be used under the
+ * terms of the EUPL, Version 1.1 or - as soon they will be approved
+ * by the European Commission - subsequent versions of the EUPL
+ * (the "Licence"); You may not use this work except in compliance
+ * with the Licence.
+ * You may obtain a copy of the Licence at:
+ * http://joinup.ec.europa.eu/software/page/eupl/licence-eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ *
+ * If you wish to allow use of your version of this file only
+ * under the terms of the EUPL License and not to allow others to use
+ * your version of this file under the MPL, indicate your decision by
+ * deleting the provisions above and replace them with the notice and
+ * other provisions required by the EUPL License. If you do not delete
+ * the provisions above, a recipient may use your version of this file
+ * under either the MPL or the EUPL License.
+ */
+package com.helger.peppol.lime.server.outbound;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+import javax.annotation.concurrent.ThreadSafe;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.w3c.dom.Element;
+
+import com.helger.commons.ValueEnforcer;
+import com.helger.peppol.lime.api.IMessageMetadata;
+
+/**
+ * Asynchronous delivery of outbound messages. Each message is written to an
+ * {@link OutboundSpool} first and afterwards delivered by a bounded pool of
+ * worker threads. The spool entry is removed after the delivery finished -
+ * successfully or not. Messages remaining in the spool after a restart are
+ * picked up by {@link #recover()}. Recovered messages that don't fit into the
+ * queue are kept in a backlog and submitted whenever a delivery finishes.
+ *
+ * @author Philip Helger
+ */
+@ThreadSafe
+public final class OutboundDispatcher
+{
+  private static final Logger s_aLogger = LoggerFactory.getLogger (OutboundDispatcher.class);
+
+  private final OutboundSpool m_aSpool;
+  private final IOutboundSender m_aSender;
+  private final IOutboundFailureHandler m_aFailureHandler;
+  private final ThreadPoolExecutor m_aExecutor;
+  private final AtomicLong m_aDelivered = new AtomicLong (0);
+  private final AtomicLong m_aFailed = new AtomicLong (0);
+  // Guarded by itself
+  private final Deque <IMessageMetadata> m_aBacklog = new ArrayDeque <> ();
+
+  /**
+   * Constructor
+   *
+   * @param aSpool
+   *        The spool to use. May not be <code>null</code>.
+   * @param nWorkerCount
+   *        The number of worker threads. Must be &gt; 0.
+   * @param nQueueCapacity
+   *        The maximum number of messages waiting for a worker. Must be &gt; 0.
+   * @param aSender
+   *        The effective sender. May not be <code>null</code>.
+   * @param aFailureHandler
+   *        The handler for messages that could not be delivered. May not be
+   *        <code>null</code>.
+   */
+  public OutboundDispatcher (@Nonnull final OutboundSpool aSpool,
+                             @Nonnegative final int nWorkerCount,
+                             @Nonnegative final int nQueueCapacity,
+                             @Nonnull final IOutboundSender aSender,
+                             @Nonnull final IOutboundFailureHandler aFailureHandler)
+  {
+    ValueEnforcer.notNull (aSpool, "Spool");
+    ValueEnforcer.isGT0 (nWorkerCount, "WorkerCount");
+    ValueEnforcer.isGT0 (nQueueCapacity, "QueueCapacity");
+    ValueEnforcer.notNull (aSender, "Sender");
+    ValueEnforcer.notNull (aFailureHandler, "FailureHandler");
+    m_aSpool = aSpool;
+    m_aSender = aSender;
+    m_aFailureHandler = aFailureHandler;
+
+    final AtomicInteger aThreadIndex = new AtomicInteger (0);
+    m_aExecutor = new ThreadPoolExecutor (nWorkerCount,
+                                          nWorkerCount,
+                                          60,
+                                          TimeUnit.SECONDS,
+                                          new ArrayBlockingQueue <> (nQueueCapacity),
+                                          r -> {
+                                            final Thread t = new Thread (r,
+                                                                         "lime-outbound-" +
+                                                                            aThreadIndex.incrementAndGet ());
+                                            t.setDaemon (true);
+                                            return t;
+                                          });
+  }
+
+  private void _deliver (@Nonnull final IMessageMetadata aMetadata)
+  {
+    final String sMessageID = aMetadata.getMessageID ();
+    try
+    {
+      Element aPayload = null;
+      try
+      {
+        aPayload = m_aSpool.readPayload (sMessageID).getDocumentElement ();
+        m_aSender.send (aMetadata, aPayload);
+        m_aDelivered.incrementAndGet ();
+      }
+      catch (final Exception ex)
+      {
+        m_aFailed.incrementAndGet ();
+        s_aLogger.error ("Failed to deliver outbound message " + sMessageID, ex);
+        m_aFailureHandler.onDeliveryFailed (aMetadata, aPayload, ex);
+      }
+      // Sent or handed over to the failure handler
+      m_aSpool.delete (sMessageID);
+    }
+    catch (final RuntimeException ex)
+    {
+      s_aLogger.error ("Failed to handle the delivery failure of outbound message " +
+                       sMessageID +
+                       " - keeping it in the spool",
+                       ex);
+    }
+    finally
+    {
+      // A queue slot is free now
+      _submitBacklog ();
+    }
+  }
+
+  private void _submit (@Nonnull final IMessageMetadata aMetadata)
+  {
+    m_aExecutor.execute ( () -> _deliver (aMetadata));
+  }
+
+  /**
+   * Submit as many messages from the backlog as fit into the queue.
+   */
+  private void _submitBacklog ()
+  {
+    synchronized (m_aBacklog)
+    {
+      IMessageMetadata aMetadata;
+      while ((aMetadata = m_aBacklog.peekFirst ()) != null)
+      {
+        try
+        {
+          _submit (aMetadata);
+        }
+        catch (final RejectedExecutionException ex)
+        {
+          // Queue is full or shut down - try again after the next delivery
+          break;
+        }
+        m_aBacklog.removeFirst ();
+      }
+    }
+  }
+
+  /**
+   * Submit all messages left in the spool from a previous run. Messages that
+   * don't fit into the queue are kept in a backlog and submitted as soon as
+   * deliveries finish.
+   */
+  public void recover ()
+  {
+    final List <IMessageMetadata> aRecovered = m_aSpool.recover ();
+    synchronized (m_aBacklog)
+    {
+      m_aBacklog.addAll (aRecovered);
+    }
+    _submitBacklog ();
+    if (!aRecovered.isEmpty ())
+      s_aLogger.info ("Recovered " +
+                      aRecovered.size () +
+                      " outbound messages from the spool, " +
+                      getBacklogSize () +
+                      " of them wait for a free queue slot");
+  }
+
+  /**
+   * Durably spool the passed message and schedule it for delivery.
+   *
+   * @param aMetadata
+   *        The metadata of the message. May not be <code>null</code>.
+   * @param aPayload
+   *        The business document. May not be <code>null</code>.
+   * @throws IOException
+   *         If spooling failed
+   * @throws RejectedExecutionException
+   *         If the delivery queue is full. The message is not spooled in this
+   *         case.
+   */
+  public void enqueue (@Nonnull final IMessageMetadata aMetadata, @Nonnull final Element aPayload) throws IOException
+  {
+    m_aSpool.write (aMetadata, aPayload);
+    try
+    {
+      _submit (aMetadata);
+    }
+    catch (final RejectedExecutionException ex)
+    {
+      m_aSpool.delete (aMetadata.getMessageID ());
+      throw ex;
+    }
+  }
+
+  /**
+   * Stop accepting new messages and wait for the running deliveries to finish.
+   * Queued messages that were not yet started remain in the spool.
+   *
+   * @param nTimeoutMillis
+   *        Maximum milliseconds to wait
+   */
+  public void shutdown (@Nonnegative final long nTimeoutMillis)
+  {
+    // Remaining queued messages stay in the spool
+    final List <Runnable> aPending = new ArrayList <> ();
+    m_aExecutor.getQueue ().drainTo (aPending);
+    m_aExecutor.shutdown ();
+    final int nPending = aPending.size ();
+    if (nPending > 0)
+      s_aLogger.info (nPending + " outbound messages remain in the spool");
+    try
+    {
+      if (!m_aExecutor.awaitTermination (nTimeoutMillis, TimeUnit.MILLISECONDS))
+        s_aLogger.warn ("Outbound workers did not terminate within " + nTimeoutMillis + " ms");
+    }
+    catch (final InterruptedException ex)
+    {
+      Thread.currentThread ().interrupt ();
+    }
+  }
+
+  /**
+   * @return The number of messages waiting for a worker.
+   */
+  @Nonnegative
+  public int getQueueSize ()
+  {
+    return m_aExecutor.getQueue ().size ();
+  }
+
+  /**
+   * @return The number of recovered messages waiting for a free queue slot.
+   */
+  @Nonnegative
+  public int getBacklogSize ()
+  {
+    synchronized (m_aBacklog)
+    {
+      return m_aBacklog.size ();
+    }
+  }
+
+  /**
+   * @return The number of messages currently being delivered.
+   */
+  @Nonnegative
+  public int getActiveCount ()
+  {
+    return m_aExecutor.getActiveCount ();
+  }
+
+  /**
+   * @return The number of successfully delivered messages since startup.
+   */
+  @Nonnegative
+  public long getDeliveredCount ()
+  {
+    return m_aDelivered.get ();
+  }
+
+  /**
+   * @return The number of messages that could not be delivered since startup.
+   */
+  @Nonnegative
+  public long getFailedCount ()
+  {
+    return m_aFailed.get ();
+  }
+}
@@ -0,0 +1,394 @@
+/**
+ * Copyright (C) 2015-2016 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Version: MPL 1.1/EUPL 1.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at:
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is Copyright The PEPPOL project (http://www.peppol.eu)
+ *
+ * Alternatively, the contents of this file may be used under the
+ * terms of the EUPL, Version 1.1 or - as soon they will be approved
+ * by the European Commission - subsequent versions of the EUPL
+ * (the "Licence"); You may not use this work except in compliance
+ * with the Licence.
+ * You may obtain a copy of the Licence at:
+ * http://joinup.ec.europa.eu/software/page/eupl/licence-eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ *
+ * If you wish to allow use of your version of this file only
+ * under the terms of the EUPL License and not to allow others to use
+ * your version of this file under the MPL, indicate your decision by
+ * deleting the provisions above and replace them with the notice and
+ * other provisions required by the EUPL License. If you do not delete
+ * the provisions above, a recipient may use your version of this file
+ * under either the MPL or the EUPL License.
+ */
+package com.helger.peppol.lime.server.outbound;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.ThreadSafe;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.w3c.dom.Element;
+
+import com.helger.commons.ValueEnforcer;
+import com.helger.peppol.lime.api.IMessageMetadata;
+
+/**
+ * Persistent retry scheduler for outbound messages that could not be
+ * delivered. Each message is stored in an {@link OutboundSpool} together with
+ * the number of attempts made so far and the time of the next attempt. Pending
+ * retries are kept in a {@link DelayQueue}, so a single scheduler thread
+ * sleeps until the earliest retry is due, independent of the number of
+ * pending retries. Due retries are executed by a small pool of worker threads.
+ * After the maximum number of attempts the failure handler is invoked.
+ *
+ * @author Philip Helger
+ */
+@ThreadSafe
+public final class OutboundRetryScheduler
+{
+  private static final class RetryEntry implements Delayed
+  {
+    private final IMessageMetadata m_aMetadata;
+    private final int m_nAttemptsDone;
+    private final long m_nDueMillis;
+
+    RetryEntry (@Nonnull final IMessageMetadata aMetadata, final int nAttemptsDone, final long nDueMillis)
+    {
+      m_aMetadata = aMetadata;
+      m_nAttemptsDone = nAttemptsDone;
+      m_nDueMillis = nDueMillis;
+    }
+
+    @Override
+    public long getDelay (@Nonnull final TimeUnit eUnit)
+    {
+      return eUnit.convert (m_nDueMillis - System.currentTimeMillis (), TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public int compareTo (@Nonnull final Delayed aOther)
+    {
+      if (aOther instanceof RetryEntry)
+        return Long.compare (m_nDueMillis, ((RetryEntry) aOther).m_nDueMillis);
+      return Long.compare (getDelay (TimeUnit.MILLISECONDS), aOther.getDelay (TimeUnit.MILLISECONDS));
+    }
+  }
+
+  private static final Logger s_aLogger = LoggerFactory.getLogger (OutboundRetryScheduler.class);
+
+  private final OutboundSpool m_aSpool;
+  private final RetryPolicy m_aPolicy;
+  private final IOutboundSender m_aSender;
+  private final IOutboundFailureHandler m_aFailureHandler;
+  private final DelayQueue <RetryEntry> m_aQueue = new DelayQueue <> ();
+  private final ExecutorService m_aWorkers;
+  private final Thread m_aSchedulerThread;
+  private volatile boolean m_bRunning = true;
+  private final AtomicLong m_aRetried = new AtomicLong (0);
+  private final AtomicLong m_aExhausted = new AtomicLong (0);
+
+  /**
+   * Constructor. The scheduler thread is started immediately.
+   *
+   * @param aSpool
+   *        The spool for messages waiting for a retry. May not be
+   *        <code>null</code>.
+   * @param aPolicy
+   *        The retry policy. May not be <code>null</code>.
+   * @param nWorkerCount
+   *        The number of threads executing due retries. Must be &gt; 0.
+   * @param aSender
+   *        The effective sender. May not be <code>null</code>.
+   * @param aFailureHandler
+   *        The handler invoked after all attempts failed. May not be
+   *        <code>null</code>.
+   */
+  public OutboundRetryScheduler (@Nonnull final OutboundSpool aSpool,
+                                 @Nonnull final RetryPolicy aPolicy,
+                                 @Nonnegative final int nWorkerCount,
+                                 @Nonnull final IOutboundSender aSender,
+                                 @Nonnull final IOutboundFailureHandler aFailureHandler)
+  {
+    ValueEnforcer.notNull (aSpool, "Spool");
+    ValueEnforcer.notNull (aPolicy, "Policy");
+    ValueEnforcer.isGT0 (nWorkerCount, "WorkerCount");
+    ValueEnforcer.notNull (aSender, "Sender");
+    ValueEnforcer.notNull (aFailureHandler, "FailureHandler");
+    m_aSpool = aSpool;
+    m_aPolicy = aPolicy;
+    m_aSender = aSender;
+    m_aFailureHandler = aFailureHandler;
+
+    final AtomicInteger aThreadIndex = new AtomicInteger (0);
+    m_aWorkers = Executors.newFixedThreadPool (nWorkerCount, r -> {
+      final Thread t = new Thread (r, "lime-retry-" + aThreadIndex.incrementAndGet ());
+      t.setDaemon (true);
+      return t;
+    });
+    m_aSchedulerThread = new Thread (this::_runScheduler, "lime-retry-scheduler");
+    m_aSchedulerThread.setDaemon (true);
+    m_aSchedulerThread.start ();
+  }
+
+  @Nonnull
+  private static byte [] _encodeState (final int nAttemptsDone, final long nDueMillis)
+  {
+    final ByteArrayOutputStream aBAOS = new ByteArrayOutputStream (12);
+    try (final DataOutputStream aDOS = new DataOutputStream (aBAOS))
+    {
+      aDOS.writeInt (nAttemptsDone);
+      aDOS.writeLong (nDueMillis);
+    }
+    catch (final IOException ex)
+    {
+      // Cannot happen with a ByteArrayOutputStream
+      throw new IllegalStateException (ex);
+    }
+    return aBAOS.toByteArray ();
+  }
+
+  private void _runScheduler ()
+  {
+    while (m_bRunning)
+    {
+      try
+      {
+        final RetryEntry aEntry = m_aQueue.take ();
+        m_aWorkers.execute ( () -> _retry (aEntry));
+      }
+      catch (final InterruptedException ex)
+      {
+        // Shutdown
+        break;
+      }
+      catch (final RuntimeException ex)
+      {
+        s_aLogger.error ("Error in retry scheduler", ex);
+      }
+    }
+  }
+
+  private void _schedule (@Nonnull final IMessageMetadata aMetadata, final int nAttemptsDone) throws IOException
+  {
+    final long nDelayMillis = m_aPolicy.getDelayMillis (nAttemptsDone);
+    final long nDueMillis = System.currentTimeMillis () + nDelayMillis;
+    m_aSpool.writeState (aMetadata.getMessageID (), _encodeState (nAttemptsDone, nDueMillis));
+    m_aQueue.add (new RetryEntry (aMetadata, nAttemptsDone, nDueMillis));
+    s_aLogger.info ("Scheduled attempt " +
+                    (nAttemptsDone + 1) +
+                    " of " +
+                    m_aPolicy.getMaxAttempts () +
+                    " for message " +
+                    aMetadata.getMessageID () +
+                    " in " +
+                    nDelayMillis +
+                    " ms");
+  }
+
+  private void _giveUp (@Nonnull final IMessageMetadata aMetadata,
+                        @Nullable final Element aPayload,
+                        @Nonnull final Exception aCause)
+  {
+    m_aExhausted.incrementAndGet ();
+    try
+    {
+      m_aFailureHandler.onDeliveryFailed (aMetadata, aPayload, aCause);
+    }
+    finally
+    {
+      m_aSpool.delete (aMetadata.getMessageID ());
+    }
+  }
+
+  private void _retry (@Nonnull final RetryEntry aEntry)
+  {
+    final IMessageMetadata aMetadata = aEntry.m_aMetadata;
+    final String sMessageID = aMetadata.getMessageID ();
+    Element aPayload = null;
+    try
+    {
+      aPayload = m_aSpool.readPayload (sMessageID).getDocumentElement ();
+      m_aRetried.incrementAndGet ();
+      m_aSender.send (aMetadata, aPayload);
+      s_aLogger.info ("Successfully delivered message " + sMessageID + " in attempt " + (aEntry.m_nAttemptsDone + 1));
+      m_aSpool.delete (sMessageID);
+    }
+    catch (final Exception ex)
+    {
+      final int nAttemptsDone = aEntry.m_nAttemptsDone + 1;
+      if (aPayload != null && m_aPolicy.canRetry (nAttemptsDone))
+      {
+        try
+        {
+          _schedule (aMetadata, nAttemptsDone);
+          return;
+        }
+        catch (final IOException ex2)
+        {
+          s_aLogger.error ("Failed to persist retry state of message " + sMessageID, ex2);
+        }
+      }
+      s_aLogger.error ("Giving up on message " + sMessageID + " after " + nAttemptsDone + " attempts", ex);
+      _giveUp (aMetadata, aPayload, ex);
+    }
+  }
+
+  /**
+   * @return The retry policy used. Never <code>null</code>.
+   */
+  @Nonnull
+  public RetryPolicy getPolicy ()
+  {
+    return m_aPolicy;
+  }
+
+  /**
+   * Take over a message whose first delivery attempt failed. If the policy
+   * allows no retries, the failure handler is invoked immediately.
+   *
+   * @param aMetadata
+   *        The message metadata. May not be <code>null</code>.
+   * @param aPayload
+   *        The business document. May not be <code>null</code>.
+   * @param aCause
+   *        The reason why the first attempt failed. May not be
+   *        <code>null</code>.
+   */
+  public void scheduleRetry (@Nonnull final IMessageMetadata aMetadata,
+                             @Nonnull final Element aPayload,
+                             @Nonnull final Exception aCause)
+  {
+    ValueEnforcer.notNull (aMetadata, "Metadata");
+    ValueEnforcer.notNull (aPayload, "Payload");
+    ValueEnforcer.notNull (aCause, "Cause");
+
+    if (!m_bRunning || !m_aPolicy.canRetry (1))
+    {
+      m_aExhausted.incrementAndGet ();
+      m_aFailureHandler.onDeliveryFailed (aMetadata, aPayload, aCause);
+      return;
+    }
+
+    try
+    {
+      m_aSpool.write (aMetadata, aPayload);
+      _schedule (aMetadata, 1);
+    }
+    catch (final IOException ex)
+    {
+      s_aLogger.error ("Failed to spool message " + aMetadata.getMessageID () + " for retry", ex);
+      _giveUp (aMetadata, aPayload, aCause);
+    }
+  }
+
+  /**
+   * Schedule all messages left in the spool from a previous run, keeping their
+   * attempt counts and due times.
+   */
+  public void recover ()
+  {
+    int nCount = 0;
+    for (final IMessageMetadata aMetadata : m_aSpool.recover ())
+    {
+      int nAttemptsDone = 1;
+      long nDueMillis = System.currentTimeMillis ();
+      final byte [] aState = m_aSpool.readState (aMetadata.getMessageID ());
+      if (aState != null)
+        try (final DataInputStream aDIS = new DataInputStream (new ByteArrayInputStream (aState)))
+        {
+          nAttemptsDone = aDIS.readInt ();
+          nDueMillis = aDIS.readLong ();
+        }
+        catch (final IOException ex)
+        {
+          s_aLogger.warn ("Invalid retry state for message " + aMetadata.getMessageID () + " - retrying now");
+        }
+      m_aQueue.add (new RetryEntry (aMetadata, nAttemptsDone, nDueMillis));
+      nCount++;
+    }
+    if (nCount > 0)
+      s_aLogger.info ("Recovered " + nCount + " pending retries from the spool");
+  }
+
+  /**
+   * Stop the scheduler. Pending retries remain in the spool.
+   *
+   * @param nTimeoutMillis
+   *        Maximum milliseconds to wait for running retries
+   */
+  public void shutdown (@Nonnegative final long nTimeoutMillis)
+  {
+    m_bRunning = false;
+    m_aSchedulerThread.interrupt ();
+    m_aWorkers.shutdown ();
+    try
+    {
+      if (!m_aWorkers.awaitTermination (nTimeoutMillis, TimeUnit.MILLISECONDS))
+        s_aLogger.warn ("Retry workers did not terminate within " + nTimeoutMillis + " ms");
+    }
+    catch (final InterruptedException ex)
+    {
+      Thread.currentThread ().interrupt ();
+    }
+  }
+
+  /**
+   * @return The number of messages waiting for their next attempt.
+   */
+  @Nonnegative
+  public int getPendingCount ()
+  {
+    return m_aQueue.size ();
+  }
+
+  /**
+   * @return The number of retry attempts made since startup.
+   */
+  @Nonnegative
+  public long getRetryCount ()
+  {
+    return m_aRetried.get ();
+  }
+
+  /**
+   * @return The number of messages given up since startup.
+   */
+  @Nonnegative
+  public long getExhaustedCount ()
+  {
+    return m_aExhausted.get ();
+  }
+}
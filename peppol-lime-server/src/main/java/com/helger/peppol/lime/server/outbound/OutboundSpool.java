@@ -0,0 +1,353 @@
+/**
+ * Copyright (C) 2015-2016 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Version: MPL 1.1/EUPL 1.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at:
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is Copyright The PEPPOL project (http://www.peppol.eu)
+ *
+ * Alternatively, the contents of this file may be used under the
+ * terms of the EUPL, Version 1.1 or - as soon they will be approved
+ * by the European Commission - subsequent versions of the EUPL
+ * (the "Licence"); You may not use this work except in compliance
+ * with the Licence.
+ * You may obtain a copy of the Licence at:
+ * http://joinup.ec.europa.eu/software/page/eupl/licence-eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ *
+ * If you wish to allow use of your version of this file only
+ * under the terms of the EUPL License and not to allow others to use
+ * your version of this file under the MPL, indicate your decision by
+ * deleting the provisions above and replace them with the notice and
+ * other provisions required by the EUPL License. If you do not delete
+ * the provisions above, a recipient may use your version of this file
+ * under either the MPL or the EUPL License.
+ */
+package com.helger.peppol.lime.server.outbound;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.ThreadSafe;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.xml.sax.SAXException;
+
+import com.helger.commons.ValueEnforcer;
+import com.helger.commons.io.file.FileHelper;
+import com.helger.commons.io.file.FileOperations;
+import com.helger.commons.io.file.iterate.FileSystemIterator;
+import com.helger.peppol.lime.api.IMessageMetadata;
+import com.helger.peppol.lime.server.metadata.MessageMetadataCodec;
+import com.helger.peppol.lime.server.storage.EStorageDurability;
+import com.helger.peppol.lime.server.storage.StorageSyncer;
+import com.helger.xml.serialize.read.DOMReader;
+import com.helger.xml.serialize.write.XMLWriter;
+
+/**
+ * A directory based durable spool for outbound messages. Each message is
+ * stored as a payload file and a metadata file, named after the message ID.
+ * Both files are first written under a temporary name, forced to disk and then
+ * renamed. The metadata file is renamed last, so a message is only considered
+ * spooled if its metadata file exists. Finally the directory is forced to
+ * disk, so the renames survive a crash as well.
+ *
+ * @author Philip Helger
+ */
+@ThreadSafe
+public final class OutboundSpool
+{
+  /** Filename extension for metadata file */
+  public static final String EXT_METADATA = ".metadata";
+  /** Filename extension for payload file */
+  public static final String EXT_PAYLOAD = ".payload";
+  /** Filename extension for additional state file */
+  public static final String EXT_STATE = ".state";
+  /** Filename extension for files being written */
+  public static final String EXT_TEMP = ".tmp";
+
+  private static final Logger s_aLogger = LoggerFactory.getLogger (OutboundSpool.class);
+
+  private final File m_aDir;
+  private final StorageSyncer m_aSyncer = new StorageSyncer (EStorageDurability.FSYNC, 0);
+
+  public OutboundSpool (@Nonnull final File aDir)
+  {
+    ValueEnforcer.notNull (aDir, "Dir");
+    FileOperations.createDirRecursiveIfNotExisting (aDir);
+    if (!aDir.isDirectory ())
+      throw new IllegalStateException ("Outbound spool directory could not be created: " + aDir.getAbsolutePath ());
+    m_aDir = aDir;
+  }
+
+  @Nonnull
+  public File getDirectory ()
+  {
+    return m_aDir;
+  }
+
+  @Nonnull
+  private static String _getFilenameBase (@Nonnull final String sMessageID)
+  {
+    return sMessageID.replace (':', '_');
+  }
+
+  @Nonnull
+  private File _getMetadataFile (@Nonnull final String sMessageID)
+  {
+    return new File (m_aDir, _getFilenameBase (sMessageID) + EXT_METADATA);
+  }
+
+  @Nonnull
+  private File _getPayloadFile (@Nonnull final String sMessageID)
+  {
+    return new File (m_aDir, _getFilenameBase (sMessageID) + EXT_PAYLOAD);
+  }
+
+  @Nonnull
+  private File _getStateFile (@Nonnull final String sMessageID)
+  {
+    return new File (m_aDir, _getFilenameBase (sMessageID) + EXT_STATE);
+  }
+
+  private static void _moveAtomic (@Nonnull final File aSrc, @Nonnull final File aDst) throws IOException
+  {
+    Files.move (aSrc.toPath (), aDst.toPath (), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+  }
+
+  /**
+   * Durably store an outbound message. Returns after the message was forced to
+   * disk.
+   *
+   * @param aMetadata
+   *        The metadata of the message. Must contain a message ID.
+   * @param aPayload
+   *        The business document to be sent. May not be <code>null</code>.
+   * @throws IOException
+   *         If writing fails. In this case nothing is spooled.
+   */
+  public void write (@Nonnull final IMessageMetadata aMetadata, @Nonnull final Element aPayload) throws IOException
+  {
+    ValueEnforcer.notNull (aMetadata, "Metadata");
+    ValueEnforcer.notEmpty (aMetadata.getMessageID (), "Metadata.MessageID");
+    ValueEnforcer.notNull (aPayload, "Payload");
+
+    final String sMessageID = aMetadata.getMessageID ();
+    final File aPayloadFile = _getPayloadFile (sMessageID);
+    final File aMetadataFile = _getMetadataFile (sMessageID);
+    final File aTmpPayloadFile = new File (aPayloadFile.getPath () + EXT_TEMP);
+    final File aTmpMetadataFile = new File (aMetadataFile.getPath () + EXT_TEMP);
+    try
+    {
+      if (XMLWriter.writeToStream (aPayload, FileHelper.getOutputStream (aTmpPayloadFile)).isFailure ())
+        throw new IOException ("Failed to write outbound payload to " + aTmpPayloadFile.getAbsolutePath ());
+      Files.write (aTmpMetadataFile.toPath (), MessageMetadataCodec.encode (aMetadata));
+      m_aSyncer.sync (aTmpPayloadFile.toPath (), aTmpMetadataFile.toPath ());
+      _moveAtomic (aTmpPayloadFile, aPayloadFile);
+      _moveAtomic (aTmpMetadataFile, aMetadataFile);
+      m_aSyncer.sync (m_aDir.toPath ());
+    }
+    catch (final IOException | RuntimeException ex)
+    {
+      FileOperations.deleteFileIfExisting (aTmpPayloadFile);
+      FileOperations.deleteFileIfExisting (aTmpMetadataFile);
+      FileOperations.deleteFileIfExisting (aPayloadFile);
+      throw ex;
+    }
+  }
+
+  /**
+   * Read the payload of a spooled message.
+   *
+   * @param sMessageID
+   *        The message ID. May not be <code>null</code>.
+   * @return The payload document. Never <code>null</code>.
+   * @throws SAXException
+   *         If the payload file cannot be read.
+   */
+  @Nonnull
+  public Document readPayload (@Nonnull final String sMessageID) throws SAXException
+  {
+    final File aPayloadFile = _getPayloadFile (sMessageID);
+    final Document ret = DOMReader.readXMLDOM (aPayloadFile);
+    if (ret == null)
+      throw new SAXException ("Failed to read outbound payload " + aPayloadFile.getAbsolutePath ());
+    return ret;
+  }
+
+  /**
+   * Check if a message is contained in the spool.
+   *
+   * @param sMessageID
+   *        The message ID. May not be <code>null</code>.
+   * @return <code>true</code> if it is contained.
+   */
+  public boolean contains (@Nonnull final String sMessageID)
+  {
+    return _getMetadataFile (sMessageID).exists ();
+  }
+
+  /**
+   * Atomically write additional state for a spooled message, replacing any
+   * previous state.
+   *
+   * @param sMessageID
+   *        The message ID. May not be <code>null</code>.
+   * @param aState
+   *        The state bytes to write. May not be <code>null</code>.
+   * @throws IOException
+   *         If writing fails
+   */
+  public void writeState (@Nonnull final String sMessageID, @Nonnull final byte [] aState) throws IOException
+  {
+    ValueEnforcer.notNull (aState, "State");
+
+    final File aStateFile = _getStateFile (sMessageID);
+    final File aTmpStateFile = new File (aStateFile.getPath () + EXT_TEMP);
+    try
+    {
+      Files.write (aTmpStateFile.toPath (), aState);
+      m_aSyncer.sync (aTmpStateFile.toPath ());
+      _moveAtomic (aTmpStateFile, aStateFile);
+      m_aSyncer.sync (m_aDir.toPath ());
+    }
+    catch (final IOException ex)
+    {
+      FileOperations.deleteFileIfExisting (aTmpStateFile);
+      throw ex;
+    }
+  }
+
+  /**
+   * Read the additional state of a spooled message.
+   *
+   * @param sMessageID
+   *        The message ID. May not be <code>null</code>.
+   * @return <code>null</code> if no state is present or if it cannot be read.
+   */
+  @Nullable
+  public byte [] readState (@Nonnull final String sMessageID)
+  {
+    final File aStateFile = _getStateFile (sMessageID);
+    if (!aStateFile.exists ())
+      return null;
+    try
+    {
+      return Files.readAllBytes (aStateFile.toPath ());
+    }
+    catch (final IOException ex)
+    {
+      s_aLogger.error ("Failed to read spooled state " + aStateFile.getAbsolutePath (), ex);
+      return null;
+    }
+  }
+
+  /**
+   * Remove a message including its state from the spool.
+   *
+   * @param sMessageID
+   *        The message ID. May not be <code>null</code>.
+   */
+  public void delete (@Nonnull final String sMessageID)
+  {
+    // Metadata first, so a partially deleted message is not recovered
+    FileOperations.deleteFileIfExisting (_getMetadataFile (sMessageID));
+    FileOperations.deleteFileIfExisting (_getPayloadFile (sMessageID));
+    FileOperations.deleteFileIfExisting (_getStateFile (sMessageID));
+  }
+
+  @Nullable
+  private static IMessageMetadata _readMetadata (@Nonnull final File aMetadataFile)
+  {
+    try
+    {
+      return MessageMetadataCodec.decode (Files.readAllBytes (aMetadataFile.toPath ()));
+    }
+    catch (final IOException ex)
+    {
+      s_aLogger.error ("Failed to read spooled metadata " + aMetadataFile.getAbsolutePath (), ex);
+      return null;
+    }
+  }
+
+  /**
+   * Read the metadata of all completely spooled messages. Leftovers of
+   * incomplete writes are deleted.
+   *
+   * @return A non-<code>null</code> list of all spooled messages.
+   */
+  @Nonnull
+  public List <IMessageMetadata> recover ()
+  {
+    final List <IMessageMetadata> ret = new ArrayList <> ();
+    for (final File aFile : new FileSystemIterator (m_aDir))
+      if (aFile.isFile ())
+      {
+        final String sName = aFile.getName ();
+        if (sName.endsWith (EXT_TEMP))
+        {
+          s_aLogger.warn ("Deleting incompletely spooled file " + aFile.getAbsolutePath ());
+          FileOperations.deleteFile (aFile);
+        }
+        else
+          if (sName.endsWith (EXT_METADATA))
+          {
+            final IMessageMetadata aMetadata = _readMetadata (aFile);
+            if (aMetadata != null && _getPayloadFile (aMetadata.getMessageID ()).exists ())
+              ret.add (aMetadata);
+            else
+            {
+              s_aLogger.warn ("Deleting unusable spooled metadata " + aFile.getAbsolutePath ());
+              FileOperations.deleteFile (aFile);
+              // The payload may have been visited already
+              FileOperations.deleteFileIfExisting (new File (m_aDir,
+                                                             _getBaseName (sName, EXT_METADATA) + EXT_PAYLOAD));
+            }
+          }
+          else
+            if ((sName.endsWith (EXT_PAYLOAD) && !_hasMetadataFile (_getBaseName (sName, EXT_PAYLOAD))) ||
+                (sName.endsWith (EXT_STATE) && !_hasMetadataFile (_getBaseName (sName, EXT_STATE))))
+            {
+              // Crash between the moves on write or during delete
+              s_aLogger.warn ("Deleting orphaned spooled file " + aFile.getAbsolutePath ());
+              FileOperations.deleteFile (aFile);
+            }
+      }
+    return ret;
+  }
+
+  @Nonnull
+  private static String _getBaseName (@Nonnull final String sFilename, @Nonnull final String sExtension)
+  {
+    return sFilename.substring (0, sFilename.length () - sExtension.length ());
+  }
+
+  private boolean _hasMetadataFile (@Nonnull final String sBaseName)
+  {
+    return new File (m_aDir, sBaseName + EXT_METADATA).exists ();
+  }
+}
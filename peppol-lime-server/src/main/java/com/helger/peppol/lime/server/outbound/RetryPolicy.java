@@ -0,0 +1,169 @@
+/**
+ * Copyright (C) 2015-2016 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Version: MPL 1.1/EUPL 1.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at:
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is Copyright The PEPPOL project (http://www.peppol.eu)
+ *
+ * Alternatively, the contents of this file may be used under the
+ * terms of the EUPL, Version 1.1 or - as soon they will be approved
+ * by the European Commission - subsequent versions of the EUPL
+ * (the "Licence"); You may not use this work except in compliance
+ * with the Licence.
+ * You may obtain a copy of the Licence at:
+ * http://joinup.ec.europa.eu/software/page/eupl/licence-eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ *
+ * If you wish to allow use of your version of this file only
+ * under the terms of the EUPL License and not to allow others to use
+ * your version of this file under the MPL, indicate your decision by
+ * deleting the provisions above and replace them with the notice and
+ * other provisions required by the EUPL License. If you do not delete
+ * the provisions above, a recipient may use your version of this file
+ * under either the MPL or the EUPL License.
+ */
+package com.helger.peppol.lime.server.outbound;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.concurrent.Immutable;
+
+import com.helger.commons.ValueEnforcer;
+import com.helger.commons.string.ToStringGenerator;
+
+/**
+ * Exponential backoff with jitter for outbound delivery retries. The delay
+ * before retry number <code>n</code> is
+ * <code>min (initialDelay * 2^(n-1), maxDelay)</code>, reduced by a random
+ * amount of up to the configured jitter percentage, so that messages failing
+ * at the same time are not retried at the same time.
+ *
+ * @author Philip Helger
+ */
+@Immutable
+public final class RetryPolicy
+{
+  private final int m_nMaxAttempts;
+  private final long m_nInitialDelayMillis;
+  private final long m_nMaxDelayMillis;
+  private final int m_nJitterPercent;
+
+  /**
+   * Constructor
+   *
+   * @param nMaxAttempts
+   *        The maximum number of delivery attempts, including the first one.
+   *        Must be &gt; 0. A value of 1 means no retries.
+   * @param nInitialDelayMillis
+   *        The delay before the first retry in milliseconds. Must be &gt; 0.
+   * @param nMaxDelayMillis
+   *        The upper limit of the delay in milliseconds. Must be &ge; the
+   *        initial delay.
+   * @param nJitterPercent
+   *        The maximum percentage by which the delay is randomly reduced.
+   *        Must be between 0 and 100.
+   */
+  public RetryPolicy (@Nonnegative final int nMaxAttempts,
+                      @Nonnegative final long nInitialDelayMillis,
+                      @Nonnegative final long nMaxDelayMillis,
+                      @Nonnegative final int nJitterPercent)
+  {
+    ValueEnforcer.isGT0 (nMaxAttempts, "MaxAttempts");
+    ValueEnforcer.isGT0 (nInitialDelayMillis, "InitialDelayMillis");
+    ValueEnforcer.isTrue (nMaxDelayMillis >= nInitialDelayMillis, "MaxDelayMillis must be >= InitialDelayMillis");
+    ValueEnforcer.isBetweenInclusive (nJitterPercent, "JitterPercent", 0, 100);
+    m_nMaxAttempts = nMaxAttempts;
+    m_nInitialDelayMillis = nInitialDelayMillis;
+    m_nMaxDelayMillis = nMaxDelayMillis;
+    m_nJitterPercent = nJitterPercent;
+  }
+
+  @Nonnegative
+  public int getMaxAttempts ()
+  {
+    return m_nMaxAttempts;
+  }
+
+  /**
+   * @return <code>true</code> if more than one attempt is allowed.
+   */
+  public boolean isRetryEnabled ()
+  {
+    return m_nMaxAttempts > 1;
+  }
+
+  /**
+   * Check if another attempt may be made.
+   *
+   * @param nAttemptsDone
+   *        The number of attempts already made.
+   * @return <code>true</code> if another attempt is allowed.
+   */
+  public boolean canRetry (@Nonnegative final int nAttemptsDone)
+  {
+    return nAttemptsDone < m_nMaxAttempts;
+  }
+
+  /**
+   * Get the delay before the next attempt without jitter.
+   *
+   * @param nAttemptsDone
+   *        The number of attempts already made. Must be &gt; 0.
+   * @return The delay in milliseconds.
+   */
+  @Nonnegative
+  public long getBaseDelayMillis (@Nonnegative final int nAttemptsDone)
+  {
+    ValueEnforcer.isGT0 (nAttemptsDone, "AttemptsDone");
+    // Avoid overflow of the shift
+    final int nShift = Math.min (nAttemptsDone - 1, 30);
+    final long nDelay = m_nInitialDelayMillis << nShift;
+    if (nDelay < 0 || nDelay > m_nMaxDelayMillis)
+      return m_nMaxDelayMillis;
+    return nDelay;
+  }
+
+  /**
+   * Get the delay before the next attempt including jitter.
+   *
+   * @param nAttemptsDone
+   *        The number of attempts already made. Must be &gt; 0.
+   * @return The delay in milliseconds.
+   */
+  @Nonnegative
+  public long getDelayMillis (@Nonnegative final int nAttemptsDone)
+  {
+    final long nBaseDelay = getBaseDelayMillis (nAttemptsDone);
+    if (m_nJitterPercent == 0)
+      return nBaseDelay;
+    final long nMaxJitter = nBaseDelay * m_nJitterPercent / 100;
+    return nBaseDelay - ThreadLocalRandom.current ().nextLong (nMaxJitter + 1);
+  }
+
+  @Override
+  public String toString ()
+  {
+    return new ToStringGenerator (this).append ("maxAttempts", m_nMaxAttempts)
+                                       .append ("initialDelayMillis", m_nInitialDelayMillis)
+                                       .append ("maxDelayMillis", m_nMaxDelayMillis)
+                                       .append ("jitterPercent", m_nJitterPercent)
+                                       .getToString ();
+  }
+}
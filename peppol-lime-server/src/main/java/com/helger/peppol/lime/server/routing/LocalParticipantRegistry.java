@@ -0,0 +1,204 @@
+/**
+ * Copyright (C) 2015-2016 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Version: MPL 1.1/EUPL 1.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at:
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is Copyright The PEPPOL project (http://www.peppol.eu)
+ *
+ * Alternatively, the contents of this file may be used under the
+ * terms of the EUPL, Version 1.1 or - as soon they will be approved
+ * by the European Commission - subsequent versions of the EUPL
+ * (the "Licence"); You may not use this work except in compliance
+ * with the Licence.
+ * You may obtain a copy of the Licence at:
+ * http://joinup.ec.europa.eu/software/page/eupl/licence-eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ *
+ * If you wish to allow use of your version of this file only
+ * under the terms of the EUPL License and not to allow others to use
+ * your version of this file under the MPL, indicate your decision by
+ * deleting the provisions above and replace them with the notice and
+ * other provisions required by the EUPL License. If you do not delete
+ * the provisions above, a recipient may use your version of this file
+ * under either the MPL or the EUPL License.
+ */
+package com.helger.peppol.lime.server.routing;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.ThreadSafe;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.helger.commons.ValueEnforcer;
+import com.helger.commons.string.StringHelper;
+import com.helger.commons.string.ToStringGenerator;
+import com.helger.peppol.identifier.generic.participant.IParticipantIdentifier;
+
+/**
+ * An in-memory registry of all participants that are hosted on this access
+ * point. It is read from a plain text file that contains one URI encoded
+ * participant identifier (e.g. <code>iso6523-actorid-upis::0088:123</code>)
+ * per line. Empty lines and lines starting with <code>#</code> are ignored.
+ * The file is checked for modifications at most every configured interval and
+ * reloaded if it changed. If the file cannot be read or was deleted, the last
+ * read participants are retained.
+ *
+ * @author Philip Helger
+ */
+@ThreadSafe
+public final class LocalParticipantRegistry
+{
+  private static final Logger s_aLogger = LoggerFactory.getLogger (LocalParticipantRegistry.class);
+
+  private final File m_aFile;
+  private final long m_nCheckIntervalMillis;
+  private final Lock m_aReloadLock = new ReentrantLock ();
+  private volatile Set <String> m_aParticipants = Collections.emptySet ();
+  private volatile long m_nLastModified = Long.MIN_VALUE;
+  private volatile long m_nNextCheckMillis = Long.MIN_VALUE;
+
+  /**
+   * Constructor. The file is read immediately.
+   *
+   * @param aFile
+   *        The file to read the participants from. May not be
+   *        <code>null</code>.
+   * @param nCheckIntervalMillis
+   *        The minimum milliseconds between two modification checks of the
+   *        file. If 0, the file is checked upon every access.
+   */
+  public LocalParticipantRegistry (@Nonnull final File aFile, @Nonnegative final long nCheckIntervalMillis)
+  {
+    ValueEnforcer.notNull (aFile, "File");
+    ValueEnforcer.isGE0 (nCheckIntervalMillis, "CheckIntervalMillis");
+    m_aFile = aFile;
+    m_nCheckIntervalMillis = nCheckIntervalMillis;
+    reloadIfModified ();
+  }
+
+  @Nonnull
+  private static String _unify (@Nonnull final String sParticipantID)
+  {
+    // Participant identifiers are case insensitive
+    return sParticipantID.trim ().toLowerCase (Locale.US);
+  }
+
+  @Nonnull
+  public File getFile ()
+  {
+    return m_aFile;
+  }
+
+  /**
+   * Reload the participants file if it was modified since it was last read.
+   * If reading fails or the file was deleted, the previous content is
+   * retained.
+   */
+  public void reloadIfModified ()
+  {
+    m_aReloadLock.lock ();
+    try
+    {
+      final long nLastModified = m_aFile.lastModified ();
+      if (nLastModified == m_nLastModified)
+        return;
+
+      if (nLastModified == 0)
+      {
+        // Most likely the file is just being replaced
+        s_aLogger.warn ("The local participants file '" +
+                        m_aFile.getAbsolutePath () +
+                        "' does not exist - keeping the " +
+                        m_aParticipants.size () +
+                        " known local participants");
+        m_nLastModified = nLastModified;
+        return;
+      }
+
+      final Set <String> aParticipants = new HashSet <> ();
+      for (final String sLine : Files.readAllLines (m_aFile.toPath (), StandardCharsets.UTF_8))
+        if (StringHelper.hasText (sLine) && !sLine.trim ().startsWith ("#"))
+          aParticipants.add (_unify (sLine));
+
+      m_aParticipants = Collections.unmodifiableSet (aParticipants);
+      m_nLastModified = nLastModified;
+      s_aLogger.info ("Read " + aParticipants.size () + " local participants from '" + m_aFile.getAbsolutePath () + "'");
+    }
+    catch (final IOException ex)
+    {
+      s_aLogger.error ("Failed to read local participants from '" + m_aFile.getAbsolutePath () + "'", ex);
+    }
+    finally
+    {
+      m_nNextCheckMillis = System.currentTimeMillis () + m_nCheckIntervalMillis;
+      m_aReloadLock.unlock ();
+    }
+  }
+
+  /**
+   * Check if the provided participant is hosted on this access point.
+   *
+   * @param aParticipantID
+   *        The participant to check. May be <code>null</code>.
+   * @return <code>true</code> if the participant is contained in the
+   *         registry.
+   */
+  public boolean isLocalParticipant (@Nullable final IParticipantIdentifier aParticipantID)
+  {
+    if (aParticipantID == null)
+      return false;
+
+    if (System.currentTimeMillis () >= m_nNextCheckMillis)
+      reloadIfModified ();
+
+    return m_aParticipants.contains (_unify (aParticipantID.getURIEncoded ()));
+  }
+
+  /**
+   * @return The number of currently registered local participants.
+   */
+  @Nonnegative
+  public int getParticipantCount ()
+  {
+    return m_aParticipants.size ();
+  }
+
+  @Override
+  public String toString ()
+  {
+    return new ToStringGenerator (this).append ("file", m_aFile)
+                                       .append ("checkIntervalMillis", m_nCheckIntervalMillis)
+                                       .append ("participants", m_aParticipants.size ())
+                                       .getToString ();
+  }
+}
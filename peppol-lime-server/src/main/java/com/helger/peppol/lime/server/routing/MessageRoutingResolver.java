@@ -0,0 +1,235 @@
+/**
+ * Copyright (C) 2015-2016 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Version: MPL 1.1/EUPL 1.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at:
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is Copyright The PEPPOL project (http://www.peppol.eu)
+ *
+ * Alternatively, the contents of this file may be used under the
+ * terms of the EUPL, Version 1.1 or - as soon they will be approved
+ * by the European Commission - subsequent versions of the EUPL
+ * (the "Licence"); You may not use this work except in compliance
+ * with the Licence.
+ * You may obtain a copy of the Licence at:
+ * http://joinup.ec.europa.eu/software/page/eupl/licence-eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ *
+ * If you wish to allow use of your version of this file only
+ * under the terms of the EUPL License and not to allow others to use
+ * your version of this file under the MPL, indicate your decision by
+ * deleting the provisions above and replace them with the notice and
+ * other provisions required by the EUPL License. If you do not delete
+ * the provisions above, a recipient may use your version of this file
+ * under either the MPL or the EUPL License.
+ */
+package com.helger.peppol.lime.server.routing;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeoutException;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.ThreadSafe;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.helger.commons.ValueEnforcer;
+import com.helger.commons.string.ToStringGenerator;
+import com.helger.peppol.identifier.generic.participant.IParticipantIdentifier;
+import com.helger.peppol.lime.api.IMessageMetadata;
+import com.helger.peppol.lime.server.smp.SMPEndpointResolver;
+import com.helger.peppol.sml.ISMLInfo;
+import com.helger.peppol.smp.EndpointType;
+import com.helger.peppol.smp.ISMPTransportProfile;
+
+/**
+ * Resolves the SMP endpoints of the sender and the recipient of a message.
+ * Both lookups are started at once, so that they run in parallel on the lookup
+ * threads of the {@link SMPEndpointResolver}. Lookups prefetched when the
+ * message was created are reused, unless they failed.
+ *
+ * @author Philip Helger
+ */
+@ThreadSafe
+public final class MessageRoutingResolver
+{
+  private static final Logger s_aLogger = LoggerFactory.getLogger (MessageRoutingResolver.class);
+
+  private final SMPEndpointResolver m_aResolver;
+  private final ISMLInfo m_aSML;
+  private final ISMPTransportProfile m_aTransportProfile;
+
+  /**
+   * Constructor
+   *
+   * @param aResolver
+   *        The resolver to perform the lookups. May not be <code>null</code>.
+   * @param aSML
+   *        The SML to use. May not be <code>null</code>.
+   * @param aTransportProfile
+   *        The transport profile to query. May not be <code>null</code>.
+   */
+  public MessageRoutingResolver (@Nonnull final SMPEndpointResolver aResolver,
+                                 @Nonnull final ISMLInfo aSML,
+                                 @Nonnull final ISMPTransportProfile aTransportProfile)
+  {
+    m_aResolver = ValueEnforcer.notNull (aResolver, "Resolver");
+    m_aSML = ValueEnforcer.notNull (aSML, "SML");
+    m_aTransportProfile = ValueEnforcer.notNull (aTransportProfile, "TransportProfile");
+  }
+
+  @Nonnull
+  private CompletableFuture <EndpointType> _getEndpointAsync (@Nonnull final IParticipantIdentifier aParticipantID,
+                                                              @Nonnull final IMessageMetadata aMetadata)
+  {
+    return m_aResolver.getEndpointAsync (aParticipantID,
+                                         aMetadata.getDocumentTypeID (),
+                                         aMetadata.getProcessID (),
+                                         m_aSML,
+                                         m_aTransportProfile);
+  }
+
+  @Nonnull
+  private CompletableFuture <EndpointType> _reuseOrLookup (@Nullable final CompletableFuture <EndpointType> aPrefetched,
+                                                           @Nonnull final IParticipantIdentifier aParticipantID,
+                                                           @Nonnull final IMessageMetadata aMetadata)
+  {
+    if (aPrefetched == null)
+      return _getEndpointAsync (aParticipantID, aMetadata);
+
+    final CompletableFuture <EndpointType> aPrefetchResult = aPrefetched.handle ( (aEndpoint, aError) -> {
+      if (aError != null)
+        s_aLogger.warn ("Prefetched lookup of " + aParticipantID.getURIEncoded () + " failed - looking up again",
+                        aError);
+      return aEndpoint;
+    });
+    // Look up again if the prefetch failed
+    return aPrefetchResult.thenCompose (aEndpoint -> aEndpoint != null ? CompletableFuture.completedFuture (aEndpoint)
+                                                                       : _getEndpointAsync (aParticipantID,
+                                                                                            aMetadata));
+  }
+
+  /**
+   * Start resolving the endpoints of a message.
+   *
+   * @param aMetadata
+   *        The metadata of the message. May not be <code>null</code>.
+   * @param aPrefetched
+   *        The routing that was started when the message was created. Its
+   *        lookups are used instead of starting new ones, unless they failed
+   *        or returned no endpoint. May be <code>null</code>.
+   * @param bWithSender
+   *        <code>true</code> if the sender endpoint is needed as well.
+   * @return The started routing. The sender endpoint is only present if
+   *         requested. Never <code>null</code>.
+   */
+  @Nonnull
+  public MessageRouting startRouting (@Nonnull final IMessageMetadata aMetadata,
+                                      @Nullable final MessageRouting aPrefetched,
+                                      final boolean bWithSender)
+  {
+    final CompletableFuture <EndpointType> aPrefetchedSender = aPrefetched == null ? null
+                                                                                   : aPrefetched.getSenderEndpoint ();
+    final CompletableFuture <EndpointType> aPrefetchedRecipient = aPrefetched == null ? null
+                                                                                      : aPrefetched.getRecipientEndpoint ();
+    CompletableFuture <EndpointType> aSenderFuture = null;
+    if (bWithSender)
+      aSenderFuture = _reuseOrLookup (aPrefetchedSender, aMetadata.getSenderID (), aMetadata);
+    final CompletableFuture <EndpointType> aRecipientFuture = _reuseOrLookup (aPrefetchedRecipient,
+                                                                              aMetadata.getRecipientID (),
+                                                                              aMetadata);
+    return new MessageRouting (aSenderFuture, aRecipientFuture);
+  }
+
+  /**
+   * Wait for the sender endpoint of a routing that was started with the
+   * sender.
+   *
+   * @param aRouting
+   *        The routing as returned by
+   *        {@link #startRouting(IMessageMetadata, MessageRouting, boolean)}.
+   *        May not be <code>null</code>.
+   * @param nDeadlineMillis
+   *        The absolute point in time (as in
+   *        {@link System#currentTimeMillis()}) until which to wait.
+   * @param aMetadata
+   *        The metadata of the message. May not be <code>null</code>.
+   * @return The sender endpoint. Never <code>null</code>.
+   * @throws IllegalStateException
+   *         If the sender endpoint could not be resolved
+   * @throws TimeoutException
+   *         If the deadline passed before the lookup finished
+   * @throws InterruptedException
+   *         If the thread was interrupted while waiting
+   */
+  @Nonnull
+  public static EndpointType waitForSenderEndpoint (@Nonnull final MessageRouting aRouting,
+                                                    final long nDeadlineMillis,
+                                                    @Nonnull final IMessageMetadata aMetadata) throws TimeoutException,
+                                                                                               InterruptedException
+  {
+    ValueEnforcer.notNull (aRouting.getSenderEndpoint (), "SenderEndpoint");
+    final EndpointType ret = SMPEndpointResolver.waitForEndpoint (aRouting.getSenderEndpoint (), nDeadlineMillis);
+    if (ret == null)
+      throw new IllegalStateException ("Failed to resolve sender endpoint URL for " + aMetadata.toString ());
+    return ret;
+  }
+
+  /**
+   * Wait for the recipient endpoint of a routing.
+   *
+   * @param aRouting
+   *        The routing as returned by
+   *        {@link #startRouting(IMessageMetadata, MessageRouting, boolean)}.
+   *        May not be <code>null</code>.
+   * @param nDeadlineMillis
+   *        The absolute point in time (as in
+   *        {@link System#currentTimeMillis()}) until which to wait.
+   * @param aMetadata
+   *        The metadata of the message. May not be <code>null</code>.
+   * @return The recipient endpoint. Never <code>null</code>.
+   * @throws IllegalStateException
+   *         If the recipient endpoint could not be resolved
+   * @throws TimeoutException
+   *         If the deadline passed before the lookup finished
+   * @throws InterruptedException
+   *         If the thread was interrupted while waiting
+   */
+  @Nonnull
+  public static EndpointType waitForRecipientEndpoint (@Nonnull final MessageRouting aRouting,
+                                                       final long nDeadlineMillis,
+                                                       @Nonnull final IMessageMetadata aMetadata) throws TimeoutException,
+                                                                                                  InterruptedException
+  {
+    final EndpointType ret = SMPEndpointResolver.waitForEndpoint (aRouting.getRecipientEndpoint (), nDeadlineMillis);
+    if (ret == null)
+      throw new IllegalStateException ("Failed to resolve recipient endpoint URL for " + aMetadata.toString ());
+    return ret;
+  }
+
+  @Override
+  public String toString ()
+  {
+    return new ToStringGenerator (this).append ("resolver", m_aResolver)
+                                       .append ("SML", m_aSML)
+                                       .append ("transportProfile", m_aTransportProfile)
+                                       .getToString ();
+  }
+}
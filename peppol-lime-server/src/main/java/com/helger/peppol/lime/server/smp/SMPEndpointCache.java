@@ -0,0 +1,336 @@
+/**
+ * Copyright (C) 2015-2016 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Version: MPL 1.1/EUPL 1.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at:
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is Copyright The PEPPOL project (http://www.peppol.eu)
+ *
+ * Alternatively, the contents of this file may be used under the
+ * terms of the EUPL, Version 1.1 or - as soon they will be approved
+ * by the European Commission - subsequent versions of the EUPL
+ * (the "Licence"); You may not use this work except in compliance
+ * with the Licence.
+ * You may obtain a copy of the Licence at:
+ * http://joinup.ec.europa.eu/software/page/eupl/licence-eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ *
+ * If you wish to allow use of your version of this file only
+ * under the terms of the EUPL License and not to allow others to use
+ * your version of this file under the MPL, indicate your decision by
+ * deleting the provisions above and replace them with the notice and
+ * other provisions required by the EUPL License. If you do not delete
+ * the provisions above, a recipient may use your version of this file
+ * under either the MPL or the EUPL License.
+ */
+package com.helger.peppol.lime.server.smp;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.ThreadSafe;
+
+import com.helger.commons.ValueEnforcer;
+import com.helger.commons.string.ToStringGenerator;
+import com.helger.peppol.smp.EndpointType;
+
+/**
+ * A size bounded LRU cache for resolved SMP endpoints. Each entry expires after
+ * a fixed time to live, so that SMP changes are picked up eventually.
+ * Additionally lookups that failed can be remembered for a (usually shorter)
+ * time, so that unknown participants don't trigger an SMP query every time.
+ *
+ * @author Philip Helger
+ */
+@ThreadSafe
+public final class SMPEndpointCache
+{
+  private static final class CacheEntry
+  {
+    // null for negative entries
+    private final EndpointType m_aEndpoint;
+    private final long m_nExpirationMillis;
+
+    CacheEntry (@Nullable final EndpointType aEndpoint, final long nExpirationMillis)
+    {
+      m_aEndpoint = aEndpoint;
+      m_nExpirationMillis = nExpirationMillis;
+    }
+  }
+
+  private final int m_nMaxSize;
+  private final long m_nTTLMillis;
+  private final long m_nNegativeTTLMillis;
+  private final Lock m_aLock = new ReentrantLock ();
+  private final LinkedHashMap <SMPEndpointCacheKey, CacheEntry> m_aMap;
+  private final AtomicLong m_aHits = new AtomicLong (0);
+  private final AtomicLong m_aMisses = new AtomicLong (0);
+  private final AtomicLong m_aNegativeHits = new AtomicLong (0);
+
+  /**
+   * Constructor
+   *
+   * @param nMaxSize
+   *        The maximum number of entries. If more entries are added, the least
+   *        recently used entry is evicted. If this value is 0, caching is
+   *        disabled.
+   * @param nTTLMillis
+   *        The time to live of each entry in milliseconds. If this value is 0,
+   *        caching is disabled.
+   * @param nNegativeTTLMillis
+   *        The time to live of failed lookups in milliseconds. If this value is
+   *        0, failed lookups are not cached.
+   */
+  public SMPEndpointCache (@Nonnegative final int nMaxSize,
+                           @Nonnegative final long nTTLMillis,
+                           @Nonnegative final long nNegativeTTLMillis)
+  {
+    ValueEnforcer.isGE0 (nMaxSize, "MaxSize");
+    ValueEnforcer.isGE0 (nTTLMillis, "TTLMillis");
+    ValueEnforcer.isGE0 (nNegativeTTLMillis, "NegativeTTLMillis");
+    m_nMaxSize = nMaxSize;
+    m_nTTLMillis = nTTLMillis;
+    m_nNegativeTTLMillis = nNegativeTTLMillis;
+    // Access order for LRU
+    m_aMap = new LinkedHashMap <SMPEndpointCacheKey, CacheEntry> (16, 0.75f, true)
+    {
+      @Override
+      protected boolean removeEldestEntry (final Map.Entry <SMPEndpointCacheKey, CacheEntry> aEldest)
+      {
+        return size () > m_nMaxSize;
+      }
+    };
+  }
+
+  /**
+   * @return <code>true</code> if this cache is effectively storing anything.
+   */
+  public boolean isEnabled ()
+  {
+    return m_nMaxSize > 0 && m_nTTLMillis > 0;
+  }
+
+  @Nonnegative
+  public int getMaxSize ()
+  {
+    return m_nMaxSize;
+  }
+
+  @Nonnegative
+  public long getTTLMillis ()
+  {
+    return m_nTTLMillis;
+  }
+
+  @Nonnegative
+  public long getNegativeTTLMillis ()
+  {
+    return m_nNegativeTTLMillis;
+  }
+
+  @Nullable
+  private CacheEntry _getValidEntry (@Nonnull final SMPEndpointCacheKey aKey)
+  {
+    if (m_nMaxSize == 0)
+      return null;
+
+    m_aLock.lock ();
+    try
+    {
+      final CacheEntry aEntry = m_aMap.get (aKey);
+      if (aEntry != null && aEntry.m_nExpirationMillis <= System.currentTimeMillis ())
+      {
+        // Expired
+        m_aMap.remove (aKey);
+        return null;
+      }
+      return aEntry;
+    }
+    finally
+    {
+      m_aLock.unlock ();
+    }
+  }
+
+  /**
+   * Get a cached endpoint.
+   *
+   * @param aKey
+   *        The lookup key. May not be <code>null</code>.
+   * @return <code>null</code> if no such entry is cached, if the entry is
+   *         expired or if the key is cached as unresolvable.
+   * @see #isCachedAsUnresolvable(SMPEndpointCacheKey)
+   */
+  @Nullable
+  public EndpointType get (@Nonnull final SMPEndpointCacheKey aKey)
+  {
+    ValueEnforcer.notNull (aKey, "Key");
+
+    final CacheEntry aEntry = _getValidEntry (aKey);
+    if (aEntry == null || aEntry.m_aEndpoint == null)
+    {
+      m_aMisses.incrementAndGet ();
+      return null;
+    }
+    m_aHits.incrementAndGet ();
+    return aEntry.m_aEndpoint;
+  }
+
+  /**
+   * Check if a previous lookup for the provided key failed and that failure is
+   * still cached.
+   *
+   * @param aKey
+   *        The lookup key. May not be <code>null</code>.
+   * @return <code>true</code> if a non-expired negative entry is present.
+   */
+  public boolean isCachedAsUnresolvable (@Nonnull final SMPEndpointCacheKey aKey)
+  {
+    ValueEnforcer.notNull (aKey, "Key");
+
+    final CacheEntry aEntry = _getValidEntry (aKey);
+    if (aEntry == null || aEntry.m_aEndpoint != null)
+      return false;
+    m_aNegativeHits.incrementAndGet ();
+    return true;
+  }
+
+  /**
+   * Put a resolved endpoint into the cache.
+   *
+   * @param aKey
+   *        The lookup key. May not be <code>null</code>.
+   * @param aEndpoint
+   *        The resolved endpoint. May not be <code>null</code>.
+   */
+  public void put (@Nonnull final SMPEndpointCacheKey aKey, @Nonnull final EndpointType aEndpoint)
+  {
+    ValueEnforcer.notNull (aKey, "Key");
+    ValueEnforcer.notNull (aEndpoint, "Endpoint");
+
+    if (isEnabled ())
+      _put (aKey, new CacheEntry (aEndpoint, System.currentTimeMillis () + m_nTTLMillis));
+  }
+
+  /**
+   * Remember that the lookup for the provided key failed.
+   *
+   * @param aKey
+   *        The lookup key. May not be <code>null</code>.
+   */
+  public void putUnresolvable (@Nonnull final SMPEndpointCacheKey aKey)
+  {
+    ValueEnforcer.notNull (aKey, "Key");
+
+    if (m_nMaxSize > 0 && m_nNegativeTTLMillis > 0)
+      _put (aKey, new CacheEntry (null, System.currentTimeMillis () + m_nNegativeTTLMillis));
+  }
+
+  private void _put (@Nonnull final SMPEndpointCacheKey aKey, @Nonnull final CacheEntry aEntry)
+  {
+    m_aLock.lock ();
+    try
+    {
+      m_aMap.put (aKey, aEntry);
+    }
+    finally
+    {
+      m_aLock.unlock ();
+    }
+  }
+
+  /**
+   * Remove all cached entries. The statistics are not reset.
+   */
+  public void clear ()
+  {
+    m_aLock.lock ();
+    try
+    {
+      m_aMap.clear ();
+    }
+    finally
+    {
+      m_aLock.unlock ();
+    }
+  }
+
+  /**
+   * @return The number of currently cached entries, including expired entries
+   *         that were not yet accessed.
+   */
+  @Nonnegative
+  public int getSize ()
+  {
+    m_aLock.lock ();
+    try
+    {
+      return m_aMap.size ();
+    }
+    finally
+    {
+      m_aLock.unlock ();
+    }
+  }
+
+  /**
+   * @return The number of cache hits since startup.
+   */
+  @Nonnegative
+  public long getHitCount ()
+  {
+    return m_aHits.get ();
+  }
+
+  /**
+   * @return The number of cache misses since startup.
+   */
+  @Nonnegative
+  public long getMissCount ()
+  {
+    return m_aMisses.get ();
+  }
+
+  /**
+   * @return The number of lookups that were answered from a cached failure
+   *         since startup.
+   */
+  @Nonnegative
+  public long getNegativeHitCount ()
+  {
+    return m_aNegativeHits.get ();
+  }
+
+  @Override
+  public String toString ()
+  {
+    return new ToStringGenerator (this).append ("maxSize", m_nMaxSize)
+                                       .append ("TTLMillis", m_nTTLMillis)
+                                       .append ("negativeTTLMillis", m_nNegativeTTLMillis)
+                                       .append ("hits", m_aHits.get ())
+                                       .append ("misses", m_aMisses.get ())
+                                       .append ("negativeHits", m_aNegativeHits.get ())
+                                       .getToString ();
+  }
+}
@@ -0,0 +1,155 @@
+/**
+ * Copyright (C) 2015-2016 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Version: MPL 1.1/EUPL 1.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at:
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is Copyright The PEPPOL project (http://www.peppol.eu)
+ *
+ * Alternatively, the contents of this file may be used under the
+ * terms of the EUPL, Version 1.1 or - as soon they will be approved
+ * by the European Commission - subsequent versions of the EUPL
+ * (the "Licence"); You may not use this work except in compliance
+ * with the Licence.
+ * You may obtain a copy of the Licence at:
+ * http://joinup.ec.europa.eu/software/page/eupl/licence-eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ *
+ * If you wish to allow use of your version of this file only
+ * under the terms of the EUPL License and not to allow others to use
+ * your version of this file under the MPL, indicate your decision by
+ * deleting the provisions above and replace them with the notice and
+ * other provisions required by the EUPL License. If you do not delete
+ * the provisions above, a recipient may use your version of this file
+ * under either the MPL or the EUPL License.
+ */
+package com.helger.peppol.lime.server.smp;
+
+import javax.annotation.Nonnull;
+import javax.annotation.concurrent.Immutable;
+
+import com.helger.commons.ValueEnforcer;
+import com.helger.commons.hashcode.HashCodeGenerator;
+import com.helger.commons.string.ToStringGenerator;
+import com.helger.peppol.identifier.generic.doctype.IDocumentTypeIdentifier;
+import com.helger.peppol.identifier.generic.participant.IParticipantIdentifier;
+import com.helger.peppol.identifier.generic.process.IProcessIdentifier;
+import com.helger.peppol.sml.ISMLInfo;
+import com.helger.peppol.smp.ISMPTransportProfile;
+
+/**
+ * The key of a single SMP endpoint lookup. All identifiers are stored in their
+ * URI encoded form so that equal lookups result in equal keys independent of
+ * the identifier implementation used.
+ *
+ * @author Philip Helger
+ */
+@Immutable
+public final class SMPEndpointCacheKey
+{
+  private final String m_sParticipantID;
+  private final String m_sDocumentTypeID;
+  private final String m_sProcessID;
+  private final String m_sSMLID;
+  private final String m_sTransportProfileID;
+
+  public SMPEndpointCacheKey (@Nonnull final IParticipantIdentifier aParticipantID,
+                              @Nonnull final IDocumentTypeIdentifier aDocumentTypeID,
+                              @Nonnull final IProcessIdentifier aProcessID,
+                              @Nonnull final ISMLInfo aSMLInfo,
+                              @Nonnull final ISMPTransportProfile aTransportProfile)
+  {
+    ValueEnforcer.notNull (aParticipantID, "ParticipantID");
+    ValueEnforcer.notNull (aDocumentTypeID, "DocumentTypeID");
+    ValueEnforcer.notNull (aProcessID, "ProcessID");
+    ValueEnforcer.notNull (aSMLInfo, "SMLInfo");
+    ValueEnforcer.notNull (aTransportProfile, "TransportProfile");
+    m_sParticipantID = aParticipantID.getURIEncoded ();
+    m_sDocumentTypeID = aDocumentTypeID.getURIEncoded ();
+    m_sProcessID = aProcessID.getURIEncoded ();
+    m_sSMLID = aSMLInfo.getID ();
+    m_sTransportProfileID = aTransportProfile.getID ();
+  }
+
+  @Nonnull
+  public String getParticipantID ()
+  {
+    return m_sParticipantID;
+  }
+
+  @Nonnull
+  public String getDocumentTypeID ()
+  {
+    return m_sDocumentTypeID;
+  }
+
+  @Nonnull
+  public String getProcessID ()
+  {
+    return m_sProcessID;
+  }
+
+  @Nonnull
+  public String getSMLID ()
+  {
+    return m_sSMLID;
+  }
+
+  @Nonnull
+  public String getTransportProfileID ()
+  {
+    return m_sTransportProfileID;
+  }
+
+  @Override
+  public boolean equals (final Object o)
+  {
+    if (o == this)
+      return true;
+    if (o == null || !getClass ().equals (o.getClass ()))
+      return false;
+    final SMPEndpointCacheKey rhs = (SMPEndpointCacheKey) o;
+    return m_sParticipantID.equals (rhs.m_sParticipantID) &&
+           m_sDocumentTypeID.equals (rhs.m_sDocumentTypeID) &&
+           m_sProcessID.equals (rhs.m_sProcessID) &&
+           m_sSMLID.equals (rhs.m_sSMLID) &&
+           m_sTransportProfileID.equals (rhs.m_sTransportProfileID);
+  }
+
+  @Override
+  public int hashCode ()
+  {
+    return new HashCodeGenerator (this).append (m_sParticipantID)
+                                       .append (m_sDocumentTypeID)
+                                       .append (m_sProcessID)
+                                       .append (m_sSMLID)
+                                       .append (m_sTransportProfileID)
+                                       .getHashCode ();
+  }
+
+  @Override
+  public String toString ()
+  {
+    return new ToStringGenerator (this).append ("participantID", m_sParticipantID)
+                                       .append ("documentTypeID", m_sDocumentTypeID)
+                                       .append ("processID", m_sProcessID)
+                                       .append ("SMLID", m_sSMLID)
+                                       .append ("transportProfileID", m_sTransportProfileID)
+                                       .getToString ();
+  }
+}
@@ -0,0 +1,469 @@
+/**
+ * Copyright (C) 2015-2016 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Version: MPL 1.1/EUPL 1.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at:
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is Copyright The PEPPOL project (http://www.peppol.eu)
+ *
+ * Alternatively, the contents of this file may be used under the
+ * terms of the EUPL, Version 1.1 or - as soon they will be approved
+ * by the European Commission - subsequent versions of the EUPL
+ * (the "Licence"); You may not use this work except in compliance
+ * with the Licence.
+ * You may obtain a copy of the Licence at:
+ * http://joinup.ec.europa.eu/software/page/eupl/licence-eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ *
+ * If you wish to allow use of your version of this file only
+ * under the terms of the EUPL License and not to allow others to use
+ * your version of this file under the MPL, indicate your decision by
+ * deleting the provisions above and replace them with the notice and
+ * other provisions required by the EUPL License. If you do not delete
+ * the provisions above, a recipient may use your version of this file
+ * under either the MPL or the EUPL License.
+ */
+package com.helger.peppol.lime.server.smp;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.ThreadSafe;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.helger.commons.ValueEnforcer;
+import com.helger.peppol.identifier.generic.doctype.IDocumentTypeIdentifier;
+import com.helger.peppol.identifier.generic.participant.IParticipantIdentifier;
+import com.helger.peppol.identifier.generic.process.IProcessIdentifier;
+import com.helger.peppol.sml.ISMLInfo;
+import com.helger.peppol.smp.EndpointType;
+import com.helger.peppol.smp.ISMPTransportProfile;
+import com.helger.peppol.smpclient.SMPClientReadOnly;
+import com.helger.peppol.smpclient.exception.SMPClientException;
+import com.helger.peppol.url.PeppolURLProvider;
+
+/**
+ * Resolves AP endpoints via SML and SMP. Results are cached in an
+ * {@link SMPEndpointCache} and concurrent lookups for the same key are
+ * coalesced, so that only a single SMP query is performed and all other callers
+ * wait for its result. Optionally lookups can be performed asynchronously on a
+ * bounded pool of lookup threads, so that multiple endpoints can be resolved in
+ * parallel.
+ *
+ * @author Philip Helger
+ */
+@ThreadSafe
+public final class SMPEndpointResolver
+{
+  private static final Logger s_aLogger = LoggerFactory.getLogger (SMPEndpointResolver.class);
+
+  private final SMPEndpointCache m_aCache;
+  private final ConcurrentHashMap <SMPEndpointCacheKey, CompletableFuture <EndpointType>> m_aInFlight = new ConcurrentHashMap <> ();
+  private final AtomicLong m_aSMPQueries = new AtomicLong (0);
+  private final AtomicLong m_aCoalesced = new AtomicLong (0);
+  private final ISMPEndpointQuery m_aQuery;
+  private final ThreadPoolExecutor m_aExecutor;
+
+  public SMPEndpointResolver (@Nonnull final SMPEndpointCache aCache)
+  {
+    this (aCache, 0);
+  }
+
+  /**
+   * Constructor
+   *
+   * @param aCache
+   *        The cache to use. May not be <code>null</code>.
+   * @param nLookupThreads
+   *        The maximum number of threads for asynchronous lookups. If this is
+   *        0, asynchronous lookups are performed in the calling thread.
+   */
+  public SMPEndpointResolver (@Nonnull final SMPEndpointCache aCache, @Nonnegative final int nLookupThreads)
+  {
+    this (aCache, nLookupThreads, SMPEndpointResolver::_querySMP);
+  }
+
+  /**
+   * Constructor
+   *
+   * @param aCache
+   *        The cache to use. May not be <code>null</code>.
+   * @param nLookupThreads
+   *        The maximum number of threads for asynchronous lookups. If this is
+   *        0, asynchronous lookups are performed in the calling thread.
+   * @param aQuery
+   *        The effective lookup of endpoints that are not cached. May not be
+   *        <code>null</code>.
+   */
+  public SMPEndpointResolver (@Nonnull final SMPEndpointCache aCache,
+                              @Nonnegative final int nLookupThreads,
+                              @Nonnull final ISMPEndpointQuery aQuery)
+  {
+    ValueEnforcer.isGE0 (nLookupThreads, "LookupThreads");
+    m_aCache = ValueEnforcer.notNull (aCache, "Cache");
+    m_aQuery = ValueEnforcer.notNull (aQuery, "Query");
+    if (nLookupThreads > 0)
+    {
+      final AtomicInteger aThreadIndex = new AtomicInteger (0);
+      m_aExecutor = new ThreadPoolExecutor (nLookupThreads,
+                                            nLookupThreads,
+                                            60,
+                                            TimeUnit.SECONDS,
+                                            new ArrayBlockingQueue <> (nLookupThreads * 16),
+                                            r -> {
+                                              final Thread t = new Thread (r,
+                                                                           "lime-smp-" +
+                                                                              aThreadIndex.incrementAndGet ());
+                                              t.setDaemon (true);
+                                              return t;
+                                            },
+                                            // If all threads are busy or shut down, perform the lookup in the
+                                            // calling thread, so that its future is always completed
+                                            (r, aExecutor) -> r.run ());
+      // Don't keep idle threads around
+      m_aExecutor.allowCoreThreadTimeOut (true);
+    }
+    else
+      m_aExecutor = null;
+  }
+
+  /**
+   * @return The underlying cache. Never <code>null</code>.
+   */
+  @Nonnull
+  public SMPEndpointCache getCache ()
+  {
+    return m_aCache;
+  }
+
+  @Nullable
+  private static EndpointType _querySMP (@Nonnull final IParticipantIdentifier aParticipantID,
+                                         @Nonnull final IDocumentTypeIdentifier aDocumentTypeID,
+                                         @Nonnull final IProcessIdentifier aProcessID,
+                                         @Nonnull final ISMLInfo aSMLInfo,
+                                         @Nonnull final ISMPTransportProfile aTransportProfile)
+  {
+    EndpointType ret = null;
+    try
+    {
+      ret = new SMPClientReadOnly (PeppolURLProvider.INSTANCE, aParticipantID, aSMLInfo).getEndpoint (aParticipantID,
+                                                                                                      aDocumentTypeID,
+                                                                                                      aProcessID,
+                                                                                                      aTransportProfile);
+      if (ret == null)
+        s_aLogger.error ("Failed to resolve AP endpoint url for participant " +
+                         aParticipantID +
+                         ", document type " +
+                         aDocumentTypeID +
+                         " and process " +
+                         aProcessID);
+    }
+    catch (final SMPClientException ex)
+    {
+      s_aLogger.error ("Failed to resolve AP endpoint url for participant " +
+                       aParticipantID +
+                       ", document type " +
+                       aDocumentTypeID +
+                       " and process " +
+                       aProcessID,
+                       ex);
+    }
+    return ret;
+  }
+
+  @Nullable
+  private static EndpointType _waitForResult (@Nonnull final CompletableFuture <EndpointType> aFuture,
+                                              @Nonnull final SMPEndpointCacheKey aKey,
+                                              final long nDeadlineMillis)
+  {
+    try
+    {
+      return aFuture.get (Math.max (0, nDeadlineMillis - System.currentTimeMillis ()), TimeUnit.MILLISECONDS);
+    }
+    catch (final InterruptedException ex)
+    {
+      s_aLogger.warn ("Interrupted while waiting for SMP lookup of " + aKey);
+      Thread.currentThread ().interrupt ();
+    }
+    catch (final ExecutionException ex)
+    {
+      s_aLogger.error ("Error in coalesced SMP lookup of " + aKey, ex.getCause ());
+    }
+    catch (final TimeoutException ex)
+    {
+      s_aLogger.warn ("Coalesced SMP lookup of " + aKey + " did not finish in time");
+    }
+    return null;
+  }
+
+  /**
+   * Resolve the endpoint of the provided participant.
+   *
+   * @param aParticipantID
+   *        The participant to query. May not be <code>null</code>.
+   * @param aDocumentTypeID
+   *        The document type to query. May not be <code>null</code>.
+   * @param aProcessID
+   *        The process to query. May not be <code>null</code>.
+   * @param aSMLInfo
+   *        The SML to use. May not be <code>null</code>.
+   * @param aTransportProfile
+   *        The transport profile to query. May not be <code>null</code>.
+   * @param nDeadlineMillis
+   *        The absolute point in time (as in
+   *        {@link System#currentTimeMillis()}) until which to wait for a
+   *        concurrent lookup of the same endpoint.
+   * @return <code>null</code> if the endpoint could not be resolved now, not
+   *         before the deadline or if a previous resolution failed recently.
+   */
+  @Nullable
+  public EndpointType getEndpoint (@Nonnull final IParticipantIdentifier aParticipantID,
+                                   @Nonnull final IDocumentTypeIdentifier aDocumentTypeID,
+                                   @Nonnull final IProcessIdentifier aProcessID,
+                                   @Nonnull final ISMLInfo aSMLInfo,
+                                   @Nonnull final ISMPTransportProfile aTransportProfile,
+                                   final long nDeadlineMillis)
+  {
+    final SMPEndpointCacheKey aKey = new SMPEndpointCacheKey (aParticipantID,
+                                                              aDocumentTypeID,
+                                                              aProcessID,
+                                                              aSMLInfo,
+                                                              aTransportProfile);
+    final EndpointType ret = m_aCache.get (aKey);
+    if (ret != null)
+      return ret;
+    if (_isRecentlyUnresolvable (aKey))
+      return null;
+
+    final CompletableFuture <EndpointType> aOwnFuture = new CompletableFuture <> ();
+    final CompletableFuture <EndpointType> aRunningFuture = m_aInFlight.putIfAbsent (aKey, aOwnFuture);
+    if (aRunningFuture != null)
+    {
+      // Someone else is already querying
+      m_aCoalesced.incrementAndGet ();
+      return _waitForResult (aRunningFuture, aKey, nDeadlineMillis);
+    }
+    return _query (aKey, aOwnFuture, aParticipantID, aDocumentTypeID, aProcessID, aSMLInfo, aTransportProfile);
+  }
+
+  private boolean _isRecentlyUnresolvable (@Nonnull final SMPEndpointCacheKey aKey)
+  {
+    if (!m_aCache.isCachedAsUnresolvable (aKey))
+      return false;
+    s_aLogger.warn ("Endpoint for " + aKey + " failed to resolve recently - not querying the SMP again");
+    return true;
+  }
+
+  /**
+   * Perform the lookup after this thread registered the passed future as the
+   * in-flight lookup of the key. The future is always completed.
+   */
+  @Nullable
+  private EndpointType _query (@Nonnull final SMPEndpointCacheKey aKey,
+                               @Nonnull final CompletableFuture <EndpointType> aOwnFuture,
+                               @Nonnull final IParticipantIdentifier aParticipantID,
+                               @Nonnull final IDocumentTypeIdentifier aDocumentTypeID,
+                               @Nonnull final IProcessIdentifier aProcessID,
+                               @Nonnull final ISMLInfo aSMLInfo,
+                               @Nonnull final ISMPTransportProfile aTransportProfile)
+  {
+    EndpointType ret = null;
+    RuntimeException aFailure = null;
+    try
+    {
+      // A lookup that finished after the caller checked the cache removed its
+      // in-flight entry after filling the cache
+      ret = m_aCache.get (aKey);
+      if (ret == null && !_isRecentlyUnresolvable (aKey))
+      {
+        m_aSMPQueries.incrementAndGet ();
+        ret = m_aQuery.queryEndpoint (aParticipantID, aDocumentTypeID, aProcessID, aSMLInfo, aTransportProfile);
+        // Fill the cache before the in-flight entry is removed
+        if (ret != null)
+          m_aCache.put (aKey, ret);
+        else
+          m_aCache.putUnresolvable (aKey);
+      }
+    }
+    catch (final RuntimeException ex)
+    {
+      aFailure = ex;
+      throw ex;
+    }
+    finally
+    {
+      // Remove the in-flight entry before waking up the waiting callers, so
+      // that a retry does not join this lookup
+      m_aInFlight.remove (aKey);
+      if (aFailure != null)
+        aOwnFuture.completeExceptionally (aFailure);
+      else
+        aOwnFuture.complete (ret);
+    }
+    return ret;
+  }
+
+  /**
+   * @return <code>true</code> if asynchronous lookups are performed on
+   *         separate threads, <code>false</code> if they are performed in the
+   *         calling thread.
+   */
+  public boolean isAsyncEnabled ()
+  {
+    return m_aExecutor != null && !m_aExecutor.isShutdown ();
+  }
+
+  /**
+   * Resolve the endpoint of the provided participant asynchronously. If the
+   * endpoint is cached, an already completed future is returned. If a lookup
+   * of the same endpoint is already running, its future is returned, so that
+   * no thread is blocked waiting for it.
+   *
+   * @param aParticipantID
+   *        The participant to query. May not be <code>null</code>.
+   * @param aDocumentTypeID
+   *        The document type to query. May not be <code>null</code>.
+   * @param aProcessID
+   *        The process to query. May not be <code>null</code>.
+   * @param aSMLInfo
+   *        The SML to use. May not be <code>null</code>.
+   * @param aTransportProfile
+   *        The transport profile to query. May not be <code>null</code>.
+   * @return The future with the same result as
+   *         {@link #getEndpoint(IParticipantIdentifier, IDocumentTypeIdentifier, IProcessIdentifier, ISMLInfo, ISMPTransportProfile, long)}
+   *         . Wait for it with {@link #waitForEndpoint(CompletableFuture, long)}.
+   *         Never <code>null</code>.
+   */
+  @Nonnull
+  public CompletableFuture <EndpointType> getEndpointAsync (@Nonnull final IParticipantIdentifier aParticipantID,
+                                                            @Nonnull final IDocumentTypeIdentifier aDocumentTypeID,
+                                                            @Nonnull final IProcessIdentifier aProcessID,
+                                                            @Nonnull final ISMLInfo aSMLInfo,
+                                                            @Nonnull final ISMPTransportProfile aTransportProfile)
+  {
+    final SMPEndpointCacheKey aKey = new SMPEndpointCacheKey (aParticipantID,
+                                                              aDocumentTypeID,
+                                                              aProcessID,
+                                                              aSMLInfo,
+                                                              aTransportProfile);
+    final EndpointType aCached = m_aCache.get (aKey);
+    if (aCached != null)
+      return CompletableFuture.completedFuture (aCached);
+    if (_isRecentlyUnresolvable (aKey))
+      return CompletableFuture.completedFuture (null);
+
+    final CompletableFuture <EndpointType> aOwnFuture = new CompletableFuture <> ();
+    final CompletableFuture <EndpointType> aRunningFuture = m_aInFlight.putIfAbsent (aKey, aOwnFuture);
+    if (aRunningFuture != null)
+    {
+      // The caller waits for the running lookup with its own deadline
+      m_aCoalesced.incrementAndGet ();
+      return aRunningFuture;
+    }
+
+    final Runnable aLookup = () -> {
+      try
+      {
+        _query (aKey, aOwnFuture, aParticipantID, aDocumentTypeID, aProcessID, aSMLInfo, aTransportProfile);
+      }
+      catch (final RuntimeException ex)
+      {
+        // Reported to the waiting callers via the future
+      }
+    };
+    final ThreadPoolExecutor aExecutor = m_aExecutor;
+    if (aExecutor == null || aExecutor.isShutdown ())
+      aLookup.run ();
+    else
+      aExecutor.execute (aLookup);
+    return aOwnFuture;
+  }
+
+  /**
+   * Wait for the result of an asynchronous lookup until the provided deadline.
+   *
+   * @param aFuture
+   *        The future as returned by
+   *        {@link #getEndpointAsync(IParticipantIdentifier, IDocumentTypeIdentifier, IProcessIdentifier, ISMLInfo, ISMPTransportProfile)}
+   *        . May not be <code>null</code>.
+   * @param nDeadlineMillis
+   *        The absolute point in time (as in
+   *        {@link System#currentTimeMillis()}) until which to wait.
+   * @return <code>null</code> if the endpoint could not be resolved.
+   * @throws TimeoutException
+   *         If the deadline passed before the lookup finished
+   * @throws InterruptedException
+   *         If the thread was interrupted while waiting
+   */
+  @Nullable
+  public static EndpointType waitForEndpoint (@Nonnull final CompletableFuture <EndpointType> aFuture,
+                                              final long nDeadlineMillis) throws TimeoutException,
+                                                                          InterruptedException
+  {
+    try
+    {
+      return aFuture.get (Math.max (0, nDeadlineMillis - System.currentTimeMillis ()), TimeUnit.MILLISECONDS);
+    }
+    catch (final ExecutionException ex)
+    {
+      s_aLogger.error ("Error in asynchronous SMP lookup", ex.getCause ());
+      return null;
+    }
+  }
+
+  /**
+   * Stop the asynchronous lookup threads. Afterwards all lookups are performed
+   * in the calling thread.
+   */
+  public void shutdown ()
+  {
+    if (m_aExecutor != null)
+      m_aExecutor.shutdown ();
+  }
+
+  /**
+   * @return The number of effective SMP queries since startup.
+   */
+  @Nonnegative
+  public long getSMPQueryCount ()
+  {
+    return m_aSMPQueries.get ();
+  }
+
+  /**
+   * @return The number of lookups that were served by waiting for a concurrent
+   *         lookup of the same key since startup.
+   */
+  @Nonnegative
+  public long getCoalescedCount ()
+  {
+    return m_aCoalesced.get ();
+  }
+}
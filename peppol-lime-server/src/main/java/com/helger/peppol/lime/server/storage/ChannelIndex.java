@@ -0,0 +1,611 @@
+/**
+ * Copyright (C) 2015-2016 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Version: MPL 1.1/EUPL 1.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at:
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is Copyright The PEPPOL project (http://www.peppol.eu)
+ *
+ * Alternatively, the contents of this file may be used under the
+ * terms of the EUPL, Version 1.1 or - as soon they will be approved
+ * by the European Commission - subsequent versions of the EUPL
+ * (the "Licence"); You may not use this work except in compliance
+ * with the Licence.
+ * You may obtain a copy of the Licence at:
+ * http://joinup.ec.europa.eu/software/page/eupl/licence-eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ *
+ * If you wish to allow use of your version of this file only
+ * under the terms of the EUPL License and not to allow others to use
+ * your version of this file under the MPL, indicate your decision by
+ * deleting the provisions above and replace them with the notice and
+ * other provisions required by the EUPL License. If you do not delete
+ * the provisions above, a recipient may use your version of this file
+ * under either the MPL or the EUPL License.
+ */
+package com.helger.peppol.lime.server.storage;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.NavigableSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.Immutable;
+import javax.annotation.concurrent.ThreadSafe;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.helger.commons.ValueEnforcer;
+import com.helger.commons.string.ToStringGenerator;
+
+/**
+ * The index of all messages in a single channel inbox directory, so that
+ * listing the messages of a channel does not need to access every file. The
+ * index is kept in memory in creation order and persisted as an append-only
+ * file of add and remove records inside the channel directory. The file stays
+ * open for appending and is synced via the {@link StorageSyncer}. On opening,
+ * the index is reconciled with the names of the payload files in the
+ * directory and its shard subdirectories. It is rebuilt from the directory, if
+ * the index file is missing or corrupt.
+ *
+ * @author Philip Helger
+ */
+@ThreadSafe
+final class ChannelIndex
+{
+  /** The name of the index file inside the channel directory */
+  static final String INDEX_FILENAME = "channel.index";
+
+  private static final Logger s_aLogger = LoggerFactory.getLogger (ChannelIndex.class);
+  private static final String TMP_EXTENSION = ".tmp";
+  private static final byte OP_ADD = 1;
+  private static final byte OP_REMOVE = 2;
+  /** Number of obsolete records that are tolerated before compacting */
+  private static final int COMPACT_THRESHOLD = 1000;
+
+  /**
+   * A single index entry.
+   *
+   * @author Philip Helger
+   */
+  @Immutable
+  static final class IndexEntry
+  {
+    /** Creation order - entries with the same creation time in add order */
+    static final Comparator <IndexEntry> CREATION_ORDER = Comparator.comparingLong ( (final IndexEntry x) -> x.m_nCreationMillis)
+                                                                    .thenComparingLong (x -> x.m_nSequence);
+
+    private final String m_sMessageID;
+    private final long m_nSize;
+    private final long m_nCreationMillis;
+    private final long m_nSequence;
+
+    IndexEntry (@Nonnull final String sMessageID,
+                @Nonnegative final long nSize,
+                final long nCreationMillis,
+                final long nSequence)
+    {
+      m_sMessageID = sMessageID;
+      m_nSize = nSize;
+      m_nCreationMillis = nCreationMillis;
+      m_nSequence = nSequence;
+    }
+
+    /**
+     * @return The message ID. Never <code>null</code>.
+     */
+    @Nonnull
+    String getMessageID ()
+    {
+      return m_sMessageID;
+    }
+
+    /**
+     * @return The uncompressed payload size in bytes.
+     */
+    @Nonnegative
+    long getSize ()
+    {
+      return m_nSize;
+    }
+
+    /**
+     * @return The creation time of the payload in milliseconds.
+     */
+    long getCreationMillis ()
+    {
+      return m_nCreationMillis;
+    }
+  }
+
+  private final File m_aDir;
+  private final int m_nShardLevels;
+  private final File m_aIndexFile;
+  private final StorageSyncer m_aSyncer;
+  // Modifications are guarded by m_aLock, reads don't lock
+  private final Lock m_aLock = new ReentrantLock ();
+  private final ConcurrentMap <String, IndexEntry> m_aEntries = new ConcurrentHashMap <> ();
+  // The same entries in creation order
+  private final NavigableSet <IndexEntry> m_aOrderedEntries = new ConcurrentSkipListSet <> (IndexEntry.CREATION_ORDER);
+  // Guarded by m_aLock
+  private long m_nNextSequence = 0;
+  private int m_nRecordCount = 0;
+  private FileChannel m_aAppendChannel;
+
+  private ChannelIndex (@Nonnull final File aDir,
+                        @Nonnegative final int nShardLevels,
+                        @Nonnull final StorageSyncer aSyncer)
+  {
+    m_aDir = aDir;
+    m_nShardLevels = nShardLevels;
+    m_aIndexFile = new File (aDir, INDEX_FILENAME);
+    m_aSyncer = aSyncer;
+  }
+
+  /**
+   * Open the index of the passed channel directory with the flat layout. The
+   * index file is never synced.
+   *
+   * @param aChannelDir
+   *        The existing channel inbox directory. May not be <code>null</code>.
+   * @return The opened index. Never <code>null</code>.
+   */
+  @Nonnull
+  static ChannelIndex open (@Nonnull final File aChannelDir)
+  {
+    return open (aChannelDir, 0, new StorageSyncer (EStorageDurability.NONE, 0));
+  }
+
+  /**
+   * Open the index of the passed channel directory.
+   *
+   * @param aChannelDir
+   *        The existing channel inbox directory. May not be <code>null</code>.
+   * @param nShardLevels
+   *        The number of shard subdirectory levels. Messages in the flat layout
+   *        are always considered.
+   * @param aSyncer
+   *        Forces the index file to disk. May not be <code>null</code>.
+   * @return The opened index. Never <code>null</code>.
+   */
+  @Nonnull
+  static ChannelIndex open (@Nonnull final File aChannelDir,
+                            @Nonnegative final int nShardLevels,
+                            @Nonnull final StorageSyncer aSyncer)
+  {
+    ValueEnforcer.notNull (aChannelDir, "ChannelDir");
+    ValueEnforcer.isGE0 (nShardLevels, "ShardLevels");
+    ValueEnforcer.notNull (aSyncer, "Syncer");
+    final ChannelIndex ret = new ChannelIndex (aChannelDir, nShardLevels, aSyncer);
+    ret.m_aLock.lock ();
+    try
+    {
+      ret._load ();
+    }
+    finally
+    {
+      ret.m_aLock.unlock ();
+    }
+    return ret;
+  }
+
+  @Nonnull
+  private IndexEntry _put (@Nonnull final String sMessageID, @Nonnegative final long nSize, final long nCreationMillis)
+  {
+    final IndexEntry aEntry = new IndexEntry (sMessageID, nSize, nCreationMillis, m_nNextSequence++);
+    final IndexEntry aOld = m_aEntries.put (sMessageID, aEntry);
+    if (aOld != null)
+      m_aOrderedEntries.remove (aOld);
+    m_aOrderedEntries.add (aEntry);
+    return aEntry;
+  }
+
+  private boolean _remove (@Nonnull final String sMessageID)
+  {
+    final IndexEntry aOld = m_aEntries.remove (sMessageID);
+    if (aOld == null)
+      return false;
+    m_aOrderedEntries.remove (aOld);
+    return true;
+  }
+
+  private void _clear ()
+  {
+    m_aEntries.clear ();
+    m_aOrderedEntries.clear ();
+  }
+
+  private void _load ()
+  {
+    boolean bValid = false;
+    if (m_aIndexFile.exists ())
+    {
+      try
+      {
+        _read ();
+        bValid = true;
+      }
+      catch (final IOException ex)
+      {
+        s_aLogger.warn ("Index " + m_aIndexFile.getAbsolutePath () + " is corrupt - rebuilding it", ex);
+        _clear ();
+      }
+    }
+    if (_reconcile () || !bValid)
+      _rewrite ();
+  }
+
+  private void _read () throws IOException
+  {
+    try (final DataInputStream aDIS = new DataInputStream (new BufferedInputStream (new FileInputStream (m_aIndexFile))))
+    {
+      int nOp;
+      while ((nOp = aDIS.read ()) >= 0)
+      {
+        final String sMessageID = aDIS.readUTF ();
+        if (nOp == OP_ADD)
+        {
+          final long nSize = aDIS.readLong ();
+          final long nCreationMillis = aDIS.readLong ();
+          _put (sMessageID, nSize, nCreationMillis);
+        }
+        else
+          if (nOp == OP_REMOVE)
+            _remove (sMessageID);
+          else
+            throw new IOException ("Unknown index record type " + nOp);
+        m_nRecordCount++;
+      }
+    }
+  }
+
+  private static boolean _isShardDirName (@Nonnull final String sName)
+  {
+    return sName.length () == 2 &&
+           Character.digit (sName.charAt (0), 16) >= 0 &&
+           Character.digit (sName.charAt (1), 16) >= 0;
+  }
+
+  /**
+   * List the files of the passed directory and of its shard subdirectories.
+   * Only reads names: message files always have an extension, so they cannot
+   * be mistaken for shard directories.
+   */
+  private static void _listFiles (@Nonnull final File aDir,
+                                  @Nonnegative final int nShardLevels,
+                                  @Nonnull final List <File> aTarget)
+  {
+    final String [] aNames = aDir.list ();
+    if (aNames != null)
+      for (final String sName : aNames)
+        if (_isShardDirName (sName))
+        {
+          if (nShardLevels > 0)
+            _listFiles (new File (aDir, sName), nShardLevels - 1, aTarget);
+        }
+        else
+          aTarget.add (new File (aDir, sName));
+  }
+
+  /**
+   * Make sure the index contains exactly the payload files of the directory
+   * and its shard subdirectories. Only reads the file names, and only accesses
+   * files missing in the index. Leftovers of saves interrupted by a crash are
+   * deleted.
+   *
+   * @return <code>true</code> if the index was modified.
+   */
+  private boolean _reconcile ()
+  {
+    final List <File> aFiles = new ArrayList <> ();
+    _listFiles (m_aDir, m_nShardLevels, aFiles);
+
+    final Set <String> aMessageIDs = new HashSet <> ();
+    final List <File> aMissing = new ArrayList <> ();
+    final List <File> aMetadataFiles = new ArrayList <> ();
+    for (final File aFile : aFiles)
+    {
+      final String sFilename = aFile.getName ();
+      if (sFilename.endsWith (LimeStorage.EXT_PAYLOAD))
+      {
+        final String sMessageID = LimeStorage.getMessageIDFromPayloadFilename (sFilename);
+        aMessageIDs.add (sMessageID);
+        if (!m_aEntries.containsKey (sMessageID))
+          aMissing.add (aFile);
+      }
+      else
+        if (sFilename.endsWith (LimeStorage.EXT_METADATA))
+          aMetadataFiles.add (aFile);
+        else
+          if (sFilename.endsWith (LimeStorage.EXT_TEMP))
+            _deleteLeftover (aFile);
+    }
+
+    // The payload is renamed last, so metadata without payload is incomplete
+    for (final File aFile : aMetadataFiles)
+    {
+      final String sFilename = aFile.getName ();
+      final String sPayloadFilename = sFilename.substring (0,
+                                                           sFilename.length () - LimeStorage.EXT_METADATA.length ()) +
+                                      LimeStorage.EXT_PAYLOAD;
+      if (!aMessageIDs.contains (LimeStorage.getMessageIDFromPayloadFilename (sPayloadFilename)))
+        _deleteLeftover (aFile);
+    }
+
+    boolean bChanged = false;
+    for (final String sMessageID : new ArrayList <> (m_aEntries.keySet ()))
+      if (!aMessageIDs.contains (sMessageID))
+      {
+        _remove (sMessageID);
+        bChanged = true;
+      }
+    if (!aMissing.isEmpty ())
+    {
+      // Inserted in creation order
+      for (final File aPayloadFile : aMissing)
+        _put (LimeStorage.getMessageIDFromPayloadFilename (aPayloadFile.getName ()),
+              LimeStorage.getPayloadSize (aPayloadFile),
+              aPayloadFile.lastModified ());
+      bChanged = true;
+      s_aLogger.info ("Added " + aMissing.size () + " unindexed message(s) to " + m_aIndexFile.getAbsolutePath ());
+    }
+    return bChanged;
+  }
+
+  private static void _deleteLeftover (@Nonnull final File aFile)
+  {
+    if (aFile.delete ())
+      s_aLogger.warn ("Deleted incomplete file " + aFile.getAbsolutePath ());
+  }
+
+  private static void _writeRecord (@Nonnull final DataOutputStream aDOS,
+                                    final byte nOp,
+                                    @Nonnull final String sMessageID,
+                                    @Nullable final IndexEntry aEntry) throws IOException
+  {
+    aDOS.writeByte (nOp);
+    aDOS.writeUTF (sMessageID);
+    if (aEntry != null)
+    {
+      aDOS.writeLong (aEntry.m_nSize);
+      aDOS.writeLong (aEntry.m_nCreationMillis);
+    }
+  }
+
+  private void _closeAppendChannel ()
+  {
+    if (m_aAppendChannel != null)
+    {
+      try
+      {
+        m_aAppendChannel.close ();
+      }
+      catch (final IOException ex)
+      {
+        s_aLogger.warn ("Failed to close index " + m_aIndexFile.getAbsolutePath (), ex);
+      }
+      m_aAppendChannel = null;
+    }
+  }
+
+  /**
+   * Replace the index file with one that contains only the current entries.
+   */
+  private void _rewrite ()
+  {
+    // The open channel would still append to the replaced file
+    _closeAppendChannel ();
+
+    final File aTmpFile = new File (m_aDir, INDEX_FILENAME + TMP_EXTENSION);
+    try
+    {
+      try (final DataOutputStream aDOS = new DataOutputStream (new BufferedOutputStream (new FileOutputStream (aTmpFile))))
+      {
+        for (final IndexEntry aEntry : m_aOrderedEntries)
+          _writeRecord (aDOS, OP_ADD, aEntry.m_sMessageID, aEntry);
+      }
+      m_aSyncer.sync (aTmpFile.toPath ());
+      Files.move (aTmpFile.toPath (),
+                  m_aIndexFile.toPath (),
+                  StandardCopyOption.REPLACE_EXISTING,
+                  StandardCopyOption.ATOMIC_MOVE);
+      m_nRecordCount = m_aEntries.size ();
+    }
+    catch (final IOException ex)
+    {
+      // The in-memory index stays valid - the file is rebuilt on next startup
+      s_aLogger.error ("Failed to write index " + m_aIndexFile.getAbsolutePath (), ex);
+    }
+  }
+
+  private void _append (final byte nOp, @Nonnull final String sMessageID, @Nullable final IndexEntry aEntry)
+  {
+    if (m_nRecordCount - m_aEntries.size () > m_aEntries.size () + COMPACT_THRESHOLD)
+    {
+      _rewrite ();
+      return;
+    }
+    if (!m_aIndexFile.exists ())
+    {
+      // The channel directory was removed and recreated in the meantime
+      _rewrite ();
+      return;
+    }
+    try
+    {
+      final ByteArrayOutputStream aBAOS = new ByteArrayOutputStream (64);
+      try (final DataOutputStream aDOS = new DataOutputStream (aBAOS))
+      {
+        _writeRecord (aDOS, nOp, sMessageID, aEntry);
+      }
+      if (m_aAppendChannel == null)
+        m_aAppendChannel = FileChannel.open (m_aIndexFile.toPath (),
+                                             StandardOpenOption.WRITE,
+                                             StandardOpenOption.APPEND);
+      final ByteBuffer aBuffer = ByteBuffer.wrap (aBAOS.toByteArray ());
+      while (aBuffer.hasRemaining ())
+        m_aAppendChannel.write (aBuffer);
+      m_nRecordCount++;
+    }
+    catch (final IOException ex)
+    {
+      s_aLogger.error ("Failed to append to index " + m_aIndexFile.getAbsolutePath () + " - rewriting it", ex);
+      _rewrite ();
+    }
+  }
+
+  /**
+   * Force the index file to disk as defined by the syncer. Called without the
+   * lock, so that concurrent changes share a group commit.
+   */
+  private void _sync ()
+  {
+    try
+    {
+      m_aSyncer.sync (m_aIndexFile.toPath ());
+    }
+    catch (final NoSuchFileException ex)
+    {
+      // The channel directory was removed - the next change writes the file
+    }
+    catch (final IOException ex)
+    {
+      // The index is reconciled with the directory on next startup
+      s_aLogger.error ("Failed to sync index " + m_aIndexFile.getAbsolutePath (), ex);
+    }
+  }
+
+  /**
+   * Add a newly saved message.
+   *
+   * @param sMessageID
+   *        The message ID. May not be <code>null</code>.
+   * @param nSize
+   *        The uncompressed payload size in bytes.
+   * @param nCreationMillis
+   *        The creation time in milliseconds.
+   */
+  void add (@Nonnull final String sMessageID, @Nonnegative final long nSize, final long nCreationMillis)
+  {
+    m_aLock.lock ();
+    try
+    {
+      final IndexEntry aEntry = _put (sMessageID, nSize, nCreationMillis);
+      _append (OP_ADD, sMessageID, aEntry);
+    }
+    finally
+    {
+      m_aLock.unlock ();
+    }
+    _sync ();
+  }
+
+  /**
+   * Remove a deleted message.
+   *
+   * @param sMessageID
+   *        The message ID. May not be <code>null</code>.
+   */
+  void remove (@Nonnull final String sMessageID)
+  {
+    m_aLock.lock ();
+    try
+    {
+      if (!_remove (sMessageID))
+        return;
+      _append (OP_REMOVE, sMessageID, null);
+    }
+    finally
+    {
+      m_aLock.unlock ();
+    }
+    _sync ();
+  }
+
+  /**
+   * @param sMessageID
+   *        The message ID. May not be <code>null</code>.
+   * @return <code>null</code> if no such message is indexed.
+   */
+  @Nullable
+  IndexEntry getEntry (@Nonnull final String sMessageID)
+  {
+    return m_aEntries.get (sMessageID);
+  }
+
+  /**
+   * @return A read-only view of all entries in creation order. It reflects
+   *         concurrent changes and can be iterated without locking. Never
+   *         <code>null</code>.
+   */
+  @Nonnull
+  Collection <IndexEntry> getAllEntries ()
+  {
+    return Collections.unmodifiableCollection (m_aOrderedEntries);
+  }
+
+  /**
+   * Close the index file. Later changes open it again.
+   */
+  void close ()
+  {
+    m_aLock.lock ();
+    try
+    {
+      _closeAppendChannel ();
+    }
+    finally
+    {
+      m_aLock.unlock ();
+    }
+  }
+
+  @Override
+  public String toString ()
+  {
+    return new ToStringGenerator (this).append ("indexFile", m_aIndexFile).getToString ();
+  }
+}
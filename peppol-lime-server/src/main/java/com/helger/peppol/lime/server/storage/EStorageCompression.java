@@ -0,0 +1,105 @@
+/**
+ * Copyright (C) 2015-2016 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Version: MPL 1.1/EUPL 1.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at:
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is Copyright The PEPPOL project (http://www.peppol.eu)
+ *
+ * Alternatively, the contents of this file may be used under the
+ * terms of the EUPL, Version 1.1 or - as soon they will be approved
+ * by the European Commission - subsequent versions of the EUPL
+ * (the "Licence"); You may not use this work except in compliance
+ * with the Licence.
+ * You may obtain a copy of the Licence at:
+ * http://joinup.ec.europa.eu/software/page/eupl/licence-eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ *
+ * If you wish to allow use of your version of this file only
+ * under the terms of the EUPL License and not to allow others to use
+ * your version of this file under the MPL, indicate your decision by
+ * deleting the provisions above and replace them with the notice and
+ * other provisions required by the EUPL License. If you do not delete
+ * the provisions above, a recipient may use your version of this file
+ * under either the MPL or the EUPL License.
+ */
+package com.helger.peppol.lime.server.storage;
+
+import java.util.Locale;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+/**
+ * Defines how stored payloads are compressed.
+ *
+ * @author Philip Helger
+ */
+public enum EStorageCompression
+{
+  /** Payloads are stored as they are */
+  NONE ((byte) 0),
+  /** Payloads are stored in the zlib format */
+  DEFLATE ((byte) 1),
+  /** Payloads are stored in the GZIP format */
+  GZIP ((byte) 2);
+
+  private final byte m_nMarkerID;
+
+  private EStorageCompression (final byte nMarkerID)
+  {
+    m_nMarkerID = nMarkerID;
+  }
+
+  /**
+   * @return The lower case ID used in the configuration.
+   */
+  @Nonnull
+  public String getID ()
+  {
+    return name ().toLowerCase (Locale.US);
+  }
+
+  /**
+   * @return The ID stored in the header marker of compressed payloads.
+   */
+  byte getMarkerID ()
+  {
+    return m_nMarkerID;
+  }
+
+  @Nullable
+  static EStorageCompression getFromMarkerIDOrNull (final int nMarkerID)
+  {
+    for (final EStorageCompression e : values ())
+      if (e != NONE && e.m_nMarkerID == nMarkerID)
+        return e;
+    return null;
+  }
+
+  @Nullable
+  public static EStorageCompression getFromIDOrDefault (@Nullable final String sID,
+                                                        @Nullable final EStorageCompression eDefault)
+  {
+    if (sID != null)
+      for (final EStorageCompression e : values ())
+        if (e.getID ().equalsIgnoreCase (sID.trim ()))
+          return e;
+    return eDefault;
+  }
+}
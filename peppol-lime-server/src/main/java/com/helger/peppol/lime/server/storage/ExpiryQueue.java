@@ -0,0 +1,162 @@
+/**
+ * Copyright (C) 2015-2016 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Version: MPL 1.1/EUPL 1.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at:
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is Copyright The PEPPOL project (http://www.peppol.eu)
+ *
+ * Alternatively, the contents of this file may be used under the
+ * terms of the EUPL, Version 1.1 or - as soon they will be approved
+ * by the European Commission - subsequent versions of the EUPL
+ * (the "Licence"); You may not use this work except in compliance
+ * with the Licence.
+ * You may obtain a copy of the Licence at:
+ * http://joinup.ec.europa.eu/software/page/eupl/licence-eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ *
+ * If you wish to allow use of your version of this file only
+ * under the terms of the EUPL License and not to allow others to use
+ * your version of this file under the MPL, indicate your decision by
+ * deleting the provisions above and replace them with the notice and
+ * other provisions required by the EUPL License. If you do not delete
+ * the provisions above, a recipient may use your version of this file
+ * under either the MPL or the EUPL License.
+ */
+package com.helger.peppol.lime.server.storage;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+import javax.annotation.concurrent.Immutable;
+import javax.annotation.concurrent.ThreadSafe;
+
+/**
+ * All stored messages ordered by the time they expire, so that the expiry
+ * sweeper only needs to look at the messages that are due.
+ *
+ * @author Philip Helger
+ */
+@ThreadSafe
+final class ExpiryQueue
+{
+  /**
+   * A single message to expire.
+   *
+   * @author Philip Helger
+   */
+  @Immutable
+  static final class Item
+  {
+    private final long m_nExpiryMillis;
+    private final String m_sChannelID;
+    private final String m_sMessageID;
+
+    Item (final long nExpiryMillis, @Nonnull final String sChannelID, @Nonnull final String sMessageID)
+    {
+      m_nExpiryMillis = nExpiryMillis;
+      m_sChannelID = sChannelID;
+      m_sMessageID = sMessageID;
+    }
+
+    long getExpiryMillis ()
+    {
+      return m_nExpiryMillis;
+    }
+
+    @Nonnull
+    String getChannelID ()
+    {
+      return m_sChannelID;
+    }
+
+    @Nonnull
+    String getMessageID ()
+    {
+      return m_sMessageID;
+    }
+  }
+
+  private final Lock m_aLock = new ReentrantLock ();
+  private final PriorityQueue <Item> m_aQueue = new PriorityQueue <> (Comparator.comparingLong (Item::getExpiryMillis));
+
+  void add (@Nonnull final String sChannelID, @Nonnull final String sMessageID, final long nExpiryMillis)
+  {
+    final Item aItem = new Item (nExpiryMillis, sChannelID, sMessageID);
+    m_aLock.lock ();
+    try
+    {
+      m_aQueue.add (aItem);
+    }
+    finally
+    {
+      m_aLock.unlock ();
+    }
+  }
+
+  /**
+   * Remove and return the items that are due.
+   *
+   * @param nNowMillis
+   *        The current time in milliseconds.
+   * @param nMaxItems
+   *        The maximum number of items to return.
+   * @return The due items, earliest first. Never <code>null</code>.
+   */
+  @Nonnull
+  List <Item> pollDue (final long nNowMillis, @Nonnegative final int nMaxItems)
+  {
+    final List <Item> ret = new ArrayList <> ();
+    m_aLock.lock ();
+    try
+    {
+      while (ret.size () < nMaxItems)
+      {
+        final Item aItem = m_aQueue.peek ();
+        if (aItem == null || aItem.getExpiryMillis () > nNowMillis)
+          break;
+        ret.add (m_aQueue.poll ());
+      }
+    }
+    finally
+    {
+      m_aLock.unlock ();
+    }
+    return ret;
+  }
+
+  @Nonnegative
+  int size ()
+  {
+    m_aLock.lock ();
+    try
+    {
+      return m_aQueue.size ();
+    }
+    finally
+    {
+      m_aLock.unlock ();
+    }
+  }
+}
@@ -0,0 +1,147 @@
+/**
+ * Copyright (C) 2015-2016 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Version: MPL 1.1/EUPL 1.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at:
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is Copyright The PEPPOL project (http://www.peppol.eu)
+ *
+ * Alternatively, the contents of this file may be used under the
+ * terms of the EUPL, Version 1.1 or - as soon they will be approved
+ * by the European Commission - subsequent versions of the EUPL
+ * (the "Licence"); You may not use this work except in compliance
+ * with the Licence.
+ * You may obtain a copy of the Licence at:
+ * http://joinup.ec.europa.eu/software/page/eupl/licence-eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ *
+ * If you wish to allow use of your version of this file only
+ * under the terms of the EUPL License and not to allow others to use
+ * your version of this file under the MPL, indicate your decision by
+ * deleting the provisions above and replace them with the notice and
+ * other provisions required by the EUPL License. If you do not delete
+ * the provisions above, a recipient may use your version of this file
+ * under either the MPL or the EUPL License.
+ */
+package com.helger.peppol.lime.server.storage;
+
+import java.io.IOException;
+import java.time.LocalDateTime;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.xml.transform.Source;
+import javax.xml.transform.dom.DOMSource;
+
+import org.w3c.dom.Document;
+import org.xml.sax.SAXException;
+
+/**
+ * The inbox storage for the messages of all channels. Implementations must be
+ * thread-safe.
+ *
+ * @author Philip Helger
+ */
+public interface ILimeStorage
+{
+  /**
+   * @param sChannelID
+   *        The channel ID. May not be <code>null</code>.
+   * @return The milliseconds after which the messages of the passed channel
+   *         expire.
+   */
+  long getRetentionMillis (@Nonnull String sChannelID);
+
+  /**
+   * Store a new message.
+   *
+   * @param sChannelID
+   *        The channel ID. May not be <code>null</code>.
+   * @param sMessageID
+   *        The message ID. May not be <code>null</code>.
+   * @param aMetadataDocument
+   *        The metadata. May not be <code>null</code>.
+   * @param aPayloadSource
+   *        The payload. It is serialized directly into the storage without an
+   *        intermediate copy. May not be <code>null</code>.
+   * @throws IOException
+   *         If the message cannot be written
+   */
+  void saveDocument (@Nonnull String sChannelID,
+                     @Nonnull String sMessageID,
+                     @Nonnull Document aMetadataDocument,
+                     @Nonnull Source aPayloadSource) throws IOException;
+
+  default void saveDocument (@Nonnull final String sChannelID,
+                             @Nonnull final String sMessageID,
+                             @Nonnull final Document aMetadataDocument,
+                             @Nonnull final Document aPayloadDocument) throws IOException
+  {
+    saveDocument (sChannelID, sMessageID, aMetadataDocument, new DOMSource (aPayloadDocument));
+  }
+
+  void deleteDocument (@Nullable String sChannelID, @Nullable String sMessageID);
+
+  /**
+   * @param sChannelID
+   *        The channel ID. May not be <code>null</code>.
+   * @return The IDs of all messages of the channel that are not expired, in
+   *         creation order.
+   */
+  @Nonnull
+  String [] getMessageIDs (@Nonnull String sChannelID);
+
+  @Nullable
+  Document getDocumentMetadata (@Nonnull String sChannelID, @Nonnull String sMessageID) throws SAXException;
+
+  @Nullable
+  Document getDocument (@Nonnull String sChannelID, String sMessageID) throws SAXException;
+
+  /**
+   * @return The payload size in kilobytes, rounded up. For compressed payloads
+   *         this is the uncompressed size.
+   */
+  long getSize (@Nonnull String sChannelID, String sMessageID);
+
+  @Nonnull
+  LocalDateTime getCreationTime (@Nonnull String sChannelID, String sMessageID);
+
+  /**
+   * Open all existing channels, so that all stored messages are considered by
+   * {@link #expireMessages(long, int)}.
+   */
+  void openAllChannels ();
+
+  /**
+   * Delete the messages whose retention is over, earliest first.
+   *
+   * @param nNowMillis
+   *        The current time in milliseconds.
+   * @param nMaxDeletes
+   *        The maximum number of messages to delete.
+   * @return The number of deleted messages.
+   */
+  @Nonnegative
+  int expireMessages (long nNowMillis, @Nonnegative int nMaxDeletes);
+
+  /**
+   * Release all resources. Afterwards the storage may not be used anymore.
+   */
+  void close ();
+}
@@ -0,0 +1,364 @@
+/**
+ * Copyright (C) 2015-2016 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Version: MPL 1.1/EUPL 1.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at:
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is Copyright The PEPPOL project (http://www.peppol.eu)
+ *
+ * Alternatively, the contents of this file may be used under the
+ * terms of the EUPL, Version 1.1 or - as soon they will be approved
+ * by the European Commission - subsequent versions of the EUPL
+ * (the "Licence"); You may not use this work except in compliance
+ * with the Licence.
+ * You may obtain a copy of the Licence at:
+ * http://joinup.ec.europa.eu/software/page/eupl/licence-eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ *
+ * If you wish to allow use of your version of this file only
+ * under the terms of the EUPL License and not to allow others to use
+ * your version of this file under the MPL, indicate your decision by
+ * deleting the provisions above and replace them with the notice and
+ * other provisions required by the EUPL License. If you do not delete
+ * the provisions above, a recipient may use your version of this file
+ * under either the MPL or the EUPL License.
+ */
+package com.helger.peppol.lime.server.storage;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.ToLongFunction;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.ThreadSafe;
+import javax.xml.transform.Source;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.w3c.dom.Document;
+import org.xml.sax.SAXException;
+
+import com.helger.commons.CGlobal;
+import com.helger.commons.ValueEnforcer;
+import com.helger.commons.annotation.Nonempty;
+import com.helger.commons.datetime.PDTFactory;
+import com.helger.commons.io.file.FileOperations;
+import com.helger.commons.string.ToStringGenerator;
+
+/**
+ * An inbox storage that appends the messages of each channel to a few large
+ * segment files instead of creating two files per message. This avoids the
+ * file creation and deletion costs of {@link LimeStorage} at high message
+ * rates. The segments of a channel are stored in
+ * <code>segments/&lt;channelID&gt;</code> below the storage path and are
+ * compacted in the background.
+ *
+ * @author Philip Helger
+ */
+@ThreadSafe
+public final class LimeSegmentStorage implements ILimeStorage
+{
+  /** Name of the directory containing the segments of all channels */
+  public static final String SEGMENTS_DIR = "segments";
+  /** The default size after which a new segment is started */
+  public static final long DEFAULT_SEGMENT_SIZE = 64L * CGlobal.BYTES_PER_KILOBYTE_LONG * CGlobal.BYTES_PER_KILOBYTE_LONG;
+
+  private static final Logger s_aLogger = LoggerFactory.getLogger (LimeSegmentStorage.class);
+  private static final long COMPACT_INTERVAL_SECONDS = 60;
+
+  private final File m_aSegmentsDir;
+  private final ToLongFunction <String> m_aRetentionProvider;
+  private final StorageSyncer m_aSyncer;
+  private final PayloadCompression m_aCompression;
+  private final long m_nMaxSegmentSize;
+  /** The retention in milliseconds per channel ID */
+  private final ConcurrentMap <String, Long> m_aRetentionMillis = new ConcurrentHashMap <> ();
+  private final ExpiryQueue m_aExpiryQueue = new ExpiryQueue ();
+  /** The opened segments per channel directory name */
+  private final ConcurrentMap <String, SegmentChannel> m_aChannels = new ConcurrentHashMap <> ();
+  private final ScheduledExecutorService m_aCompactor;
+
+  /**
+   * Constructor. Starts the background compaction.
+   *
+   * @param sStorePath
+   *        The storage path. May neither be <code>null</code> nor empty.
+   * @param aRetentionProvider
+   *        Provides the milliseconds after which the messages of a channel are
+   *        deleted. Called once per channel ID. May not be <code>null</code>.
+   * @param aSyncer
+   *        Forces the stored messages to disk. Shut down by {@link #close()}.
+   *        May not be <code>null</code>.
+   * @param aCompression
+   *        The compression of newly stored payloads. May not be
+   *        <code>null</code>.
+   * @param nMaxSegmentSize
+   *        The size in bytes after which a new segment is started. Must be
+   *        &gt; 0.
+   */
+  public LimeSegmentStorage (@Nonnull @Nonempty final String sStorePath,
+                             @Nonnull final ToLongFunction <String> aRetentionProvider,
+                             @Nonnull final StorageSyncer aSyncer,
+                             @Nonnull final PayloadCompression aCompression,
+                             @Nonnegative final long nMaxSegmentSize)
+  {
+    ValueEnforcer.notEmpty (sStorePath, "StorePath");
+    ValueEnforcer.notNull (aRetentionProvider, "RetentionProvider");
+    ValueEnforcer.notNull (aSyncer, "Syncer");
+    ValueEnforcer.notNull (aCompression, "Compression");
+    ValueEnforcer.isGT0 (nMaxSegmentSize, "MaxSegmentSize");
+    m_aSegmentsDir = new File (sStorePath, SEGMENTS_DIR);
+    m_aRetentionProvider = aRetentionProvider;
+    m_aSyncer = aSyncer;
+    m_aCompression = aCompression;
+    m_nMaxSegmentSize = nMaxSegmentSize;
+
+    m_aCompactor = Executors.newSingleThreadScheduledExecutor (r -> {
+      final Thread t = new Thread (r, "lime-segment-compactor");
+      t.setDaemon (true);
+      return t;
+    });
+    m_aCompactor.scheduleWithFixedDelay (this::compact,
+                                         COMPACT_INTERVAL_SECONDS,
+                                         COMPACT_INTERVAL_SECONDS,
+                                         TimeUnit.SECONDS);
+  }
+
+  public long getRetentionMillis (@Nonnull final String sChannelID)
+  {
+    return m_aRetentionMillis.computeIfAbsent (sChannelID, x -> Long.valueOf (m_aRetentionProvider.applyAsLong (x)))
+                             .longValue ();
+  }
+
+  @Nonnull
+  private static String _getChannelDirName (@Nonnull final String sChannelID)
+  {
+    return sChannelID.replace (':', '_');
+  }
+
+  @Nonnull
+  private SegmentChannel _getChannel (@Nonnull final String sChannelID)
+  {
+    // Channel IDs sharing a directory must share its segments
+    return m_aChannels.computeIfAbsent (_getChannelDirName (sChannelID), x -> {
+      final File aChannelDir = new File (m_aSegmentsDir, x);
+      FileOperations.createDirRecursiveIfNotExisting (aChannelDir);
+      LimeStorage.writeChannelID (aChannelDir, sChannelID);
+      final SegmentChannel aChannel;
+      try
+      {
+        aChannel = SegmentChannel.open (aChannelDir, m_nMaxSegmentSize, m_aSyncer, m_aCompression);
+      }
+      catch (final IOException ex)
+      {
+        throw new IllegalStateException ("Failed to open the segments of channel \"" +
+                                         sChannelID +
+                                         "\" in " +
+                                         aChannelDir.getAbsolutePath (),
+                                         ex);
+      }
+      final long nRetentionMillis = getRetentionMillis (sChannelID);
+      for (final Map.Entry <String, SegmentChannel.Record> aEntry : aChannel.getAllRecords ().entrySet ())
+        m_aExpiryQueue.add (sChannelID, aEntry.getKey (), aEntry.getValue ().getCreationMillis () + nRetentionMillis);
+      return aChannel;
+    });
+  }
+
+  public void saveDocument (@Nonnull final String sChannelID,
+                            @Nonnull final String sMessageID,
+                            @Nonnull final Document aMetadataDocument,
+                            @Nonnull final Source aPayloadSource) throws IOException
+  {
+    final long nCreationMillis = System.currentTimeMillis ();
+    if (!_getChannel (sChannelID).append (sMessageID, aMetadataDocument, aPayloadSource, nCreationMillis))
+      throw new IllegalStateException ("Cannot create new document for message ID " +
+                                       sMessageID +
+                                       " in inbox for channel " +
+                                       sChannelID);
+    m_aExpiryQueue.add (sChannelID, sMessageID, nCreationMillis + getRetentionMillis (sChannelID));
+  }
+
+  public void deleteDocument (@Nullable final String sChannelID, @Nullable final String sMessageID)
+  {
+    if (sChannelID != null && sMessageID != null)
+      _getChannel (sChannelID).delete (sMessageID);
+  }
+
+  @Nonnull
+  public String [] getMessageIDs (@Nonnull final String sChannelID)
+  {
+    // Read-only: expired messages are skipped and deleted in the background
+    final List <String> ret = new ArrayList <> ();
+    final long nMinCreationMillis = System.currentTimeMillis () - getRetentionMillis (sChannelID);
+    for (final Map.Entry <String, SegmentChannel.Record> aEntry : _getChannel (sChannelID).getAllRecords ()
+                                                                                          .entrySet ())
+      if (aEntry.getValue ().getCreationMillis () >= nMinCreationMillis)
+        ret.add (aEntry.getKey ());
+    return ret.toArray (new String [ret.size ()]);
+  }
+
+  @Nullable
+  private static Document _parse (@Nullable final byte [] aBytes,
+                                  final boolean bPayload,
+                                  @Nonnull final String sChannelID,
+                                  @Nonnull final String sMessageID) throws SAXException
+  {
+    if (aBytes == null)
+    {
+      s_aLogger.warn ("Message " + sMessageID + " does not exist in channel " + sChannelID);
+      return null;
+    }
+    final InputStream aBytesIS = new ByteArrayInputStream (aBytes);
+    try (final InputStream aIS = bPayload ? PayloadCompression.getPayloadInputStream (aBytesIS) : aBytesIS)
+    {
+      return StorageXMLHelper.readDocument (aIS);
+    }
+    catch (final IOException ex)
+    {
+      throw new SAXException ("Failed to parse message " + sMessageID, ex);
+    }
+  }
+
+  @Nullable
+  public Document getDocumentMetadata (@Nonnull final String sChannelID,
+                                       @Nonnull final String sMessageID) throws SAXException
+  {
+    try
+    {
+      return _parse (_getChannel (sChannelID).readMetadata (sMessageID), false, sChannelID, sMessageID);
+    }
+    catch (final IOException ex)
+    {
+      throw new SAXException ("Failed to read the metadata of message " + sMessageID, ex);
+    }
+  }
+
+  @Nullable
+  public Document getDocument (@Nonnull final String sChannelID, final String sMessageID) throws SAXException
+  {
+    try
+    {
+      return _parse (_getChannel (sChannelID).readPayload (sMessageID), true, sChannelID, sMessageID);
+    }
+    catch (final IOException ex)
+    {
+      throw new SAXException ("Failed to read the payload of message " + sMessageID, ex);
+    }
+  }
+
+  public long getSize (@Nonnull final String sChannelID, final String sMessageID)
+  {
+    final SegmentChannel.Record aRecord = _getChannel (sChannelID).getRecord (sMessageID);
+    final long nLength = aRecord == null ? 0 : aRecord.getPayloadSize ();
+    // calculate length in Kilobytes and round up
+    return (nLength + CGlobal.BYTES_PER_KILOBYTE_LONG - 1) / CGlobal.BYTES_PER_KILOBYTE_LONG;
+  }
+
+  @Nonnull
+  public LocalDateTime getCreationTime (@Nonnull final String sChannelID, final String sMessageID)
+  {
+    final SegmentChannel.Record aRecord = _getChannel (sChannelID).getRecord (sMessageID);
+    // Same as a missing payload file
+    return PDTFactory.createLocalDateTime (aRecord == null ? 0 : aRecord.getCreationMillis ());
+  }
+
+  public void openAllChannels ()
+  {
+    final File [] aChannelDirs = m_aSegmentsDir.listFiles (File::isDirectory);
+    if (aChannelDirs != null)
+      for (final File aChannelDir : aChannelDirs)
+        _getChannel (LimeStorage.readChannelID (aChannelDir));
+  }
+
+  @Nonnegative
+  public int expireMessages (final long nNowMillis, @Nonnegative final int nMaxDeletes)
+  {
+    int ret = 0;
+    while (ret < nMaxDeletes)
+    {
+      final List <ExpiryQueue.Item> aDue = m_aExpiryQueue.pollDue (nNowMillis, nMaxDeletes - ret);
+      if (aDue.isEmpty ())
+        break;
+      for (final ExpiryQueue.Item aItem : aDue)
+      {
+        final SegmentChannel aChannel = m_aChannels.get (_getChannelDirName (aItem.getChannelID ()));
+        // else already deleted by the client
+        if (aChannel != null && aChannel.delete (aItem.getMessageID ()))
+          ret++;
+      }
+    }
+    return ret;
+  }
+
+  /**
+   * Compact the segments of all opened channels. Called periodically in the
+   * background.
+   */
+  public void compact ()
+  {
+    for (final SegmentChannel aChannel : m_aChannels.values ())
+      try
+      {
+        aChannel.compact ();
+      }
+      catch (final IOException | RuntimeException ex)
+      {
+        // Keep the compactor running
+        s_aLogger.error ("Failed to compact " + aChannel, ex);
+      }
+  }
+
+  public void close ()
+  {
+    m_aCompactor.shutdown ();
+    try
+    {
+      if (!m_aCompactor.awaitTermination (30, TimeUnit.SECONDS))
+        s_aLogger.warn ("Segment compactor did not terminate in time");
+    }
+    catch (final InterruptedException ex)
+    {
+      Thread.currentThread ().interrupt ();
+    }
+    m_aSyncer.shutdown ();
+    for (final SegmentChannel aChannel : m_aChannels.values ())
+      aChannel.close ();
+    m_aChannels.clear ();
+  }
+
+  @Override
+  public String toString ()
+  {
+    return new ToStringGenerator (this).append ("segmentsDir", m_aSegmentsDir)
+                                       .append ("maxSegmentSize", m_nMaxSegmentSize)
+                                       .getToString ();
+  }
+}
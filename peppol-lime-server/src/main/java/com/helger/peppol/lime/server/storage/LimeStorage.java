@@ -40,14 +40,37 @@
  */
 package com.helger.peppol.lime.server.storage;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
 import java.time.LocalDateTime;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.ToLongFunction;
+import java.util.zip.CRC32;
 
+import javax.annotation.Nonnegative;
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
+import javax.xml.transform.Source;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -58,33 +81,127 @@ import com.helger.commons.CGlobal;
 import com.helger.commons.ValueEnforcer;
 import com.helger.commons.annotation.Nonempty;
 import com.helger.commons.datetime.PDTFactory;
-import com.helger.commons.io.file.FileHelper;
 import com.helger.commons.io.file.FileOperations;
-import com.helger.commons.io.file.iterate.FileSystemIterator;
-import com.helger.xml.serialize.read.DOMReader;
-import com.helger.xml.serialize.write.XMLWriter;
 
 /**
  * @author Ravnholt
  * @author PEPPOL.AT, BRZ, Philip Helger
  */
-public final class LimeStorage
+public final class LimeStorage implements ILimeStorage
 {
   /** Filename extension for metadata file */
   public static final String EXT_METADATA = ".metadata";
   /** Filename extension for payload file */
   public static final String EXT_PAYLOAD = ".payload";
+  /** Filename extension for files that are still being written */
+  public static final String EXT_TEMP = ".tmp";
   /** Name of the inbox directory */
   public static final String INBOX_DIR = "inbox";
+  /** Name of the file inside each channel directory containing the channel ID */
+  public static final String CHANNEL_ID_FILENAME = "channel.id";
+  /** The maximum number of subdirectory levels of a channel directory */
+  public static final int MAX_SHARD_LEVELS = 2;
 
-  private static final long MESSAGE_INVALID_TIME_IN_MILLIS = CGlobal.MILLISECONDS_PER_HOUR * 2;
+  /** The default time after which messages are deleted */
+  public static final long DEFAULT_RETENTION_MILLIS = CGlobal.MILLISECONDS_PER_HOUR * 2;
   private static final Logger s_aLogger = LoggerFactory.getLogger (LimeStorage.class);
 
   private final String m_sStorePath;
+  private final ToLongFunction <String> m_aRetentionProvider;
+  private final StorageSyncer m_aSyncer;
+  private final PayloadCompression m_aCompression;
+  private final int m_nShardLevels;
+  /** The retention in milliseconds per channel ID */
+  private final ConcurrentMap <String, Long> m_aRetentionMillis = new ConcurrentHashMap <> ();
+  private final ExpiryQueue m_aExpiryQueue = new ExpiryQueue ();
+  /** The verified inbox directory per channel ID */
+  private final ConcurrentMap <String, File> m_aChannelInboxDirs = new ConcurrentHashMap <> ();
+  /** The message index per channel directory name */
+  private final ConcurrentMap <String, ChannelIndex> m_aChannelIndexes = new ConcurrentHashMap <> ();
+  /** The channel directory names that have no messages in the flat layout */
+  private final Set <String> m_aShardedChannels = ConcurrentHashMap.newKeySet ();
+  /** The real message IDs per channel directory name still to be moved into the shards */
+  private final Map <String, Deque <String>> m_aMigrationBacklog = new HashMap <> ();
+  private volatile boolean m_bMigrationComplete = false;
+  private final Object [] m_aMessageLocks = new Object [256];
 
   public LimeStorage (@Nonnull @Nonempty final String sStorePath)
+  {
+    this (sStorePath, x -> DEFAULT_RETENTION_MILLIS);
+  }
+
+  /**
+   * Constructor
+   *
+   * @param sStorePath
+   *        The storage path. May neither be <code>null</code> nor empty.
+   * @param aRetentionProvider
+   *        Provides the milliseconds after which the messages of a channel are
+   *        deleted. Called once per channel ID. May not be <code>null</code>.
+   */
+  public LimeStorage (@Nonnull @Nonempty final String sStorePath,
+                      @Nonnull final ToLongFunction <String> aRetentionProvider)
+  {
+    this (sStorePath, aRetentionProvider, new StorageSyncer (EStorageDurability.NONE, 0), PayloadCompression.NONE, 0);
+  }
+
+  /**
+   * Constructor
+   *
+   * @param sStorePath
+   *        The storage path. May neither be <code>null</code> nor empty.
+   * @param aRetentionProvider
+   *        Provides the milliseconds after which the messages of a channel are
+   *        deleted. Called once per channel ID. May not be <code>null</code>.
+   * @param aSyncer
+   *        Forces the stored messages to disk. Shut down by {@link #close()}.
+   *        May not be <code>null</code>.
+   * @param aCompression
+   *        The compression of newly stored payloads. May not be
+   *        <code>null</code>.
+   * @param nShardLevels
+   *        The number of hash-based subdirectory levels (0 to
+   *        {@link #MAX_SHARD_LEVELS}) below each channel directory. 0 stores
+   *        all messages of a channel in one directory. Messages still stored
+   *        in the flat layout are found as well and are moved into the shards
+   *        by {@link #migrateToShards(int)}.
+   */
+  public LimeStorage (@Nonnull @Nonempty final String sStorePath,
+                      @Nonnull final ToLongFunction <String> aRetentionProvider,
+                      @Nonnull final StorageSyncer aSyncer,
+                      @Nonnull final PayloadCompression aCompression,
+                      @Nonnegative final int nShardLevels)
   {
     m_sStorePath = ValueEnforcer.notEmpty (sStorePath, "StorePath");
+    m_aRetentionProvider = ValueEnforcer.notNull (aRetentionProvider, "RetentionProvider");
+    m_aSyncer = ValueEnforcer.notNull (aSyncer, "Syncer");
+    m_aCompression = ValueEnforcer.notNull (aCompression, "Compression");
+    m_nShardLevels = ValueEnforcer.isBetweenInclusive (nShardLevels, "ShardLevels", 0, MAX_SHARD_LEVELS);
+    m_bMigrationComplete = nShardLevels == 0;
+    for (int i = 0; i < m_aMessageLocks.length; ++i)
+      m_aMessageLocks[i] = new Object ();
+  }
+
+  /**
+   * Release all resources. Pending syncs are completed.
+   */
+  public void close ()
+  {
+    for (final ChannelIndex aIndex : m_aChannelIndexes.values ())
+      aIndex.close ();
+    m_aSyncer.shutdown ();
+  }
+
+  /**
+   * @param sChannelID
+   *        The channel ID. May not be <code>null</code>.
+   * @return The milliseconds after which the messages of the passed channel
+   *         expire.
+   */
+  public long getRetentionMillis (@Nonnull final String sChannelID)
+  {
+    return m_aRetentionMillis.computeIfAbsent (sChannelID, x -> Long.valueOf (m_aRetentionProvider.applyAsLong (x)))
+                             .longValue ();
   }
 
   @Nonnull
@@ -93,17 +210,261 @@ public final class LimeStorage
     return sFileOrDirName.replace (':', '_');
   }
 
+  /**
+   * Remember the channel ID in its directory, because the directory name cannot
+   * be mapped back to the channel ID.
+   *
+   * @param aChannelDir
+   *        The existing channel directory. May not be <code>null</code>.
+   * @param sChannelID
+   *        The channel ID. May not be <code>null</code>.
+   */
+  static void writeChannelID (@Nonnull final File aChannelDir, @Nonnull final String sChannelID)
+  {
+    final File aFile = new File (aChannelDir, CHANNEL_ID_FILENAME);
+    if (!aFile.exists ())
+    {
+      final File aTmpFile = new File (aChannelDir, CHANNEL_ID_FILENAME + EXT_TEMP);
+      try
+      {
+        Files.write (aTmpFile.toPath (), sChannelID.getBytes (StandardCharsets.UTF_8));
+        Files.move (aTmpFile.toPath (), aFile.toPath (), StandardCopyOption.ATOMIC_MOVE);
+      }
+      catch (final IOException ex)
+      {
+        s_aLogger.warn ("Failed to write the ID of channel " + sChannelID + " to " + aFile.getAbsolutePath (), ex);
+      }
+    }
+  }
+
+  /**
+   * @param aChannelDir
+   *        The channel directory. May not be <code>null</code>.
+   * @return The channel ID written by {@link #writeChannelID(File, String)}.
+   *         For directories without it, the ID is derived from the directory
+   *         name.
+   */
   @Nonnull
-  private static String _getMessageIDFromPayloadFile (@Nonnull final File aPayloadFile)
+  static String readChannelID (@Nonnull final File aChannelDir)
+  {
+    final File aFile = new File (aChannelDir, CHANNEL_ID_FILENAME);
+    if (aFile.exists ())
+      try
+      {
+        return new String (Files.readAllBytes (aFile.toPath ()), StandardCharsets.UTF_8);
+      }
+      catch (final IOException ex)
+      {
+        s_aLogger.warn ("Failed to read the channel ID from " + aFile.getAbsolutePath (), ex);
+      }
+    // Created by a previous version - assume the ID contains no '_'
+    return aChannelDir.getName ().replace ('_', ':');
+  }
+
+  @Nonnull
+  static String getMessageIDFromPayloadFilename (@Nonnull final String sFilename)
   {
-    final String sFilename = aPayloadFile.getName ();
     String sMessageID = sFilename.substring (0, sFilename.length () - EXT_PAYLOAD.length ());
     sMessageID = sMessageID.replace ('_', ':');
     return sMessageID;
   }
 
+  /**
+   * @param aPayloadFile
+   *        The payload file. May not be <code>null</code>.
+   * @return The uncompressed payload size in bytes or the file length if the
+   *         file cannot be read.
+   */
+  @Nonnegative
+  static long getPayloadSize (@Nonnull final File aPayloadFile)
+  {
+    try
+    {
+      return PayloadCompression.getUncompressedSize (aPayloadFile);
+    }
+    catch (final FileNotFoundException ex)
+    {
+      return 0;
+    }
+    catch (final IOException ex)
+    {
+      s_aLogger.warn ("Failed to read the payload size of " + aPayloadFile.getAbsolutePath (), ex);
+      return aPayloadFile.length ();
+    }
+  }
+
   @Nonnull
   private File _getChannelInboxDir (@Nonnull final String sChannelID)
+  {
+    // Only touch the file system on the first access per channel
+    return m_aChannelInboxDirs.computeIfAbsent (sChannelID, this::_createChannelInboxDir);
+  }
+
+  private void _invalidateChannelInboxDir (@Nonnull final String sChannelID)
+  {
+    // Keep the index: reopening it would reconcile the directory and delete
+    // the temporary files of saves that are still in progress
+    m_aChannelInboxDirs.remove (sChannelID);
+  }
+
+  @Nonnull
+  private ChannelIndex _getChannelIndex (@Nonnull final String sChannelID)
+  {
+    // Channel IDs sharing a directory must share its index
+    return m_aChannelIndexes.computeIfAbsent (_removeSpecialChars (sChannelID), x -> {
+      final ChannelIndex aIndex = ChannelIndex.open (_getChannelInboxDir (sChannelID), m_nShardLevels, m_aSyncer);
+      final long nRetentionMillis = getRetentionMillis (sChannelID);
+      for (final ChannelIndex.IndexEntry aEntry : aIndex.getAllEntries ())
+        m_aExpiryQueue.add (sChannelID, aEntry.getMessageID (), aEntry.getCreationMillis () + nRetentionMillis);
+      return aIndex;
+    });
+  }
+
+  /**
+   * Open the index of all existing channels, so that all stored messages are
+   * considered by {@link #expireMessages(long, int)}.
+   */
+  public void openAllChannels ()
+  {
+    final File [] aChannelDirs = new File (m_sStorePath, INBOX_DIR).listFiles (File::isDirectory);
+    if (aChannelDirs != null)
+      for (final File aChannelDir : aChannelDirs)
+        _getChannelIndex (readChannelID (aChannelDir));
+  }
+
+  /**
+   * Delete the messages whose retention is over, earliest first.
+   *
+   * @param nNowMillis
+   *        The current time in milliseconds.
+   * @param nMaxDeletes
+   *        The maximum number of messages to delete.
+   * @return The number of deleted messages.
+   */
+  @Nonnegative
+  public int expireMessages (final long nNowMillis, @Nonnegative final int nMaxDeletes)
+  {
+    int ret = 0;
+    while (ret < nMaxDeletes)
+    {
+      final List <ExpiryQueue.Item> aDue = m_aExpiryQueue.pollDue (nNowMillis, nMaxDeletes - ret);
+      if (aDue.isEmpty ())
+        break;
+      for (final ExpiryQueue.Item aItem : aDue)
+      {
+        final ChannelIndex aIndex = m_aChannelIndexes.get (_removeSpecialChars (aItem.getChannelID ()));
+        if (aIndex != null && aIndex.getEntry (aItem.getMessageID ()) != null)
+        {
+          deleteDocument (aItem.getChannelID (), aItem.getMessageID ());
+          ret++;
+        }
+        // else already deleted by the client
+      }
+    }
+    return ret;
+  }
+
+  /**
+   * @return <code>true</code> if no message is stored in the flat layout
+   *         anymore, although shard levels are configured.
+   */
+  public boolean isShardMigrationComplete ()
+  {
+    return m_bMigrationComplete;
+  }
+
+  /**
+   * Move messages stored in the flat layout into their shard directories.
+   * Each channel directory is listed once and then worked off in batches.
+   * Must only be called by a single thread.
+   *
+   * @param nMaxMessages
+   *        The maximum number of messages to move.
+   * @return The number of moved messages.
+   */
+  @Nonnegative
+  public synchronized int migrateToShards (@Nonnegative final int nMaxMessages)
+  {
+    if (m_bMigrationComplete)
+      return 0;
+
+    int ret = 0;
+    boolean bFlatMessagesLeft = false;
+    final File [] aChannelDirs = new File (m_sStorePath, INBOX_DIR).listFiles (File::isDirectory);
+    if (aChannelDirs != null)
+      for (final File aChannelDir : aChannelDirs)
+      {
+        final String sChannelDirName = aChannelDir.getName ();
+        if (m_aShardedChannels.contains (sChannelDirName))
+          continue;
+
+        Deque <String> aBacklog = m_aMigrationBacklog.get (sChannelDirName);
+        if (aBacklog == null || aBacklog.isEmpty ())
+        {
+          // New messages are never stored flat, so an empty listing is final
+          final String [] aPayloadFilenames = aChannelDir.list ( (d, n) -> n.endsWith (EXT_PAYLOAD));
+          if (aPayloadFilenames == null || aPayloadFilenames.length == 0)
+          {
+            m_aMigrationBacklog.remove (sChannelDirName);
+            m_aShardedChannels.add (sChannelDirName);
+            s_aLogger.info ("All messages of channel " + readChannelID (aChannelDir) + " are in the sharded layout");
+            continue;
+          }
+          aBacklog = new ArrayDeque <> (aPayloadFilenames.length);
+          for (final String sFilename : aPayloadFilenames)
+            aBacklog.add (sFilename.substring (0, sFilename.length () - EXT_PAYLOAD.length ()));
+          m_aMigrationBacklog.put (sChannelDirName, aBacklog);
+        }
+
+        while (ret < nMaxMessages && !aBacklog.isEmpty ())
+          if (_moveToShard (aChannelDir, aBacklog.poll ()))
+            ret++;
+        bFlatMessagesLeft = true;
+      }
+    if (!bFlatMessagesLeft)
+      m_bMigrationComplete = true;
+    return ret;
+  }
+
+  private boolean _moveToShard (@Nonnull final File aChannelDir, @Nonnull final String sRealMessageID)
+  {
+    final File aMessageDir = _getMessageDir (aChannelDir, sRealMessageID);
+    synchronized (_getMessageLock (sRealMessageID))
+    {
+      return _moveFiles (aChannelDir, aMessageDir, sRealMessageID);
+    }
+  }
+
+  private static boolean _moveFiles (@Nonnull final File aChannelDir,
+                                     @Nonnull final File aMessageDir,
+                                     @Nonnull final String sRealMessageID)
+  {
+    try
+    {
+      Files.createDirectories (aMessageDir.toPath ());
+      // Like on save, the payload is moved last
+      for (final String sExtension : new String [] { EXT_METADATA, EXT_PAYLOAD })
+        try
+        {
+          Files.move (new File (aChannelDir, sRealMessageID + sExtension).toPath (),
+                      new File (aMessageDir, sRealMessageID + sExtension).toPath (),
+                      StandardCopyOption.ATOMIC_MOVE);
+        }
+        catch (final NoSuchFileException ex)
+        {
+          // Deleted in the meantime
+        }
+      return true;
+    }
+    catch (final IOException ex)
+    {
+      s_aLogger.error ("Failed to move message " + sRealMessageID + " of " + aChannelDir + " into its shard", ex);
+      return false;
+    }
+  }
+
+  @Nonnull
+  private File _createChannelInboxDir (@Nonnull final String sChannelID)
   {
     final File aInboxDir = new File (m_sStorePath, INBOX_DIR);
     FileOperations.createDirIfNotExisting (aInboxDir);
@@ -116,68 +477,233 @@ public final class LimeStorage
                                        sRealChannelID +
                                        "\" could not be found or created: " +
                                        aChannelDir.getAbsolutePath ());
+    writeChannelID (aChannelDir, sChannelID);
     return aChannelDir;
   }
 
+  /**
+   * Moving a message into its shard must not interfere with reading or
+   * deleting it.
+   */
   @Nonnull
-  private static File _getMetadataFile (@Nonnull final File aChannelInboxDir, @Nonnull final String sMessageID)
+  private Object _getMessageLock (@Nonnull final String sRealMessageID)
   {
-    final String sRealMessageID = _removeSpecialChars (sMessageID);
-    return new File (aChannelInboxDir, sRealMessageID + EXT_METADATA);
+    return m_aMessageLocks[(sRealMessageID.hashCode () & 0x7fffffff) % m_aMessageLocks.length];
   }
 
+  /**
+   * @return The directory of the passed message: the channel directory in the
+   *         flat layout, otherwise one subdirectory per level, named by 2 hex
+   *         digits of the CRC32 of the message ID.
+   */
   @Nonnull
-  private static File _getPayloadFile (@Nonnull final File aChannelInboxDir, @Nonnull final String sMessageID)
+  private File _getMessageDir (@Nonnull final File aChannelInboxDir, @Nonnull final String sRealMessageID)
+  {
+    File ret = aChannelInboxDir;
+    if (m_nShardLevels > 0)
+    {
+      final CRC32 aCRC = new CRC32 ();
+      aCRC.update (sRealMessageID.getBytes (StandardCharsets.UTF_8));
+      int nHash = (int) aCRC.getValue ();
+      for (int i = 0; i < m_nShardLevels; ++i)
+      {
+        ret = new File (ret, String.format ("%02x", Integer.valueOf (nHash & 0xff)));
+        nHash >>>= 8;
+      }
+    }
+    return ret;
+  }
+
+  @Nonnull
+  private File _getStoredFile (@Nonnull final File aChannelInboxDir,
+                               @Nonnull final String sMessageID,
+                               @Nonnull final String sExtension)
   {
     final String sRealMessageID = _removeSpecialChars (sMessageID);
-    final File aFile = new File (aChannelInboxDir, sRealMessageID + EXT_PAYLOAD);
-    s_aLogger.info ("Getting payload file: " + aFile.getAbsolutePath ());
+    final File aFile = new File (_getMessageDir (aChannelInboxDir, sRealMessageID), sRealMessageID + sExtension);
+    if (m_nShardLevels > 0 && !m_aShardedChannels.contains (aChannelInboxDir.getName ()) && !aFile.exists ())
+    {
+      // Not yet migrated from the flat layout?
+      final File aFlatFile = new File (aChannelInboxDir, sRealMessageID + sExtension);
+      if (aFlatFile.exists ())
+        return aFlatFile;
+    }
+    return aFile;
+  }
+
+  @Nonnull
+  private File _getMetadataFile (@Nonnull final File aChannelInboxDir, @Nonnull final String sMessageID)
+  {
+    return _getStoredFile (aChannelInboxDir, sMessageID, EXT_METADATA);
+  }
+
+  @Nonnull
+  private File _getPayloadFile (@Nonnull final File aChannelInboxDir, @Nonnull final String sMessageID)
+  {
+    final File aFile = _getStoredFile (aChannelInboxDir, sMessageID, EXT_PAYLOAD);
+    if (s_aLogger.isDebugEnabled ())
+      s_aLogger.debug ("Getting payload file: " + aFile.getAbsolutePath ());
     return aFile;
   }
 
-  private static void _writeDocumentToFile (@Nonnull final Document aDoc, @Nonnull final File aMessageFile)
+  private static void _writeDocumentToFile (@Nonnull final Document aDoc,
+                                            @Nonnull final File aMessageFile) throws IOException
+  {
+    try (final OutputStream aOS = new FileOutputStream (aMessageFile))
+    {
+      StorageXMLHelper.writeDocument (aDoc, aOS);
+    }
+  }
+
+  /**
+   * Parse a stored file with the document builder of the current thread.
+   *
+   * @param bPayload
+   *        <code>true</code> for a payload file, that may be compressed.
+   * @return <code>null</code> if the file does not exist.
+   */
+  @Nullable
+  private static Document _readDocument (@Nonnull final File aFile, final boolean bPayload) throws SAXException
+  {
+    try (final InputStream aFileIS = new BufferedInputStream (new FileInputStream (aFile),
+                                                              StorageXMLHelper.IO_BUFFER_SIZE);
+         final InputStream aIS = bPayload ? PayloadCompression.getPayloadInputStream (aFileIS) : aFileIS)
+    {
+      return StorageXMLHelper.readDocument (aIS);
+    }
+    catch (final FileNotFoundException ex)
+    {
+      s_aLogger.warn ("Stored file " + aFile.getAbsolutePath () + " does not exist");
+      return null;
+    }
+    catch (final IOException ex)
+    {
+      throw new SAXException ("Failed to read " + aFile.getAbsolutePath (), ex);
+    }
+  }
+
+  /**
+   * Write the passed payload to a file without building another in-memory
+   * representation.
+   */
+  @Nonnegative
+  private long _writePayloadToFile (@Nonnull final Source aSource, @Nonnull final File aMessageFile) throws IOException
   {
-    XMLWriter.writeToStream (aDoc, FileHelper.getOutputStream (aMessageFile));
+    try (final OutputStream aOS = new BufferedOutputStream (new FileOutputStream (aMessageFile),
+                                                            StorageXMLHelper.IO_BUFFER_SIZE))
+    {
+      return m_aCompression.writePayload (aSource, aOS);
+    }
   }
 
+  @Nonnull
+  private static File _getTempFile (@Nonnull final File aFile)
+  {
+    return new File (aFile.getParentFile (), aFile.getName () + EXT_TEMP);
+  }
+
+  /**
+   * Store a new message.
+   *
+   * @param sChannelID
+   *        The channel ID. May not be <code>null</code>.
+   * @param sMessageID
+   *        The message ID. May not be <code>null</code>.
+   * @param aMetadataDocument
+   *        The metadata. May not be <code>null</code>.
+   * @param aPayloadSource
+   *        The payload. It is serialized directly into the payload file
+   *        without an intermediate copy. May not be <code>null</code>.
+   * @throws IOException
+   *         If the files cannot be written
+   */
   public void saveDocument (@Nonnull final String sChannelID,
                             @Nonnull final String sMessageID,
                             @Nonnull final Document aMetadataDocument,
-                            @Nonnull final Document aPayloadDocument) throws IOException
+                            @Nonnull final Source aPayloadSource) throws IOException
   {
     final File aChannelInboxDir = _getChannelInboxDir (sChannelID);
-    final File aMetadataFile = _getMetadataFile (aChannelInboxDir, sMessageID);
-    final File aPayloadFile = _getPayloadFile (aChannelInboxDir, sMessageID);
+    final String sRealMessageID = _removeSpecialChars (sMessageID);
+    final File aMessageDir = _getMessageDir (aChannelInboxDir, sRealMessageID);
+    final File aMetadataFile = new File (aMessageDir, sRealMessageID + EXT_METADATA);
+    final File aPayloadFile = new File (aMessageDir, sRealMessageID + EXT_PAYLOAD);
+
+    final File aTempMetadataFile = _getTempFile (aMetadataFile);
+    final File aTempPayloadFile = _getTempFile (aPayloadFile);
+    // Open the index first - opening it deletes the leftover temporary files
+    final ChannelIndex aIndex = _getChannelIndex (sChannelID);
+    // The directories to sync after the files were renamed
+    final List <Path> aSyncDirs = new ArrayList <> ();
+    aSyncDirs.add (aMessageDir.toPath ());
 
-    if (!aMetadataFile.createNewFile ())
+    // The temporary metadata file acts as the lock for this message ID
+    final boolean bCreated;
+    try
     {
-      s_aLogger.info ("Metadata filename: " + aMetadataFile.getAbsolutePath ());
-      throw new IllegalStateException ("Cannot create new metadata file for message ID " +
-                                       sMessageID +
-                                       " in inbox for channel " +
-                                       sChannelID);
+      if (!aMessageDir.isDirectory ())
+      {
+        // Persist the entries of all directories created here as well, up to
+        // the storage root
+        final File aStoreDir = new File (m_sStorePath);
+        File aDir = aMessageDir;
+        while (!aDir.exists () && !aDir.equals (aStoreDir) && aDir.getParentFile () != null)
+        {
+          aDir = aDir.getParentFile ();
+          aSyncDirs.add (aDir.toPath ());
+        }
+        Files.createDirectories (aMessageDir.toPath ());
+      }
+      bCreated = aIndex.getEntry (sMessageID) == null &&
+                 !aPayloadFile.exists () &&
+                 aTempMetadataFile.createNewFile ();
+    }
+    catch (final IOException ex)
+    {
+      // The channel directory was removed in the meantime
+      _invalidateChannelInboxDir (sChannelID);
+      throw ex;
     }
-    if (!aPayloadFile.createNewFile ())
+    if (!bCreated)
     {
       s_aLogger.info ("Payload filename: " + aPayloadFile.getAbsolutePath ());
-      aMetadataFile.delete ();
-      throw new IllegalStateException ("Cannot create new document file for message ID " +
+      throw new IllegalStateException ("Cannot create new document files for message ID " +
                                        sMessageID +
                                        " in inbox for channel " +
                                        sChannelID);
     }
 
+    boolean bPayloadMoved = false;
+    final long nPayloadSize;
     try
     {
-      _writeDocumentToFile (aMetadataDocument, aMetadataFile);
-      _writeDocumentToFile (aPayloadDocument, aPayloadFile);
+      // Write everything to temporary files first, so that a crash never
+      // leaves a partially written message behind
+      _writeDocumentToFile (aMetadataDocument, aTempMetadataFile);
+      nPayloadSize = _writePayloadToFile (aPayloadSource, aTempPayloadFile);
+      m_aSyncer.sync (aTempMetadataFile.toPath (), aTempPayloadFile.toPath ());
+
+      // The payload file is moved last - its existence marks a complete message
+      Files.move (aTempMetadataFile.toPath (),
+                  aMetadataFile.toPath (),
+                  StandardCopyOption.ATOMIC_MOVE,
+                  StandardCopyOption.REPLACE_EXISTING);
+      Files.move (aTempPayloadFile.toPath (), aPayloadFile.toPath (), StandardCopyOption.ATOMIC_MOVE);
+      bPayloadMoved = true;
+      m_aSyncer.sync (aSyncDirs.toArray (new Path [aSyncDirs.size ()]));
     }
-    catch (final RuntimeException ex)
+    catch (final IOException | RuntimeException ex)
     {
-      FileOperations.deleteFileIfExisting (aMetadataFile);
-      FileOperations.deleteFileIfExisting (aPayloadFile);
+      FileOperations.deleteFileIfExisting (aTempMetadataFile);
+      FileOperations.deleteFileIfExisting (aTempPayloadFile);
+      if (!bPayloadMoved)
+        FileOperations.deleteFileIfExisting (aMetadataFile);
+      if (!aChannelInboxDir.isDirectory ())
+        _invalidateChannelInboxDir (sChannelID);
       throw ex;
     }
+    final long nCreationMillis = aPayloadFile.lastModified ();
+    aIndex.add (sMessageID, nPayloadSize, nCreationMillis);
+    m_aExpiryQueue.add (sChannelID, sMessageID, nCreationMillis + getRetentionMillis (sChannelID));
   }
 
   public void deleteDocument (@Nullable final String sChannelID, @Nullable final String sMessageID)
@@ -185,47 +711,45 @@ public final class LimeStorage
     if (sChannelID != null && sMessageID != null)
     {
       final File aChannelInboxDir = _getChannelInboxDir (sChannelID);
-      final File aMetadataFile = _getMetadataFile (aChannelInboxDir, sMessageID);
-      final File aPayloadFile = _getPayloadFile (aChannelInboxDir, sMessageID);
-
-      final boolean bMetadataFileExists = aMetadataFile.exists ();
-      final boolean bPayloadFileExists = aPayloadFile.exists ();
-      if (bMetadataFileExists && bPayloadFileExists)
+      synchronized (_getMessageLock (_removeSpecialChars (sMessageID)))
       {
-        FileOperations.deleteFile (aMetadataFile);
-        FileOperations.deleteFile (aPayloadFile);
-      }
-      else
-        if (bMetadataFileExists)
+        final File aMetadataFile = _getMetadataFile (aChannelInboxDir, sMessageID);
+        final File aPayloadFile = _getPayloadFile (aChannelInboxDir, sMessageID);
+
+        final boolean bMetadataFileExists = aMetadataFile.exists ();
+        final boolean bPayloadFileExists = aPayloadFile.exists ();
+        if (bMetadataFileExists && bPayloadFileExists)
         {
-          s_aLogger.warn ("Only the metadata file exists. Payload file " + aPayloadFile + " is missing");
           FileOperations.deleteFile (aMetadataFile);
+          FileOperations.deleteFile (aPayloadFile);
         }
         else
-          if (bPayloadFileExists)
+          if (bMetadataFileExists)
           {
-            s_aLogger.warn ("Only the payload file exists. Metadata file " + aMetadataFile + " is missing");
-            FileOperations.deleteFile (aPayloadFile);
+            s_aLogger.warn ("Only the metadata file exists. Payload file " + aPayloadFile + " is missing");
+            FileOperations.deleteFile (aMetadataFile);
           }
-      // else none of the files exist
+          else
+            if (bPayloadFileExists)
+            {
+              s_aLogger.warn ("Only the payload file exists. Metadata file " + aMetadataFile + " is missing");
+              FileOperations.deleteFile (aPayloadFile);
+            }
+        // else none of the files exist
+      }
+      _getChannelIndex (sChannelID).remove (sMessageID);
     }
   }
 
   @Nonnull
   public String [] getMessageIDs (@Nonnull final String sChannelID)
   {
+    // Read-only: expired messages are skipped and deleted in the background
     final List <String> ret = new ArrayList <> ();
-    final File aChannnelDir = _getChannelInboxDir (sChannelID);
-    for (final File aPayloadFile : new FileSystemIterator (aChannnelDir))
-      if (aPayloadFile.isFile () && aPayloadFile.getName ().endsWith (EXT_PAYLOAD))
-      {
-        final String sMsgID = _getMessageIDFromPayloadFile (aPayloadFile);
-
-        if ((System.currentTimeMillis () - aPayloadFile.lastModified ()) > MESSAGE_INVALID_TIME_IN_MILLIS)
-          deleteDocument (sChannelID, sMsgID);
-        else
-          ret.add (sMsgID);
-      }
+    final long nMinCreationMillis = System.currentTimeMillis () - getRetentionMillis (sChannelID);
+    for (final ChannelIndex.IndexEntry aEntry : _getChannelIndex (sChannelID).getAllEntries ())
+      if (aEntry.getCreationMillis () >= nMinCreationMillis)
+        ret.add (aEntry.getMessageID ());
     return ret.toArray (new String [ret.size ()]);
   }
 
@@ -234,23 +758,32 @@ public final class LimeStorage
                                        @Nonnull final String sMessageID) throws SAXException
   {
     final File aChannelInboxDir = _getChannelInboxDir (sChannelID);
-    final File aMetadataFile = _getMetadataFile (aChannelInboxDir, sMessageID);
-    return DOMReader.readXMLDOM (aMetadataFile);
+    synchronized (_getMessageLock (_removeSpecialChars (sMessageID)))
+    {
+      final File aMetadataFile = _getMetadataFile (aChannelInboxDir, sMessageID);
+      return _readDocument (aMetadataFile, false);
+    }
   }
 
   @Nullable
   public Document getDocument (@Nonnull final String sChannelID, final String sMessageID) throws SAXException
   {
     final File aChannelInboxDir = _getChannelInboxDir (sChannelID);
-    final File aPayloadFile = _getPayloadFile (aChannelInboxDir, sMessageID);
-    return DOMReader.readXMLDOM (aPayloadFile);
+    synchronized (_getMessageLock (_removeSpecialChars (sMessageID)))
+    {
+      final File aPayloadFile = _getPayloadFile (aChannelInboxDir, sMessageID);
+      return _readDocument (aPayloadFile, true);
+    }
   }
 
   public long getSize (@Nonnull final String sChannelID, final String sMessageID)
   {
-    final File aChannelInboxDir = _getChannelInboxDir (sChannelID);
-    final File aPayloadFile = _getPayloadFile (aChannelInboxDir, sMessageID);
-    final long nFileLength = aPayloadFile.length ();
+    final ChannelIndex.IndexEntry aEntry = _getChannelIndex (sChannelID).getEntry (sMessageID);
+    final long nFileLength;
+    if (aEntry != null)
+      nFileLength = aEntry.getSize ();
+    else
+      nFileLength = getPayloadSize (_getPayloadFile (_getChannelInboxDir (sChannelID), sMessageID));
     // calculate length in Kilobytes and round up
     final long nFileLengthInKB = (nFileLength + CGlobal.BYTES_PER_KILOBYTE_LONG - 1) / CGlobal.BYTES_PER_KILOBYTE_LONG;
     return nFileLengthInKB;
@@ -259,6 +792,9 @@ public final class LimeStorage
   @Nonnull
   public LocalDateTime getCreationTime (@Nonnull final String sChannelID, final String sMessageID)
   {
+    final ChannelIndex.IndexEntry aEntry = _getChannelIndex (sChannelID).getEntry (sMessageID);
+    if (aEntry != null)
+      return PDTFactory.createLocalDateTime (aEntry.getCreationMillis ());
     final File aChannelInboxDir = _getChannelInboxDir (sChannelID);
     final File aPayloadFile = _getPayloadFile (aChannelInboxDir, sMessageID);
     return PDTFactory.createLocalDateTime (aPayloadFile.lastModified ());
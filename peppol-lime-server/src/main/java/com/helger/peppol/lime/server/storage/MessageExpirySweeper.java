@@ -0,0 +1,142 @@
+/**
+ * Copyright (C) 2015-2016 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Version: MPL 1.1/EUPL 1.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at:
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is Copyright The PEPPOL project (http://www.peppol.eu)
+ *
+ * Alternatively, the contents of this file may be used under the
+ * terms of the EUPL, Version 1.1 or - as soon they will be approved
+ * by the European Commission - subsequent versions of the EUPL
+ * (the "Licence"); You may not use this work except in compliance
+ * with the Licence.
+ * You may obtain a copy of the Licence at:
+ * http://joinup.ec.europa.eu/software/page/eupl/licence-eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ *
+ * If you wish to allow use of your version of this file only
+ * under the terms of the EUPL License and not to allow others to use
+ * your version of this file under the MPL, indicate your decision by
+ * deleting the provisions above and replace them with the notice and
+ * other provisions required by the EUPL License. If you do not delete
+ * the provisions above, a recipient may use your version of this file
+ * under either the MPL or the EUPL License.
+ */
+package com.helger.peppol.lime.server.storage;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+import javax.annotation.concurrent.ThreadSafe;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.helger.commons.ValueEnforcer;
+import com.helger.commons.string.ToStringGenerator;
+
+/**
+ * Deletes the expired messages of an {@link ILimeStorage} in the background.
+ * Once per second at most a configurable number of messages is deleted, so
+ * that the deletion does not compete with storing new messages.
+ *
+ * @author Philip Helger
+ */
+@ThreadSafe
+public final class MessageExpirySweeper
+{
+  private static final Logger s_aLogger = LoggerFactory.getLogger (MessageExpirySweeper.class);
+
+  private final ILimeStorage m_aStorage;
+  private final int m_nMaxDeletesPerSecond;
+  private final ScheduledExecutorService m_aExecutor;
+
+  /**
+   * Constructor. Opens all channels of the storage and starts sweeping.
+   *
+   * @param aStorage
+   *        The storage to sweep. May not be <code>null</code>.
+   * @param nMaxDeletesPerSecond
+   *        The maximum number of messages to delete per second. Must be &gt;
+   *        0.
+   */
+  public MessageExpirySweeper (@Nonnull final ILimeStorage aStorage, @Nonnegative final int nMaxDeletesPerSecond)
+  {
+    ValueEnforcer.notNull (aStorage, "Storage");
+    ValueEnforcer.isGT0 (nMaxDeletesPerSecond, "MaxDeletesPerSecond");
+    m_aStorage = aStorage;
+    m_nMaxDeletesPerSecond = nMaxDeletesPerSecond;
+
+    // Make sure the messages of all channels are scheduled for expiry
+    aStorage.openAllChannels ();
+
+    m_aExecutor = Executors.newSingleThreadScheduledExecutor (r -> {
+      final Thread t = new Thread (r, "lime-expiry-sweeper");
+      t.setDaemon (true);
+      return t;
+    });
+    m_aExecutor.scheduleWithFixedDelay (this::_sweep, 1, 1, TimeUnit.SECONDS);
+  }
+
+  private void _sweep ()
+  {
+    try
+    {
+      final int nDeleted = m_aStorage.expireMessages (System.currentTimeMillis (), m_nMaxDeletesPerSecond);
+      if (nDeleted > 0)
+        s_aLogger.info ("Deleted " + nDeleted + " expired message(s)");
+    }
+    catch (final RuntimeException ex)
+    {
+      // Keep the sweeper running
+      s_aLogger.error ("Failed to delete expired messages", ex);
+    }
+  }
+
+  /**
+   * Stop sweeping.
+   *
+   * @param nTimeoutMillis
+   *        The maximum milliseconds to wait for a running sweep to finish.
+   */
+  public void shutdown (@Nonnegative final long nTimeoutMillis)
+  {
+    m_aExecutor.shutdown ();
+    try
+    {
+      if (!m_aExecutor.awaitTermination (nTimeoutMillis, TimeUnit.MILLISECONDS))
+        s_aLogger.warn ("Expiry sweeper did not terminate within " + nTimeoutMillis + " ms");
+    }
+    catch (final InterruptedException ex)
+    {
+      Thread.currentThread ().interrupt ();
+    }
+  }
+
+  @Override
+  public String toString ()
+  {
+    return new ToStringGenerator (this).append ("storage", m_aStorage)
+                                       .append ("maxDeletesPerSecond", m_nMaxDeletesPerSecond)
+                                       .getToString ();
+  }
+}
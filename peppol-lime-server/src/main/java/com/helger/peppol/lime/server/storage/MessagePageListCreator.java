@@ -86,7 +86,7 @@ public final class MessagePageListCreator
   private static void _addPageListEntries (@Nonnegative final int nFromIndex,
                                            @Nonnegative final int nToIndex,
                                            @Nonnull final String [] aMessageIDs,
-                                           @Nonnull final LimeStorage aStorage,
+                                           @Nonnull final ILimeStorage aStorage,
                                            @Nonnull final String sChannelID,
                                            @Nonnull final String sEndpoint,
                                            @Nonnull final PageListType aPageList)
@@ -155,7 +155,7 @@ public final class MessagePageListCreator
   @Nullable
   public static Document getPageList (@Nonnegative final int nPageNum,
                                       @Nonnull final String sEndpointURL,
-                                      @Nonnull final LimeStorage aStorage,
+                                      @Nonnull final ILimeStorage aStorage,
                                       @Nonnull final String sChannelID) throws JAXBException
   {
     // Get all message IDs
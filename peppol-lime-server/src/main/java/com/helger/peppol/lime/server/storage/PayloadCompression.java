@@ -0,0 +1,295 @@
+/**
+ * Copyright (C) 2015-2016 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Version: MPL 1.1/EUPL 1.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at:
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is Copyright The PEPPOL project (http://www.peppol.eu)
+ *
+ * Alternatively, the contents of this file may be used under the
+ * terms of the EUPL, Version 1.1 or - as soon they will be approved
+ * by the European Commission - subsequent versions of the EUPL
+ * (the "Licence"); You may not use this work except in compliance
+ * with the Licence.
+ * You may obtain a copy of the Licence at:
+ * http://joinup.ec.europa.eu/software/page/eupl/licence-eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ *
+ * If you wish to allow use of your version of this file only
+ * under the terms of the EUPL License and not to allow others to use
+ * your version of this file under the MPL, indicate your decision by
+ * deleting the provisions above and replace them with the notice and
+ * other provisions required by the EUPL License. If you do not delete
+ * the provisions above, a recipient may use your version of this file
+ * under either the MPL or the EUPL License.
+ */
+package com.helger.peppol.lime.server.storage;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PushbackInputStream;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+import javax.annotation.concurrent.Immutable;
+import javax.xml.transform.Source;
+
+import com.helger.commons.ValueEnforcer;
+import com.helger.commons.io.stream.CountingOutputStream;
+import com.helger.commons.string.ToStringGenerator;
+
+/**
+ * Compresses stored payloads. A compressed payload starts with a 4 byte marker
+ * (<code>0x00 'L' 'Z' &lt;algorithm&gt;</code>), which can never start an XML
+ * document written by the storage. Therefore uncompressed payloads stored
+ * before compression was enabled can still be read, and the compression can be
+ * changed at any time.
+ *
+ * @author Philip Helger
+ */
+@Immutable
+public final class PayloadCompression
+{
+  /** No compression */
+  public static final PayloadCompression NONE = new PayloadCompression (EStorageCompression.NONE,
+                                                                        Deflater.DEFAULT_COMPRESSION);
+
+  private static final byte [] MARKER_PREFIX = new byte [] { 0, 'L', 'Z' };
+  private static final int MARKER_LENGTH = MARKER_PREFIX.length + 1;
+
+  /**
+   * A GZIP stream with a configurable compression level.
+   */
+  private static final class LevelGZIPOutputStream extends GZIPOutputStream
+  {
+    LevelGZIPOutputStream (@Nonnull final OutputStream aOS, final int nLevel) throws IOException
+    {
+      super (aOS, StorageXMLHelper.IO_BUFFER_SIZE);
+      def.setLevel (nLevel);
+    }
+
+    @Nonnull
+    Deflater getDeflater ()
+    {
+      return def;
+    }
+  }
+
+  private final EStorageCompression m_eCompression;
+  private final int m_nLevel;
+
+  /**
+   * Constructor
+   *
+   * @param eCompression
+   *        The compression algorithm. May not be <code>null</code>.
+   * @param nLevel
+   *        The compression level from 1 (fastest) to 9 (best) or -1 for the
+   *        default level.
+   */
+  public PayloadCompression (@Nonnull final EStorageCompression eCompression, final int nLevel)
+  {
+    ValueEnforcer.notNull (eCompression, "Compression");
+    ValueEnforcer.isTrue (nLevel == Deflater.DEFAULT_COMPRESSION ||
+                          (nLevel >= Deflater.BEST_SPEED && nLevel <= Deflater.BEST_COMPRESSION),
+                          "Compression level must be between 1 and 9 or -1");
+    m_eCompression = eCompression;
+    m_nLevel = nLevel;
+  }
+
+  @Nonnull
+  public EStorageCompression getCompression ()
+  {
+    return m_eCompression;
+  }
+
+  public int getLevel ()
+  {
+    return m_nLevel;
+  }
+
+  /**
+   * Write the passed payload, compressed if configured.
+   *
+   * @param aSource
+   *        The payload. May not be <code>null</code>.
+   * @param aOS
+   *        The output stream to write to. Is flushed but not closed. May not be
+   *        <code>null</code>.
+   * @return The uncompressed size of the payload in bytes.
+   * @throws IOException
+   *         If writing fails
+   */
+  @Nonnegative
+  long writePayload (@Nonnull final Source aSource, @Nonnull final OutputStream aOS) throws IOException
+  {
+    if (m_eCompression == EStorageCompression.NONE)
+    {
+      final CountingOutputStream aCOS = new CountingOutputStream (aOS);
+      StorageXMLHelper.writeSource (aSource, aCOS);
+      return aCOS.getBytesWritten ();
+    }
+
+    aOS.write (MARKER_PREFIX);
+    aOS.write (m_eCompression.getMarkerID ());
+    final DeflaterOutputStream aDOS;
+    final Deflater aDeflater;
+    if (m_eCompression == EStorageCompression.GZIP)
+    {
+      final LevelGZIPOutputStream aGZOS = new LevelGZIPOutputStream (aOS, m_nLevel);
+      aDOS = aGZOS;
+      aDeflater = aGZOS.getDeflater ();
+    }
+    else
+    {
+      aDeflater = new Deflater (m_nLevel);
+      aDOS = new DeflaterOutputStream (aOS, aDeflater, StorageXMLHelper.IO_BUFFER_SIZE);
+    }
+    try
+    {
+      final CountingOutputStream aCOS = new CountingOutputStream (aDOS);
+      StorageXMLHelper.writeSource (aSource, aCOS);
+      aDOS.finish ();
+      aOS.flush ();
+      return aCOS.getBytesWritten ();
+    }
+    finally
+    {
+      // Release the native memory without closing the target stream
+      aDeflater.end ();
+    }
+  }
+
+  /**
+   * Get a stream that reads the passed stored payload. Compressed payloads are
+   * decompressed, uncompressed payloads are returned as they are.
+   *
+   * @param aIS
+   *        The stored payload. May not be <code>null</code>.
+   * @return The uncompressed payload. Closing it closes the passed stream.
+   * @throws IOException
+   *         If reading the marker fails
+   */
+  @Nonnull
+  static InputStream getPayloadInputStream (@Nonnull final InputStream aIS) throws IOException
+  {
+    final PushbackInputStream aPIS = new PushbackInputStream (aIS, MARKER_LENGTH);
+    return _getUncompressedInputStream (aPIS, _readMarker (aPIS));
+  }
+
+  @Nonnull
+  private static InputStream _getUncompressedInputStream (@Nonnull final InputStream aIS,
+                                                          @Nonnull final EStorageCompression eCompression) throws IOException
+  {
+    if (eCompression == EStorageCompression.GZIP)
+      return new GZIPInputStream (aIS, StorageXMLHelper.IO_BUFFER_SIZE);
+    if (eCompression == EStorageCompression.DEFLATE)
+      return new InflaterInputStream (aIS, new Inflater (), StorageXMLHelper.IO_BUFFER_SIZE)
+      {
+        @Override
+        public void close () throws IOException
+        {
+          super.close ();
+          inf.end ();
+        }
+      };
+    return aIS;
+  }
+
+  /**
+   * Get the uncompressed size of a stored payload file. Only compressed
+   * payloads are read completely.
+   *
+   * @param aFile
+   *        The stored payload file. May not be <code>null</code>.
+   * @return The uncompressed size in bytes.
+   * @throws IOException
+   *         If reading the file fails
+   */
+  @Nonnegative
+  static long getUncompressedSize (@Nonnull final File aFile) throws IOException
+  {
+    try (final PushbackInputStream aPIS = new PushbackInputStream (new BufferedInputStream (new FileInputStream (aFile),
+                                                                                            StorageXMLHelper.IO_BUFFER_SIZE),
+                                                                   MARKER_LENGTH))
+    {
+      final EStorageCompression eCompression = _readMarker (aPIS);
+      if (eCompression == EStorageCompression.NONE)
+        return aFile.length ();
+
+      try (final InputStream aIS = _getUncompressedInputStream (aPIS, eCompression))
+      {
+        final byte [] aBuffer = new byte [StorageXMLHelper.IO_BUFFER_SIZE];
+        long ret = 0;
+        int n;
+        while ((n = aIS.read (aBuffer)) >= 0)
+          ret += n;
+        return ret;
+      }
+    }
+  }
+
+  /**
+   * Read the compression marker. If the payload is not compressed, the read
+   * bytes are pushed back.
+   *
+   * @return The compression of the payload. Never <code>null</code>.
+   */
+  @Nonnull
+  private static EStorageCompression _readMarker (@Nonnull final PushbackInputStream aPIS) throws IOException
+  {
+    final byte [] aMarker = new byte [MARKER_LENGTH];
+    int nRead = 0;
+    int n;
+    while (nRead < MARKER_LENGTH && (n = aPIS.read (aMarker, nRead, MARKER_LENGTH - nRead)) >= 0)
+      nRead += n;
+
+    if (nRead == MARKER_LENGTH &&
+        aMarker[0] == MARKER_PREFIX[0] &&
+        aMarker[1] == MARKER_PREFIX[1] &&
+        aMarker[2] == MARKER_PREFIX[2])
+    {
+      final EStorageCompression eCompression = EStorageCompression.getFromMarkerIDOrNull (aMarker[3]);
+      if (eCompression == null)
+        throw new IOException ("Unsupported payload compression " + aMarker[3]);
+      return eCompression;
+    }
+
+    // Not compressed
+    aPIS.unread (aMarker, 0, nRead);
+    return EStorageCompression.NONE;
+  }
+
+  @Override
+  public String toString ()
+  {
+    return new ToStringGenerator (this).append ("compression", m_eCompression)
+                                       .append ("level", m_nLevel)
+                                       .getToString ();
+  }
+}
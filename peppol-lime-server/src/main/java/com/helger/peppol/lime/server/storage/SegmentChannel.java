@@ -0,0 +1,815 @@
+/**
+ * Copyright (C) 2015-2016 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Version: MPL 1.1/EUPL 1.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at:
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is Copyright The PEPPOL project (http://www.peppol.eu)
+ *
+ * Alternatively, the contents of this file may be used under the
+ * terms of the EUPL, Version 1.1 or - as soon they will be approved
+ * by the European Commission - subsequent versions of the EUPL
+ * (the "Licence"); You may not use this work except in compliance
+ * with the Licence.
+ * You may obtain a copy of the Licence at:
+ * http://joinup.ec.europa.eu/software/page/eupl/licence-eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ *
+ * If you wish to allow use of your version of this file only
+ * under the terms of the EUPL License and not to allow others to use
+ * your version of this file under the MPL, indicate your decision by
+ * deleting the provisions above and replace them with the notice and
+ * other provisions required by the EUPL License. If you do not delete
+ * the provisions above, a recipient may use your version of this file
+ * under either the MPL or the EUPL License.
+ */
+package com.helger.peppol.lime.server.storage;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.zip.CRC32;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.Immutable;
+import javax.annotation.concurrent.ThreadSafe;
+import javax.xml.transform.Source;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.w3c.dom.Document;
+
+import com.helger.commons.ValueEnforcer;
+import com.helger.commons.string.ToStringGenerator;
+
+/**
+ * The messages of a single channel, stored as records in append-only segment
+ * files (<code>&lt;number&gt;.segment</code>) inside the channel directory.
+ * Each record consists of a header (type, message ID, creation time,
+ * uncompressed payload size, metadata length and payload length), the
+ * metadata, the payload and a CRC32 of metadata and payload. The sizes are
+ * written last, so a record torn by a crash is detected and truncated when the
+ * channel is opened. Deleting a message appends a tombstone record.
+ * <p>
+ * The location of all messages is kept in memory. Compaction copies the live
+ * records of the oldest segment to the active segment and deletes the oldest
+ * segment. Only the oldest segment is compacted, so its tombstones can never
+ * refer to a message in an older segment.
+ *
+ * @author Philip Helger
+ */
+@ThreadSafe
+final class SegmentChannel
+{
+  /** Filename extension of the segment files */
+  static final String SEGMENT_EXTENSION = ".segment";
+
+  private static final Logger s_aLogger = LoggerFactory.getLogger (SegmentChannel.class);
+  private static final byte TYPE_PUT = 1;
+  private static final byte TYPE_DELETE = 2;
+  /**
+   * Type, ID length, creation time, uncompressed payload size, metadata length
+   * and payload length
+   */
+  private static final int FIXED_HEADER_SIZE = 1 + 2 + 8 + 8 + 4 + 4;
+  /** Uncompressed payload size, metadata length and payload length */
+  private static final int SIZES_LENGTH = 8 + 4 + 4;
+  private static final int CRC_SIZE = 4;
+  /** The oldest segment is compacted if less than this fraction is alive */
+  private static final double COMPACT_LIVE_RATIO = 0.5;
+
+  private static final class Segment
+  {
+    private final long m_nNumber;
+    private final Path m_aPath;
+    private final FileChannel m_aChannel;
+    private long m_nSize;
+    private long m_nLiveBytes = 0;
+
+    Segment (final long nNumber, @Nonnull final Path aPath, @Nonnull final FileChannel aChannel) throws IOException
+    {
+      m_nNumber = nNumber;
+      m_aPath = aPath;
+      m_aChannel = aChannel;
+      m_nSize = aChannel.size ();
+    }
+  }
+
+  /**
+   * The location of a single stored message.
+   *
+   * @author Philip Helger
+   */
+  @Immutable
+  static final class Record
+  {
+    private final Segment m_aSegment;
+    private final long m_nOffset;
+    private final int m_nHeaderLength;
+    private final int m_nMetadataLength;
+    private final int m_nPayloadLength;
+    private final long m_nPayloadSize;
+    private final long m_nCreationMillis;
+
+    Record (@Nonnull final Segment aSegment,
+            final long nOffset,
+            final int nHeaderLength,
+            final int nMetadataLength,
+            final int nPayloadLength,
+            final long nPayloadSize,
+            final long nCreationMillis)
+    {
+      m_aSegment = aSegment;
+      m_nOffset = nOffset;
+      m_nHeaderLength = nHeaderLength;
+      m_nMetadataLength = nMetadataLength;
+      m_nPayloadLength = nPayloadLength;
+      m_nPayloadSize = nPayloadSize;
+      m_nCreationMillis = nCreationMillis;
+    }
+
+    long getLength ()
+    {
+      return (long) m_nHeaderLength + m_nMetadataLength + m_nPayloadLength + CRC_SIZE;
+    }
+
+    /**
+     * @return The uncompressed payload size in bytes.
+     */
+    @Nonnegative
+    long getPayloadSize ()
+    {
+      return m_nPayloadSize;
+    }
+
+    /**
+     * @return The creation time of the message in milliseconds.
+     */
+    long getCreationMillis ()
+    {
+      return m_nCreationMillis;
+    }
+
+    @Nonnull
+    Record getMovedTo (@Nonnull final Segment aSegment, final long nOffset)
+    {
+      return new Record (aSegment,
+                         nOffset,
+                         m_nHeaderLength,
+                         m_nMetadataLength,
+                         m_nPayloadLength,
+                         m_nPayloadSize,
+                         m_nCreationMillis);
+    }
+  }
+
+  /**
+   * Writes to a file channel at an explicit position and updates a checksum.
+   */
+  private static final class ChannelOutputStream extends OutputStream
+  {
+    private final FileChannel m_aChannel;
+    private final CRC32 m_aCRC;
+    private long m_nPosition;
+
+    ChannelOutputStream (@Nonnull final FileChannel aChannel, final long nPosition, @Nonnull final CRC32 aCRC)
+    {
+      m_aChannel = aChannel;
+      m_nPosition = nPosition;
+      m_aCRC = aCRC;
+    }
+
+    @Override
+    public void write (final int b) throws IOException
+    {
+      write (new byte [] { (byte) b }, 0, 1);
+    }
+
+    @Override
+    public void write (final byte [] aBytes, final int nOfs, final int nLen) throws IOException
+    {
+      m_aCRC.update (aBytes, nOfs, nLen);
+      _writeFully (m_aChannel, ByteBuffer.wrap (aBytes, nOfs, nLen), m_nPosition);
+      m_nPosition += nLen;
+    }
+  }
+
+  private final File m_aDir;
+  private final long m_nMaxSegmentSize;
+  private final StorageSyncer m_aSyncer;
+  private final PayloadCompression m_aCompression;
+  private final ReadWriteLock m_aRWLock = new ReentrantReadWriteLock ();
+  // Guarded by m_aRWLock
+  private final TreeMap <Long, Segment> m_aSegments = new TreeMap <> ();
+  private final Map <String, Record> m_aRecords = new LinkedHashMap <> ();
+
+  private SegmentChannel (@Nonnull final File aDir,
+                          @Nonnegative final long nMaxSegmentSize,
+                          @Nonnull final StorageSyncer aSyncer,
+                          @Nonnull final PayloadCompression aCompression)
+  {
+    m_aDir = aDir;
+    m_nMaxSegmentSize = nMaxSegmentSize;
+    m_aSyncer = aSyncer;
+    m_aCompression = aCompression;
+  }
+
+  /**
+   * Open the segments of the passed channel directory.
+   *
+   * @param aChannelDir
+   *        The existing channel directory. May not be <code>null</code>.
+   * @param nMaxSegmentSize
+   *        The size in bytes after which a new segment is started.
+   * @param aSyncer
+   *        The syncer for appended messages. May not be <code>null</code>.
+   * @param aCompression
+   *        The compression of appended payloads. May not be <code>null</code>.
+   * @return The opened channel. Never <code>null</code>.
+   * @throws IOException
+   *         If the segments cannot be opened
+   */
+  @Nonnull
+  static SegmentChannel open (@Nonnull final File aChannelDir,
+                              @Nonnegative final long nMaxSegmentSize,
+                              @Nonnull final StorageSyncer aSyncer,
+                              @Nonnull final PayloadCompression aCompression) throws IOException
+  {
+    ValueEnforcer.notNull (aChannelDir, "ChannelDir");
+    ValueEnforcer.isGT0 (nMaxSegmentSize, "MaxSegmentSize");
+    ValueEnforcer.notNull (aSyncer, "Syncer");
+    ValueEnforcer.notNull (aCompression, "Compression");
+    final SegmentChannel ret = new SegmentChannel (aChannelDir, nMaxSegmentSize, aSyncer, aCompression);
+    ret.m_aRWLock.writeLock ().lock ();
+    try
+    {
+      ret._load ();
+    }
+    catch (final IOException ex)
+    {
+      ret._closeAll ();
+      throw ex;
+    }
+    finally
+    {
+      ret.m_aRWLock.writeLock ().unlock ();
+    }
+    return ret;
+  }
+
+  private void _load () throws IOException
+  {
+    final File [] aFiles = m_aDir.listFiles ( (d, n) -> n.endsWith (SEGMENT_EXTENSION));
+    if (aFiles != null)
+      for (final File aFile : aFiles)
+      {
+        final String sName = aFile.getName ();
+        try
+        {
+          final long nNumber = Long.parseLong (sName.substring (0, sName.length () - SEGMENT_EXTENSION.length ()));
+          final Path aPath = aFile.toPath ();
+          m_aSegments.put (Long.valueOf (nNumber),
+                           new Segment (nNumber,
+                                        aPath,
+                                        FileChannel.open (aPath, StandardOpenOption.READ, StandardOpenOption.WRITE)));
+        }
+        catch (final NumberFormatException ex)
+        {
+          s_aLogger.warn ("Ignoring unexpected file " + aFile.getAbsolutePath ());
+        }
+      }
+
+    for (final Segment aSegment : m_aSegments.values ())
+      _replay (aSegment, aSegment == m_aSegments.lastEntry ().getValue ());
+
+    if (m_aSegments.isEmpty ())
+      _createSegment (1);
+
+    // Compaction moves records, so restore the creation order
+    final List <Map.Entry <String, Record>> aSorted = new ArrayList <> (m_aRecords.entrySet ());
+    aSorted.sort ( (a, b) -> Long.compare (a.getValue ().m_nCreationMillis, b.getValue ().m_nCreationMillis));
+    m_aRecords.clear ();
+    for (final Map.Entry <String, Record> aEntry : aSorted)
+      m_aRecords.put (aEntry.getKey (), aEntry.getValue ());
+  }
+
+  private static void _skipFully (@Nonnull final InputStream aIS, final long nBytes) throws IOException
+  {
+    long nRemaining = nBytes;
+    while (nRemaining > 0)
+    {
+      final long nSkipped = aIS.skip (nRemaining);
+      if (nSkipped <= 0)
+        throw new EOFException ();
+      nRemaining -= nSkipped;
+    }
+  }
+
+  /**
+   * Read all records of a segment. Checksums are only verified for the active
+   * segment, because only it can contain records torn by a crash.
+   */
+  private void _replay (@Nonnull final Segment aSegment, final boolean bActive) throws IOException
+  {
+    final byte [] aBuffer = new byte [StorageXMLHelper.IO_BUFFER_SIZE];
+    long nPos = 0;
+    try (final DataInputStream aDIS = new DataInputStream (new BufferedInputStream (Files.newInputStream (aSegment.m_aPath),
+                                                                                    StorageXMLHelper.IO_BUFFER_SIZE)))
+    {
+      int nType;
+      while ((nType = aDIS.read ()) >= 0)
+      {
+        try
+        {
+          final byte [] aID = new byte [aDIS.readUnsignedShort ()];
+          aDIS.readFully (aID);
+          final long nCreationMillis = aDIS.readLong ();
+          final long nPayloadSize = aDIS.readLong ();
+          final int nMetadataLength = aDIS.readInt ();
+          final int nPayloadLength = aDIS.readInt ();
+          if ((nType != TYPE_PUT && nType != TYPE_DELETE) ||
+              nPayloadSize < 0 ||
+              nMetadataLength < 0 ||
+              nPayloadLength < 0)
+            throw new IOException ("Invalid record header");
+          final Record aRecord = new Record (aSegment,
+                                             nPos,
+                                             FIXED_HEADER_SIZE + aID.length,
+                                             nMetadataLength,
+                                             nPayloadLength,
+                                             nPayloadSize,
+                                             nCreationMillis);
+          if (nPos + aRecord.getLength () > aSegment.m_nSize)
+            throw new EOFException ();
+
+          final long nDataLength = (long) nMetadataLength + nPayloadLength;
+          if (bActive)
+          {
+            final CRC32 aCRC = new CRC32 ();
+            long nRemaining = nDataLength;
+            while (nRemaining > 0)
+            {
+              final int nRead = (int) Math.min (nRemaining, aBuffer.length);
+              aDIS.readFully (aBuffer, 0, nRead);
+              aCRC.update (aBuffer, 0, nRead);
+              nRemaining -= nRead;
+            }
+            if (aDIS.readInt () != (int) aCRC.getValue ())
+              throw new IOException ("Checksum mismatch");
+          }
+          else
+            _skipFully (aDIS, nDataLength + CRC_SIZE);
+
+          final String sMessageID = new String (aID, StandardCharsets.UTF_8);
+          if (nType == TYPE_PUT)
+          {
+            _removeRecord (sMessageID);
+            m_aRecords.put (sMessageID, aRecord);
+            aSegment.m_nLiveBytes += aRecord.getLength ();
+          }
+          else
+            _removeRecord (sMessageID);
+          nPos += aRecord.getLength ();
+        }
+        catch (final IOException ex)
+        {
+          if (!bActive)
+          {
+            s_aLogger.error ("Segment " + aSegment.m_aPath + " is corrupt at offset " + nPos + " - ignoring the rest",
+                             ex);
+            return;
+          }
+          s_aLogger.warn ("Truncating incomplete record at offset " + nPos + " of segment " + aSegment.m_aPath, ex);
+          break;
+        }
+      }
+    }
+    if (bActive && nPos < aSegment.m_nSize)
+    {
+      aSegment.m_aChannel.truncate (nPos);
+      aSegment.m_nSize = nPos;
+    }
+  }
+
+  @Nullable
+  private Record _removeRecord (@Nonnull final String sMessageID)
+  {
+    final Record aOld = m_aRecords.remove (sMessageID);
+    if (aOld != null)
+      aOld.m_aSegment.m_nLiveBytes -= aOld.getLength ();
+    return aOld;
+  }
+
+  @Nonnull
+  private Segment _createSegment (final long nNumber) throws IOException
+  {
+    final Path aPath = new File (m_aDir, String.format ("%012d", Long.valueOf (nNumber)) + SEGMENT_EXTENSION).toPath ();
+    final Segment ret = new Segment (nNumber,
+                                     aPath,
+                                     FileChannel.open (aPath,
+                                                       StandardOpenOption.CREATE_NEW,
+                                                       StandardOpenOption.READ,
+                                                       StandardOpenOption.WRITE));
+    m_aSegments.put (Long.valueOf (nNumber), ret);
+    m_aSyncer.sync (m_aDir.toPath ());
+    return ret;
+  }
+
+  @Nonnull
+  private Segment _getActiveSegment () throws IOException
+  {
+    final Segment ret = m_aSegments.lastEntry ().getValue ();
+    if (ret.m_nSize < m_nMaxSegmentSize)
+      return ret;
+    return _createSegment (ret.m_nNumber + 1);
+  }
+
+  private static void _writeFully (@Nonnull final FileChannel aChannel,
+                                   @Nonnull final ByteBuffer aBuffer,
+                                   final long nPosition) throws IOException
+  {
+    long nPos = nPosition;
+    while (aBuffer.hasRemaining ())
+      nPos += aChannel.write (aBuffer, nPos);
+  }
+
+  private static void _readFully (@Nonnull final FileChannel aChannel,
+                                  @Nonnull final ByteBuffer aBuffer,
+                                  final long nPosition) throws IOException
+  {
+    long nPos = nPosition;
+    while (aBuffer.hasRemaining ())
+    {
+      final int nRead = aChannel.read (aBuffer, nPos);
+      if (nRead < 0)
+        throw new EOFException ();
+      nPos += nRead;
+    }
+  }
+
+  @Nonnull
+  private static ByteBuffer _createHeader (final byte nType,
+                                           @Nonnull final byte [] aID,
+                                           final long nCreationMillis,
+                                           final long nPayloadSize,
+                                           final int nMetadataLength,
+                                           final int nPayloadLength)
+  {
+    final ByteBuffer ret = ByteBuffer.allocate (FIXED_HEADER_SIZE + aID.length);
+    ret.put (nType).putShort ((short) aID.length).put (aID).putLong (nCreationMillis);
+    ret.putLong (nPayloadSize).putInt (nMetadataLength).putInt (nPayloadLength);
+    ret.flip ();
+    return ret;
+  }
+
+  @Nonnull
+  private static byte [] _getIDBytes (@Nonnull final String sMessageID)
+  {
+    final byte [] ret = sMessageID.getBytes (StandardCharsets.UTF_8);
+    if (ret.length > 0xffff)
+      throw new IllegalArgumentException ("The message ID is too long");
+    return ret;
+  }
+
+  /**
+   * Append a new message and sync it according to the durability.
+   *
+   * @return <code>false</code> if a message with the same ID is already
+   *         stored.
+   * @throws IOException
+   *         If writing or syncing failed. Nothing is stored in this case.
+   */
+  boolean append (@Nonnull final String sMessageID,
+                  @Nonnull final Document aMetadataDocument,
+                  @Nonnull final Source aPayloadSource,
+                  final long nCreationMillis) throws IOException
+  {
+    final byte [] aID = _getIDBytes (sMessageID);
+    final Path aSegmentPath;
+    m_aRWLock.writeLock ().lock ();
+    try
+    {
+      if (m_aRecords.containsKey (sMessageID))
+        return false;
+
+      final Segment aSegment = _getActiveSegment ();
+      final long nStart = aSegment.m_nSize;
+      final int nHeaderLength = FIXED_HEADER_SIZE + aID.length;
+      final Record aRecord;
+      try
+      {
+        // The sizes are written last, so that a torn record is invalid
+        _writeFully (aSegment.m_aChannel, _createHeader (TYPE_PUT, aID, nCreationMillis, -1, -1, -1), nStart);
+
+        final CRC32 aCRC = new CRC32 ();
+        final ChannelOutputStream aCOS = new ChannelOutputStream (aSegment.m_aChannel, nStart + nHeaderLength, aCRC);
+        final OutputStream aOS = new BufferedOutputStream (aCOS, StorageXMLHelper.IO_BUFFER_SIZE);
+        StorageXMLHelper.writeDocument (aMetadataDocument, aOS);
+        final long nMetadataLength = aCOS.m_nPosition - nStart - nHeaderLength;
+        final long nPayloadSize = m_aCompression.writePayload (aPayloadSource, aOS);
+        final long nPayloadLength = aCOS.m_nPosition - nStart - nHeaderLength - nMetadataLength;
+        if (nMetadataLength > Integer.MAX_VALUE || nPayloadLength > Integer.MAX_VALUE)
+          throw new IOException ("The message is too large");
+
+        final ByteBuffer aCRCBuffer = ByteBuffer.allocate (CRC_SIZE);
+        aCRCBuffer.putInt ((int) aCRC.getValue ()).flip ();
+        _writeFully (aSegment.m_aChannel, aCRCBuffer, aCOS.m_nPosition);
+
+        final ByteBuffer aSizes = ByteBuffer.allocate (SIZES_LENGTH);
+        aSizes.putLong (nPayloadSize).putInt ((int) nMetadataLength).putInt ((int) nPayloadLength).flip ();
+        _writeFully (aSegment.m_aChannel, aSizes, nStart + nHeaderLength - SIZES_LENGTH);
+
+        aRecord = new Record (aSegment,
+                              nStart,
+                              nHeaderLength,
+                              (int) nMetadataLength,
+                              (int) nPayloadLength,
+                              nPayloadSize,
+                              nCreationMillis);
+      }
+      catch (final IOException | RuntimeException ex)
+      {
+        try
+        {
+          aSegment.m_aChannel.truncate (nStart);
+        }
+        catch (final IOException ex2)
+        {
+          ex.addSuppressed (ex2);
+        }
+        throw ex;
+      }
+      aSegment.m_nSize = nStart + aRecord.getLength ();
+      aSegment.m_nLiveBytes += aRecord.getLength ();
+      m_aRecords.put (sMessageID, aRecord);
+      aSegmentPath = aSegment.m_aPath;
+    }
+    finally
+    {
+      m_aRWLock.writeLock ().unlock ();
+    }
+
+    // Sync without the lock, so that concurrent appends share a group commit
+    try
+    {
+      m_aSyncer.sync (aSegmentPath);
+    }
+    catch (final NoSuchFileException ex)
+    {
+      // Compacted in the meantime - compaction forces the copied records
+    }
+    catch (final IOException ex)
+    {
+      delete (sMessageID);
+      throw ex;
+    }
+    return true;
+  }
+
+  /**
+   * Delete a message by appending a tombstone.
+   *
+   * @return <code>false</code> if no such message is stored.
+   */
+  boolean delete (@Nonnull final String sMessageID)
+  {
+    m_aRWLock.writeLock ().lock ();
+    try
+    {
+      if (_removeRecord (sMessageID) == null)
+        return false;
+      try
+      {
+        final Segment aSegment = _getActiveSegment ();
+        final ByteBuffer aHeader = _createHeader (TYPE_DELETE, _getIDBytes (sMessageID), 0, 0, 0, 0);
+        final ByteBuffer aTombstone = ByteBuffer.allocate (aHeader.remaining () + CRC_SIZE);
+        aTombstone.put (aHeader);
+        // CRC32 of no data
+        aTombstone.putInt (0).flip ();
+        final int nLength = aTombstone.remaining ();
+        _writeFully (aSegment.m_aChannel, aTombstone, aSegment.m_nSize);
+        aSegment.m_nSize += nLength;
+      }
+      catch (final IOException ex)
+      {
+        s_aLogger.error ("Failed to write the tombstone for message " + sMessageID + " in " + m_aDir, ex);
+      }
+      return true;
+    }
+    finally
+    {
+      m_aRWLock.writeLock ().unlock ();
+    }
+  }
+
+  @Nullable
+  Record getRecord (@Nonnull final String sMessageID)
+  {
+    m_aRWLock.readLock ().lock ();
+    try
+    {
+      return m_aRecords.get (sMessageID);
+    }
+    finally
+    {
+      m_aRWLock.readLock ().unlock ();
+    }
+  }
+
+  /**
+   * @return A copy of all records in creation order. Never <code>null</code>.
+   */
+  @Nonnull
+  Map <String, Record> getAllRecords ()
+  {
+    m_aRWLock.readLock ().lock ();
+    try
+    {
+      return new LinkedHashMap <> (m_aRecords);
+    }
+    finally
+    {
+      m_aRWLock.readLock ().unlock ();
+    }
+  }
+
+  @Nullable
+  private byte [] _read (@Nonnull final String sMessageID, final boolean bMetadata) throws IOException
+  {
+    m_aRWLock.readLock ().lock ();
+    try
+    {
+      final Record aRecord = m_aRecords.get (sMessageID);
+      if (aRecord == null)
+        return null;
+      long nPos = aRecord.m_nOffset + aRecord.m_nHeaderLength;
+      if (!bMetadata)
+        nPos += aRecord.m_nMetadataLength;
+      final ByteBuffer aBuffer = ByteBuffer.allocate (bMetadata ? aRecord.m_nMetadataLength
+                                                                : aRecord.m_nPayloadLength);
+      _readFully (aRecord.m_aSegment.m_aChannel, aBuffer, nPos);
+      return aBuffer.array ();
+    }
+    finally
+    {
+      m_aRWLock.readLock ().unlock ();
+    }
+  }
+
+  /**
+   * @return The serialized metadata or <code>null</code> if no such message is
+   *         stored.
+   */
+  @Nullable
+  byte [] readMetadata (@Nonnull final String sMessageID) throws IOException
+  {
+    return _read (sMessageID, true);
+  }
+
+  /**
+   * @return The stored payload, that may be compressed, or <code>null</code>
+   *         if no such message is stored.
+   */
+  @Nullable
+  byte [] readPayload (@Nonnull final String sMessageID) throws IOException
+  {
+    return _read (sMessageID, false);
+  }
+
+  /**
+   * Compact the oldest segments as long as less than half of them is alive.
+   *
+   * @return The number of deleted segments.
+   * @throws IOException
+   *         If compacting failed. The stored messages stay valid.
+   */
+  @Nonnegative
+  int compact () throws IOException
+  {
+    int ret = 0;
+    m_aRWLock.writeLock ().lock ();
+    try
+    {
+      while (m_aSegments.size () > 1)
+      {
+        final Segment aOldest = m_aSegments.firstEntry ().getValue ();
+        if (aOldest.m_nSize > 0 && aOldest.m_nLiveBytes >= aOldest.m_nSize * COMPACT_LIVE_RATIO)
+          break;
+
+        // Copy all live records to the active segment
+        final List <Segment> aTargets = new ArrayList <> ();
+        for (final Map.Entry <String, Record> aEntry : new ArrayList <> (m_aRecords.entrySet ()))
+        {
+          final Record aRecord = aEntry.getValue ();
+          if (aRecord.m_aSegment == aOldest)
+          {
+            final Segment aTarget = _getActiveSegment ();
+            final long nLength = aRecord.getLength ();
+            long nCopied = 0;
+            while (nCopied < nLength)
+            {
+              aTarget.m_aChannel.position (aTarget.m_nSize + nCopied);
+              nCopied += aOldest.m_aChannel.transferTo (aRecord.m_nOffset + nCopied,
+                                                        nLength - nCopied,
+                                                        aTarget.m_aChannel);
+            }
+            m_aRecords.put (aEntry.getKey (), aRecord.getMovedTo (aTarget, aTarget.m_nSize));
+            aTarget.m_nSize += nLength;
+            aTarget.m_nLiveBytes += nLength;
+            if (!aTargets.contains (aTarget))
+              aTargets.add (aTarget);
+          }
+        }
+
+        // Independent of the durability, the copies must be on disk before
+        // the originals are deleted
+        for (final Segment aTarget : aTargets)
+          aTarget.m_aChannel.force (false);
+        m_aSegments.remove (Long.valueOf (aOldest.m_nNumber));
+        aOldest.m_aChannel.close ();
+        Files.delete (aOldest.m_aPath);
+        ret++;
+      }
+    }
+    finally
+    {
+      m_aRWLock.writeLock ().unlock ();
+    }
+    if (ret > 0)
+      s_aLogger.info ("Compacted " + ret + " segment(s) in " + m_aDir.getAbsolutePath ());
+    return ret;
+  }
+
+  private void _closeAll ()
+  {
+    for (final Segment aSegment : m_aSegments.values ())
+      try
+      {
+        aSegment.m_aChannel.close ();
+      }
+      catch (final IOException ex)
+      {
+        s_aLogger.warn ("Failed to close segment " + aSegment.m_aPath, ex);
+      }
+  }
+
+  /**
+   * Close all segment files.
+   */
+  void close ()
+  {
+    m_aRWLock.writeLock ().lock ();
+    try
+    {
+      _closeAll ();
+    }
+    finally
+    {
+      m_aRWLock.writeLock ().unlock ();
+    }
+  }
+
+  @Override
+  public String toString ()
+  {
+    return new ToStringGenerator (this).append ("dir", m_aDir)
+                                       .append ("maxSegmentSize", m_nMaxSegmentSize)
+                                       .getToString ();
+  }
+}
@@ -0,0 +1,145 @@
+/**
+ * Copyright (C) 2015-2016 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Version: MPL 1.1/EUPL 1.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at:
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is Copyright The PEPPOL project (http://www.peppol.eu)
+ *
+ * Alternatively, the contents of this file may be used under the
+ * terms of the EUPL, Version 1.1 or - as soon they will be approved
+ * by the European Commission - subsequent versions of the EUPL
+ * (the "Licence"); You may not use this work except in compliance
+ * with the Licence.
+ * You may obtain a copy of the Licence at:
+ * http://joinup.ec.europa.eu/software/page/eupl/licence-eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ *
+ * If you wish to allow use of your version of this file only
+ * under the terms of the EUPL License and not to allow others to use
+ * your version of this file under the MPL, indicate your decision by
+ * deleting the provisions above and replace them with the notice and
+ * other provisions required by the EUPL License. If you do not delete
+ * the provisions above, a recipient may use your version of this file
+ * under either the MPL or the EUPL License.
+ */
+package com.helger.peppol.lime.server.storage;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+import javax.annotation.concurrent.ThreadSafe;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.helger.commons.ValueEnforcer;
+import com.helger.commons.string.ToStringGenerator;
+
+/**
+ * Moves the messages of a {@link LimeStorage} from the flat channel
+ * directories into the shard subdirectories in the background. Once per second
+ * at most a configurable number of messages is moved. Stops itself when no
+ * message is left in the flat layout.
+ *
+ * @author Philip Helger
+ */
+@ThreadSafe
+public final class ShardMigrator
+{
+  private static final Logger s_aLogger = LoggerFactory.getLogger (ShardMigrator.class);
+
+  private final LimeStorage m_aStorage;
+  private final int m_nMaxMovesPerSecond;
+  private final ScheduledExecutorService m_aExecutor;
+
+  /**
+   * Constructor. Starts migrating.
+   *
+   * @param aStorage
+   *        The storage to migrate. May not be <code>null</code>.
+   * @param nMaxMovesPerSecond
+   *        The maximum number of messages to move per second. Must be &gt; 0.
+   */
+  public ShardMigrator (@Nonnull final LimeStorage aStorage, @Nonnegative final int nMaxMovesPerSecond)
+  {
+    ValueEnforcer.notNull (aStorage, "Storage");
+    ValueEnforcer.isGT0 (nMaxMovesPerSecond, "MaxMovesPerSecond");
+    m_aStorage = aStorage;
+    m_nMaxMovesPerSecond = nMaxMovesPerSecond;
+
+    m_aExecutor = Executors.newSingleThreadScheduledExecutor (r -> {
+      final Thread t = new Thread (r, "lime-shard-migrator");
+      t.setDaemon (true);
+      return t;
+    });
+    m_aExecutor.scheduleWithFixedDelay (this::_migrate, 1, 1, TimeUnit.SECONDS);
+  }
+
+  private void _migrate ()
+  {
+    try
+    {
+      final int nMoved = m_aStorage.migrateToShards (m_nMaxMovesPerSecond);
+      if (nMoved > 0)
+        s_aLogger.info ("Moved " + nMoved + " message(s) into the shard directories");
+      if (m_aStorage.isShardMigrationComplete ())
+      {
+        s_aLogger.info ("All messages are stored in the shard directories");
+        m_aExecutor.shutdown ();
+      }
+    }
+    catch (final RuntimeException ex)
+    {
+      // Keep the migrator running
+      s_aLogger.error ("Failed to move messages into the shard directories", ex);
+    }
+  }
+
+  /**
+   * Stop migrating. Can be resumed by creating a new migrator.
+   *
+   * @param nTimeoutMillis
+   *        The maximum milliseconds to wait for a running migration step to
+   *        finish.
+   */
+  public void shutdown (@Nonnegative final long nTimeoutMillis)
+  {
+    m_aExecutor.shutdown ();
+    try
+    {
+      if (!m_aExecutor.awaitTermination (nTimeoutMillis, TimeUnit.MILLISECONDS))
+        s_aLogger.warn ("Shard migrator did not terminate within " + nTimeoutMillis + " ms");
+    }
+    catch (final InterruptedException ex)
+    {
+      Thread.currentThread ().interrupt ();
+    }
+  }
+
+  @Override
+  public String toString ()
+  {
+    return new ToStringGenerator (this).append ("storage", m_aStorage)
+                                       .append ("maxMovesPerSecond", m_nMaxMovesPerSecond)
+                                       .getToString ();
+  }
+}
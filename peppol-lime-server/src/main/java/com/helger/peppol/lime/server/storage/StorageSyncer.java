@@ -0,0 +1,339 @@
+/**
+ * Copyright (C) 2015-2016 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Version: MPL 1.1/EUPL 1.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at:
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is Copyright The PEPPOL project (http://www.peppol.eu)
+ *
+ * Alternatively, the contents of this file may be used under the
+ * terms of the EUPL, Version 1.1 or - as soon they will be approved
+ * by the European Commission - subsequent versions of the EUPL
+ * (the "Licence"); You may not use this work except in compliance
+ * with the Licence.
+ * You may obtain a copy of the Licence at:
+ * http://joinup.ec.europa.eu/software/page/eupl/licence-eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ *
+ * If you wish to allow use of your version of this file only
+ * under the terms of the EUPL License and not to allow others to use
+ * your version of this file under the MPL, indicate your decision by
+ * deleting the provisions above and replace them with the notice and
+ * other provisions required by the EUPL License. If you do not delete
+ * the provisions above, a recipient may use your version of this file
+ * under either the MPL or the EUPL License.
+ */
+package com.helger.peppol.lime.server.storage;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+import javax.annotation.concurrent.ThreadSafe;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.helger.commons.ValueEnforcer;
+import com.helger.commons.string.ToStringGenerator;
+
+/**
+ * Forces stored files to disk according to the configured
+ * {@link EStorageDurability}. With {@link EStorageDurability#GROUP} a single
+ * background thread collects all sync requests arriving within a short window
+ * and syncs each distinct file only once, so that concurrent saves into the
+ * same channel share the sync of the directory. If the background thread ends,
+ * all pending requests fail, and callers never wait longer than
+ * {@link #GROUP_SYNC_TIMEOUT_MILLIS}.
+ *
+ * @author Philip Helger
+ */
+@ThreadSafe
+public final class StorageSyncer
+{
+  /** The maximum milliseconds to wait for a group sync */
+  public static final long GROUP_SYNC_TIMEOUT_MILLIS = 60 * 1000;
+
+  private static final Logger s_aLogger = LoggerFactory.getLogger (StorageSyncer.class);
+
+  private static final class SyncRequest
+  {
+    private final List <Path> m_aPaths;
+    private final CompletableFuture <Void> m_aFuture = new CompletableFuture <> ();
+
+    SyncRequest (@Nonnull final List <Path> aPaths)
+    {
+      m_aPaths = aPaths;
+    }
+  }
+
+  private final EStorageDurability m_eDurability;
+  private final long m_nGroupWindowNanos;
+  private final BlockingQueue <SyncRequest> m_aQueue = new LinkedBlockingQueue <> ();
+  private final Thread m_aThread;
+  private volatile boolean m_bRunning = true;
+
+  /**
+   * Constructor
+   *
+   * @param eDurability
+   *        The durability to use. May not be <code>null</code>.
+   * @param nGroupWindowMillis
+   *        The milliseconds to collect sync requests in group mode.
+   */
+  public StorageSyncer (@Nonnull final EStorageDurability eDurability, @Nonnegative final long nGroupWindowMillis)
+  {
+    ValueEnforcer.notNull (eDurability, "Durability");
+    ValueEnforcer.isGE0 (nGroupWindowMillis, "GroupWindowMillis");
+    m_eDurability = eDurability;
+    m_nGroupWindowNanos = TimeUnit.MILLISECONDS.toNanos (nGroupWindowMillis);
+    if (eDurability == EStorageDurability.GROUP)
+    {
+      m_aThread = new Thread (this::_runGroupCommit, "lime-storage-sync");
+      m_aThread.setDaemon (true);
+      m_aThread.start ();
+    }
+    else
+      m_aThread = null;
+  }
+
+  @Nonnull
+  public EStorageDurability getDurability ()
+  {
+    return m_eDurability;
+  }
+
+  private static void _force (@Nonnull final Path aPath) throws IOException
+  {
+    if (Files.isDirectory (aPath))
+    {
+      // Persist the directory entries. Not supported on all platforms.
+      try (final FileChannel aChannel = FileChannel.open (aPath, StandardOpenOption.READ))
+      {
+        aChannel.force (true);
+      }
+      catch (final IOException ex)
+      {
+        s_aLogger.debug ("Cannot sync directory " + aPath, ex);
+      }
+    }
+    else
+      try (final FileChannel aChannel = FileChannel.open (aPath, StandardOpenOption.WRITE))
+      {
+        aChannel.force (true);
+      }
+  }
+
+  private void _runGroupCommit ()
+  {
+    try
+    {
+      _processGroupCommits ();
+    }
+    finally
+    {
+      // Nobody processes requests anymore
+      m_bRunning = false;
+      _failPending ();
+    }
+  }
+
+  private void _failPending ()
+  {
+    final List <SyncRequest> aPending = new ArrayList <> ();
+    m_aQueue.drainTo (aPending);
+    for (final SyncRequest aRequest : aPending)
+      aRequest.m_aFuture.completeExceptionally (new IOException ("The storage syncer was shut down"));
+  }
+
+  private void _processGroupCommits ()
+  {
+    final List <SyncRequest> aBatch = new ArrayList <> ();
+    while (m_bRunning || !m_aQueue.isEmpty ())
+    {
+      try
+      {
+        final SyncRequest aFirst = m_aQueue.poll (100, TimeUnit.MILLISECONDS);
+        if (aFirst == null)
+          continue;
+        aBatch.add (aFirst);
+
+        // Collect all requests arriving within the window
+        final long nEndNanos = System.nanoTime () + m_nGroupWindowNanos;
+        long nRemainingNanos;
+        while ((nRemainingNanos = nEndNanos - System.nanoTime ()) > 0)
+        {
+          final SyncRequest aNext = m_aQueue.poll (nRemainingNanos, TimeUnit.NANOSECONDS);
+          if (aNext == null)
+            break;
+          aBatch.add (aNext);
+        }
+        m_aQueue.drainTo (aBatch);
+        _syncBatch (aBatch);
+      }
+      catch (final InterruptedException ex)
+      {
+        Thread.currentThread ().interrupt ();
+        // Fail the collected requests - the rest is failed on exit
+        for (final SyncRequest aRequest : aBatch)
+          aRequest.m_aFuture.completeExceptionally (new InterruptedIOException ("The storage syncer was interrupted"));
+        break;
+      }
+      catch (final RuntimeException ex)
+      {
+        // Keep the thread running for the other requests
+        s_aLogger.error ("Failed to sync a batch of " + aBatch.size () + " requests", ex);
+        for (final SyncRequest aRequest : aBatch)
+          aRequest.m_aFuture.completeExceptionally (new IOException ("Failed to sync", ex));
+      }
+      finally
+      {
+        aBatch.clear ();
+      }
+    }
+  }
+
+  private static void _syncBatch (@Nonnull final List <SyncRequest> aBatch)
+  {
+    // Sync each distinct path only once
+    final Map <Path, IOException> aResults = new HashMap <> ();
+    for (final SyncRequest aRequest : aBatch)
+      for (final Path aPath : aRequest.m_aPaths)
+        if (!aResults.containsKey (aPath))
+          try
+          {
+            _force (aPath);
+            aResults.put (aPath, null);
+          }
+          catch (final IOException ex)
+          {
+            aResults.put (aPath, ex);
+          }
+
+    for (final SyncRequest aRequest : aBatch)
+    {
+      IOException aError = null;
+      for (final Path aPath : aRequest.m_aPaths)
+        if (aError == null)
+          aError = aResults.get (aPath);
+      if (aError == null)
+        aRequest.m_aFuture.complete (null);
+      else
+        aRequest.m_aFuture.completeExceptionally (aError);
+    }
+  }
+
+  /**
+   * Force the passed files or directories to disk, as defined by the
+   * durability. Returns when they are synced.
+   *
+   * @param aPaths
+   *        The files and directories to sync. May not be <code>null</code>.
+   * @throws IOException
+   *         If syncing failed, the syncer was shut down or the sync did not
+   *         finish in time
+   */
+  public void sync (@Nonnull final Path... aPaths) throws IOException
+  {
+    switch (m_eDurability)
+    {
+      case NONE:
+        break;
+      case FSYNC:
+        for (final Path aPath : aPaths)
+          _force (aPath);
+        break;
+      case GROUP:
+      {
+        if (!m_bRunning)
+          throw new IOException ("The storage syncer was shut down");
+        final SyncRequest aRequest = new SyncRequest (Arrays.asList (aPaths));
+        m_aQueue.add (aRequest);
+        if (!m_aThread.isAlive ())
+        {
+          // Shut down in the meantime
+          _failPending ();
+        }
+        try
+        {
+          aRequest.m_aFuture.get (GROUP_SYNC_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+        }
+        catch (final InterruptedException ex)
+        {
+          Thread.currentThread ().interrupt ();
+          throw new InterruptedIOException ("Interrupted while waiting for sync");
+        }
+        catch (final ExecutionException ex)
+        {
+          if (ex.getCause () instanceof IOException)
+            throw (IOException) ex.getCause ();
+          throw new IOException ("Failed to sync", ex.getCause ());
+        }
+        catch (final TimeoutException ex)
+        {
+          m_aQueue.remove (aRequest);
+          throw new IOException ("Sync did not finish within " + GROUP_SYNC_TIMEOUT_MILLIS + " ms");
+        }
+        break;
+      }
+      default:
+        throw new IllegalStateException ("Unsupported durability " + m_eDurability);
+    }
+  }
+
+  /**
+   * Stop the group commit thread after all pending requests were synced.
+   */
+  public void shutdown ()
+  {
+    m_bRunning = false;
+    if (m_aThread != null)
+      try
+      {
+        m_aThread.join (TimeUnit.SECONDS.toMillis (10));
+      }
+      catch (final InterruptedException ex)
+      {
+        Thread.currentThread ().interrupt ();
+      }
+  }
+
+  @Override
+  public String toString ()
+  {
+    return new ToStringGenerator (this).append ("durability", m_eDurability)
+                                       .append ("groupWindowNanos", m_nGroupWindowNanos)
+                                       .getToString ();
+  }
+}
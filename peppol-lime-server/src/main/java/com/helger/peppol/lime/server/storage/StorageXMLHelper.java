@@ -0,0 +1,180 @@
+/**
+ * Copyright (C) 2015-2016 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Version: MPL 1.1/EUPL 1.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at:
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is Copyright The PEPPOL project (http://www.peppol.eu)
+ *
+ * Alternatively, the contents of this file may be used under the
+ * terms of the EUPL, Version 1.1 or - as soon they will be approved
+ * by the European Commission - subsequent versions of the EUPL
+ * (the "Licence"); You may not use this work except in compliance
+ * with the Licence.
+ * You may obtain a copy of the Licence at:
+ * http://joinup.ec.europa.eu/software/page/eupl/licence-eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ *
+ * If you wish to allow use of your version of this file only
+ * under the terms of the EUPL License and not to allow others to use
+ * your version of this file under the MPL, indicate your decision by
+ * deleting the provisions above and replace them with the notice and
+ * other provisions required by the EUPL License. If you do not delete
+ * the provisions above, a recipient may use your version of this file
+ * under either the MPL or the EUPL License.
+ */
+package com.helger.peppol.lime.server.storage;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+
+import javax.annotation.Nonnull;
+import javax.annotation.concurrent.ThreadSafe;
+import javax.xml.XMLConstants;
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.transform.OutputKeys;
+import javax.xml.transform.Source;
+import javax.xml.transform.Transformer;
+import javax.xml.transform.TransformerException;
+import javax.xml.transform.TransformerFactory;
+import javax.xml.transform.stream.StreamResult;
+
+import org.w3c.dom.Document;
+import org.xml.sax.SAXException;
+import org.xml.sax.helpers.DefaultHandler;
+
+import com.helger.xml.serialize.write.XMLWriter;
+
+/**
+ * Reads and writes the XML documents of the storage implementations.
+ *
+ * @author Philip Helger
+ */
+@ThreadSafe
+final class StorageXMLHelper
+{
+  static final int IO_BUFFER_SIZE = 64 * 1024;
+  /** Creating a DocumentBuilder is expensive - reuse one per thread */
+  private static final ThreadLocal <DocumentBuilder> s_aDocumentBuilder = ThreadLocal.withInitial (StorageXMLHelper::_createDocumentBuilder);
+  private static final TransformerFactory s_aTransformerFactory = TransformerFactory.newInstance ();
+
+  private StorageXMLHelper ()
+  {}
+
+  @Nonnull
+  private static DocumentBuilder _createDocumentBuilder ()
+  {
+    final DocumentBuilderFactory aDBF = DocumentBuilderFactory.newInstance ();
+    aDBF.setNamespaceAware (true);
+    try
+    {
+      aDBF.setFeature (XMLConstants.FEATURE_SECURE_PROCESSING, true);
+      aDBF.setFeature ("http://apache.org/xml/features/disallow-doctype-decl", true);
+      final DocumentBuilder ret = aDBF.newDocumentBuilder ();
+      // Throw on fatal errors instead of printing to stderr
+      ret.setErrorHandler (new DefaultHandler ());
+      return ret;
+    }
+    catch (final ParserConfigurationException ex)
+    {
+      throw new IllegalStateException ("Failed to create DocumentBuilder", ex);
+    }
+  }
+
+  /**
+   * Parse a stored document with the document builder of the current thread.
+   *
+   * @param aIS
+   *        The input stream to parse. Is not closed. May not be
+   *        <code>null</code>.
+   */
+  @Nonnull
+  static Document readDocument (@Nonnull final InputStream aIS) throws SAXException, IOException
+  {
+    final DocumentBuilder aBuilder = s_aDocumentBuilder.get ();
+    try
+    {
+      return aBuilder.parse (aIS);
+    }
+    finally
+    {
+      aBuilder.reset ();
+    }
+  }
+
+  @Nonnull
+  private static Transformer _createTransformer () throws TransformerException
+  {
+    // TransformerFactory is not thread-safe
+    synchronized (s_aTransformerFactory)
+    {
+      return s_aTransformerFactory.newTransformer ();
+    }
+  }
+
+  /**
+   * Write the passed XML source without building another in-memory
+   * representation.
+   *
+   * @param aOS
+   *        The output stream to write to. Is flushed but not closed. May not be
+   *        <code>null</code>.
+   */
+  static void writeSource (@Nonnull final Source aSource, @Nonnull final OutputStream aOS) throws IOException
+  {
+    try
+    {
+      final Transformer aTransformer = _createTransformer ();
+      aTransformer.setOutputProperty (OutputKeys.ENCODING, StandardCharsets.UTF_8.name ());
+      aTransformer.transform (aSource, new StreamResult (aOS));
+      aOS.flush ();
+    }
+    catch (final TransformerException ex)
+    {
+      throw new IOException ("Failed to write XML", ex);
+    }
+  }
+
+  /**
+   * Write the passed document.
+   *
+   * @param aOS
+   *        The output stream to write to. Is flushed but not closed. May not be
+   *        <code>null</code>.
+   */
+  static void writeDocument (@Nonnull final Document aDoc, @Nonnull final OutputStream aOS) throws IOException
+  {
+    // XMLWriter closes the stream
+    final OutputStream aUnclosable = new BufferedOutputStream (aOS, IO_BUFFER_SIZE)
+    {
+      @Override
+      public void close () throws IOException
+      {
+        flush ();
+      }
+    };
+    if (XMLWriter.writeToStream (aDoc, aUnclosable).isFailure ())
+      throw new IOException ("Failed to write XML");
+    aUnclosable.flush ();
+  }
+}
@@ -0,0 +1,122 @@
+/**
+ * Copyright (C) 2015-2016 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Version: MPL 1.1/EUPL 1.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at:
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is Copyright The PEPPOL project (http://www.peppol.eu)
+ *
+ * Alternatively, the contents of this file may be used under the
+ * terms of the EUPL, Version 1.1 or - as soon they will be approved
+ * by the European Commission - subsequent versions of the EUPL
+ * (the "Licence"); You may not use this work except in compliance
+ * with the Licence.
+ * You may obtain a copy of the Licence at:
+ * http://joinup.ec.europa.eu/software/page/eupl/licence-eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ *
+ * If you wish to allow use of your version of this file only
+ * under the terms of the EUPL License and not to allow others to use
+ * your version of this file under the MPL, indicate your decision by
+ * deleting the provisions above and replace them with the notice and
+ * other provisions required by the EUPL License. If you do not delete
+ * the provisions above, a recipient may use your version of this file
+ * under either the MPL or the EUPL License.
+ */
+package com.helger.peppol.lime.server.as2;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import org.junit.Test;
+
+import com.helger.peppol.lime.server.exception.CircuitOpenException;
+
+/**
+ * Test class for class {@link AS2CircuitBreaker}.
+ *
+ * @author Philip Helger
+ */
+public final class AS2CircuitBreakerTest
+{
+  private static final String URL = "https://ap.example.org/as2";
+
+  @Test
+  public void testOpen () throws Exception
+  {
+    final AS2CircuitBreaker aBreaker = new AS2CircuitBreaker (2, 60000);
+    aBreaker.acquirePermission (URL);
+    aBreaker.onResult (URL, false);
+    assertEquals (AS2CircuitBreaker.EState.CLOSED, aBreaker.getState (URL));
+    aBreaker.acquirePermission (URL);
+    aBreaker.onResult (URL, false);
+    assertEquals (AS2CircuitBreaker.EState.OPEN, aBreaker.getState (URL));
+    try
+    {
+      aBreaker.acquirePermission (URL);
+      fail ();
+    }
+    catch (final CircuitOpenException ex)
+    {
+      // expected
+    }
+    assertEquals (1, aBreaker.getRejectedCount ());
+  }
+
+  @Test
+  public void testProbe () throws Exception
+  {
+    final AS2CircuitBreaker aBreaker = new AS2CircuitBreaker (1, 0);
+    aBreaker.acquirePermission (URL);
+    aBreaker.onResult (URL, false);
+    assertEquals (AS2CircuitBreaker.EState.OPEN, aBreaker.getState (URL));
+
+    // Cool-down is over - exactly one probe
+    aBreaker.acquirePermission (URL);
+    assertEquals (AS2CircuitBreaker.EState.HALF_OPEN, aBreaker.getState (URL));
+    try
+    {
+      aBreaker.acquirePermission (URL);
+      fail ();
+    }
+    catch (final CircuitOpenException ex)
+    {
+      // expected
+    }
+    aBreaker.onResult (URL, true);
+    assertEquals (AS2CircuitBreaker.EState.CLOSED, aBreaker.getState (URL));
+    aBreaker.acquirePermission (URL);
+  }
+
+  @Test
+  public void testCancelProbe () throws Exception
+  {
+    final AS2CircuitBreaker aBreaker = new AS2CircuitBreaker (1, 0);
+    aBreaker.acquirePermission (URL);
+    aBreaker.onResult (URL, false);
+    aBreaker.acquirePermission (URL);
+    assertEquals (AS2CircuitBreaker.EState.HALF_OPEN, aBreaker.getState (URL));
+
+    // The probe was never sent - the next send may probe
+    aBreaker.cancelPermission (URL);
+    assertEquals (AS2CircuitBreaker.EState.OPEN, aBreaker.getState (URL));
+    aBreaker.acquirePermission (URL);
+    assertEquals (AS2CircuitBreaker.EState.HALF_OPEN, aBreaker.getState (URL));
+    assertEquals (0, aBreaker.getRejectedCount ());
+  }
+}
@@ -0,0 +1,167 @@
+/**
+ * Copyright (C) 2015-2016 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Version: MPL 1.1/EUPL 1.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at:
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is Copyright The PEPPOL project (http://www.peppol.eu)
+ *
+ * Alternatively, the contents of this file may be used under the
+ * terms of the EUPL, Version 1.1 or - as soon they will be approved
+ * by the European Commission - subsequent versions of the EUPL
+ * (the "Licence"); You may not use this work except in compliance
+ * with the Licence.
+ * You may obtain a copy of the Licence at:
+ * http://joinup.ec.europa.eu/software/page/eupl/licence-eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ *
+ * If you wish to allow use of your version of this file only
+ * under the terms of the EUPL License and not to allow others to use
+ * your version of this file under the MPL, indicate your decision by
+ * deleting the provisions above and replace them with the notice and
+ * other provisions required by the EUPL License. If you do not delete
+ * the provisions above, a recipient may use your version of this file
+ * under either the MPL or the EUPL License.
+ */
+package com.helger.peppol.lime.server.as2;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.security.cert.CertificateException;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import org.junit.Test;
+
+import com.helger.peppol.smp.EndpointType;
+import com.helger.peppol.utils.W3CEndpointReferenceHelper;
+
+/**
+ * Test class for class {@link AS2ReceiverCertificateCache}.
+ *
+ * @author Philip Helger
+ */
+public final class AS2ReceiverCertificateCacheTest
+{
+  private static final String URL1 = "https://ap1.example.org/as2";
+  private static final String URL2 = "https://ap2.example.org/as2";
+
+  @Nonnull
+  private static String _readCertificate (@Nonnull final String sName) throws Exception
+  {
+    final URL aURL = AS2ReceiverCertificateCacheTest.class.getResource ("/certificates/" + sName);
+    return new String (Files.readAllBytes (Paths.get (aURL.toURI ())), StandardCharsets.ISO_8859_1);
+  }
+
+  @Nonnull
+  private static EndpointType _createEndpoint (@Nonnull final String sURL, @Nullable final String sCertificate)
+  {
+    final EndpointType ret = new EndpointType ();
+    ret.setEndpointReference (W3CEndpointReferenceHelper.createEndpointReference (sURL));
+    ret.setCertificate (sCertificate);
+    return ret;
+  }
+
+  @Test
+  public void testCachedByEndpoint () throws Exception
+  {
+    final String sCertificate = _readCertificate ("ap1.cer");
+    final AS2ReceiverCertificateCache aCache = new AS2ReceiverCertificateCache (10);
+    final AS2ReceiverInfo aInfo = aCache.getReceiverInfo (_createEndpoint (URL1, sCertificate));
+    assertEquals (URL1, aInfo.getReceiverURL ());
+    assertEquals ("APP_1000000001", aInfo.getAS2ID ());
+    assertEquals ("APP_1000000001", aInfo.getKeyAlias ());
+    assertEquals (0, aCache.getHitCount ());
+    assertEquals (1, aCache.getMissCount ());
+
+    // Same endpoint from another SMP response
+    assertSame (aInfo, aCache.getReceiverInfo (_createEndpoint (URL1, sCertificate)));
+    assertEquals (1, aCache.getHitCount ());
+    assertEquals (1, aCache.getMissCount ());
+
+    // Same certificate on another endpoint
+    final AS2ReceiverInfo aInfo2 = aCache.getReceiverInfo (_createEndpoint (URL2, sCertificate));
+    assertEquals (URL2, aInfo2.getReceiverURL ());
+    assertEquals (2, aCache.getMissCount ());
+    assertEquals (2, aCache.getSize ());
+  }
+
+  @Test
+  public void testReloadOnCertificateChange () throws Exception
+  {
+    final AS2ReceiverCertificateCache aCache = new AS2ReceiverCertificateCache (10);
+    final AS2ReceiverInfo aOldInfo = aCache.getReceiverInfo (_createEndpoint (URL1, _readCertificate ("ap1.cer")));
+
+    // The access point changed its certificate
+    final AS2ReceiverInfo aNewInfo = aCache.getReceiverInfo (_createEndpoint (URL1, _readCertificate ("ap2.cer")));
+    assertNotSame (aOldInfo, aNewInfo);
+    assertEquals ("APP_1000000002", aNewInfo.getAS2ID ());
+    assertEquals (2, aCache.getMissCount ());
+    assertSame (aNewInfo, aCache.getReceiverInfo (_createEndpoint (URL1, _readCertificate ("ap2.cer"))));
+  }
+
+  @Test
+  public void testLRU () throws Exception
+  {
+    final String sCertificate = _readCertificate ("ap1.cer");
+    final AS2ReceiverCertificateCache aCache = new AS2ReceiverCertificateCache (1);
+    aCache.getReceiverInfo (_createEndpoint (URL1, sCertificate));
+    aCache.getReceiverInfo (_createEndpoint (URL2, sCertificate));
+    assertEquals (1, aCache.getSize ());
+
+    // URL1 was evicted
+    aCache.getReceiverInfo (_createEndpoint (URL1, sCertificate));
+    assertEquals (0, aCache.getHitCount ());
+    assertEquals (3, aCache.getMissCount ());
+  }
+
+  @Test
+  public void testDisabled () throws Exception
+  {
+    final String sCertificate = _readCertificate ("ap1.cer");
+    final AS2ReceiverCertificateCache aCache = new AS2ReceiverCertificateCache (0);
+    assertNotSame (aCache.getReceiverInfo (_createEndpoint (URL1, sCertificate)),
+                   aCache.getReceiverInfo (_createEndpoint (URL1, sCertificate)));
+    assertEquals (0, aCache.getSize ());
+    assertEquals (2, aCache.getMissCount ());
+  }
+
+  @Test
+  public void testMissingCertificate ()
+  {
+    final AS2ReceiverCertificateCache aCache = new AS2ReceiverCertificateCache (10);
+    try
+    {
+      aCache.getReceiverInfo (_createEndpoint (URL1, null));
+      fail ();
+    }
+    catch (final CertificateException ex)
+    {
+      // expected
+    }
+    assertEquals (0, aCache.getSize ());
+  }
+}
@@ -0,0 +1,108 @@
+/**
+ * Copyright (C) 2015-2016 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Version: MPL 1.1/EUPL 1.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at:
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is Copyright The PEPPOL project (http://www.peppol.eu)
+ *
+ * Alternatively, the contents of this file may be used under the
+ * terms of the EUPL, Version 1.1 or - as soon they will be approved
+ * by the European Commission - subsequent versions of the EUPL
+ * (the "Licence"); You may not use this work except in compliance
+ * with the Licence.
+ * You may obtain a copy of the Licence at:
+ * http://joinup.ec.europa.eu/software/page/eupl/licence-eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ *
+ * If you wish to allow use of your version of this file only
+ * under the terms of the EUPL License and not to allow others to use
+ * your version of this file under the MPL, indicate your decision by
+ * deleting the provisions above and replace them with the notice and
+ * other provisions required by the EUPL License. If you do not delete
+ * the provisions above, a recipient may use your version of this file
+ * under either the MPL or the EUPL License.
+ */
+package com.helger.peppol.lime.server.as2;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import org.junit.Test;
+
+import com.helger.peppol.lime.server.exception.SendLimitExceededException;
+
+/**
+ * Test class for class {@link AS2SendLimiter}.
+ *
+ * @author Philip Helger
+ */
+public final class AS2SendLimiterTest
+{
+  private static final String URL1 = "https://ap1.example.org/as2";
+  private static final String URL2 = "https://ap2.example.org/as2";
+
+  @Test
+  public void testPerReceiver () throws Exception
+  {
+    final AS2SendLimiter aLimiter = new AS2SendLimiter (2, 0, 0);
+    aLimiter.acquire (URL1);
+    aLimiter.acquire (URL1);
+    assertEquals (2, aLimiter.getActiveCount (URL1));
+    try
+    {
+      aLimiter.acquire (URL1);
+      fail ();
+    }
+    catch (final SendLimitExceededException ex)
+    {
+      // expected
+    }
+    // Other receivers are not affected
+    aLimiter.acquire (URL2);
+    assertEquals (1, aLimiter.getRejectedCount ());
+
+    aLimiter.release (URL1);
+    aLimiter.acquire (URL1);
+    assertEquals (2, aLimiter.getActiveCount (URL1));
+  }
+
+  @Test
+  public void testGlobal () throws Exception
+  {
+    final AS2SendLimiter aLimiter = new AS2SendLimiter (2, 2, 0);
+    aLimiter.acquire (URL1);
+    aLimiter.acquire (URL2);
+    assertEquals (2, aLimiter.getGlobalActiveCount ());
+    try
+    {
+      aLimiter.acquire (URL1);
+      fail ();
+    }
+    catch (final SendLimitExceededException ex)
+    {
+      // expected
+    }
+    // The receiver slot must have been returned
+    assertEquals (1, aLimiter.getActiveCount (URL1));
+
+    aLimiter.release (URL2);
+    aLimiter.acquire (URL1);
+    assertEquals (2, aLimiter.getActiveCount (URL1));
+  }
+}
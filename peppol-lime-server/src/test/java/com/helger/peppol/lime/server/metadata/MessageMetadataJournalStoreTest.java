@@ -0,0 +1,269 @@
+/**
+ * Copyright (C) 2015-2016 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Version: MPL 1.1/EUPL 1.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at:
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is Copyright The PEPPOL project (http://www.peppol.eu)
+ *
+ * Alternatively, the contents of this file may be used under the
+ * terms of the EUPL, Version 1.1 or - as soon they will be approved
+ * by the European Commission - subsequent versions of the EUPL
+ * (the "Licence"); You may not use this work except in compliance
+ * with the Licence.
+ * You may obtain a copy of the Licence at:
+ * http://joinup.ec.europa.eu/software/page/eupl/licence-eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ *
+ * If you wish to allow use of your version of this file only
+ * under the terms of the EUPL License and not to allow others to use
+ * your version of this file under the MPL, indicate your decision by
+ * deleting the provisions above and replace them with the notice and
+ * other provisions required by the EUPL License. If you do not delete
+ * the provisions above, a recipient may use your version of this file
+ * under either the MPL or the EUPL License.
+ */
+package com.helger.peppol.lime.server.metadata;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import javax.annotation.Nonnull;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.helger.peppol.lime.api.CLIME;
+import com.helger.peppol.lime.api.MessageMetadata;
+
+/**
+ * Test class for class {@link MessageMetadataJournalStore}.
+ *
+ * @author Philip Helger
+ */
+public final class MessageMetadataJournalStoreTest
+{
+  private File m_aDir;
+
+  @Before
+  public void setUp () throws Exception
+  {
+    m_aDir = Files.createTempDirectory ("lime-journal").toFile ();
+  }
+
+  @After
+  public void tearDown ()
+  {
+    final File [] aFiles = m_aDir.listFiles ();
+    if (aFiles != null)
+      for (final File aFile : aFiles)
+        aFile.delete ();
+    m_aDir.delete ();
+  }
+
+  @Nonnull
+  private static PendingMessage _createMessage (@Nonnull final String sMessageID)
+  {
+    return new PendingMessage (new MessageMetadata (sMessageID,
+                                                    "chid",
+                                                    CLIME.IF.createParticipantIdentifierWithDefaultScheme ("0088:sender"),
+                                                    CLIME.IF.createParticipantIdentifierWithDefaultScheme ("0088:receiver"),
+                                                    CLIME.IF.createDocumentTypeIdentifierWithDefaultScheme ("doc"),
+                                                    CLIME.IF.createProcessIdentifierWithDefaultScheme ("proc")),
+                               null);
+  }
+
+  @Test
+  public void testTwoNodes () throws Exception
+  {
+    final MessageMetadataJournalStore aStoreA = new MessageMetadataJournalStore (m_aDir, "a", 60000, 4096);
+    final MessageMetadataJournalStore aStoreB = new MessageMetadataJournalStore (m_aDir, "b", 60000, 4096);
+    try
+    {
+      final String sMessageID = "uuid:journal-two-nodes";
+      assertTrue (aStoreA.createResource (sMessageID, _createMessage (sMessageID)).isChanged ());
+
+      // Created on A, put on B
+      final PendingMessage aMessage = aStoreB.getMessage (sMessageID);
+      assertNotNull (aMessage);
+      assertEquals (sMessageID, aMessage.getMetadata ().getMessageID ());
+      assertEquals ("chid", aMessage.getMetadata ().getChannelID ());
+      aStoreB.removeMessage (sMessageID);
+      assertNull (aStoreB.getMessage (sMessageID));
+
+      // A learns about the removal
+      assertEquals (0, aStoreA.expireReservations (System.currentTimeMillis ()));
+      assertFalse (aStoreA.isStored (sMessageID));
+      assertEquals (0, aStoreA.getReservationCount ());
+    }
+    finally
+    {
+      aStoreA.close ();
+      aStoreB.close ();
+    }
+  }
+
+  @Test
+  public void testRemovalOnOtherNodeHidesLocalHit () throws Exception
+  {
+    final MessageMetadataJournalStore aStoreA = new MessageMetadataJournalStore (m_aDir, "a", 60000, 4096);
+    final MessageMetadataJournalStore aStoreB = new MessageMetadataJournalStore (m_aDir, "b", 60000, 4096);
+    try
+    {
+      final String sMessageID = "uuid:journal-removed-elsewhere";
+      assertTrue (aStoreA.createResource (sMessageID, _createMessage (sMessageID)).isChanged ());
+      // B now knows the message
+      assertNotNull (aStoreB.getMessage (sMessageID));
+
+      // Put on A - B must not return its stale entry
+      aStoreA.removeMessage (sMessageID);
+      assertNull (aStoreB.getMessage (sMessageID));
+      assertFalse (aStoreB.isStored (sMessageID));
+    }
+    finally
+    {
+      aStoreA.close ();
+      aStoreB.close ();
+    }
+  }
+
+  @Test
+  public void testTornRecordIsReadAgain () throws Exception
+  {
+    final MessageMetadataJournalStore aStoreA = new MessageMetadataJournalStore (m_aDir, "a", 60000, 4096);
+    final MessageMetadataJournalStore aStoreB = new MessageMetadataJournalStore (m_aDir, "b", 60000, 4096);
+    try
+    {
+      final String sMessageID = "uuid:journal-torn";
+      assertTrue (aStoreA.createResource (sMessageID, _createMessage (sMessageID)).isChanged ());
+
+      // Simulate a partially visible record: the first data byte after the
+      // record header is wrong
+      try (final RandomAccessFile aRAF = new RandomAccessFile (aStoreA.getJournalFile (), "rw"))
+      {
+        aRAF.seek (8);
+        final int nOriginal = aRAF.read ();
+        aRAF.seek (8);
+        aRAF.write (nOriginal ^ 0xff);
+        assertNull (aStoreB.getMessage (sMessageID));
+
+        // Once the record is complete, it is read with the next refresh
+        aRAF.seek (8);
+        aRAF.write (nOriginal);
+      }
+      final PendingMessage aMessage = aStoreB.getMessage (sMessageID);
+      assertNotNull (aMessage);
+      assertEquals (sMessageID, aMessage.getMetadata ().getMessageID ());
+    }
+    finally
+    {
+      aStoreA.close ();
+      aStoreB.close ();
+    }
+  }
+
+  @Test
+  public void testConcurrentCreates () throws Exception
+  {
+    final MessageMetadataJournalStore aStoreA = new MessageMetadataJournalStore (m_aDir, "a", 60000, 64 * 1024);
+    final MessageMetadataJournalStore aStoreB = new MessageMetadataJournalStore (m_aDir, "b", 60000, 64 * 1024);
+    try
+    {
+      final int nThreads = 8;
+      final int nPerThread = 50;
+      final ExecutorService aExecutor = Executors.newFixedThreadPool (nThreads);
+      final List <Future <?>> aFutures = new ArrayList <> ();
+      for (int t = 0; t < nThreads; ++t)
+      {
+        final int nThread = t;
+        aFutures.add (aExecutor.submit ( () -> {
+          for (int i = 0; i < nPerThread; ++i)
+          {
+            final String sMessageID = "uuid:journal-concurrent-" + nThread + "-" + i;
+            assertTrue (aStoreA.createResource (sMessageID, _createMessage (sMessageID)).isChanged ());
+          }
+        }));
+      }
+      for (final Future <?> aFuture : aFutures)
+        aFuture.get ();
+      aExecutor.shutdown ();
+
+      for (int t = 0; t < nThreads; ++t)
+        for (int i = 0; i < nPerThread; ++i)
+          assertNotNull (aStoreB.getMessage ("uuid:journal-concurrent-" + t + "-" + i));
+      assertEquals (nThreads * nPerThread, aStoreB.getReservationCount ());
+    }
+    finally
+    {
+      aStoreA.close ();
+      aStoreB.close ();
+    }
+  }
+
+  @Test
+  public void testCompactionAndRestart () throws Exception
+  {
+    MessageMetadataJournalStore aStore = new MessageMetadataJournalStore (m_aDir, "node", 60000, 4096);
+    final File aFirstFile = aStore.getJournalFile ();
+    try
+    {
+      // Enough records to fill the segment several times
+      for (int i = 0; i < 200; ++i)
+      {
+        final String sMessageID = "uuid:journal-compact-" + i;
+        assertTrue (aStore.createResource (sMessageID, _createMessage (sMessageID)).isChanged ());
+        if (i % 10 != 0)
+          aStore.removeMessage (sMessageID);
+      }
+      assertNotEquals (aFirstFile, aStore.getJournalFile ());
+      assertFalse (aFirstFile.exists ());
+      assertEquals (20, aStore.getReservationCount ());
+    }
+    finally
+    {
+      aStore.close ();
+    }
+
+    // Restart reads the previous journal
+    aStore = new MessageMetadataJournalStore (m_aDir, "node", 60000, 4096);
+    try
+    {
+      assertEquals (20, aStore.getReservationCount ());
+      assertTrue (aStore.isStored ("uuid:journal-compact-190"));
+      assertFalse (aStore.isStored ("uuid:journal-compact-191"));
+    }
+    finally
+    {
+      aStore.close ();
+    }
+  }
+}
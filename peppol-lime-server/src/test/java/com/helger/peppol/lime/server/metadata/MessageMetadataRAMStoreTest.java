@@ -0,0 +1,247 @@
+/**
+ * Copyright (C) 2015-2016 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Version: MPL 1.1/EUPL 1.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at:
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is Copyright The PEPPOL project (http://www.peppol.eu)
+ *
+ * Alternatively, the contents of this file may be used under the
+ * terms of the EUPL, Version 1.1 or - as soon they will be approved
+ * by the European Commission - subsequent versions of the EUPL
+ * (the "Licence"); You may not use this work except in compliance
+ * with the Licence.
+ * You may obtain a copy of the Licence at:
+ * http://joinup.ec.europa.eu/software/page/eupl/licence-eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ *
+ * If you wish to allow use of your version of this file only
+ * under the terms of the EUPL License and not to allow others to use
+ * your version of this file under the MPL, indicate your decision by
+ * deleting the provisions above and replace them with the notice and
+ * other provisions required by the EUPL License. If you do not delete
+ * the provisions above, a recipient may use your version of this file
+ * under either the MPL or the EUPL License.
+ */
+package com.helger.peppol.lime.server.metadata;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.IntConsumer;
+
+import javax.annotation.Nonnull;
+
+import org.junit.Test;
+
+import com.helger.peppol.lime.api.CLIME;
+import com.helger.peppol.lime.api.MessageMetadata;
+
+/**
+ * Test class for class {@link MessageMetadataRAMStore}.
+ *
+ * @author Philip Helger
+ */
+public final class MessageMetadataRAMStoreTest
+{
+  @Nonnull
+  private static PendingMessage _createMessage (@Nonnull final String sMessageID)
+  {
+    return _createMessage (sMessageID, System.currentTimeMillis ());
+  }
+
+  @Nonnull
+  private static PendingMessage _createMessage (@Nonnull final String sMessageID, final long nCreationMillis)
+  {
+    return new PendingMessage (new MessageMetadata (sMessageID,
+                                                    "chid",
+                                                    CLIME.IF.createParticipantIdentifierWithDefaultScheme ("0088:sender"),
+                                                    CLIME.IF.createParticipantIdentifierWithDefaultScheme ("0088:receiver"),
+                                                    CLIME.IF.createDocumentTypeIdentifierWithDefaultScheme ("doc"),
+                                                    CLIME.IF.createProcessIdentifierWithDefaultScheme ("proc")),
+                               null,
+                               nCreationMillis);
+  }
+
+  @Test
+  public void testBasic ()
+  {
+    final MessageMetadataRAMStore aStore = new MessageMetadataRAMStore (60000);
+    final String sMessageID = "uuid:ramstore-basic";
+    final PendingMessage aMessage = _createMessage (sMessageID);
+    assertFalse (aStore.isStored (sMessageID));
+    assertTrue (aStore.createResource (sMessageID, aMessage).isChanged ());
+    assertTrue (aStore.createResource (sMessageID, _createMessage (sMessageID)).isUnchanged ());
+    assertSame (aMessage, aStore.getMessage (sMessageID));
+    aStore.removeMessage (sMessageID);
+    assertNull (aStore.getMessage (sMessageID));
+  }
+
+  @Test
+  public void testExpiry ()
+  {
+    final MessageMetadataRAMStore aStore = new MessageMetadataRAMStore (60000);
+    final String sMessageID = "uuid:ramstore-expired";
+    // Created long ago
+    assertTrue (aStore.createResource (sMessageID, _createMessage (sMessageID, 0)).isChanged ());
+    assertEquals (1, aStore.getReservationCount ());
+
+    assertEquals (1, aStore.expireReservations (System.currentTimeMillis ()));
+    assertFalse (aStore.isStored (sMessageID));
+    assertEquals (1, aStore.getEvictedCount ());
+    assertEquals (0, aStore.expireReservations (System.currentTimeMillis ()));
+  }
+
+  @Test
+  public void testExpiredOnAccess ()
+  {
+    final MessageMetadataRAMStore aStore = new MessageMetadataRAMStore (60000);
+    final String sMessageID = "uuid:ramstore-expired-access";
+    final String sMessageID2 = "uuid:ramstore-expired-access2";
+    // Created long ago - no create afterwards triggers the eviction
+    assertTrue (aStore.createResource (sMessageID, _createMessage (sMessageID, 0)).isChanged ());
+    assertTrue (aStore.createResource (sMessageID2, _createMessage (sMessageID2, 0)).isChanged ());
+
+    assertNull (aStore.getMessage (sMessageID));
+    assertFalse (aStore.isStored (sMessageID2));
+    assertEquals (0, aStore.getReservationCount ());
+    assertEquals (2, aStore.getEvictedCount ());
+    // The stale queue entries are discarded
+    assertEquals (0, aStore.expireReservations (System.currentTimeMillis ()));
+  }
+
+  private static void _runInThreads (final int nThreads, @Nonnull final IntConsumer aTask) throws Exception
+  {
+    final CountDownLatch aStart = new CountDownLatch (1);
+    final AtomicReference <Throwable> aError = new AtomicReference <> ();
+    final List <Thread> aThreads = new ArrayList <> ();
+    for (int t = 0; t < nThreads; ++t)
+    {
+      final int nThread = t;
+      final Thread aThread = new Thread ( () -> {
+        try
+        {
+          aStart.await ();
+          aTask.accept (nThread);
+        }
+        catch (final Throwable ex)
+        {
+          aError.compareAndSet (null, ex);
+        }
+      });
+      aThreads.add (aThread);
+      aThread.start ();
+    }
+    aStart.countDown ();
+    for (final Thread aThread : aThreads)
+      aThread.join ();
+    if (aError.get () != null)
+      throw new AssertionError ("Thread failed", aError.get ());
+  }
+
+  /**
+   * All threads create and read the same set of message IDs. Each ID may only
+   * be created once and all threads must see the created message. Afterwards
+   * all threads remove the same IDs concurrently.
+   *
+   * @throws Exception
+   *         on error
+   */
+  @Test
+  public void testConcurrent () throws Exception
+  {
+    final MessageMetadataRAMStore aStore = new MessageMetadataRAMStore (60000);
+    final int nIDs = 1000;
+    final int nThreads = 16;
+    final ConcurrentMap <String, PendingMessage> aCreated = new ConcurrentHashMap <> ();
+    final AtomicInteger aDuplicates = new AtomicInteger (0);
+    final AtomicInteger aMissing = new AtomicInteger (0);
+    _runInThreads (nThreads, t -> {
+      for (int i = 0; i < nIDs; ++i)
+      {
+        final String sMessageID = "uuid:ramstore-" + i;
+        final PendingMessage aMessage = _createMessage (sMessageID);
+        if (aStore.createResource (sMessageID, aMessage).isChanged ())
+          if (aCreated.putIfAbsent (sMessageID, aMessage) != null)
+            aDuplicates.incrementAndGet ();
+        if (aStore.getMessage (sMessageID) == null)
+          aMissing.incrementAndGet ();
+      }
+    });
+    assertEquals (0, aDuplicates.get ());
+    assertEquals (0, aMissing.get ());
+    assertEquals (nIDs, aCreated.size ());
+    assertEquals (nIDs, aStore.getReservationCount ());
+    for (final Map.Entry <String, PendingMessage> aEntry : aCreated.entrySet ())
+      assertSame (aEntry.getValue (), aStore.getMessage (aEntry.getKey ()));
+
+    _runInThreads (nThreads, t -> {
+      for (int i = 0; i < nIDs; ++i)
+        aStore.removeMessage ("uuid:ramstore-" + i);
+    });
+    assertEquals (0, aStore.getReservationCount ());
+    for (int i = 0; i < nIDs; ++i)
+      assertFalse (aStore.isStored ("uuid:ramstore-" + i));
+    assertEquals (0, aStore.getEvictedCount ());
+  }
+
+  /**
+   * Expired messages are created and evicted by all threads concurrently.
+   * Every expired message must be evicted exactly once.
+   *
+   * @throws Exception
+   *         on error
+   */
+  @Test
+  public void testConcurrentExpiry () throws Exception
+  {
+    final MessageMetadataRAMStore aStore = new MessageMetadataRAMStore (60000);
+    final int nIDs = 500;
+    final int nThreads = 16;
+    _runInThreads (nThreads, t -> {
+      for (int i = 0; i < nIDs; ++i)
+      {
+        // Each message is created by one thread only
+        final String sMessageID = "uuid:ramstore-expired-" + t + "-" + i;
+        assertTrue (aStore.createResource (sMessageID, _createMessage (sMessageID, 0)).isChanged ());
+        aStore.expireReservations (System.currentTimeMillis ());
+      }
+    });
+    aStore.expireReservations (System.currentTimeMillis ());
+
+    assertEquals (nThreads * nIDs, aStore.getEvictedCount ());
+    assertEquals (0, aStore.getReservationCount ());
+
+    // Current messages are kept
+    final String sMessageID = "uuid:ramstore-current";
+    assertTrue (aStore.createResource (sMessageID, _createMessage (sMessageID)).isChanged ());
+    assertEquals (0, aStore.expireReservations (System.currentTimeMillis ()));
+    assertTrue (aStore.isStored (sMessageID));
+  }
+}
@@ -0,0 +1,108 @@
+/**
+ * Copyright (C) 2015-2016 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Version: MPL 1.1/EUPL 1.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at:
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is Copyright The PEPPOL project (http://www.peppol.eu)
+ *
+ * Alternatively, the contents of this file may be used under the
+ * terms of the EUPL, Version 1.1 or - as soon they will be approved
+ * by the European Commission - subsequent versions of the EUPL
+ * (the "Licence"); You may not use this work except in compliance
+ * with the Licence.
+ * You may obtain a copy of the Licence at:
+ * http://joinup.ec.europa.eu/software/page/eupl/licence-eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ *
+ * If you wish to allow use of your version of this file only
+ * under the terms of the EUPL License and not to allow others to use
+ * your version of this file under the MPL, indicate your decision by
+ * deleting the provisions above and replace them with the notice and
+ * other provisions required by the EUPL License. If you do not delete
+ * the provisions above, a recipient may use your version of this file
+ * under either the MPL or the EUPL License.
+ */
+package com.helger.peppol.lime.server.metadata;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import com.helger.peppol.lime.api.CLIME;
+import com.helger.peppol.lime.api.IMessageMetadata;
+import com.helger.peppol.lime.api.MessageMetadata;
+
+/**
+ * Test class for class {@link MessageMetadataTokenCodec}.
+ *
+ * @author Philip Helger
+ */
+public final class MessageMetadataTokenCodecTest
+{
+  private static final String SECRET = "0123456789abcdef-secret";
+
+  private static final IMessageMetadata METADATA = new MessageMetadata ("uuid:token-test",
+                                                                        "chid",
+                                                                        CLIME.IF.createParticipantIdentifierWithDefaultScheme ("0088:sender"),
+                                                                        CLIME.IF.createParticipantIdentifierWithDefaultScheme ("0088:receiver"),
+                                                                        CLIME.IF.createDocumentTypeIdentifierWithDefaultScheme ("doc"),
+                                                                        CLIME.IF.createProcessIdentifierWithDefaultScheme ("proc"));
+
+  @Test
+  public void testRoundTrip ()
+  {
+    final MessageMetadataTokenCodec aCodec = new MessageMetadataTokenCodec (SECRET, 60000);
+    final String sToken = aCodec.createToken (METADATA, 1000);
+    assertTrue (MessageMetadataTokenCodec.isToken (sToken));
+    assertFalse (MessageMetadataTokenCodec.isToken (METADATA.getMessageID ()));
+
+    final IMessageMetadata aDecoded = aCodec.parseToken (sToken, 2000);
+    assertNotNull (aDecoded);
+    assertEquals (METADATA.getMessageID (), aDecoded.getMessageID ());
+    assertEquals (METADATA.getChannelID (), aDecoded.getChannelID ());
+    assertEquals (METADATA.getRecipientID ().getValue (), aDecoded.getRecipientID ().getValue ());
+
+    // Another node with the same secret
+    assertNotNull (new MessageMetadataTokenCodec (SECRET, 60000).parseToken (sToken, 2000));
+  }
+
+  @Test
+  public void testInvalid ()
+  {
+    final MessageMetadataTokenCodec aCodec = new MessageMetadataTokenCodec (SECRET, 60000);
+    final String sToken = aCodec.createToken (METADATA, 1000);
+
+    // Expired
+    assertNull (aCodec.parseToken (sToken, 61000));
+    // Other secret
+    assertNull (new MessageMetadataTokenCodec (SECRET + "x", 60000).parseToken (sToken, 2000));
+    // Modified data
+    final int nIndex = MessageMetadataTokenCodec.TOKEN_PREFIX.length () + 20;
+    final char cReplacement = sToken.charAt (nIndex) == 'A' ? 'B' : 'A';
+    assertNull (aCodec.parseToken (sToken.substring (0, nIndex) + cReplacement + sToken.substring (nIndex + 1), 2000));
+    // Malformed
+    assertNull (aCodec.parseToken (null, 2000));
+    assertNull (aCodec.parseToken ("lime:", 2000));
+    assertNull (aCodec.parseToken ("lime:!!!.???", 2000));
+  }
+}
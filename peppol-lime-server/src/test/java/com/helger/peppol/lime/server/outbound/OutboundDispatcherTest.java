@@ -0,0 +1,170 @@
+/**
+ * Copyright (C) 2015-2016 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Version: MPL 1.1/EUPL 1.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at:
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is Copyright The PEPPOL project (http://www.peppol.eu)
+ *
+ * Alternatively, the contents of this file may be used under the
+ * terms of the EUPL, Version 1.1 or - as soon they will be approved
+ * by the European Commission - subsequent versions of the EUPL
+ * (the "Licence"); You may not use this work except in compliance
+ * with the Licence.
+ * You may obtain a copy of the Licence at:
+ * http://joinup.ec.europa.eu/software/page/eupl/licence-eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ *
+ * If you wish to allow use of your version of this file only
+ * under the terms of the EUPL License and not to allow others to use
+ * your version of this file under the MPL, indicate your decision by
+ * deleting the provisions above and replace them with the notice and
+ * other provisions required by the EUPL License. If you do not delete
+ * the provisions above, a recipient may use your version of this file
+ * under either the MPL or the EUPL License.
+ */
+package com.helger.peppol.lime.server.outbound;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.helger.commons.io.file.FileOperations;
+
+/**
+ * Test class for class {@link OutboundDispatcher}.
+ *
+ * @author Philip Helger
+ */
+public final class OutboundDispatcherTest
+{
+  private File m_aDir;
+
+  @Before
+  public void setUp () throws Exception
+  {
+    m_aDir = Files.createTempDirectory ("lime-dispatcher").toFile ();
+  }
+
+  @After
+  public void tearDown ()
+  {
+    FileOperations.deleteDirRecursive (m_aDir);
+  }
+
+  @Test
+  public void testRecoverMoreThanQueueCapacity () throws Exception
+  {
+    final int nCount = 10;
+    final OutboundSpool aSpool = new OutboundSpool (m_aDir);
+    for (int i = 0; i < nCount; ++i)
+      aSpool.write (OutboundSpoolTest.createMetadata ("uuid:dispatch-" + i),
+                    OutboundSpoolTest.createPayload (Integer.toString (i)));
+
+    final CountDownLatch aRelease = new CountDownLatch (1);
+    final CountDownLatch aAllSent = new CountDownLatch (nCount);
+    final Set <String> aSent = ConcurrentHashMap.newKeySet ();
+    final OutboundDispatcher aDispatcher = new OutboundDispatcher (aSpool, 1, 2, (aMetadata, aPayload) -> {
+      aRelease.await ();
+      aSent.add (aMetadata.getMessageID ());
+      aAllSent.countDown ();
+    }, (aMetadata, aPayload, ex) -> {});
+    try
+    {
+      aDispatcher.recover ();
+      // One is being delivered, two are queued
+      assertEquals (nCount - 3, aDispatcher.getBacklogSize ());
+
+      // The backlog is submitted as deliveries finish
+      aRelease.countDown ();
+      assertTrue (aAllSent.await (10, TimeUnit.SECONDS));
+      assertEquals (nCount, aSent.size ());
+      assertEquals (0, aDispatcher.getBacklogSize ());
+    }
+    finally
+    {
+      aDispatcher.shutdown (TimeUnit.SECONDS.toMillis (10));
+    }
+    assertEquals (nCount, aDispatcher.getDeliveredCount ());
+    // Delivered messages are removed from the spool
+    assertEquals (0, aSpool.recover ().size ());
+  }
+
+  @Test
+  public void testFailedDeliveryIsReported () throws Exception
+  {
+    final OutboundSpool aSpool = new OutboundSpool (m_aDir);
+    final CountDownLatch aFailed = new CountDownLatch (1);
+    final OutboundDispatcher aDispatcher = new OutboundDispatcher (aSpool, 1, 1, (aMetadata, aPayload) -> {
+      throw new IllegalStateException ("unreachable");
+    }, (aMetadata, aPayload, ex) -> aFailed.countDown ());
+    try
+    {
+      aDispatcher.enqueue (OutboundSpoolTest.createMetadata ("uuid:dispatch-fail"),
+                           OutboundSpoolTest.createPayload ("1"));
+      assertTrue (aFailed.await (10, TimeUnit.SECONDS));
+    }
+    finally
+    {
+      aDispatcher.shutdown (TimeUnit.SECONDS.toMillis (10));
+    }
+    assertEquals (1, aDispatcher.getFailedCount ());
+    assertEquals (0, aSpool.recover ().size ());
+  }
+
+  @Test
+  public void testFailingFailureHandlerKeepsMessage () throws Exception
+  {
+    final OutboundSpool aSpool = new OutboundSpool (m_aDir);
+    for (int i = 0; i < 3; ++i)
+      aSpool.write (OutboundSpoolTest.createMetadata ("uuid:dispatch-" + i),
+                    OutboundSpoolTest.createPayload (Integer.toString (i)));
+
+    final CountDownLatch aAllFailed = new CountDownLatch (3);
+    final OutboundDispatcher aDispatcher = new OutboundDispatcher (aSpool, 1, 1, (aMetadata, aPayload) -> {
+      throw new IllegalStateException ("unreachable");
+    }, (aMetadata, aPayload, ex) -> {
+      aAllFailed.countDown ();
+      throw new IllegalStateException ("handler failed");
+    });
+    try
+    {
+      aDispatcher.recover ();
+      // The backlog is still submitted
+      assertTrue (aAllFailed.await (10, TimeUnit.SECONDS));
+    }
+    finally
+    {
+      aDispatcher.shutdown (TimeUnit.SECONDS.toMillis (10));
+    }
+    assertEquals (3, aDispatcher.getFailedCount ());
+    assertEquals (0, aDispatcher.getBacklogSize ());
+    // Nothing was lost
+    assertEquals (3, aSpool.recover ().size ());
+  }
+}
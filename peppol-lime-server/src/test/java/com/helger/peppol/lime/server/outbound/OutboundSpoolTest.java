@@ -0,0 +1,176 @@
+/**
+ * Copyright (C) 2015-2016 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Version: MPL 1.1/EUPL 1.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at:
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is Copyright The PEPPOL project (http://www.peppol.eu)
+ *
+ * Alternatively, the contents of this file may be used under the
+ * terms of the EUPL, Version 1.1 or - as soon they will be approved
+ * by the European Commission - subsequent versions of the EUPL
+ * (the "Licence"); You may not use this work except in compliance
+ * with the Licence.
+ * You may obtain a copy of the Licence at:
+ * http://joinup.ec.europa.eu/software/page/eupl/licence-eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ *
+ * If you wish to allow use of your version of this file only
+ * under the terms of the EUPL License and not to allow others to use
+ * your version of this file under the MPL, indicate your decision by
+ * deleting the provisions above and replace them with the notice and
+ * other provisions required by the EUPL License. If you do not delete
+ * the provisions above, a recipient may use your version of this file
+ * under either the MPL or the EUPL License.
+ */
+package com.helger.peppol.lime.server.outbound;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.List;
+
+import javax.annotation.Nonnull;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+
+import com.helger.commons.io.file.FileOperations;
+import com.helger.peppol.lime.api.CLIME;
+import com.helger.peppol.lime.api.IMessageMetadata;
+import com.helger.peppol.lime.api.MessageMetadata;
+import com.helger.xml.XMLFactory;
+
+/**
+ * Test class for class {@link OutboundSpool}.
+ *
+ * @author Philip Helger
+ */
+public final class OutboundSpoolTest
+{
+  private File m_aDir;
+
+  @Before
+  public void setUp () throws Exception
+  {
+    m_aDir = Files.createTempDirectory ("lime-spool").toFile ();
+  }
+
+  @After
+  public void tearDown ()
+  {
+    FileOperations.deleteDirRecursive (m_aDir);
+  }
+
+  @Nonnull
+  static IMessageMetadata createMetadata (@Nonnull final String sMessageID)
+  {
+    return new MessageMetadata (sMessageID,
+                                "chid",
+                                CLIME.IF.createParticipantIdentifierWithDefaultScheme ("0088:sender"),
+                                CLIME.IF.createParticipantIdentifierWithDefaultScheme ("0088:receiver"),
+                                CLIME.IF.createDocumentTypeIdentifierWithDefaultScheme ("doc"),
+                                CLIME.IF.createProcessIdentifierWithDefaultScheme ("proc"));
+  }
+
+  @Nonnull
+  static Element createPayload (@Nonnull final String sID)
+  {
+    final Document aDoc = XMLFactory.newDocument ();
+    final Element aRoot = (Element) aDoc.appendChild (aDoc.createElementNS ("urn:test", "Invoice"));
+    aRoot.appendChild (aDoc.createElementNS ("urn:test", "ID")).appendChild (aDoc.createTextNode (sID));
+    return aRoot;
+  }
+
+  @Test
+  public void testWriteAndRead () throws Exception
+  {
+    final OutboundSpool aSpool = new OutboundSpool (m_aDir);
+    aSpool.write (createMetadata ("uuid:spool-1"), createPayload ("1"));
+    assertTrue (aSpool.contains ("uuid:spool-1"));
+    assertFalse (aSpool.contains ("uuid:spool-2"));
+    assertEquals ("1", aSpool.readPayload ("uuid:spool-1").getDocumentElement ().getTextContent ());
+
+    assertNull (aSpool.readState ("uuid:spool-1"));
+    aSpool.writeState ("uuid:spool-1", new byte [] { 1, 2, 3 });
+    assertArrayEquals (new byte [] { 1, 2, 3 }, aSpool.readState ("uuid:spool-1"));
+
+    // No temporary files are left
+    assertEquals (0, m_aDir.list ( (d, n) -> n.endsWith (OutboundSpool.EXT_TEMP)).length);
+
+    aSpool.delete ("uuid:spool-1");
+    assertFalse (aSpool.contains ("uuid:spool-1"));
+    assertNull (aSpool.readState ("uuid:spool-1"));
+    assertEquals (0, m_aDir.list ().length);
+  }
+
+  @Test
+  public void testRecover () throws Exception
+  {
+    OutboundSpool aSpool = new OutboundSpool (m_aDir);
+    aSpool.write (createMetadata ("uuid:spool-1"), createPayload ("1"));
+    aSpool.write (createMetadata ("uuid:spool-2"), createPayload ("2"));
+
+    // Leftovers of incomplete writes
+    final File aTmpFile = new File (m_aDir, "uuid_spool-3" + OutboundSpool.EXT_PAYLOAD + OutboundSpool.EXT_TEMP);
+    Files.write (aTmpFile.toPath (), "<x/>".getBytes (StandardCharsets.UTF_8));
+    final File aStateFile = new File (m_aDir, "uuid_spool-4" + OutboundSpool.EXT_STATE);
+    Files.write (aStateFile.toPath (), new byte [] { 1 });
+    final File aMetadataFile = new File (m_aDir, "uuid_spool-2" + OutboundSpool.EXT_METADATA);
+    new File (m_aDir, "uuid_spool-2" + OutboundSpool.EXT_PAYLOAD).delete ();
+
+    // Simulate a restart
+    aSpool = new OutboundSpool (m_aDir);
+    final List <IMessageMetadata> aRecovered = aSpool.recover ();
+    assertEquals (1, aRecovered.size ());
+    assertEquals ("uuid:spool-1", aRecovered.get (0).getMessageID ());
+    assertEquals ("chid", aRecovered.get (0).getChannelID ());
+    assertFalse (aTmpFile.exists ());
+    assertFalse (aStateFile.exists ());
+    assertFalse (aMetadataFile.exists ());
+  }
+
+  @Test
+  public void testRecoverDeletesOrphanedPayload () throws Exception
+  {
+    OutboundSpool aSpool = new OutboundSpool (m_aDir);
+    aSpool.write (createMetadata ("uuid:spool-1"), createPayload ("1"));
+    aSpool.write (createMetadata ("uuid:spool-2"), createPayload ("2"));
+
+    // Crash between deleting the metadata and the payload
+    new File (m_aDir, "uuid_spool-2" + OutboundSpool.EXT_METADATA).delete ();
+    final File aPayloadFile = new File (m_aDir, "uuid_spool-2" + OutboundSpool.EXT_PAYLOAD);
+    assertTrue (aPayloadFile.exists ());
+
+    aSpool = new OutboundSpool (m_aDir);
+    final List <IMessageMetadata> aRecovered = aSpool.recover ();
+    assertEquals (1, aRecovered.size ());
+    assertEquals ("uuid:spool-1", aRecovered.get (0).getMessageID ());
+    assertFalse (aPayloadFile.exists ());
+    assertTrue (aSpool.contains ("uuid:spool-1"));
+  }
+}
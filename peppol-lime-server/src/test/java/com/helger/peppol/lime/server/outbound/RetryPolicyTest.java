@@ -0,0 +1,91 @@
+/**
+ * Copyright (C) 2015-2016 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Version: MPL 1.1/EUPL 1.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at:
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is Copyright The PEPPOL project (http://www.peppol.eu)
+ *
+ * Alternatively, the contents of this file may be used under the
+ * terms of the EUPL, Version 1.1 or - as soon they will be approved
+ * by the European Commission - subsequent versions of the EUPL
+ * (the "Licence"); You may not use this work except in compliance
+ * with the Licence.
+ * You may obtain a copy of the Licence at:
+ * http://joinup.ec.europa.eu/software/page/eupl/licence-eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ *
+ * If you wish to allow use of your version of this file only
+ * under the terms of the EUPL License and not to allow others to use
+ * your version of this file under the MPL, indicate your decision by
+ * deleting the provisions above and replace them with the notice and
+ * other provisions required by the EUPL License. If you do not delete
+ * the provisions above, a recipient may use your version of this file
+ * under either the MPL or the EUPL License.
+ */
+package com.helger.peppol.lime.server.outbound;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ * Test class for class {@link RetryPolicy}.
+ *
+ * @author Philip Helger
+ */
+public final class RetryPolicyTest
+{
+  @Test
+  public void testBackoff ()
+  {
+    final RetryPolicy aPolicy = new RetryPolicy (5, 1000, 5000, 0);
+    assertTrue (aPolicy.isRetryEnabled ());
+    assertEquals (1000, aPolicy.getDelayMillis (1));
+    assertEquals (2000, aPolicy.getDelayMillis (2));
+    assertEquals (4000, aPolicy.getDelayMillis (3));
+    // Capped
+    assertEquals (5000, aPolicy.getDelayMillis (4));
+    assertEquals (5000, aPolicy.getDelayMillis (100));
+
+    assertTrue (aPolicy.canRetry (4));
+    assertFalse (aPolicy.canRetry (5));
+  }
+
+  @Test
+  public void testJitter ()
+  {
+    final RetryPolicy aPolicy = new RetryPolicy (5, 1000, 60000, 20);
+    for (int i = 0; i < 100; ++i)
+    {
+      final long nDelay = aPolicy.getDelayMillis (2);
+      assertTrue (nDelay >= 1600);
+      assertTrue (nDelay <= 2000);
+    }
+  }
+
+  @Test
+  public void testNoRetry ()
+  {
+    final RetryPolicy aPolicy = new RetryPolicy (1, 1000, 1000, 0);
+    assertFalse (aPolicy.isRetryEnabled ());
+    assertFalse (aPolicy.canRetry (1));
+  }
+}
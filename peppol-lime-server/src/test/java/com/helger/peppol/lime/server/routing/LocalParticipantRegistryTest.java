@@ -0,0 +1,172 @@
+/**
+ * Copyright (C) 2015-2016 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Version: MPL 1.1/EUPL 1.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at:
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is Copyright The PEPPOL project (http://www.peppol.eu)
+ *
+ * Alternatively, the contents of this file may be used under the
+ * terms of the EUPL, Version 1.1 or - as soon they will be approved
+ * by the European Commission - subsequent versions of the EUPL
+ * (the "Licence"); You may not use this work except in compliance
+ * with the Licence.
+ * You may obtain a copy of the Licence at:
+ * http://joinup.ec.europa.eu/software/page/eupl/licence-eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ *
+ * If you wish to allow use of your version of this file only
+ * under the terms of the EUPL License and not to allow others to use
+ * your version of this file under the MPL, indicate your decision by
+ * deleting the provisions above and replace them with the notice and
+ * other provisions required by the EUPL License. If you do not delete
+ * the provisions above, a recipient may use your version of this file
+ * under either the MPL or the EUPL License.
+ */
+package com.helger.peppol.lime.server.routing;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+import javax.annotation.Nonnull;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.helger.commons.io.file.FileOperations;
+import com.helger.peppol.identifier.generic.participant.IParticipantIdentifier;
+import com.helger.peppol.lime.api.CLIME;
+
+/**
+ * Test class for class {@link LocalParticipantRegistry}.
+ *
+ * @author Philip Helger
+ */
+public final class LocalParticipantRegistryTest
+{
+  private File m_aDir;
+  private File m_aFile;
+
+  @Before
+  public void setUp () throws Exception
+  {
+    m_aDir = Files.createTempDirectory ("lime-participants").toFile ();
+    m_aFile = new File (m_aDir, "participants.txt");
+  }
+
+  @After
+  public void tearDown ()
+  {
+    FileOperations.deleteDirRecursive (m_aDir);
+  }
+
+  @Nonnull
+  private static IParticipantIdentifier _createParticipant (@Nonnull final String sValue)
+  {
+    return CLIME.IF.createParticipantIdentifierWithDefaultScheme (sValue);
+  }
+
+  private void _writeFile (@Nonnull final byte [] aContent, final long nLastModified) throws Exception
+  {
+    Files.write (m_aFile.toPath (), aContent);
+    // The file system resolution may be too coarse to notice the change
+    assertTrue (m_aFile.setLastModified (nLastModified));
+  }
+
+  private void _writeFile (@Nonnull final String sContent, final long nLastModified) throws Exception
+  {
+    _writeFile (sContent.getBytes (StandardCharsets.UTF_8), nLastModified);
+  }
+
+  @Test
+  public void testReload () throws Exception
+  {
+    _writeFile ("# comment\niso6523-actorid-upis::0088:123\n\n ISO6523-ACTORID-UPIS::0088:ABC \n", 10000);
+    final LocalParticipantRegistry aRegistry = new LocalParticipantRegistry (m_aFile, 0);
+    assertEquals (2, aRegistry.getParticipantCount ());
+    assertTrue (aRegistry.isLocalParticipant (_createParticipant ("0088:123")));
+    assertTrue (aRegistry.isLocalParticipant (_createParticipant ("0088:abc")));
+    assertFalse (aRegistry.isLocalParticipant (_createParticipant ("0088:456")));
+    assertFalse (aRegistry.isLocalParticipant (null));
+
+    _writeFile ("iso6523-actorid-upis::0088:456\n", 20000);
+    assertTrue (aRegistry.isLocalParticipant (_createParticipant ("0088:456")));
+    assertFalse (aRegistry.isLocalParticipant (_createParticipant ("0088:123")));
+    assertEquals (1, aRegistry.getParticipantCount ());
+  }
+
+  @Test
+  public void testCheckInterval () throws Exception
+  {
+    _writeFile ("iso6523-actorid-upis::0088:123\n", 10000);
+    final LocalParticipantRegistry aRegistry = new LocalParticipantRegistry (m_aFile, 60000);
+
+    // Not checked again within the interval
+    _writeFile ("iso6523-actorid-upis::0088:456\n", 20000);
+    assertFalse (aRegistry.isLocalParticipant (_createParticipant ("0088:456")));
+
+    aRegistry.reloadIfModified ();
+    assertTrue (aRegistry.isLocalParticipant (_createParticipant ("0088:456")));
+  }
+
+  @Test
+  public void testUnreadableFileKeepsParticipants () throws Exception
+  {
+    _writeFile ("iso6523-actorid-upis::0088:123\n", 10000);
+    final LocalParticipantRegistry aRegistry = new LocalParticipantRegistry (m_aFile, 0);
+
+    // Not valid UTF-8
+    _writeFile (new byte [] { 'i', 's', 'o', (byte) 0xc3, (byte) 0x28, '\n' }, 20000);
+    assertTrue (aRegistry.isLocalParticipant (_createParticipant ("0088:123")));
+    assertEquals (1, aRegistry.getParticipantCount ());
+
+    // Fixed file is read again
+    _writeFile ("iso6523-actorid-upis::0088:456\n", 30000);
+    assertTrue (aRegistry.isLocalParticipant (_createParticipant ("0088:456")));
+  }
+
+  @Test
+  public void testDeletedFileKeepsParticipants () throws Exception
+  {
+    _writeFile ("iso6523-actorid-upis::0088:123\n", 10000);
+    final LocalParticipantRegistry aRegistry = new LocalParticipantRegistry (m_aFile, 0);
+
+    assertTrue (m_aFile.delete ());
+    assertTrue (aRegistry.isLocalParticipant (_createParticipant ("0088:123")));
+    assertEquals (1, aRegistry.getParticipantCount ());
+
+    // Recreated file is read again
+    _writeFile ("iso6523-actorid-upis::0088:456\n", 20000);
+    assertTrue (aRegistry.isLocalParticipant (_createParticipant ("0088:456")));
+    assertFalse (aRegistry.isLocalParticipant (_createParticipant ("0088:123")));
+  }
+
+  @Test
+  public void testMissingFile ()
+  {
+    final LocalParticipantRegistry aRegistry = new LocalParticipantRegistry (m_aFile, 0);
+    assertEquals (0, aRegistry.getParticipantCount ());
+    assertFalse (aRegistry.isLocalParticipant (_createParticipant ("0088:123")));
+  }
+}
@@ -0,0 +1,316 @@
+/**
+ * Copyright (C) 2015-2016 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Version: MPL 1.1/EUPL 1.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at:
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is Copyright The PEPPOL project (http://www.peppol.eu)
+ *
+ * Alternatively, the contents of this file may be used under the
+ * terms of the EUPL, Version 1.1 or - as soon they will be approved
+ * by the European Commission - subsequent versions of the EUPL
+ * (the "Licence"); You may not use this work except in compliance
+ * with the Licence.
+ * You may obtain a copy of the Licence at:
+ * http://joinup.ec.europa.eu/software/page/eupl/licence-eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ *
+ * If you wish to allow use of your version of this file only
+ * under the terms of the EUPL License and not to allow others to use
+ * your version of this file under the MPL, indicate your decision by
+ * deleting the provisions above and replace them with the notice and
+ * other provisions required by the EUPL License. If you do not delete
+ * the provisions above, a recipient may use your version of this file
+ * under either the MPL or the EUPL License.
+ */
+package com.helger.peppol.lime.server.routing;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.annotation.Nonnull;
+
+import org.junit.Test;
+
+import com.helger.peppol.identifier.generic.participant.IParticipantIdentifier;
+import com.helger.peppol.lime.api.CLIME;
+import com.helger.peppol.lime.api.IMessageMetadata;
+import com.helger.peppol.lime.api.MessageMetadata;
+import com.helger.peppol.lime.server.smp.ISMPEndpointQuery;
+import com.helger.peppol.lime.server.smp.SMPEndpointCache;
+import com.helger.peppol.lime.server.smp.SMPEndpointResolver;
+import com.helger.peppol.sml.ESML;
+import com.helger.peppol.smp.ESMPTransportProfile;
+import com.helger.peppol.smp.EndpointType;
+
+/**
+ * Test class for class {@link MessageRoutingResolver}.
+ *
+ * @author Philip Helger
+ */
+public final class MessageRoutingResolverTest
+{
+  private static final EndpointType SENDER_ENDPOINT = new EndpointType ();
+  private static final EndpointType RECIPIENT_ENDPOINT = new EndpointType ();
+
+  @Nonnull
+  private static IMessageMetadata _createMetadata ()
+  {
+    return new MessageMetadata ("msg:1",
+                                "chid",
+                                CLIME.IF.createParticipantIdentifierWithDefaultScheme ("0088:sender"),
+                                CLIME.IF.createParticipantIdentifierWithDefaultScheme ("0088:receiver"),
+                                CLIME.IF.createDocumentTypeIdentifierWithDefaultScheme ("doc"),
+                                CLIME.IF.createProcessIdentifierWithDefaultScheme ("proc"));
+  }
+
+  private static boolean _isSender (@Nonnull final IParticipantIdentifier aParticipantID)
+  {
+    return aParticipantID.getURIEncoded ().equals (_createMetadata ().getSenderID ().getURIEncoded ());
+  }
+
+  @Nonnull
+  private static SMPEndpointResolver _createResolver (@Nonnull final ISMPEndpointQuery aQuery)
+  {
+    // No negative caching, so that failed lookups are repeated
+    return new SMPEndpointResolver (new SMPEndpointCache (10, 60000, 0), 2, aQuery);
+  }
+
+  @Nonnull
+  private static MessageRoutingResolver _createRoutingResolver (@Nonnull final SMPEndpointResolver aResolver)
+  {
+    return new MessageRoutingResolver (aResolver, ESML.DIGIT_TEST, ESMPTransportProfile.TRANSPORT_PROFILE_AS2);
+  }
+
+  private static long _getDeadline ()
+  {
+    return System.currentTimeMillis () + 10000;
+  }
+
+  /**
+   * Each lookup only returns after the other one started, so sequential
+   * lookups would fail.
+   *
+   * @throws Exception
+   *         on error
+   */
+  @Test
+  public void testParallelLookups () throws Exception
+  {
+    final CyclicBarrier aBothStarted = new CyclicBarrier (2);
+    final SMPEndpointResolver aResolver = _createResolver ( (p, d, pr, s, t) -> {
+      try
+      {
+        aBothStarted.await (10, TimeUnit.SECONDS);
+      }
+      catch (final Exception ex)
+      {
+        throw new IllegalStateException ("Lookups are not performed in parallel", ex);
+      }
+      return _isSender (p) ? SENDER_ENDPOINT : RECIPIENT_ENDPOINT;
+    });
+    try
+    {
+      final IMessageMetadata aMetadata = _createMetadata ();
+      final MessageRouting aRouting = _createRoutingResolver (aResolver).startRouting (aMetadata, null, true);
+      assertSame (SENDER_ENDPOINT, MessageRoutingResolver.waitForSenderEndpoint (aRouting, _getDeadline (), aMetadata));
+      assertSame (RECIPIENT_ENDPOINT,
+                  MessageRoutingResolver.waitForRecipientEndpoint (aRouting, _getDeadline (), aMetadata));
+      assertEquals (2, aResolver.getSMPQueryCount ());
+    }
+    finally
+    {
+      aResolver.shutdown ();
+    }
+  }
+
+  @Test
+  public void testWithoutSender () throws Exception
+  {
+    final SMPEndpointResolver aResolver = _createResolver ( (p, d, pr, s, t) -> _isSender (p) ? SENDER_ENDPOINT
+                                                                                             : RECIPIENT_ENDPOINT);
+    try
+    {
+      final IMessageMetadata aMetadata = _createMetadata ();
+      final MessageRouting aRouting = _createRoutingResolver (aResolver).startRouting (aMetadata, null, false);
+      assertNull (aRouting.getSenderEndpoint ());
+      assertSame (RECIPIENT_ENDPOINT,
+                  MessageRoutingResolver.waitForRecipientEndpoint (aRouting, _getDeadline (), aMetadata));
+      assertEquals (1, aResolver.getSMPQueryCount ());
+    }
+    finally
+    {
+      aResolver.shutdown ();
+    }
+  }
+
+  @Test
+  public void testPrefetchedRoutingIsUsed () throws Exception
+  {
+    final AtomicInteger aQueries = new AtomicInteger (0);
+    // Nothing is cached, so every lookup is a query
+    final SMPEndpointResolver aResolver = new SMPEndpointResolver (new SMPEndpointCache (0, 60000, 0),
+                                                                   2,
+                                                                   (p, d, pr, s, t) -> {
+                                                                     aQueries.incrementAndGet ();
+                                                                     return _isSender (p) ? SENDER_ENDPOINT
+                                                                                          : RECIPIENT_ENDPOINT;
+                                                                   });
+    try
+    {
+      final IMessageMetadata aMetadata = _createMetadata ();
+      final MessageRoutingResolver aRoutingResolver = _createRoutingResolver (aResolver);
+      final MessageRouting aPrefetched = aRoutingResolver.startRouting (aMetadata, null, true);
+      MessageRoutingResolver.waitForRecipientEndpoint (aPrefetched, _getDeadline (), aMetadata);
+      MessageRoutingResolver.waitForSenderEndpoint (aPrefetched, _getDeadline (), aMetadata);
+      assertEquals (2, aQueries.get ());
+
+      final MessageRouting aRouting = aRoutingResolver.startRouting (aMetadata, aPrefetched, true);
+      assertSame (SENDER_ENDPOINT, MessageRoutingResolver.waitForSenderEndpoint (aRouting, _getDeadline (), aMetadata));
+      assertSame (RECIPIENT_ENDPOINT,
+                  MessageRoutingResolver.waitForRecipientEndpoint (aRouting, _getDeadline (), aMetadata));
+      assertEquals (2, aQueries.get ());
+    }
+    finally
+    {
+      aResolver.shutdown ();
+    }
+  }
+
+  @Test
+  public void testFailedPrefetchIsLookedUpAgain () throws Exception
+  {
+    final AtomicInteger aQueries = new AtomicInteger (0);
+    final SMPEndpointResolver aResolver = _createResolver ( (p, d, pr, s, t) -> {
+      aQueries.incrementAndGet ();
+      return _isSender (p) ? SENDER_ENDPOINT : RECIPIENT_ENDPOINT;
+    });
+    try
+    {
+      final IMessageMetadata aMetadata = _createMetadata ();
+      // The sender lookup failed, the recipient was not found
+      final CompletableFuture <EndpointType> aFailedSender = new CompletableFuture <> ();
+      aFailedSender.completeExceptionally (new IllegalStateException ("SMP is down"));
+      final MessageRouting aPrefetched = new MessageRouting (aFailedSender, CompletableFuture.completedFuture (null));
+
+      final MessageRouting aRouting = _createRoutingResolver (aResolver).startRouting (aMetadata, aPrefetched, true);
+      assertSame (SENDER_ENDPOINT, MessageRoutingResolver.waitForSenderEndpoint (aRouting, _getDeadline (), aMetadata));
+      assertSame (RECIPIENT_ENDPOINT,
+                  MessageRoutingResolver.waitForRecipientEndpoint (aRouting, _getDeadline (), aMetadata));
+      assertEquals (2, aQueries.get ());
+    }
+    finally
+    {
+      aResolver.shutdown ();
+    }
+  }
+
+  @Test
+  public void testPrefetchWithoutSender () throws Exception
+  {
+    final AtomicInteger aQueries = new AtomicInteger (0);
+    final SMPEndpointResolver aResolver = _createResolver ( (p, d, pr, s, t) -> {
+      aQueries.incrementAndGet ();
+      return _isSender (p) ? SENDER_ENDPOINT : RECIPIENT_ENDPOINT;
+    });
+    try
+    {
+      final IMessageMetadata aMetadata = _createMetadata ();
+      // Prefetched for a local participant registry
+      final MessageRouting aPrefetched = new MessageRouting (null,
+                                                             CompletableFuture.completedFuture (RECIPIENT_ENDPOINT));
+
+      final MessageRouting aRouting = _createRoutingResolver (aResolver).startRouting (aMetadata, aPrefetched, true);
+      assertSame (SENDER_ENDPOINT, MessageRoutingResolver.waitForSenderEndpoint (aRouting, _getDeadline (), aMetadata));
+      assertSame (RECIPIENT_ENDPOINT,
+                  MessageRoutingResolver.waitForRecipientEndpoint (aRouting, _getDeadline (), aMetadata));
+      // Only the sender was looked up
+      assertEquals (1, aQueries.get ());
+    }
+    finally
+    {
+      aResolver.shutdown ();
+    }
+  }
+
+  @Test
+  public void testSenderFailure () throws Exception
+  {
+    final SMPEndpointResolver aResolver = _createResolver ( (p, d, pr, s, t) -> _isSender (p) ? null
+                                                                                             : RECIPIENT_ENDPOINT);
+    try
+    {
+      final IMessageMetadata aMetadata = _createMetadata ();
+      final MessageRouting aRouting = _createRoutingResolver (aResolver).startRouting (aMetadata, null, true);
+      try
+      {
+        MessageRoutingResolver.waitForSenderEndpoint (aRouting, _getDeadline (), aMetadata);
+        fail ();
+      }
+      catch (final IllegalStateException ex)
+      {
+        // expected
+        assertTrue (ex.getMessage ().contains ("sender"));
+      }
+      assertSame (RECIPIENT_ENDPOINT,
+                  MessageRoutingResolver.waitForRecipientEndpoint (aRouting, _getDeadline (), aMetadata));
+    }
+    finally
+    {
+      aResolver.shutdown ();
+    }
+  }
+
+  @Test
+  public void testRecipientFailure () throws Exception
+  {
+    final SMPEndpointResolver aResolver = _createResolver ( (p, d, pr, s, t) -> {
+      if (!_isSender (p))
+        throw new IllegalStateException ("SMP is down");
+      return SENDER_ENDPOINT;
+    });
+    try
+    {
+      final IMessageMetadata aMetadata = _createMetadata ();
+      final MessageRouting aRouting = _createRoutingResolver (aResolver).startRouting (aMetadata, null, true);
+      assertSame (SENDER_ENDPOINT, MessageRoutingResolver.waitForSenderEndpoint (aRouting, _getDeadline (), aMetadata));
+      try
+      {
+        MessageRoutingResolver.waitForRecipientEndpoint (aRouting, _getDeadline (), aMetadata);
+        fail ();
+      }
+      catch (final IllegalStateException ex)
+      {
+        // expected
+        assertTrue (ex.getMessage ().contains ("recipient"));
+      }
+    }
+    finally
+    {
+      aResolver.shutdown ();
+    }
+  }
+}
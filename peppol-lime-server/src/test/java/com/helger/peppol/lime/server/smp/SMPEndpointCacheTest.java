@@ -0,0 +1,142 @@
+/**
+ * Copyright (C) 2015-2016 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Version: MPL 1.1/EUPL 1.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at:
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is Copyright The PEPPOL project (http://www.peppol.eu)
+ *
+ * Alternatively, the contents of this file may be used under the
+ * terms of the EUPL, Version 1.1 or - as soon they will be approved
+ * by the European Commission - subsequent versions of the EUPL
+ * (the "Licence"); You may not use this work except in compliance
+ * with the Licence.
+ * You may obtain a copy of the Licence at:
+ * http://joinup.ec.europa.eu/software/page/eupl/licence-eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ *
+ * If you wish to allow use of your version of this file only
+ * under the terms of the EUPL License and not to allow others to use
+ * your version of this file under the MPL, indicate your decision by
+ * deleting the provisions above and replace them with the notice and
+ * other provisions required by the EUPL License. If you do not delete
+ * the provisions above, a recipient may use your version of this file
+ * under either the MPL or the EUPL License.
+ */
+package com.helger.peppol.lime.server.smp;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import javax.annotation.Nonnull;
+
+import org.junit.Test;
+
+import com.helger.peppol.lime.api.CLIME;
+import com.helger.peppol.sml.ESML;
+import com.helger.peppol.smp.ESMPTransportProfile;
+import com.helger.peppol.smp.EndpointType;
+
+/**
+ * Test class for class {@link SMPEndpointCache}.
+ *
+ * @author Philip Helger
+ */
+public final class SMPEndpointCacheTest
+{
+  @Nonnull
+  private static SMPEndpointCacheKey _createKey (final String sParticipantID)
+  {
+    return new SMPEndpointCacheKey (CLIME.IF.createParticipantIdentifierWithDefaultScheme (sParticipantID),
+                                    CLIME.IF.createDocumentTypeIdentifierWithDefaultScheme ("doc"),
+                                    CLIME.IF.createProcessIdentifierWithDefaultScheme ("proc"),
+                                    ESML.DIGIT_TEST,
+                                    ESMPTransportProfile.TRANSPORT_PROFILE_AS2);
+  }
+
+  @Test
+  public void testBasic ()
+  {
+    final SMPEndpointCache aCache = new SMPEndpointCache (2, 60000, 10000);
+    assertTrue (aCache.isEnabled ());
+    assertNull (aCache.get (_createKey ("a")));
+    assertEquals (1, aCache.getMissCount ());
+
+    final EndpointType aEndpointA = new EndpointType ();
+    aCache.put (_createKey ("a"), aEndpointA);
+    assertSame (aEndpointA, aCache.get (_createKey ("a")));
+    assertEquals (1, aCache.getHitCount ());
+
+    // "b" and "c" are added - "a" was used before "b" so "a" is evicted
+    aCache.put (_createKey ("b"), new EndpointType ());
+    aCache.put (_createKey ("c"), new EndpointType ());
+    assertEquals (2, aCache.getSize ());
+    assertNull (aCache.get (_createKey ("a")));
+
+    aCache.clear ();
+    assertEquals (0, aCache.getSize ());
+  }
+
+  @Test
+  public void testLRU ()
+  {
+    final SMPEndpointCache aCache = new SMPEndpointCache (2, 60000, 10000);
+    aCache.put (_createKey ("a"), new EndpointType ());
+    aCache.put (_createKey ("b"), new EndpointType ());
+    // Access "a" so that "b" is the least recently used one
+    aCache.get (_createKey ("a"));
+    aCache.put (_createKey ("c"), new EndpointType ());
+    assertNull (aCache.get (_createKey ("b")));
+    assertEquals (2, aCache.getSize ());
+  }
+
+  @Test
+  public void testDisabled ()
+  {
+    final SMPEndpointCache aCache = new SMPEndpointCache (0, 60000, 10000);
+    assertFalse (aCache.isEnabled ());
+    aCache.put (_createKey ("a"), new EndpointType ());
+    assertNull (aCache.get (_createKey ("a")));
+    assertEquals (0, aCache.getSize ());
+  }
+
+  @Test
+  public void testNegative ()
+  {
+    final SMPEndpointCache aCache = new SMPEndpointCache (2, 60000, 10000);
+    assertFalse (aCache.isCachedAsUnresolvable (_createKey ("a")));
+    aCache.putUnresolvable (_createKey ("a"));
+    assertTrue (aCache.isCachedAsUnresolvable (_createKey ("a")));
+    assertEquals (1, aCache.getNegativeHitCount ());
+    // A negative entry is not a hit
+    assertNull (aCache.get (_createKey ("a")));
+    assertEquals (0, aCache.getHitCount ());
+
+    // Successful lookup overwrites the negative entry
+    aCache.put (_createKey ("a"), new EndpointType ());
+    assertFalse (aCache.isCachedAsUnresolvable (_createKey ("a")));
+
+    // Negative caching disabled
+    final SMPEndpointCache aCache2 = new SMPEndpointCache (2, 60000, 0);
+    aCache2.putUnresolvable (_createKey ("a"));
+    assertFalse (aCache2.isCachedAsUnresolvable (_createKey ("a")));
+  }
+}
@@ -0,0 +1,263 @@
+/**
+ * Copyright (C) 2015-2016 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Version: MPL 1.1/EUPL 1.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at:
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is Copyright The PEPPOL project (http://www.peppol.eu)
+ *
+ * Alternatively, the contents of this file may be used under the
+ * terms of the EUPL, Version 1.1 or - as soon they will be approved
+ * by the European Commission - subsequent versions of the EUPL
+ * (the "Licence"); You may not use this work except in compliance
+ * with the Licence.
+ * You may obtain a copy of the Licence at:
+ * http://joinup.ec.europa.eu/software/page/eupl/licence-eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ *
+ * If you wish to allow use of your version of this file only
+ * under the terms of the EUPL License and not to allow others to use
+ * your version of this file under the MPL, indicate your decision by
+ * deleting the provisions above and replace them with the notice and
+ * other provisions required by the EUPL License. If you do not delete
+ * the provisions above, a recipient may use your version of this file
+ * under either the MPL or the EUPL License.
+ */
+package com.helger.peppol.lime.server.smp;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import org.junit.Test;
+
+import com.helger.peppol.identifier.generic.participant.IParticipantIdentifier;
+import com.helger.peppol.lime.api.CLIME;
+import com.helger.peppol.sml.ESML;
+import com.helger.peppol.smp.ESMPTransportProfile;
+import com.helger.peppol.smp.EndpointType;
+
+/**
+ * Test class for class {@link SMPEndpointResolver}.
+ *
+ * @author Philip Helger
+ */
+public final class SMPEndpointResolverTest
+{
+  @Nonnull
+  private static SMPEndpointCache _createCache ()
+  {
+    return new SMPEndpointCache (10, 60000, 60000);
+  }
+
+  @Nonnull
+  private static IParticipantIdentifier _createParticipant (@Nonnull final String sValue)
+  {
+    return CLIME.IF.createParticipantIdentifierWithDefaultScheme (sValue);
+  }
+
+  @Nullable
+  private static EndpointType _getEndpoint (@Nonnull final SMPEndpointResolver aResolver,
+                                            @Nonnull final String sParticipantID)
+  {
+    return aResolver.getEndpoint (_createParticipant (sParticipantID),
+                                  CLIME.IF.createDocumentTypeIdentifierWithDefaultScheme ("doc"),
+                                  CLIME.IF.createProcessIdentifierWithDefaultScheme ("proc"),
+                                  ESML.DIGIT_TEST,
+                                  ESMPTransportProfile.TRANSPORT_PROFILE_AS2,
+                                  System.currentTimeMillis () + 10000);
+  }
+
+  @Nonnull
+  private static CompletableFuture <EndpointType> _getEndpointAsync (@Nonnull final SMPEndpointResolver aResolver,
+                                                                     @Nonnull final String sParticipantID)
+  {
+    return aResolver.getEndpointAsync (_createParticipant (sParticipantID),
+                                       CLIME.IF.createDocumentTypeIdentifierWithDefaultScheme ("doc"),
+                                       CLIME.IF.createProcessIdentifierWithDefaultScheme ("proc"),
+                                       ESML.DIGIT_TEST,
+                                       ESMPTransportProfile.TRANSPORT_PROFILE_AS2);
+  }
+
+  @Test
+  public void testCached ()
+  {
+    final AtomicInteger aQueries = new AtomicInteger (0);
+    final EndpointType aEndpoint = new EndpointType ();
+    final SMPEndpointResolver aResolver = new SMPEndpointResolver (_createCache (), 0, (p, d, pr, s, t) -> {
+      aQueries.incrementAndGet ();
+      return aEndpoint;
+    });
+    assertSame (aEndpoint, _getEndpoint (aResolver, "0088:a"));
+    assertSame (aEndpoint, _getEndpoint (aResolver, "0088:a"));
+    assertEquals (1, aQueries.get ());
+
+    // Other participant
+    assertSame (aEndpoint, _getEndpoint (aResolver, "0088:b"));
+    assertEquals (2, aQueries.get ());
+    assertEquals (2, aResolver.getSMPQueryCount ());
+  }
+
+  /**
+   * Concurrent lookups of the same endpoint must result in a single query,
+   * which only returns after all other callers are waiting for it.
+   *
+   * @throws Exception
+   *         on error
+   */
+  @Test
+  public void testCoalescing () throws Exception
+  {
+    final int nThreads = 16;
+    final AtomicInteger aQueries = new AtomicInteger (0);
+    final EndpointType aEndpoint = new EndpointType ();
+    final AtomicReference <SMPEndpointResolver> aResolverRef = new AtomicReference <> ();
+    final SMPEndpointResolver aResolver = new SMPEndpointResolver (_createCache (), 0, (p, d, pr, s, t) -> {
+      aQueries.incrementAndGet ();
+      final long nEnd = System.currentTimeMillis () + 10000;
+      while (aResolverRef.get ().getCoalescedCount () < nThreads - 1 && System.currentTimeMillis () < nEnd)
+        Thread.yield ();
+      return aEndpoint;
+    });
+    aResolverRef.set (aResolver);
+
+    final CountDownLatch aStart = new CountDownLatch (1);
+    final List <Thread> aThreads = new ArrayList <> ();
+    final AtomicInteger aResults = new AtomicInteger (0);
+    for (int i = 0; i < nThreads; ++i)
+    {
+      final Thread aThread = new Thread ( () -> {
+        try
+        {
+          aStart.await ();
+        }
+        catch (final InterruptedException ex)
+        {
+          Thread.currentThread ().interrupt ();
+          return;
+        }
+        if (_getEndpoint (aResolver, "0088:a") == aEndpoint)
+          aResults.incrementAndGet ();
+      });
+      aThreads.add (aThread);
+      aThread.start ();
+    }
+    aStart.countDown ();
+    for (final Thread aThread : aThreads)
+      aThread.join ();
+
+    assertEquals (1, aQueries.get ());
+    assertEquals (nThreads - 1, aResolver.getCoalescedCount ());
+    assertEquals (nThreads, aResults.get ());
+  }
+
+  @Test
+  public void testNegativeCache ()
+  {
+    final AtomicInteger aQueries = new AtomicInteger (0);
+    final SMPEndpointResolver aResolver = new SMPEndpointResolver (_createCache (), 0, (p, d, pr, s, t) -> {
+      aQueries.incrementAndGet ();
+      return null;
+    });
+    assertNull (_getEndpoint (aResolver, "0088:a"));
+    // Not queried again
+    assertNull (_getEndpoint (aResolver, "0088:a"));
+    assertEquals (1, aQueries.get ());
+
+    assertNull (_getEndpoint (aResolver, "0088:b"));
+    assertEquals (2, aQueries.get ());
+  }
+
+  @Test
+  public void testAsyncQueryException () throws Exception
+  {
+    final AtomicInteger aQueries = new AtomicInteger (0);
+    final SMPEndpointResolver aResolver = new SMPEndpointResolver (_createCache (), 2, (p, d, pr, s, t) -> {
+      aQueries.incrementAndGet ();
+      throw new IllegalStateException ("SMP is down");
+    });
+    try
+    {
+      for (int i = 0; i < 2; ++i)
+        assertNull (SMPEndpointResolver.waitForEndpoint (_getEndpointAsync (aResolver, "0088:a"),
+                                                         System.currentTimeMillis () + 10000));
+      // Errors are not cached
+      assertEquals (2, aQueries.get ());
+    }
+    finally
+    {
+      aResolver.shutdown ();
+    }
+  }
+
+  @Test
+  public void testCoalescedWaitUsesDeadline () throws Exception
+  {
+    final CountDownLatch aRelease = new CountDownLatch (1);
+    final EndpointType aEndpoint = new EndpointType ();
+    final SMPEndpointResolver aResolver = new SMPEndpointResolver (_createCache (), 1, (p, d, pr, s, t) -> {
+      try
+      {
+        aRelease.await ();
+      }
+      catch (final InterruptedException ex)
+      {
+        Thread.currentThread ().interrupt ();
+      }
+      return aEndpoint;
+    });
+    try
+    {
+      final CompletableFuture <EndpointType> aFirst = _getEndpointAsync (aResolver, "0088:a");
+      // Joins the running lookup instead of blocking a lookup thread
+      assertSame (aFirst, _getEndpointAsync (aResolver, "0088:a"));
+
+      // A synchronous caller gives up at its deadline
+      final long nStart = System.currentTimeMillis ();
+      assertNull (aResolver.getEndpoint (_createParticipant ("0088:a"),
+                                         CLIME.IF.createDocumentTypeIdentifierWithDefaultScheme ("doc"),
+                                         CLIME.IF.createProcessIdentifierWithDefaultScheme ("proc"),
+                                         ESML.DIGIT_TEST,
+                                         ESMPTransportProfile.TRANSPORT_PROFILE_AS2,
+                                         nStart + 100));
+      assertTrue (System.currentTimeMillis () - nStart < 5000);
+      assertEquals (2, aResolver.getCoalescedCount ());
+
+      aRelease.countDown ();
+      assertSame (aEndpoint, SMPEndpointResolver.waitForEndpoint (aFirst, System.currentTimeMillis () + 10000));
+      assertSame (aEndpoint, _getEndpoint (aResolver, "0088:a"));
+      assertEquals (1, aResolver.getSMPQueryCount ());
+    }
+    finally
+    {
+      aRelease.countDown ();
+      aResolver.shutdown ();
+    }
+  }
+}
@@ -0,0 +1,220 @@
+/**
+ * Copyright (C) 2015-2016 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Version: MPL 1.1/EUPL 1.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at:
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is Copyright The PEPPOL project (http://www.peppol.eu)
+ *
+ * Alternatively, the contents of this file may be used under the
+ * terms of the EUPL, Version 1.1 or - as soon they will be approved
+ * by the European Commission - subsequent versions of the EUPL
+ * (the "Licence"); You may not use this work except in compliance
+ * with the Licence.
+ * You may obtain a copy of the Licence at:
+ * http://joinup.ec.europa.eu/software/page/eupl/licence-eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ *
+ * If you wish to allow use of your version of this file only
+ * under the terms of the EUPL License and not to allow others to use
+ * your version of this file under the MPL, indicate your decision by
+ * deleting the provisions above and replace them with the notice and
+ * other provisions required by the EUPL License. If you do not delete
+ * the provisions above, a recipient may use your version of this file
+ * under either the MPL or the EUPL License.
+ */
+package com.helger.peppol.lime.server.storage;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+
+import javax.annotation.Nonnull;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Test class for class {@link ChannelIndex}.
+ *
+ * @author Philip Helger
+ */
+public final class ChannelIndexTest
+{
+  private File m_aDir;
+
+  @Before
+  public void setUp () throws Exception
+  {
+    m_aDir = Files.createTempDirectory ("lime-channel").toFile ();
+  }
+
+  @After
+  public void tearDown ()
+  {
+    final File [] aFiles = m_aDir.listFiles ();
+    if (aFiles != null)
+      for (final File aFile : aFiles)
+        aFile.delete ();
+    m_aDir.delete ();
+  }
+
+  private void _createPayload (@Nonnull final String sFilename, final int nSize) throws IOException
+  {
+    final File aFile = new File (m_aDir, sFilename);
+    try (final OutputStream aOS = new FileOutputStream (aFile))
+    {
+      aOS.write (new byte [nSize]);
+    }
+    // Ensure a defined creation order
+    aFile.setLastModified (nSize * 1000L);
+  }
+
+  @Nonnull
+  private static List <String> _getMessageIDs (@Nonnull final ChannelIndex aIndex)
+  {
+    final List <String> ret = new ArrayList <> ();
+    for (final ChannelIndex.IndexEntry aEntry : aIndex.getAllEntries ())
+      ret.add (aEntry.getMessageID ());
+    return ret;
+  }
+
+  @Test
+  public void testPersistent () throws Exception
+  {
+    _createPayload ("uuid_1" + LimeStorage.EXT_PAYLOAD, 10);
+    _createPayload ("uuid_2" + LimeStorage.EXT_PAYLOAD, 20);
+    _createPayload ("uuid_3" + LimeStorage.EXT_PAYLOAD, 30);
+
+    ChannelIndex aIndex = ChannelIndex.open (m_aDir);
+    aIndex.remove ("uuid:2");
+    new File (m_aDir, "uuid_2" + LimeStorage.EXT_PAYLOAD).delete ();
+    _createPayload ("uuid_4" + LimeStorage.EXT_PAYLOAD, 40);
+    aIndex.add ("uuid:4", 40, System.currentTimeMillis () + 1000);
+    assertEquals (Arrays.asList ("uuid:1", "uuid:3", "uuid:4"), _getMessageIDs (aIndex));
+    aIndex.close ();
+
+    // Reopen reads the index file
+    aIndex = ChannelIndex.open (m_aDir);
+    assertEquals (3, aIndex.getAllEntries ().size ());
+    assertNull (aIndex.getEntry ("uuid:2"));
+    final ChannelIndex.IndexEntry aEntry = aIndex.getEntry ("uuid:4");
+    assertNotNull (aEntry);
+    assertEquals (40, aEntry.getSize ());
+  }
+
+  @Test
+  public void testReconcileAndRebuild () throws Exception
+  {
+    _createPayload ("uuid_1" + LimeStorage.EXT_PAYLOAD, 10);
+    ChannelIndex.open (m_aDir);
+
+    // Added without the index, e.g. because of a crash
+    _createPayload ("uuid_2" + LimeStorage.EXT_PAYLOAD, 20);
+    ChannelIndex aIndex = ChannelIndex.open (m_aDir);
+    assertEquals (2, aIndex.getAllEntries ().size ());
+    assertEquals (20, aIndex.getEntry ("uuid:2").getSize ());
+
+    // Corrupt index file
+    try (final OutputStream aOS = new FileOutputStream (new File (m_aDir, ChannelIndex.INDEX_FILENAME), true))
+    {
+      aOS.write (new byte [] { 1, 0 });
+    }
+    aIndex = ChannelIndex.open (m_aDir);
+    assertEquals (2, aIndex.getAllEntries ().size ());
+    assertEquals (10, aIndex.getEntry ("uuid:1").getSize ());
+  }
+
+  @Test
+  public void testIncompleteSavesAreDeleted () throws Exception
+  {
+    _createPayload ("uuid_1" + LimeStorage.EXT_METADATA, 1);
+    _createPayload ("uuid_1" + LimeStorage.EXT_PAYLOAD, 10);
+    // Crashed before the payload was renamed
+    _createPayload ("uuid_2" + LimeStorage.EXT_METADATA, 2);
+    _createPayload ("uuid_2" + LimeStorage.EXT_PAYLOAD + LimeStorage.EXT_TEMP, 20);
+    // Crashed while writing
+    _createPayload ("uuid_3" + LimeStorage.EXT_METADATA + LimeStorage.EXT_TEMP, 3);
+
+    final ChannelIndex aIndex = ChannelIndex.open (m_aDir);
+    assertEquals (1, aIndex.getAllEntries ().size ());
+    assertNotNull (aIndex.getEntry ("uuid:1"));
+    assertTrue (new File (m_aDir, "uuid_1" + LimeStorage.EXT_METADATA).exists ());
+    assertFalse (new File (m_aDir, "uuid_2" + LimeStorage.EXT_METADATA).exists ());
+    assertFalse (new File (m_aDir, "uuid_2" + LimeStorage.EXT_PAYLOAD + LimeStorage.EXT_TEMP).exists ());
+    assertFalse (new File (m_aDir, "uuid_3" + LimeStorage.EXT_METADATA + LimeStorage.EXT_TEMP).exists ());
+  }
+
+  @Test
+  public void testAppendAndCompact () throws Exception
+  {
+    final StorageSyncer aSyncer = new StorageSyncer (EStorageDurability.FSYNC, 0);
+    ChannelIndex aIndex = ChannelIndex.open (m_aDir, 0, aSyncer);
+    // Enough changes to compact the index file in between
+    for (int i = 0; i < 3000; ++i)
+    {
+      aIndex.add ("uuid:" + i, i, i);
+      if (i % 3 != 0)
+        aIndex.remove ("uuid:" + i);
+    }
+    final List <String> aExpected = _getMessageIDs (aIndex);
+    assertEquals (1000, aExpected.size ());
+    assertEquals ("uuid:0", aExpected.get (0));
+    assertEquals ("uuid:2997", aExpected.get (999));
+    aIndex.close ();
+
+    // Later changes reopen the index file
+    aIndex.add ("uuid:3000", 3000, 3000);
+    aExpected.add ("uuid:3000");
+    aIndex.close ();
+
+    // Reopen reads the index file
+    for (final String sMessageID : aExpected)
+      _createPayload (sMessageID.replace (':', '_') + LimeStorage.EXT_PAYLOAD, 1);
+    final ChannelIndex aIndex2 = ChannelIndex.open (m_aDir, 0, aSyncer);
+    assertEquals (aExpected, _getMessageIDs (aIndex2));
+    assertEquals (2997, aIndex2.getEntry ("uuid:2997").getSize ());
+
+    final Collection <ChannelIndex.IndexEntry> aEntries = aIndex2.getAllEntries ();
+    try
+    {
+      aEntries.clear ();
+      fail ();
+    }
+    catch (final UnsupportedOperationException ex)
+    {
+      // expected
+    }
+    aIndex2.close ();
+    aSyncer.shutdown ();
+  }
+}
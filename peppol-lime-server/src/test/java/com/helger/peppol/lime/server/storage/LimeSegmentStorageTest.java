@@ -0,0 +1,148 @@
+/**
+ * Copyright (C) 2015-2016 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Version: MPL 1.1/EUPL 1.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at:
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is Copyright The PEPPOL project (http://www.peppol.eu)
+ *
+ * Alternatively, the contents of this file may be used under the
+ * terms of the EUPL, Version 1.1 or - as soon they will be approved
+ * by the European Commission - subsequent versions of the EUPL
+ * (the "Licence"); You may not use this work except in compliance
+ * with the Licence.
+ * You may obtain a copy of the Licence at:
+ * http://joinup.ec.europa.eu/software/page/eupl/licence-eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ *
+ * If you wish to allow use of your version of this file only
+ * under the terms of the EUPL License and not to allow others to use
+ * your version of this file under the MPL, indicate your decision by
+ * deleting the provisions above and replace them with the notice and
+ * other provisions required by the EUPL License. If you do not delete
+ * the provisions above, a recipient may use your version of this file
+ * under either the MPL or the EUPL License.
+ */
+package com.helger.peppol.lime.server.storage;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.StringReader;
+import java.nio.file.Files;
+
+import javax.annotation.Nonnull;
+import javax.xml.transform.Source;
+import javax.xml.transform.stream.StreamSource;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.w3c.dom.Document;
+
+import com.helger.commons.io.file.FileOperations;
+import com.helger.xml.XMLFactory;
+
+/**
+ * Test class for class {@link LimeSegmentStorage}.
+ *
+ * @author Philip Helger
+ */
+public final class LimeSegmentStorageTest
+{
+  private File m_aDir;
+
+  @Before
+  public void setUp () throws Exception
+  {
+    m_aDir = Files.createTempDirectory ("lime-segment-storage").toFile ();
+  }
+
+  @After
+  public void tearDown ()
+  {
+    FileOperations.deleteDirRecursive (m_aDir);
+  }
+
+  @Nonnull
+  private LimeSegmentStorage _createStorage (@Nonnull final PayloadCompression aCompression)
+  {
+    return new LimeSegmentStorage (m_aDir.getAbsolutePath (),
+                                   x -> LimeStorage.DEFAULT_RETENTION_MILLIS,
+                                   new StorageSyncer (EStorageDurability.NONE, 0),
+                                   aCompression,
+                                   LimeSegmentStorage.DEFAULT_SEGMENT_SIZE);
+  }
+
+  @Nonnull
+  private LimeSegmentStorage _createStorage ()
+  {
+    return _createStorage (PayloadCompression.NONE);
+  }
+
+  @Nonnull
+  private static Source _createPayload (final int nID)
+  {
+    return new StreamSource (new StringReader ("<Invoice xmlns=\"urn:test\"><ID>" + nID + "</ID></Invoice>"));
+  }
+
+  @Test
+  public void testReopenChannelWithUnderscore () throws Exception
+  {
+    final Document aMetadata = XMLFactory.newDocument ();
+    aMetadata.appendChild (aMetadata.createElement ("metadata"));
+
+    final LimeSegmentStorage aOldStorage = _createStorage ();
+    aOldStorage.saveDocument ("a_b", "msg:1", aMetadata, _createPayload (1));
+    aOldStorage.saveDocument ("a_b", "msg:2", aMetadata, _createPayload (2));
+    aOldStorage.close ();
+
+    // The segments opened on startup must be the ones used by the client
+    final LimeSegmentStorage aStorage = _createStorage ();
+    aStorage.openAllChannels ();
+    aStorage.deleteDocument ("a_b", "msg:1");
+    assertEquals (1, aStorage.expireMessages (Long.MAX_VALUE, 10));
+    assertEquals (0, aStorage.getMessageIDs ("a_b").length);
+    aStorage.close ();
+  }
+
+  @Test
+  public void testCompressedPayloadSize () throws Exception
+  {
+    final Document aMetadata = XMLFactory.newDocument ();
+    aMetadata.appendChild (aMetadata.createElement ("metadata"));
+    final StringBuilder aSB = new StringBuilder ("<Invoice xmlns=\"urn:test\">");
+    for (int i = 0; i < 500; ++i)
+      aSB.append ("<InvoiceLine><ID>").append (i).append ("</ID></InvoiceLine>");
+    final String sPayload = aSB.append ("</Invoice>").toString ();
+    final long nSize = PayloadCompression.NONE.writePayload (new StreamSource (new StringReader (sPayload)),
+                                                             new ByteArrayOutputStream ());
+    final long nSizeInKB = (nSize + 1023) / 1024;
+
+    LimeSegmentStorage aStorage = _createStorage (new PayloadCompression (EStorageCompression.DEFLATE, 9));
+    aStorage.saveDocument ("channel:1", "msg:1", aMetadata, new StreamSource (new StringReader (sPayload)));
+    // The uncompressed size is reported, also after reopening
+    assertEquals (nSizeInKB, aStorage.getSize ("channel:1", "msg:1"));
+    aStorage.close ();
+
+    aStorage = _createStorage ();
+    assertEquals (nSizeInKB, aStorage.getSize ("channel:1", "msg:1"));
+    aStorage.close ();
+  }
+}
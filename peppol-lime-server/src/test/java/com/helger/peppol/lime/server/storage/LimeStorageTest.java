@@ -0,0 +1,297 @@
+/**
+ * Copyright (C) 2015-2016 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Version: MPL 1.1/EUPL 1.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at:
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is Copyright The PEPPOL project (http://www.peppol.eu)
+ *
+ * Alternatively, the contents of this file may be used under the
+ * terms of the EUPL, Version 1.1 or - as soon they will be approved
+ * by the European Commission - subsequent versions of the EUPL
+ * (the "Licence"); You may not use this work except in compliance
+ * with the Licence.
+ * You may obtain a copy of the Licence at:
+ * http://joinup.ec.europa.eu/software/page/eupl/licence-eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ *
+ * If you wish to allow use of your version of this file only
+ * under the terms of the EUPL License and not to allow others to use
+ * your version of this file under the MPL, indicate your decision by
+ * deleting the provisions above and replace them with the notice and
+ * other provisions required by the EUPL License. If you do not delete
+ * the provisions above, a recipient may use your version of this file
+ * under either the MPL or the EUPL License.
+ */
+package com.helger.peppol.lime.server.storage;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import javax.annotation.Nonnull;
+import javax.xml.transform.Source;
+import javax.xml.transform.stream.StreamSource;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.w3c.dom.Document;
+
+import com.helger.commons.io.file.FileOperations;
+import com.helger.xml.XMLFactory;
+
+/**
+ * Test class for class {@link LimeStorage}.
+ *
+ * @author Philip Helger
+ */
+public final class LimeStorageTest
+{
+  private File m_aDir;
+
+  @Before
+  public void setUp () throws Exception
+  {
+    m_aDir = Files.createTempDirectory ("lime-storage").toFile ();
+  }
+
+  @After
+  public void tearDown ()
+  {
+    FileOperations.deleteDirRecursive (m_aDir);
+  }
+
+  @Test
+  public void testSaveStreamSource () throws Exception
+  {
+    final LimeStorage aStorage = new LimeStorage (m_aDir.getAbsolutePath ());
+    final Document aMetadata = XMLFactory.newDocument ();
+    aMetadata.appendChild (aMetadata.createElement ("metadata"));
+
+    aStorage.saveDocument ("channel:1",
+                           "msg:1",
+                           aMetadata,
+                           new StreamSource (new StringReader ("<Invoice xmlns=\"urn:test\"><ID>1</ID></Invoice>")));
+    assertArrayEquals (new String [] { "msg:1" }, aStorage.getMessageIDs ("channel:1"));
+
+    final File aPayloadFile = new File (m_aDir, LimeStorage.INBOX_DIR + "/channel_1/msg_1" + LimeStorage.EXT_PAYLOAD);
+    final String sPayload = new String (Files.readAllBytes (aPayloadFile.toPath ()), StandardCharsets.UTF_8);
+    assertTrue (sPayload.contains ("<Invoice xmlns=\"urn:test\"><ID>1</ID></Invoice>"));
+    assertEquals (1, aStorage.getSize ("channel:1", "msg:1"));
+    assertEquals ("1", aStorage.getDocument ("channel:1", "msg:1").getDocumentElement ().getTextContent ());
+
+    aStorage.deleteDocument ("channel:1", "msg:1");
+    assertEquals (0, aStorage.getMessageIDs ("channel:1").length);
+  }
+
+  @Nonnull
+  private static Source _createPayload (final int nID)
+  {
+    return new StreamSource (new StringReader ("<Invoice xmlns=\"urn:test\"><ID>" + nID + "</ID></Invoice>"));
+  }
+
+  @Nonnull
+  private static String _createLargePayload ()
+  {
+    final StringBuilder aSB = new StringBuilder ("<Invoice xmlns=\"urn:test\">");
+    for (int i = 0; i < 500; ++i)
+      aSB.append ("<InvoiceLine><ID>").append (i).append ("</ID></InvoiceLine>");
+    return aSB.append ("</Invoice>").toString ();
+  }
+
+  @Test
+  public void testCompressedPayloadSize () throws Exception
+  {
+    final Document aMetadata = XMLFactory.newDocument ();
+    aMetadata.appendChild (aMetadata.createElement ("metadata"));
+    final String sPayload = _createLargePayload ();
+    final long nSize = PayloadCompression.NONE.writePayload (new StreamSource (new StringReader (sPayload)),
+                                                             new ByteArrayOutputStream ());
+    final long nSizeInKB = (nSize + 1023) / 1024;
+
+    LimeStorage aStorage = new LimeStorage (m_aDir.getAbsolutePath (),
+                                            x -> LimeStorage.DEFAULT_RETENTION_MILLIS,
+                                            new StorageSyncer (EStorageDurability.NONE, 0),
+                                            new PayloadCompression (EStorageCompression.GZIP, 9),
+                                            0);
+    aStorage.saveDocument ("channel:1", "msg:1", aMetadata, new StreamSource (new StringReader (sPayload)));
+    final File aChannelDir = new File (m_aDir, LimeStorage.INBOX_DIR + "/channel_1");
+    final File aPayloadFile = new File (aChannelDir, "msg_1" + LimeStorage.EXT_PAYLOAD);
+    assertTrue (aPayloadFile.length () * 5 < nSize);
+    // The uncompressed size is reported
+    assertEquals (nSizeInKB, aStorage.getSize ("channel:1", "msg:1"));
+    aStorage.close ();
+
+    // Same if the message is not indexed
+    assertTrue (new File (aChannelDir, ChannelIndex.INDEX_FILENAME).delete ());
+    aStorage = new LimeStorage (m_aDir.getAbsolutePath ());
+    assertEquals (nSizeInKB, aStorage.getSize ("channel:1", "msg:1"));
+    aStorage.close ();
+  }
+
+  @Test
+  public void testSaveAfterChannelDirWasDeleted () throws Exception
+  {
+    final Document aMetadata = XMLFactory.newDocument ();
+    aMetadata.appendChild (aMetadata.createElement ("metadata"));
+
+    final LimeStorage aStorage = new LimeStorage (m_aDir.getAbsolutePath ());
+    aStorage.saveDocument ("channel:1", "msg:1", aMetadata, _createPayload (1));
+    FileOperations.deleteDirRecursive (new File (m_aDir, LimeStorage.INBOX_DIR + "/channel_1"));
+
+    // The directory is created again
+    aStorage.saveDocument ("channel:1", "msg:2", aMetadata, _createPayload (2));
+    assertEquals ("2", aStorage.getDocument ("channel:1", "msg:2").getDocumentElement ().getTextContent ());
+    aStorage.close ();
+
+    // The index file was written again
+    final LimeStorage aStorage2 = new LimeStorage (m_aDir.getAbsolutePath ());
+    assertArrayEquals (new String [] { "msg:2" }, aStorage2.getMessageIDs ("channel:1"));
+    aStorage2.close ();
+  }
+
+  @Test
+  public void testFailedSaveKeepsSavesInProgress () throws Exception
+  {
+    final Document aMetadata = XMLFactory.newDocument ();
+    aMetadata.appendChild (aMetadata.createElement ("metadata"));
+
+    final LimeStorage aStorage = new LimeStorage (m_aDir.getAbsolutePath ());
+    aStorage.saveDocument ("channel:1", "msg:1", aMetadata, _createPayload (1));
+
+    // Make the next save fail
+    final File aChannelDir = new File (m_aDir, LimeStorage.INBOX_DIR + "/channel_1");
+    FileOperations.deleteDirRecursive (aChannelDir);
+    assertTrue (aChannelDir.createNewFile ());
+    try
+    {
+      aStorage.saveDocument ("channel:1", "msg:2", aMetadata, _createPayload (2));
+      fail ();
+    }
+    catch (final IOException ex)
+    {
+      // expected
+    }
+    assertTrue (aChannelDir.delete ());
+
+    // Another save is still writing its temporary files
+    assertTrue (aChannelDir.mkdir ());
+    final File aTempFile = new File (aChannelDir, "msg_3" + LimeStorage.EXT_PAYLOAD + LimeStorage.EXT_TEMP);
+    assertTrue (aTempFile.createNewFile ());
+
+    aStorage.saveDocument ("channel:1", "msg:4", aMetadata, _createPayload (4));
+    assertTrue (aTempFile.exists ());
+    aStorage.close ();
+  }
+
+  @Test
+  public void testReopenChannelWithUnderscore () throws Exception
+  {
+    final Document aMetadata = XMLFactory.newDocument ();
+    aMetadata.appendChild (aMetadata.createElement ("metadata"));
+
+    final LimeStorage aOldStorage = new LimeStorage (m_aDir.getAbsolutePath ());
+    aOldStorage.saveDocument ("a_b", "msg:1", aMetadata, _createPayload (1));
+    aOldStorage.saveDocument ("a_b", "msg:2", aMetadata, _createPayload (2));
+    aOldStorage.close ();
+    assertEquals ("a_b",
+                  new String (Files.readAllBytes (m_aDir.toPath ()
+                                                        .resolve (LimeStorage.INBOX_DIR)
+                                                        .resolve ("a_b")
+                                                        .resolve (LimeStorage.CHANNEL_ID_FILENAME)),
+                              StandardCharsets.UTF_8));
+
+    // The index opened on startup must be the one used by the client
+    final LimeStorage aStorage = new LimeStorage (m_aDir.getAbsolutePath ());
+    aStorage.openAllChannels ();
+    aStorage.deleteDocument ("a_b", "msg:1");
+    assertEquals (1, aStorage.expireMessages (Long.MAX_VALUE, 10));
+    assertEquals (0, aStorage.getMessageIDs ("a_b").length);
+    aStorage.close ();
+  }
+
+  @Test
+  public void testShardedLayout () throws Exception
+  {
+    final Document aMetadata = XMLFactory.newDocument ();
+    aMetadata.appendChild (aMetadata.createElement ("metadata"));
+
+    // Fill the flat layout
+    final LimeStorage aFlatStorage = new LimeStorage (m_aDir.getAbsolutePath ());
+    for (int i = 1; i <= 3; ++i)
+      aFlatStorage.saveDocument ("channel:1", "msg:" + i, aMetadata, _createPayload (i));
+    aFlatStorage.close ();
+
+    final LimeStorage aStorage = new LimeStorage (m_aDir.getAbsolutePath (),
+                                                  x -> LimeStorage.DEFAULT_RETENTION_MILLIS,
+                                                  new StorageSyncer (EStorageDurability.NONE, 0),
+                                                  PayloadCompression.NONE,
+                                                  2);
+    assertFalse (aStorage.isShardMigrationComplete ());
+    assertEquals (3, aStorage.getMessageIDs ("channel:1").length);
+    assertEquals ("2", aStorage.getDocument ("channel:1", "msg:2").getDocumentElement ().getTextContent ());
+
+    // New messages go to the shards right away
+    aStorage.saveDocument ("channel:1", "msg:4", aMetadata, _createPayload (4));
+    final File aChannelDir = new File (m_aDir, LimeStorage.INBOX_DIR + "/channel_1");
+    final File aFlatPayload4 = new File (aChannelDir, "msg_4" + LimeStorage.EXT_PAYLOAD);
+    assertFalse (aFlatPayload4.exists ());
+    try (final Stream <Path> aPaths = Files.walk (aChannelDir.toPath ()))
+    {
+      final List <Path> aPayloads = aPaths.filter (p -> p.getFileName ().toString ().equals (aFlatPayload4.getName ()))
+                                          .collect (Collectors.toList ());
+      assertEquals (1, aPayloads.size ());
+      assertEquals (3, aChannelDir.toPath ().relativize (aPayloads.get (0)).getNameCount ());
+    }
+
+    // Move the old messages
+    assertEquals (3, aStorage.migrateToShards (100));
+    assertEquals (0, aChannelDir.list ( (d, n) -> n.endsWith (LimeStorage.EXT_PAYLOAD)).length);
+    assertEquals (0, aStorage.migrateToShards (100));
+    assertTrue (aStorage.isShardMigrationComplete ());
+    for (int i = 1; i <= 4; ++i)
+      assertEquals (Integer.toString (i),
+                    aStorage.getDocument ("channel:1", "msg:" + i).getDocumentElement ().getTextContent ());
+
+    // The index is rebuilt from the shards
+    aStorage.close ();
+    final LimeStorage aReopened = new LimeStorage (m_aDir.getAbsolutePath (),
+                                                   x -> LimeStorage.DEFAULT_RETENTION_MILLIS,
+                                                   new StorageSyncer (EStorageDurability.NONE, 0),
+                                                   PayloadCompression.NONE,
+                                                   2);
+    assertEquals (4, aReopened.getMessageIDs ("channel:1").length);
+    aReopened.deleteDocument ("channel:1", "msg:1");
+    assertEquals (3, aReopened.getMessageIDs ("channel:1").length);
+    aReopened.close ();
+  }
+}
@@ -0,0 +1,123 @@
+/**
+ * Copyright (C) 2015-2016 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Version: MPL 1.1/EUPL 1.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at:
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is Copyright The PEPPOL project (http://www.peppol.eu)
+ *
+ * Alternatively, the contents of this file may be used under the
+ * terms of the EUPL, Version 1.1 or - as soon they will be approved
+ * by the European Commission - subsequent versions of the EUPL
+ * (the "Licence"); You may not use this work except in compliance
+ * with the Licence.
+ * You may obtain a copy of the Licence at:
+ * http://joinup.ec.europa.eu/software/page/eupl/licence-eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ *
+ * If you wish to allow use of your version of this file only
+ * under the terms of the EUPL License and not to allow others to use
+ * your version of this file under the MPL, indicate your decision by
+ * deleting the provisions above and replace them with the notice and
+ * other provisions required by the EUPL License. If you do not delete
+ * the provisions above, a recipient may use your version of this file
+ * under either the MPL or the EUPL License.
+ */
+package com.helger.peppol.lime.server.storage;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.InputStream;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+import javax.annotation.Nonnull;
+import javax.xml.transform.stream.StreamSource;
+
+import org.junit.Test;
+
+/**
+ * Test class for class {@link PayloadCompression}.
+ *
+ * @author Philip Helger
+ */
+public final class PayloadCompressionTest
+{
+  @Nonnull
+  private static String _read (@Nonnull final byte [] aBytes) throws Exception
+  {
+    try (final InputStream aIS = PayloadCompression.getPayloadInputStream (new ByteArrayInputStream (aBytes));
+         final ByteArrayOutputStream aBAOS = new ByteArrayOutputStream ())
+    {
+      final byte [] aBuffer = new byte [1024];
+      int n;
+      while ((n = aIS.read (aBuffer)) >= 0)
+        aBAOS.write (aBuffer, 0, n);
+      return new String (aBAOS.toByteArray (), StandardCharsets.UTF_8);
+    }
+  }
+
+  @Test
+  public void testRoundTrip () throws Exception
+  {
+    final StringBuilder aSB = new StringBuilder ("<Invoice>");
+    for (int i = 0; i < 100; ++i)
+      aSB.append ("<InvoiceLine><ID>").append (i).append ("</ID></InvoiceLine>");
+    final String sXML = aSB.append ("</Invoice>").toString ();
+
+    final ByteArrayOutputStream aPlain = new ByteArrayOutputStream ();
+    final long nSize = PayloadCompression.NONE.writePayload (new StreamSource (new StringReader (sXML)), aPlain);
+    assertEquals (aPlain.size (), nSize);
+    // Uncompressed payloads are read as they are
+    assertEquals (new String (aPlain.toByteArray (), StandardCharsets.UTF_8), _read (aPlain.toByteArray ()));
+    assertTrue (_read (aPlain.toByteArray ()).contains (sXML));
+
+    for (final EStorageCompression eCompression : new EStorageCompression [] { EStorageCompression.DEFLATE,
+                                                                              EStorageCompression.GZIP })
+    {
+      final ByteArrayOutputStream aCompressed = new ByteArrayOutputStream ();
+      // The uncompressed size is returned
+      assertEquals (nSize,
+                    new PayloadCompression (eCompression, 9).writePayload (new StreamSource (new StringReader (sXML)),
+                                                                           aCompressed));
+      final byte [] aBytes = aCompressed.toByteArray ();
+      assertEquals (0, aBytes[0]);
+      assertEquals (eCompression.getMarkerID (), aBytes[3]);
+      assertTrue (aBytes.length * 5 < aPlain.size ());
+      assertTrue (_read (aBytes).contains (sXML));
+
+      final File aFile = File.createTempFile ("lime-payload", ".tmp");
+      try
+      {
+        Files.write (aFile.toPath (), aBytes);
+        assertEquals (nSize, PayloadCompression.getUncompressedSize (aFile));
+        Files.write (aFile.toPath (), aPlain.toByteArray ());
+        assertEquals (nSize, PayloadCompression.getUncompressedSize (aFile));
+      }
+      finally
+      {
+        Files.delete (aFile.toPath ());
+      }
+    }
+  }
+}
@@ -0,0 +1,186 @@
+/**
+ * Copyright (C) 2015-2016 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Version: MPL 1.1/EUPL 1.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at:
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is Copyright The PEPPOL project (http://www.peppol.eu)
+ *
+ * Alternatively, the contents of this file may be used under the
+ * terms of the EUPL, Version 1.1 or - as soon they will be approved
+ * by the European Commission - subsequent versions of the EUPL
+ * (the "Licence"); You may not use this work except in compliance
+ * with the Licence.
+ * You may obtain a copy of the Licence at:
+ * http://joinup.ec.europa.eu/software/page/eupl/licence-eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ *
+ * If you wish to allow use of your version of this file only
+ * under the terms of the EUPL License and not to allow others to use
+ * your version of this file under the MPL, indicate your decision by
+ * deleting the provisions above and replace them with the notice and
+ * other provisions required by the EUPL License. If you do not delete
+ * the provisions above, a recipient may use your version of this file
+ * under either the MPL or the EUPL License.
+ */
+package com.helger.peppol.lime.server.storage;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStream;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+import javax.annotation.Nonnull;
+import javax.xml.transform.stream.StreamSource;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.w3c.dom.Document;
+
+import com.helger.commons.io.file.FileOperations;
+import com.helger.xml.XMLFactory;
+
+/**
+ * Test class for class {@link SegmentChannel}.
+ *
+ * @author Philip Helger
+ */
+public final class SegmentChannelTest
+{
+  private final StorageSyncer m_aSyncer = new StorageSyncer (EStorageDurability.NONE, 0);
+  private File m_aDir;
+
+  @Before
+  public void setUp () throws Exception
+  {
+    m_aDir = Files.createTempDirectory ("lime-segments").toFile ();
+  }
+
+  @After
+  public void tearDown ()
+  {
+    FileOperations.deleteDirRecursive (m_aDir);
+  }
+
+  @Nonnull
+  private static Document _createMetadata ()
+  {
+    final Document ret = XMLFactory.newDocument ();
+    ret.appendChild (ret.createElement ("metadata"));
+    return ret;
+  }
+
+  private static void _append (@Nonnull final SegmentChannel aChannel, @Nonnull final String sMessageID) throws Exception
+  {
+    assertTrue (aChannel.append (sMessageID,
+                                 _createMetadata (),
+                                 new StreamSource (new StringReader ("<Invoice>" + sMessageID + "</Invoice>")),
+                                 System.currentTimeMillis ()));
+  }
+
+  @Nonnull
+  private static String _readPayload (@Nonnull final SegmentChannel aChannel,
+                                      @Nonnull final String sMessageID) throws Exception
+  {
+    return new String (aChannel.readPayload (sMessageID), StandardCharsets.UTF_8);
+  }
+
+  private int _getSegmentCount ()
+  {
+    return m_aDir.list ( (d, n) -> n.endsWith (SegmentChannel.SEGMENT_EXTENSION)).length;
+  }
+
+  @Test
+  public void testAppendAndReopen () throws Exception
+  {
+    SegmentChannel aChannel = SegmentChannel.open (m_aDir, 1024 * 1024, m_aSyncer, PayloadCompression.NONE);
+    _append (aChannel, "msg:1");
+    _append (aChannel, "msg:2");
+    assertFalse (aChannel.append ("msg:2",
+                                  _createMetadata (),
+                                  new StreamSource (new StringReader ("<x/>")),
+                                  System.currentTimeMillis ()));
+    assertTrue (aChannel.delete ("msg:1"));
+    assertFalse (aChannel.delete ("msg:1"));
+    aChannel.close ();
+
+    aChannel = SegmentChannel.open (m_aDir, 1024 * 1024, m_aSyncer, PayloadCompression.NONE);
+    assertEquals (1, aChannel.getAllRecords ().size ());
+    assertNull (aChannel.getRecord ("msg:1"));
+    assertTrue (_readPayload (aChannel, "msg:2").contains ("<Invoice>msg:2</Invoice>"));
+    assertTrue (new String (aChannel.readMetadata ("msg:2"), StandardCharsets.UTF_8).contains ("metadata"));
+    aChannel.close ();
+  }
+
+  @Test
+  public void testTornRecordIsTruncated () throws Exception
+  {
+    SegmentChannel aChannel = SegmentChannel.open (m_aDir, 1024 * 1024, m_aSyncer, PayloadCompression.NONE);
+    _append (aChannel, "msg:1");
+    aChannel.close ();
+
+    final File aSegment = m_aDir.listFiles ( (d, n) -> n.endsWith (SegmentChannel.SEGMENT_EXTENSION))[0];
+    final long nLength = aSegment.length ();
+    // A record header cut off by a crash
+    try (final OutputStream aOS = new FileOutputStream (aSegment, true))
+    {
+      aOS.write (new byte [] { 1, 0, 5, 'm', 's' });
+    }
+
+    aChannel = SegmentChannel.open (m_aDir, 1024 * 1024, m_aSyncer, PayloadCompression.NONE);
+    assertEquals (nLength, aSegment.length ());
+    _append (aChannel, "msg:2");
+    assertTrue (_readPayload (aChannel, "msg:1").contains ("msg:1"));
+    assertTrue (_readPayload (aChannel, "msg:2").contains ("msg:2"));
+    aChannel.close ();
+  }
+
+  @Test
+  public void testCompaction () throws Exception
+  {
+    // Every message starts a new segment
+    SegmentChannel aChannel = SegmentChannel.open (m_aDir, 1, m_aSyncer, PayloadCompression.NONE);
+    for (int i = 0; i < 5; ++i)
+      _append (aChannel, "msg:" + i);
+    for (int i = 0; i < 4; ++i)
+      if (i != 2)
+        aChannel.delete ("msg:" + i);
+    final int nSegments = _getSegmentCount ();
+
+    assertTrue (aChannel.compact () > 0);
+    assertTrue (_getSegmentCount () < nSegments);
+    assertEquals (2, aChannel.getAllRecords ().size ());
+    assertTrue (_readPayload (aChannel, "msg:2").contains ("msg:2"));
+    aChannel.close ();
+
+    // Deleted messages must not come back
+    aChannel = SegmentChannel.open (m_aDir, 1, m_aSyncer, PayloadCompression.NONE);
+    assertEquals (2, aChannel.getAllRecords ().size ());
+    assertTrue (_readPayload (aChannel, "msg:2").contains ("msg:2"));
+    assertTrue (_readPayload (aChannel, "msg:4").contains ("msg:4"));
+    aChannel.close ();
+  }
+}
@@ -0,0 +1,168 @@
+/**
+ * Copyright (C) 2015-2016 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Version: MPL 1.1/EUPL 1.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at:
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is Copyright The PEPPOL project (http://www.peppol.eu)
+ *
+ * Alternatively, the contents of this file may be used under the
+ * terms of the EUPL, Version 1.1 or - as soon they will be approved
+ * by the European Commission - subsequent versions of the EUPL
+ * (the "Licence"); You may not use this work except in compliance
+ * with the Licence.
+ * You may obtain a copy of the Licence at:
+ * http://joinup.ec.europa.eu/software/page/eupl/licence-eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ *
+ * If you wish to allow use of your version of this file only
+ * under the terms of the EUPL License and not to allow others to use
+ * your version of this file under the MPL, indicate your decision by
+ * deleting the provisions above and replace them with the notice and
+ * other provisions required by the EUPL License. If you do not delete
+ * the provisions above, a recipient may use your version of this file
+ * under either the MPL or the EUPL License.
+ */
+package com.helger.peppol.lime.server.storage;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+/**
+ * Test class for class {@link StorageSyncer}.
+ *
+ * @author Philip Helger
+ */
+public final class StorageSyncerTest
+{
+  @Test
+  public void testGroupCommit () throws Exception
+  {
+    final Path aDir = Files.createTempDirectory ("lime-sync");
+    final StorageSyncer aSyncer = new StorageSyncer (EStorageDurability.GROUP, 5);
+    final ExecutorService aES = Executors.newFixedThreadPool (8);
+    try
+    {
+      final List <Future <?>> aFutures = new ArrayList <> ();
+      for (int i = 0; i < 32; ++i)
+      {
+        final Path aFile = aDir.resolve ("file" + i);
+        Files.write (aFile, new byte [] { (byte) i });
+        aFutures.add (aES.submit ( () -> {
+          aSyncer.sync (aFile, aDir);
+          return null;
+        }));
+      }
+      for (final Future <?> aFuture : aFutures)
+        aFuture.get ();
+
+      // A failing file only fails its own request
+      try
+      {
+        aSyncer.sync (aDir.resolve ("missing"));
+        fail ();
+      }
+      catch (final IOException ex)
+      {
+        // expected
+      }
+      aSyncer.sync (aDir.resolve ("file0"));
+    }
+    finally
+    {
+      aES.shutdown ();
+      aSyncer.shutdown ();
+      final File [] aFiles = aDir.toFile ().listFiles ();
+      if (aFiles != null)
+        for (final File aFile : aFiles)
+          aFile.delete ();
+      Files.delete (aDir);
+    }
+    assertEquals (EStorageDurability.GROUP, aSyncer.getDurability ());
+  }
+
+  @Test
+  public void testShutdownDoesNotBlockCallers () throws Exception
+  {
+    final Path aFile = Files.createTempFile ("lime-sync", ".tmp");
+    final StorageSyncer aSyncer = new StorageSyncer (EStorageDurability.GROUP, 1);
+    final ExecutorService aES = Executors.newFixedThreadPool (4);
+    try
+    {
+      final List <Future <?>> aFutures = new ArrayList <> ();
+      for (int i = 0; i < 4; ++i)
+        aFutures.add (aES.submit ( () -> {
+          // Until the syncer refuses further requests
+          while (true)
+            try
+            {
+              aSyncer.sync (aFile);
+            }
+            catch (final IOException ex)
+            {
+              return null;
+            }
+        }));
+      Thread.sleep (50);
+      aSyncer.shutdown ();
+
+      // All callers return long before the sync timeout
+      for (final Future <?> aFuture : aFutures)
+        aFuture.get (10, TimeUnit.SECONDS);
+    }
+    finally
+    {
+      aES.shutdownNow ();
+      Files.delete (aFile);
+    }
+  }
+
+  @Test
+  public void testSyncAfterShutdown () throws Exception
+  {
+    final Path aFile = Files.createTempFile ("lime-sync", ".tmp");
+    final StorageSyncer aSyncer = new StorageSyncer (EStorageDurability.GROUP, 1);
+    aSyncer.shutdown ();
+    try
+    {
+      aSyncer.sync (aFile);
+      fail ();
+    }
+    catch (final IOException ex)
+    {
+      // expected
+    }
+    finally
+    {
+      Files.delete (aFile);
+    }
+  }
+}